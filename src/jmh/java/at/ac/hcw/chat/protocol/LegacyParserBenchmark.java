@@ -0,0 +1,59 @@
+package at.ac.hcw.chat.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The client's side of every v1 line: splitting it into (type, fields) before the
+ * UI sees it. Runs on the client's reader for every chat line and presence change.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LegacyParserBenchmark {
+    private final String chatLine = "alice|/at/ac/hcw/chat/client/images/profile3.jpeg|Hello everybody, the slides are online|48213";
+    private final String privateLine = "[Private from alice]|/at/ac/hcw/chat/client/images/profile3.jpeg|are you coming tomorrow?";
+    private final String presenceLine = "PRESENCE:JOIN:1042:bob";
+    private String userListLine;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder("USERLIST:");
+        for (int i = 0; i < 100; i++) sb.append("user").append(i).append(",");
+        userListLine = sb.toString();
+    }
+
+    @Benchmark
+    public void chat(Blackhole blackhole) {
+        LegacyParser.parse(chatLine, (type, fields) -> blackhole.consume(fields));
+    }
+
+    @Benchmark
+    public void privateMessage(Blackhole blackhole) {
+        LegacyParser.parse(privateLine, (type, fields) -> blackhole.consume(fields));
+    }
+
+    @Benchmark
+    public void presenceDelta(Blackhole blackhole) {
+        LegacyParser.parse(presenceLine, (type, fields) -> blackhole.consume(fields));
+    }
+
+    @Benchmark
+    public void userList100(Blackhole blackhole) {
+        LegacyParser.parse(userListLine, (type, fields) -> blackhole.consume(fields));
+    }
+}
@@ -0,0 +1,23 @@
+package at.ac.hcw.chat.server;
+
+/**
+ * Shared setup of the hub benchmarks.
+ */
+final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    /**
+     * A hub without history, cluster or sockets, with the given number of logged-in
+     * connections. The console log is switched off, so the benchmarks measure the hub
+     * and not the logger.
+     */
+    static ChatHub hubWith(int users, int protocolVersion, String capabilities) {
+        // Large queues: the in-memory writers drain them synchronously anyway
+        ChatHub hub = new ChatHub(new ServerConfig().historyDir("off").outboundCapacity(4096).logLevel(LogLevel.OFF));
+        for (int i = 0; i < users; i++) {
+            new InMemoryConnection(hub, protocolVersion).login("user" + i, capabilities);
+        }
+        return hub;
+    }
+}
@@ -0,0 +1,57 @@
+package at.ac.hcw.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One public message fanned out to N in-memory writers, from the received line to
+ * the bytes copied into every writer's buffer: routing, message id, one shared
+ * packet, N queue operations and the lazy encoding per protocol version.
+ *
+ * With "-prof gc", gc.alloc.rate.norm is the allocation per broadcast, which
+ * should stay flat as the number of recipients grows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BroadcastBenchmark {
+    @Param({ "10", "100", "1000" })
+    public int recipients;
+
+    // Wire format of all recipients: Packet.V1 (text lines), Packet.V2 (frames) or Packet.V2_INTERNED
+    @Param({ "1", "2", "3" })
+    public int protocolVersion;
+
+    private InMemoryConnection sender;
+    private final String text = "Hello everybody, the slides for today are online";
+
+    @Setup
+    public void setup() {
+        ChatHub hub = Benchmarks.hubWith(recipients - 1, protocolVersion, "presence-deltas");
+        sender = new InMemoryConnection(hub, protocolVersion).login("sender", "presence-deltas");
+    }
+
+    @Benchmark
+    public void publicMessage() {
+        sender.hub().onLine(sender, text);
+    }
+
+    @Benchmark
+    public void privateMessage() {
+        sender.hub().onLine(sender, "@user0: " + text);
+    }
+}
@@ -0,0 +1,59 @@
+package at.ac.hcw.chat.server;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A connection without a socket for the benchmarks: every queued packet is drained
+ * right away and copied into a reusable buffer, like a writer that never blocks.
+ * So a benchmark pays for queueing, lazy encoding and the copy, but not for the kernel.
+ */
+final class InMemoryConnection extends Connection {
+    private final ByteBuffer socketBuffer = ByteBuffer.allocate(64 * 1024);
+    private final ChatHub hub;
+    long bytesWritten;
+
+    InMemoryConnection(ChatHub hub, int protocolVersion) {
+        super(hub);
+        this.hub = hub;
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     * Logs in through the hub's v1 entry point; the wire format of everything sent
+     * back is still the connection's own protocol version.
+     */
+    InMemoryConnection login(String name, String capabilities) {
+        hub.onLine(this, name + "|/at/ac/hcw/chat/client/images/profile1.jpeg|" + capabilities);
+        return this;
+    }
+
+    ChatHub hub() {
+        return hub;
+    }
+
+    @Override
+    void onEnqueued() {
+        Packet packet;
+        while ((packet = outbound.poll()) != null) {
+            ByteBuffer view = view(packet);
+            bytesWritten += view.remaining();
+            socketBuffer.clear();
+            if (view.remaining() <= socketBuffer.capacity()) socketBuffer.put(view);
+        }
+    }
+
+    @Override
+    boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    void close() {
+    }
+
+    @Override
+    InetAddress remoteAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+}
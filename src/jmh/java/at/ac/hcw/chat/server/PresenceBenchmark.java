@@ -0,0 +1,61 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.FrameType;
+import at.ac.hcw.chat.protocol.Protocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of presence with N users online: building the full user list that legacy
+ * clients get on every join and leave, and a complete join plus leave of one user
+ * as seen by N legacy or N delta clients.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PresenceBenchmark {
+    @Param({ "10", "100", "1000" })
+    public int users;
+
+    // "" for legacy clients (full USERLIST), or the presence-deltas capability
+    @Param({ "", Protocol.CAP_PRESENCE_DELTAS })
+    public String capabilities;
+
+    private ChatHub hub;
+
+    @Setup
+    public void setup() {
+        hub = Benchmarks.hubWith(users, Packet.V1, capabilities);
+    }
+
+    @Benchmark
+    public ByteBuffer userListV1() {
+        return Packet.of(FrameType.USERLIST, 0, hub.userNames()).view(Packet.V1);
+    }
+
+    @Benchmark
+    public ByteBuffer userListV2() {
+        return Packet.of(FrameType.USERLIST, 0, hub.userNames()).view(Packet.V2);
+    }
+
+    @Benchmark
+    public void joinAndLeave() {
+        InMemoryConnection connection = new InMemoryConnection(hub, Packet.V1).login("newcomer", capabilities);
+        hub.onDisconnect(connection);
+    }
+}
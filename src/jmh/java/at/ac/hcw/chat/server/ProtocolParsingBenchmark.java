@@ -0,0 +1,73 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.Frame;
+import at.ac.hcw.chat.protocol.FrameDecoder;
+import at.ac.hcw.chat.protocol.FrameEncoder;
+import at.ac.hcw.chat.protocol.FrameType;
+import at.ac.hcw.chat.protocol.Protocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the server does with every incoming line or frame before any routing:
+ * splitting the login, extracting target and text of a private message, and
+ * decoding a v2 frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolParsingBenchmark {
+    private final String loginLine = "alice|/at/ac/hcw/chat/client/images/profile3.jpeg|presence-deltas,rooms,history";
+    private final String privateLine = "@bob: are you coming to the lecture tomorrow?";
+    private final String publicLine = "Hello everybody, the slides for today are online";
+
+    private FrameDecoder decoder;
+    private ByteBuffer loginFrame;
+
+    @Setup
+    public void setup() {
+        decoder = new FrameDecoder(Protocol.MAX_FRAME_LENGTH);
+        loginFrame = FrameEncoder.encode(FrameType.LOGIN, 0,
+                "alice", "/at/ac/hcw/chat/client/images/profile3.jpeg", "presence-deltas,rooms,history");
+    }
+
+    @Benchmark
+    public String[] loginV1() {
+        return ChatHub.parseLogin(loginLine);
+    }
+
+    @Benchmark
+    public void loginV2(Blackhole blackhole) throws ProtocolException {
+        Frame frame = decoder.next(loginFrame.duplicate());
+        blackhole.consume(frame.string(0));
+        blackhole.consume(frame.string(1));
+        blackhole.consume(frame.string(2, ""));
+    }
+
+    @Benchmark
+    public String[] privateMessage() {
+        return ChatHub.parsePrivateMessage(privateLine);
+    }
+
+    // The common case: every public line is checked for the private prefix first
+    @Benchmark
+    public String[] publicMessageRejected() {
+        return ChatHub.parsePrivateMessage(publicLine);
+    }
+}
@@ -0,0 +1,216 @@
+package at.ac.hcw.chat.load;
+
+import at.ac.hcw.chat.protocol.Frame;
+import at.ac.hcw.chat.protocol.FrameDecoder;
+import at.ac.hcw.chat.protocol.FrameEncoder;
+import at.ac.hcw.chat.protocol.FrameType;
+import at.ac.hcw.chat.protocol.Protocol;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A headless chat client speaking the real protocol (v1 lines or v2 frames), the
+ * same way ChatController does, but without any UI.
+ *
+ * Each bot has one reader on a virtual thread; sending is done by the driver's
+ * threads. The text of every message the driver sends starts with "~<nanoTime>",
+ * which the receiving bot turns into a latency sample.
+ */
+final class Bot {
+    private static final String AVATAR = "/at/ac/hcw/chat/client/images/profile0.jpeg";
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    // nanoTime may be negative, so "no time stamp" needs its own value
+    private static final long NONE = Long.MIN_VALUE;
+
+    final String name;
+    final boolean slow;
+    private final LoadConfig config;
+    private final LoadMetrics metrics;
+    private final CompletableFuture<Bot> loggedIn = new CompletableFuture<>();
+    private Socket socket;
+    private OutputStream out;
+    private long connectStart;
+    private volatile boolean closing;
+
+    Bot(String name, boolean slow, LoadConfig config, LoadMetrics metrics) {
+        this.name = name;
+        this.slow = slow;
+        this.config = config;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Connects, logs in and starts the reader. Completes once the server's presence
+     * snapshot arrived, i.e. the login was fully processed.
+     */
+    CompletableFuture<Bot> connect() {
+        connectStart = System.nanoTime();
+        try {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(config.host, config.port), CONNECT_TIMEOUT_MILLIS);
+            out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            if (config.protocol == 2) {
+                out.write((Protocol.HANDSHAKE_V2 + "\n").getBytes(StandardCharsets.UTF_8));
+                writeFrame(FrameType.LOGIN, name, AVATAR, config.interning
+                        ? Protocol.CAP_PRESENCE_DELTAS + "," + Protocol.CAP_INTERNING : Protocol.CAP_PRESENCE_DELTAS);
+                Thread.ofVirtual().name("bot-" + name).start(() -> readFrames(in));
+            } else {
+                writeLine(name + "|" + AVATAR + "|" + Protocol.CAP_PRESENCE_DELTAS);
+                Thread.ofVirtual().name("bot-" + name).start(() -> readLines(in));
+            }
+        } catch (IOException e) {
+            metrics.connectFailures.increment();
+            loggedIn.completeExceptionally(e);
+            close();
+        }
+        return loggedIn.orTimeout(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    void sendPublic(String text) throws IOException {
+        if (config.protocol == 2) writeFrame(FrameType.SEND_PUBLIC, text);
+        else writeLine(Protocol.escapeText(text));
+    }
+
+    void sendPrivate(String target, String text) throws IOException {
+        if (config.protocol == 2) writeFrame(FrameType.SEND_PRIVATE, target, text);
+        else writeLine("@" + target + ": " + text);
+    }
+
+    private void writeLine(String line) throws IOException {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            out.write(bytes);
+        }
+    }
+
+    private void writeFrame(FrameType type, String... fields) throws IOException {
+        ByteBuffer frame = FrameEncoder.encode(type, 0, fields);
+        synchronized (this) {
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        }
+    }
+
+    private void readLines(InputStream in) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                long now = System.nanoTime();
+                if (line.startsWith(Protocol.PRESENCE_PREFIX + "SNAPSHOT")) {
+                    onLoggedIn(now);
+                } else if (line.startsWith("[Private from ")) {
+                    long sent = sentNanos(textOf(line));
+                    if (sent != NONE) metrics.onPrivateReceived(sent, now);
+                } else if (line.startsWith("[Private Error ")) {
+                    metrics.privateErrors.increment();
+                } else if (!line.startsWith("[") && line.contains("|")) {
+                    long sent = sentNanos(textOf(line));
+                    if (sent != NONE) metrics.onPublicReceived(sent, now);
+                }
+                if (slow) pause();
+            }
+        } catch (IOException e) {
+            // Reset by the server or closed by us
+        }
+        onClosed();
+    }
+
+    private void readFrames(InputStream in) {
+        FrameDecoder decoder = new FrameDecoder(Protocol.MAX_SERVER_FRAME_LENGTH);
+        byte[] bytes = new byte[16 * 1024];
+        try (in) {
+            int n;
+            while ((n = in.read(bytes)) >= 0) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, n);
+                Frame frame;
+                while ((frame = decoder.next(buffer)) != null) {
+                    long now = System.nanoTime();
+                    switch (frame.type()) {
+                        case PRESENCE_SNAPSHOT -> onLoggedIn(now);
+                        case CHAT -> {
+                            long sent = sentNanos(frame.string(2, ""));
+                            if (sent != NONE) metrics.onPublicReceived(sent, now);
+                        }
+                        case CHAT_REF -> {
+                            long sent = sentNanos(frame.string(0, ""));
+                            if (sent != NONE) metrics.onPublicReceived(sent, now);
+                        }
+                        case PRIVATE_FROM -> {
+                            long sent = sentNanos(frame.string(2, ""));
+                            if (sent != NONE) metrics.onPrivateReceived(sent, now);
+                        }
+                        case PRIVATE_ERROR -> metrics.privateErrors.increment();
+                        default -> { }
+                    }
+                    if (slow) pause();
+                }
+            }
+        } catch (IOException e) {
+            // Reset by the server or closed by us
+        }
+        onClosed();
+    }
+
+    private void onLoggedIn(long now) {
+        if (loggedIn.complete(this)) metrics.connectLatency.record((now - connectStart) / 1000);
+    }
+
+    private void onClosed() {
+        if (!closing) metrics.unexpectedDisconnects.increment();
+        loggedIn.completeExceptionally(new IOException(name + " was disconnected before its login completed"));
+    }
+
+    private void pause() {
+        try {
+            Thread.sleep(config.slowReadDelayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The message text of a v1 chat line: "Name|Avatar|Text" with an optional "|<id>".
+     */
+    private static String textOf(String line) {
+        int first = line.indexOf('|');
+        int second = first < 0 ? -1 : line.indexOf('|', first + 1);
+        return second < 0 ? "" : line.substring(second + 1);
+    }
+
+    /**
+     * @return the send time stamped into a driver message ("~<nanoTime> ..."), or NONE
+     */
+    private static long sentNanos(String text) {
+        if (!text.startsWith("~")) return NONE;
+        int end = 1;
+        while (end < text.length() && (Character.isDigit(text.charAt(end)) || text.charAt(end) == '-')) end++;
+        try {
+            return Long.parseLong(text.substring(1, end));
+        } catch (NumberFormatException e) {
+            return NONE;
+        }
+    }
+
+    boolean isOpen() {
+        return socket != null && !socket.isClosed();
+    }
+
+    void close() {
+        closing = true;
+        try {
+            if (socket != null) socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
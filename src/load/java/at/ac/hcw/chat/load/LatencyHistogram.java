@@ -0,0 +1,78 @@
+package at.ac.hcw.chat.load;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in microseconds, shared by all bot readers.
+ *
+ * Values below 64 µs are counted exactly; above that every power of two is split
+ * into 32 buckets, so a reported percentile is at most ~3% above the true value.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKETS = 32;
+    private static final int LINEAR = 64;
+    private static final int MAX_EXPONENT = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (MAX_EXPONENT - 6 + 1) * SUB_BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long micros) {
+        micros = Math.max(0, micros);
+        counts.incrementAndGet(bucket(micros));
+        total.increment();
+        sum.add(micros);
+        max.accumulate(micros);
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the given quantile (0..1), 0 if empty
+     */
+    long percentile(double quantile) {
+        long n = count();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        long n = count();
+        map.put("count", n);
+        map.put("meanMicros", n == 0 ? 0 : sum.sum() / n);
+        map.put("p50Micros", percentile(0.50));
+        map.put("p90Micros", percentile(0.90));
+        map.put("p99Micros", percentile(0.99));
+        map.put("p999Micros", percentile(0.999));
+        map.put("maxMicros", max.get());
+        return map;
+    }
+
+    private static int bucket(long micros) {
+        if (micros < LINEAR) return (int) micros;
+        int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(micros));
+        int sub = (int) ((micros >>> (exponent - 5)) & (SUB_BUCKETS - 1));
+        return LINEAR + (exponent - 6) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < LINEAR) return bucket;
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + 6;
+        int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 5)) - 1;
+    }
+}
@@ -0,0 +1,102 @@
+package at.ac.hcw.chat.load;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Settings of one load run, from "--key=value" arguments.
+ *
+ * Without --port the driver starts its own server in-process (on a free port,
+ * with the chosen --engine); with --port it drives an already running server.
+ */
+final class LoadConfig {
+    String host = "127.0.0.1";
+    int port;
+    // Set when no --port was given; the driver then fills in the port it started on
+    boolean embedded;
+    String engine = "nio";
+    int protocol = 1;
+    // v2 only: log in with the interning capability, so chat messages name their sender by id
+    boolean interning;
+
+    int clients = 1000;
+    // Connection attempts per second while ramping up; 0 = as fast as possible
+    int connectRate = 0;
+    int connectParallelism = 64;
+
+    // Total messages per second sent by all (non-slow) bots together
+    int rate = 200;
+    double privateRatio = 0.2;
+    int payloadBytes = 64;
+    // Bots per second that disconnect and are replaced by a fresh login during the run
+    int churn = 0;
+    // Bots that sleep after every received message, to provoke the server's overflow policy
+    int slowReaders = 0;
+    int slowReadDelayMillis = 50;
+
+    int warmupSeconds = 3;
+    int durationSeconds = 15;
+    int drainSeconds = 2;
+    String out;
+
+    static LoadConfig parse(String[] args) {
+        LoadConfig config = new LoadConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) throw new IllegalArgumentException("Expected --key=value, got " + arg);
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (key) {
+                case "host" -> config.host = value;
+                case "port" -> config.port = Integer.parseInt(value);
+                case "engine" -> config.engine = value;
+                case "protocol" -> config.protocol = Integer.parseInt(value);
+                case "intern" -> config.interning = Boolean.parseBoolean(value);
+                case "clients" -> config.clients = Integer.parseInt(value);
+                case "connectRate" -> config.connectRate = Integer.parseInt(value);
+                case "connectParallelism" -> config.connectParallelism = Math.max(1, Integer.parseInt(value));
+                case "rate" -> config.rate = Integer.parseInt(value);
+                case "privateRatio" -> config.privateRatio = Double.parseDouble(value);
+                case "payload" -> config.payloadBytes = Integer.parseInt(value);
+                case "churn" -> config.churn = Integer.parseInt(value);
+                case "slowReaders" -> config.slowReaders = Integer.parseInt(value);
+                case "slowReadDelayMs" -> config.slowReadDelayMillis = Integer.parseInt(value);
+                case "warmup" -> config.warmupSeconds = Integer.parseInt(value);
+                case "duration" -> config.durationSeconds = Integer.parseInt(value);
+                case "drain" -> config.drainSeconds = Integer.parseInt(value);
+                case "out" -> config.out = value;
+                default -> throw new IllegalArgumentException("Unknown option --" + key);
+            }
+        }
+        config.embedded = config.port == 0;
+        if (config.protocol != 1 && config.protocol != 2) throw new IllegalArgumentException("--protocol must be 1 or 2");
+        if (config.interning && config.protocol != 2) throw new IllegalArgumentException("--intern needs --protocol=2");
+        if (config.slowReaders >= config.clients) throw new IllegalArgumentException("--slowReaders must be below --clients");
+        return config;
+    }
+
+    boolean embeddedServer() {
+        return embedded;
+    }
+
+    /**
+     * The settings as they go into the result file.
+     */
+    Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("server", embeddedServer() ? "embedded" : host + ":" + port);
+        map.put("engine", embeddedServer() ? engine : null);
+        map.put("protocol", protocol);
+        map.put("interning", interning);
+        map.put("clients", clients);
+        map.put("connectRate", connectRate);
+        map.put("rate", rate);
+        map.put("privateRatio", privateRatio);
+        map.put("payloadBytes", payloadBytes);
+        map.put("churnPerSecond", churn);
+        map.put("slowReaders", slowReaders);
+        map.put("slowReadDelayMs", slowReadDelayMillis);
+        map.put("warmupSeconds", warmupSeconds);
+        map.put("durationSeconds", durationSeconds);
+        return map;
+    }
+}
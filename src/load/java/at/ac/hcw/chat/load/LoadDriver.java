@@ -0,0 +1,267 @@
+package at.ac.hcw.chat.load;
+
+import at.ac.hcw.chat.server.ChatServer;
+import at.ac.hcw.chat.server.LogLevel;
+import at.ac.hcw.chat.server.ServerConfig;
+import at.ac.hcw.chat.server.ServerStats;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Headless end-to-end load test: logs in thousands of bots, lets them chat and
+ * reports latency, fan-out throughput and connection setup rate.
+ *
+ * Run it with "gradle loadTest", passing options as -PloadArgs="--clients=2000 --rate=500",
+ * see {@link LoadConfig} for all of them. Every run writes a JSON result file
+ * (build/load-results/ unless --out is given), so two builds can be compared by
+ * diffing their results.
+ *
+ * Phases: ramp-up (all bots log in), warmup, measurement window, drain. Only
+ * messages sent inside the measurement window are counted.
+ */
+public final class LoadDriver {
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final LoadConfig config;
+    private final LoadMetrics metrics = new LoadMetrics();
+    // Logged-in bots that may send; slow readers only receive
+    private final List<Bot> senders = new CopyOnWriteArrayList<>();
+    private final List<Bot> online = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextBotId = new AtomicInteger();
+    // Connecting blocks in Socket.connect, so every login gets its own virtual thread
+    private final ExecutorService connector = Executors.newVirtualThreadPerTaskExecutor();
+    private final String padding;
+
+    private LoadDriver(LoadConfig config) {
+        this.config = config;
+        this.padding = "x".repeat(Math.max(0, config.payloadBytes - 21));
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadConfig config = LoadConfig.parse(args);
+        ChatServer server = null;
+        if (config.embeddedServer()) {
+            // The in-process server keeps no history, so runs do not leave files behind
+            ServerConfig serverConfig = ServerConfig.fromSystemProperties()
+                    .engine(ServerConfig.parseEngine(config.engine, ServerConfig.Engine.NIO))
+                    .historyDir("off");
+            // Unless asked otherwise it only logs problems, so thousands of logins do not flood the console
+            if (System.getProperty("chat.log.level") == null) serverConfig.logLevel(LogLevel.WARN);
+            server = new ChatServer(serverConfig);
+            server.start(0);
+            config.port = server.port();
+            System.out.println("[LOAD]: Started " + serverConfig.engine() + " server on port " + config.port);
+        }
+        try {
+            new LoadDriver(config).run(server == null ? null : server.stats());
+        } finally {
+            if (server != null) server.close();
+        }
+        // Bot readers are virtual threads, but leftover sockets should not keep anything alive
+        System.exit(0);
+    }
+
+    private void run(ServerStats serverStats) throws Exception {
+        Map<String, Object> connect = rampUp();
+
+        ExecutorService churner = Executors.newVirtualThreadPerTaskExecutor();
+        System.out.println("[LOAD]: Warmup " + config.warmupSeconds + " s, then measuring for " + config.durationSeconds + " s");
+        long start = System.nanoTime();
+        long windowStart = start + config.warmupSeconds * 1_000_000_000L;
+        long windowEnd = windowStart + config.durationSeconds * 1_000_000_000L;
+        metrics.startWindow(windowStart);
+        metrics.endWindow(windowEnd);
+        drive(start, windowEnd, churner);
+        Thread.sleep(config.drainSeconds * 1000L);
+        churner.shutdownNow();
+
+        double windowSeconds = config.durationSeconds;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("timestamp", LocalDateTime.now().toString());
+        result.put("java", System.getProperty("java.version"));
+        result.put("cores", Runtime.getRuntime().availableProcessors());
+        result.put("config", config.toMap());
+        result.put("connect", connect);
+        result.put("messages", metrics.toMap(windowSeconds));
+        if (serverStats != null) result.put("serverStats", serverStats(serverStats));
+
+        String json = Json.write(result);
+        Path file = Path.of(config.out != null ? config.out
+                : "build/load-results/load-" + LocalDateTime.now().format(FILE_TIME) + ".json");
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        Files.writeString(file, json + "\n", StandardCharsets.UTF_8);
+        System.out.println(json);
+        System.out.println("[LOAD]: Results written to " + file.toAbsolutePath());
+
+        for (Bot bot : online) bot.close();
+    }
+
+    /**
+     * Logs in all bots, at most connectParallelism at a time and at most connectRate per second.
+     */
+    private Map<String, Object> rampUp() throws InterruptedException {
+        System.out.println("[LOAD]: Connecting " + config.clients + " bots to " + config.host + ":" + config.port);
+        Semaphore inFlight = new Semaphore(config.connectParallelism);
+        List<CompletableFuture<Bot>> logins = new ArrayList<>(config.clients);
+        long start = System.nanoTime();
+        for (int i = 0; i < config.clients; i++) {
+            if (config.connectRate > 0) {
+                long due = start + i * 1_000_000_000L / config.connectRate;
+                long wait = due - System.nanoTime();
+                if (wait > 0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+            inFlight.acquire();
+            // Slow readers are spread evenly over the whole population
+            boolean slow = config.slowReaders > 0 && i % (config.clients / config.slowReaders) == 0
+                    && i / (config.clients / config.slowReaders) < config.slowReaders;
+            CompletableFuture<Bot> login = login(slow);
+            login.whenComplete((bot, error) -> inFlight.release());
+            logins.add(login);
+        }
+        int ok = 0;
+        for (CompletableFuture<Bot> login : logins) {
+            try {
+                login.join();
+                ok++;
+            } catch (RuntimeException e) {
+                // Counted as a connect failure (or timeout) below
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("[LOAD]: %d of %d bots logged in after %.2f s%n", ok, config.clients, seconds);
+
+        Map<String, Object> connect = new LinkedHashMap<>();
+        connect.put("attempted", config.clients);
+        connect.put("loggedIn", ok);
+        connect.put("failed", config.clients - ok);
+        connect.put("rampSeconds", Math.round(seconds * 1000) / 1000.0);
+        connect.put("loginsPerSecond", Math.round(ok / seconds));
+        connect.put("setupLatency", metrics.connectLatency.toMap());
+        return connect;
+    }
+
+    private CompletableFuture<Bot> login(boolean slow) {
+        Bot bot = new Bot("bot" + nextBotId.getAndIncrement(), slow, config, metrics);
+        return CompletableFuture.supplyAsync(bot::connect, connector)
+                .thenCompose(login -> login)
+                .thenApply(loggedIn -> {
+                    online.add(loggedIn);
+                    if (!loggedIn.slow) senders.add(loggedIn);
+                    return loggedIn;
+                });
+    }
+
+    /**
+     * Sends the configured message mix at a fixed rate until the end of the window, and
+     * replaces churn bots per second with fresh logins.
+     */
+    private void drive(long start, long end, ExecutorService churner) throws InterruptedException {
+        long intervalNanos = config.rate > 0 ? 1_000_000_000L / config.rate : 0;
+        long churnIntervalNanos = config.churn > 0 ? 1_000_000_000L / config.churn : 0;
+        // Long.MAX_VALUE as "never" must not be added to, nanoTime arithmetic would overflow
+        long nextSend = intervalNanos > 0 ? start : Long.MAX_VALUE;
+        long nextChurn = churnIntervalNanos > 0 ? start + churnIntervalNanos : Long.MAX_VALUE;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (true) {
+            long now = System.nanoTime();
+            if (now - end >= 0) return;
+            if (nextChurn != Long.MAX_VALUE && now - nextChurn >= 0) {
+                nextChurn += churnIntervalNanos;
+                churner.execute(this::churnOne);
+            }
+            if (nextSend != Long.MAX_VALUE && now - nextSend >= 0) {
+                nextSend += intervalNanos;
+                sendOne(random);
+                continue;
+            }
+            long next = end;
+            if (nextSend != Long.MAX_VALUE && nextSend - next < 0) next = nextSend;
+            if (nextChurn != Long.MAX_VALUE && nextChurn - next < 0) next = nextChurn;
+            long wait = next - System.nanoTime();
+            if (wait > 0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+    }
+
+    private void sendOne(ThreadLocalRandom random) {
+        int count = senders.size();
+        if (count == 0) return;
+        Bot sender = senders.get(random.nextInt(count));
+        long now = System.nanoTime();
+        String text = "~" + now + " " + padding;
+        boolean measured = metrics.inWindow(now);
+        try {
+            if (count > 1 && random.nextDouble() < config.privateRatio) {
+                Bot target = online.get(random.nextInt(online.size()));
+                if (target == sender) return;
+                sender.sendPrivate(target.name, text);
+                if (measured) metrics.privateSent.increment();
+            } else {
+                int recipients = online.size();
+                sender.sendPublic(text);
+                if (measured) {
+                    metrics.publicSent.increment();
+                    metrics.publicExpected.add(recipients);
+                }
+            }
+        } catch (IOException e) {
+            // The bot was evicted or churned away meanwhile
+            senders.remove(sender);
+            online.remove(sender);
+        }
+    }
+
+    /**
+     * Disconnects a random sender and logs in a fresh one in its place.
+     */
+    private void churnOne() {
+        int count = senders.size();
+        if (count == 0) return;
+        Bot leaving = senders.get(ThreadLocalRandom.current().nextInt(count));
+        senders.remove(leaving);
+        online.remove(leaving);
+        leaving.close();
+        metrics.churned.increment();
+        try {
+            login(false).join();
+        } catch (RuntimeException e) {
+            // Counted as a connect failure
+        }
+    }
+
+    private static Map<String, Object> serverStats(ServerStats stats) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("packetsQueued", stats.packetsQueued());
+        map.put("droppedOldest", stats.droppedOldest());
+        map.put("droppedNewest", stats.droppedNewest());
+        map.put("slowConsumerDisconnects", stats.slowConsumerDisconnects());
+        map.put("broadcasts", stats.broadcasts());
+        map.put("broadcastRecipients", stats.broadcastRecipients());
+        map.put("allocatedBytesPerBroadcast", stats.allocatedBytesPerBroadcast());
+        map.put("flushes", stats.flushes());
+        map.put("flushedPackets", stats.flushedPackets());
+        map.put("bytesOut", stats.bytesOut());
+        map.put("logins", stats.logins());
+        // Bucket bounds, so "at most"; accept-to-login on the server, unlike setupLatency which starts at connect()
+        map.put("loginLatencyP50Millis", stats.loginLatencyNanos(0.5) / 1e6);
+        map.put("loginLatencyP99Millis", stats.loginLatencyNanos(0.99) / 1e6);
+        map.put("admissionDeferred", stats.admissionDeferred());
+        map.put("admissionRejected", stats.admissionRejected());
+        return map;
+    }
+}
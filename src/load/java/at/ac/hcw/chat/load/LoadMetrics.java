@@ -0,0 +1,75 @@
+package at.ac.hcw.chat.load;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of one load run, updated concurrently by all bots.
+ *
+ * Every chat message a bot sends carries System.nanoTime() of its sending, so a
+ * receiving bot in the same JVM measures the full send-to-receive latency.
+ * Only messages sent inside the measurement window are counted, so the warmup
+ * and the final drain do not skew the result.
+ */
+final class LoadMetrics {
+    final LatencyHistogram publicLatency = new LatencyHistogram();
+    final LatencyHistogram privateLatency = new LatencyHistogram();
+    // From opening the socket until the server's presence snapshot confirmed the login
+    final LatencyHistogram connectLatency = new LatencyHistogram();
+
+    final LongAdder publicSent = new LongAdder();
+    final LongAdder privateSent = new LongAdder();
+    // Recipients the server knew of when each measured public message was sent
+    final LongAdder publicExpected = new LongAdder();
+    final LongAdder publicReceived = new LongAdder();
+    final LongAdder privateReceived = new LongAdder();
+    final LongAdder privateErrors = new LongAdder();
+    final LongAdder connectFailures = new LongAdder();
+    final LongAdder unexpectedDisconnects = new LongAdder();
+    final LongAdder churned = new LongAdder();
+
+    private volatile long windowStart = Long.MAX_VALUE;
+    private volatile long windowEnd = Long.MAX_VALUE;
+
+    void startWindow(long nanos) {
+        windowStart = nanos;
+    }
+
+    void endWindow(long nanos) {
+        windowEnd = nanos;
+    }
+
+    boolean inWindow(long sentNanos) {
+        return sentNanos >= windowStart && sentNanos < windowEnd;
+    }
+
+    void onPublicReceived(long sentNanos, long receivedNanos) {
+        if (!inWindow(sentNanos)) return;
+        publicReceived.increment();
+        publicLatency.record((receivedNanos - sentNanos) / 1000);
+    }
+
+    void onPrivateReceived(long sentNanos, long receivedNanos) {
+        if (!inWindow(sentNanos)) return;
+        privateReceived.increment();
+        privateLatency.record((receivedNanos - sentNanos) / 1000);
+    }
+
+    Map<String, Object> toMap(double windowSeconds) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("publicSent", publicSent.sum());
+        map.put("privateSent", privateSent.sum());
+        map.put("publicDeliveries", publicReceived.sum());
+        map.put("publicDeliveriesExpected", publicExpected.sum());
+        map.put("privateDeliveries", privateReceived.sum());
+        map.put("privateErrors", privateErrors.sum());
+        map.put("fanOutDeliveriesPerSecond", Math.round(publicReceived.sum() / windowSeconds));
+        map.put("messagesSentPerSecond", Math.round((publicSent.sum() + privateSent.sum()) / windowSeconds));
+        map.put("publicLatency", publicLatency.toMap());
+        map.put("privateLatency", privateLatency.toMap());
+        map.put("churnedClients", churned.sum());
+        map.put("unexpectedDisconnects", unexpectedDisconnects.sum());
+        return map;
+    }
+}
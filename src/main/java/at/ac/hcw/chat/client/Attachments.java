@@ -0,0 +1,259 @@
+package at.ac.hcw.chat.client;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Uploads and downloads of attachments on the server's attachment port, see
+ * Protocol.CAP_ATTACHMENTS. Nothing here touches the chat connection: every transfer is
+ * its own short socket on a background thread, so a large file never holds up a message.
+ *
+ * Downloads are lazy. A bubble asks for its preview when a cell shows it, which is the
+ * first moment the file is needed; a file that is never scrolled into view is never
+ * fetched. Each file is downloaded once per run into a temporary file, and at most
+ * PREVIEW_CAPACITY (-Dchat.client.previewCache, default 32) decoded previews are kept,
+ * least recently used first out. Previews and callbacks are FX thread only.
+ */
+final class Attachments {
+    static final int PREVIEW_CAPACITY = Math.max(1, Integer.getInteger("chat.client.previewCache", 32));
+    static final double PREVIEW_SIZE = 240;
+    private static final int MAX_HEADER_LENGTH = 1024;
+
+    private static final ExecutorService transfers = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "chat-attachments");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Downloaded files by attachment id; written by the transfer threads
+    private static final Map<String, Path> files = new ConcurrentHashMap<>();
+    // Cells waiting for a preview whose download is running
+    private static final Map<String, List<Consumer<Image>>> waiting = new HashMap<>();
+    private static final Map<String, Image> previews = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+            return size() > PREVIEW_CAPACITY;
+        }
+    };
+    // Where the server said to send files (FILES packet); null until it did
+    private static volatile String host;
+    private static volatile int port;
+    private static volatile String token;
+    private static volatile Consumer<String> notices = text -> { };
+
+    private Attachments() {
+    }
+
+    /**
+     * Remembers the attachment port and token the server sent after the login.
+     */
+    static void configure(String serverHost, int serverPort, String loginToken) {
+        host = serverHost;
+        port = serverPort;
+        token = loginToken;
+    }
+
+    static boolean available() {
+        return token != null;
+    }
+
+    /**
+     * Where the results of uploads and saves are reported, on the FX thread.
+     */
+    static void onNotice(Consumer<String> action) {
+        notices = action;
+    }
+
+    static boolean isImage(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        return lower.endsWith(".png") || lower.endsWith(".jpg") || lower.endsWith(".jpeg")
+                || lower.endsWith(".gif") || lower.endsWith(".bmp");
+    }
+
+    static String formatSize(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return (bytes >> 10) + " KB";
+        return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    /**
+     * The preview of an image attachment. If it is not decoded yet, the download starts
+     * now (unless it is running already) and the callback gets the image once it is loading.
+     *
+     * @return the preview, or null if the callback will get it
+     */
+    static Image preview(String id, String name, Consumer<Image> ready) {
+        Image image = previews.get(id);
+        if (image != null) return image;
+        Path file = files.get(id);
+        if (file != null) return decode(id, file);
+        List<Consumer<Image>> callbacks = waiting.get(id);
+        if (callbacks != null) {
+            callbacks.add(ready);
+            return null;
+        }
+        callbacks = new ArrayList<>();
+        callbacks.add(ready);
+        waiting.put(id, callbacks);
+        transfers.execute(() -> {
+            Path downloaded = download(id, name);
+            Platform.runLater(() -> {
+                List<Consumer<Image>> done = waiting.remove(id);
+                if (downloaded == null || done == null) return;
+                Image decoded = decode(id, downloaded);
+                for (Consumer<Image> callback : done) callback.accept(decoded);
+            });
+        });
+        return null;
+    }
+
+    private static Image decode(String id, Path file) {
+        // Scaled while decoding and on JavaFX's background loader, like the avatars
+        Image image = new Image(file.toUri().toString(), PREVIEW_SIZE, PREVIEW_SIZE, true, true, true);
+        previews.put(id, image);
+        return image;
+    }
+
+    /**
+     * Saves an attachment to the Downloads folder (the home directory if there is none).
+     */
+    static void save(String id, String name) {
+        transfers.execute(() -> {
+            Path file = download(id, name);
+            if (file == null) return;
+            Path folder = Path.of(System.getProperty("user.home"), "Downloads");
+            if (!Files.isDirectory(folder)) folder = Path.of(System.getProperty("user.home"));
+            try {
+                Path target = uniqueName(folder, name);
+                Files.copy(file, target);
+                notice("Saved " + target);
+            } catch (IOException e) {
+                notice("Could not save " + name + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Uploads a file to a channel (the lobby, "#room" or "@name"); the server announces it
+     * there once it is stored.
+     */
+    static void upload(Path file, String channel) {
+        String loginToken = token;
+        if (loginToken == null) {
+            notice("This server does not accept attachments.");
+            return;
+        }
+        transfers.execute(() -> {
+            String name = file.getFileName().toString().replace('|', '_');
+            try (Socket socket = new Socket(host, port)) {
+                long size = Files.size(file);
+                OutputStream out = socket.getOutputStream();
+                InputStream in = socket.getInputStream();
+                out.write(("PUT|" + loginToken + "|" + channel + "|" + size + "|" + name + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                String answer = readLine(in);
+                if (!"READY".equals(answer)) {
+                    notice(errorText(answer, name));
+                    return;
+                }
+                Files.copy(file, out);
+                out.flush();
+                answer = readLine(in);
+                if (answer == null || !answer.startsWith("OK|")) notice(errorText(answer, name));
+            } catch (IOException e) {
+                notice("Could not send " + name + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Fetches an attachment into a temporary file, once per id. Transfer threads only.
+     *
+     * @return the file, or null if the server refused or the transfer failed
+     */
+    private static Path download(String id, String name) {
+        Path file = files.get(id);
+        if (file != null) return file;
+        String loginToken = token;
+        if (loginToken == null) return null;
+        try (Socket socket = new Socket(host, port)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(("GET|" + loginToken + "|" + id + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String answer = readLine(in);
+            String[] header = answer == null ? new String[0] : answer.split("\\|", 3);
+            if (header.length != 3 || !header[0].equals("OK")) {
+                notice(errorText(answer, name));
+                return null;
+            }
+            long size = Long.parseLong(header[1]);
+            int dot = name.lastIndexOf('.');
+            Path temp = Files.createTempFile("chat-attachment-", dot >= 0 ? name.substring(dot) : "");
+            temp.toFile().deleteOnExit();
+            Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+            if (Files.size(temp) != size) {
+                Files.deleteIfExists(temp);
+                notice("Download of " + name + " was cut off.");
+                return null;
+            }
+            Path known = files.putIfAbsent(id, temp);
+            if (known != null) {
+                Files.deleteIfExists(temp);
+                return known;
+            }
+            return temp;
+        } catch (IOException | NumberFormatException e) {
+            notice("Could not download " + name + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Path uniqueName(Path folder, String name) {
+        Path target = folder.resolve(name);
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; Files.exists(target); i++) target = folder.resolve(base + " (" + i + ")" + extension);
+        return target;
+    }
+
+    // The header line byte by byte, so the file bytes after it stay in the stream
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (line.size() >= MAX_HEADER_LENGTH) return null;
+            line.write(b);
+        }
+        return b < 0 ? null : line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String errorText(String answer, String name) {
+        if (answer != null && answer.startsWith("ERROR|")) return name + ": " + answer.substring(6);
+        return "Transfer of " + name + " failed.";
+    }
+
+    private static void notice(String text) {
+        Platform.runLater(() -> notices.accept(text));
+    }
+}
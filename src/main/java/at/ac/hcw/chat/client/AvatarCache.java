@@ -0,0 +1,78 @@
+package at.ac.hcw.chat.client;
+
+import javafx.scene.image.Image;
+
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded avatars, shared by every bubble and the header of the chat view.
+ *
+ * A chat has a handful of avatars but thousands of messages, so each avatar is decoded
+ * once, already scaled to the 40px it is shown at, and the same Image goes into every
+ * ImageView that shows it. Decoding runs on JavaFX's background loader: a new avatar
+ * appears as soon as it is ready instead of stalling the FX thread.
+ *
+ * At most CAPACITY avatars (-Dchat.client.avatarCache, default 64) are kept; the least
+ * recently used one is evicted first. FX thread only.
+ */
+final class AvatarCache {
+    static final int CAPACITY = Math.max(1, Integer.getInteger("chat.client.avatarCache", 64));
+    static final double SIZE = 40;
+    private static final String DEFAULT_AVATAR = "/at/ac/hcw/chat/client/images/profile0.jpeg";
+
+    // Access order: iteration starts at the least recently used avatar
+    private static final Map<String, Image> images = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+            if (size() <= CAPACITY) return false;
+            evictions++;
+            return true;
+        }
+    };
+    private static long hits, misses, evictions;
+
+    private AvatarCache() {
+    }
+
+    /**
+     * @param path resource path of the avatar, as sent by the server
+     * @return the avatar (possibly still loading), the default avatar for an unknown path,
+     *         or null if not even that exists
+     */
+    static Image get(String path) {
+        Image image = images.get(path);
+        if (image != null) {
+            hits++;
+            return image;
+        }
+        misses++;
+        URL url = path == null ? null : AvatarCache.class.getResource(path);
+        if (url != null) {
+            image = new Image(url.toExternalForm(), SIZE, SIZE, true, true, true);
+        } else {
+            // Unknown paths share the default avatar's Image rather than decoding it again
+            if (DEFAULT_AVATAR.equals(path) || AvatarCache.class.getResource(DEFAULT_AVATAR) == null) return null;
+            image = get(DEFAULT_AVATAR);
+        }
+        images.put(path, image);
+        return image;
+    }
+
+    static long hits() {
+        return hits;
+    }
+
+    static long misses() {
+        return misses;
+    }
+
+    static long evictions() {
+        return evictions;
+    }
+
+    static int size() {
+        return images.size();
+    }
+}
@@ -1,24 +1,33 @@
 package at.ac.hcw.chat.client;
 
+import at.ac.hcw.chat.protocol.Frame;
+import at.ac.hcw.chat.protocol.FrameDecoder;
+import at.ac.hcw.chat.protocol.FrameEncoder;
+import at.ac.hcw.chat.protocol.FrameType;
+import at.ac.hcw.chat.protocol.LegacyParser;
+import at.ac.hcw.chat.protocol.Protocol;
 import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
 import javafx.event.ActionEvent; // اضافه شده برای تشخیص دکمه
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
-import javafx.geometry.Pos;
 import javafx.scene.Node; // اضافه شده
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
-import javafx.scene.layout.HBox;
-import javafx.scene.layout.VBox;
 import javafx.scene.shape.Circle;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.stage.Window;
 import java.io.*;
 import java.net.Socket;
-import java.time.LocalTime;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 
@@ -28,7 +37,8 @@ public class ChatController {
     @FXML private Label statusLabel, welcomeLabel;
     @FXML private ListView<String> userListView;
     @FXML private TabPane chatTabPane;
-    @FXML private VBox chatBox;
+    @FXML private ListView<ChatMessage> generalLog;
+    private ChatLog chatBox;
     @FXML private ImageView selectedAvatarPreview, userAvatarImage;
 
     // Networking Static Variables
@@ -38,9 +48,74 @@ public class ChatController {
     private static String userName;
     private static volatile boolean isRunning = false;
     private static ChatController activeController;
+    // Parsed packets on their way from the network thread to the UI, drained once per frame
+    private static ReceivePipeline receiver;
+
+    // Protocol v2 (binary frames) is opt-in: start the client with -Dchat.protocol=2
+    private static final boolean PREFER_V2 = "2".equals(System.getProperty("chat.protocol"));
+    private static final int HANDSHAKE_TIMEOUT_MS = 2000;
+    private static int protocolVersion = 1;
+    private static InputStream frameIn;
+    private static OutputStream frameOut;
+    private static FrameDecoder frameDecoder;
+    private static final ByteBuffer frameBuffer = ByteBuffer.allocate(8 * 1024);
+    // Interning (v2): sender id -> { name, avatar } and avatar id -> path, as defined by the server; reader thread only
+    private static final Map<Integer, String[]> senderIds = new HashMap<>();
+    private static final Map<Integer, String> avatarIds = new HashMap<>();
+    // Session (resume capability): token and grace period from the server, and the number of packets received since
+    private static volatile String sessionToken;
+    private static int sessionGraceSeconds;
+    private static long receivedSeq;
+    private static final int RESUME_TIMEOUT_MS = 3000;
+
+    /*
+     * Presence deltas: the server tags every JOIN/LEAVE with a version. The user list is
+     * kept sorted and patched in place; a missing version asks the server for a snapshot.
+     */
+    private static final Comparator<String> USER_ORDER =
+            String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+    private static final String LOGIN_CAPABILITIES = Protocol.CAP_PRESENCE_DELTAS + "," + Protocol.CAP_ROOMS
+            + "," + Protocol.CAP_HISTORY + "," + Protocol.CAP_INTERNING + "," + Protocol.CAP_RESUME
+            + "," + Protocol.CAP_HEARTBEAT + "," + Protocol.CAP_SEARCH + "," + Protocol.CAP_ATTACHMENTS;
+    private static long presenceVersion;
+    private static boolean awaitingSnapshot;
+
+    // Sidebar models: the lobby's users, and the members of every joined room (by room name)
+    private static final ObservableList<String> lobbyUsers = FXCollections.observableArrayList();
+    private static final Map<String, ObservableList<String>> roomUsers = new HashMap<>();
+    private static final Map<String, Long> roomVersions = new HashMap<>();
+
+    /*
+     * History: the server backfills the lobby and every joined room with recent messages,
+     * and scrolling a chat to the top asks for the page before the oldest one shown.
+     * A page is a HISTORY header followed by exactly "count" messages of that channel.
+     */
+    private static final int HISTORY_PAGE = 50;
+    private static final int DROP = -2, APPEND = -1;
+    private static final Map<String, HistoryCursor> historyCursors = new HashMap<>();
+
+    // Paging state of one chat (keyed like the tabs: "General" or "#room"), FX thread only
+    private static final class HistoryCursor {
+        // "before" of the next older page; -1 until the first page arrived, 0 once there is nothing older
+        long nextBefore = -1;
+        long oldestShown = Long.MAX_VALUE;
+        boolean loading;
+        // Messages of the current page still to come, where the next one goes, and the ids it may have
+        int pending, insertAt;
+        long pageBelowId;
+    }
 
-    // Maps to track Private Chats
-    private static final Map<String, VBox> privateChatLog = new HashMap<>();
+    /*
+     * Search: "/search <words>" asks the server, "/search" alone for the next older hits of
+     * the last query. Hits are listed in the General tab, newest first.
+     */
+    private static String searchQuery;
+    private static long searchNextBefore;
+    private static int pendingSearchHits;
+    private static final DateTimeFormatter HIT_TIME = DateTimeFormatter.ofPattern("dd.MM. HH:mm").withZone(ZoneId.systemDefault());
+
+    // Maps to track Private Chats and Rooms (room tabs are keyed "#room")
+    private static final Map<String, ChatLog> privateChatLog = new HashMap<>();
     private static final Map<String, Tab> tabMap = new HashMap<>();
 
     // State Transfer
@@ -53,6 +128,7 @@ public class ChatController {
         activeController = this;
 
         if (userListView != null) {
+            userListView.setItems(lobbyUsers);
             userListView.setOnMouseClicked(event -> {
                 if (event.getClickCount() == 2) {
                     String selected = userListView.getSelectionModel().getSelectedItem();
@@ -64,27 +140,61 @@ public class ChatController {
         if (chatTabPane != null) {
             chatTabPane.getSelectionModel().selectedItemProperty().addListener((obs, oldTab, newTab) -> {
                 if (newTab != null) newTab.setGraphic(null);
+                // The sidebar shows the members of the selected room, or the lobby otherwise
+                if (userListView != null) {
+                    String room = newTab != null ? roomOfTab(newTab) : null;
+                    userListView.setItems(room != null ? roomUsers.get(room) : lobbyUsers);
+                }
             });
         }
+
+        if (generalLog != null) {
+            chatBox = new ChatLog(generalLog);
+            // Loads the next older page of history whenever the chat is scrolled to the very top
+            chatBox.onScrolledToTop(() -> requestOlderHistory("General"));
+            Attachments.onNotice(text -> addMessageBubble("General", chatBox, "[System]", Protocol.SYSTEM_AVATAR, text, false));
+        }
     }
 
     private void openPrivateTab(String targetUser, boolean shouldFocus) {
-        Platform.runLater(() -> {
+        openChatTab(targetUser, shouldFocus, () -> { });
+    }
+
+    /**
+     * Opens a room tab ("#room"). Closing it leaves the room.
+     */
+    private void openRoomTab(String room, boolean shouldFocus) {
+        openChatTab("#" + room, shouldFocus, () -> {
+            roomUsers.remove(room);
+            roomVersions.remove(room);
+            historyCursors.remove("#" + room);
+            sendCommand(FrameType.LEAVE_ROOM, Protocol.LEAVE_ROOM + " " + room, room);
+        });
+    }
+
+    /**
+     * @return the room name if the tab belongs to a joined room, otherwise null
+     */
+    private static String roomOfTab(Tab tab) {
+        String key = tab.getText();
+        return key.startsWith("#") && roomUsers.containsKey(key.substring(1)) ? key.substring(1) : null;
+    }
+
+    private void openChatTab(String targetUser, boolean shouldFocus, Runnable onClosed) {
+        // Right away on the FX thread, so messages routed next already find the tab
+        runOnFxThread(() -> {
             if (activeController == null || activeController.chatTabPane == null) return;
             if (tabMap.containsKey(targetUser)) {
                 if (shouldFocus) activeController.chatTabPane.getSelectionModel().select(tabMap.get(targetUser));
                 return;
             }
 
-            VBox privateBox = new VBox(15);
-            privateBox.setStyle("-fx-background-color: white; -fx-padding: 15;");
-            ScrollPane scrollPane = new ScrollPane(privateBox);
-            scrollPane.setFitToWidth(true);
-            scrollPane.setStyle("-fx-background-color: white;");
+            ChatLog privateBox = new ChatLog();
+            if (targetUser.startsWith("#")) privateBox.onScrolledToTop(() -> requestOlderHistory(targetUser));
 
-            Tab newTab = new Tab(targetUser, scrollPane);
+            Tab newTab = new Tab(targetUser, privateBox.view());
             newTab.setClosable(true);
-            newTab.setOnClosed(e -> { privateChatLog.remove(targetUser); tabMap.remove(targetUser); });
+            newTab.setOnClosed(e -> { privateChatLog.remove(targetUser); tabMap.remove(targetUser); onClosed.run(); });
 
             activeController.chatTabPane.getTabs().add(newTab);
             privateChatLog.put(targetUser, privateBox);
@@ -93,82 +203,361 @@ public class ChatController {
         });
     }
 
-    private void addMessageBubble(VBox container, String name, String avatarPath, String message, boolean isSelf) {
-        if (container == null) return;
-        Platform.runLater(() -> {
-            try {
-                InputStream is = getClass().getResourceAsStream(avatarPath);
-                if (is == null) is = getClass().getResourceAsStream("/at/ac/hcw/chat/client/images/profile0.jpeg");
+    private static void runOnFxThread(Runnable action) {
+        if (Platform.isFxApplicationThread()) action.run();
+        else Platform.runLater(action);
+    }
 
-                ImageView avatarView = new ImageView(new Image(is));
-                avatarView.setFitHeight(40); avatarView.setFitWidth(40);
-                avatarView.setClip(new Circle(20, 20, 20));
+    private static void addMessageBubble(String key, ChatLog log, String name, String avatarPath, String message, boolean isSelf) {
+        addMessageBubble(key, log, 0, name, avatarPath, message, isSelf, APPEND);
+    }
 
-                Label nameLbl = new Label(name + "  " + LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm")));
-                nameLbl.setStyle("-fx-font-size: 9px; -fx-text-fill: #90A4AE; -fx-font-weight: bold;");
+    /**
+     * Adds a message to a chat log; the log only creates nodes for the rows on screen.
+     *
+     * @param index position among the existing messages (history pages are inserted at the top),
+     *              or APPEND for a live message
+     */
+    private static void addMessageBubble(String key, ChatLog log, long id, String name, String avatarPath, String message,
+                                         boolean isSelf, int index) {
+        if (log == null || index == DROP) return;
+        ChatMessage chatMessage = ChatMessage.received(id, name, avatarPath, message, isSelf);
+        if (index != APPEND) {
+            log.insert(index, chatMessage);
+        } else if (log.append(chatMessage) > 0) {
+            // The oldest messages were dropped for the cap: paging back has to fetch them again
+            HistoryCursor cursor = historyCursors.get(key);
+            long oldest = log.oldestId();
+            if (cursor != null && oldest > 0 && cursor.pending == 0) {
+                cursor.nextBefore = oldest;
+                cursor.oldestShown = oldest;
+            }
+        }
+    }
 
-                Label msgContent = new Label(message);
-                msgContent.setWrapText(true); msgContent.setMaxWidth(300);
+    /**
+     * Copies the fields out of a v2 frame (it is only valid until the next read) and queues them.
+     * Runs on the network thread.
+     */
+    private static void handleFrame(Frame frame) {
+        String[] fields = new String[frame.fieldCount()];
+        for (int i = 0; i < fields.length; i++) fields[i] = frame.string(i);
+        FrameType type = frame.type();
+        // Definitions travel in the same packet as the message that needs them
+        if (type != FrameType.AVATAR && type != FrameType.SENDER) receivedSeq++;
+        switch (type) {
+            case PRIVATE_ERROR -> receiver.offer(FrameType.CHAT,
+                    new String[] { "[Private Error " + fields[0] + "]", Protocol.SYSTEM_AVATAR, fields[1] });
+            case SYSTEM -> receiver.offer(FrameType.CHAT, new String[] { "[System]", Protocol.SYSTEM_AVATAR, fields[0] });
+            case HELLO -> { } // Only expected during the handshake
+            case AVATAR -> avatarIds.put(Integer.parseInt(fields[0]), fields[1]);
+            case SENDER -> senderIds.put(Integer.parseInt(fields[0]),
+                    new String[] { fields[1], avatarIds.getOrDefault(Integer.parseInt(fields[2]), Protocol.SYSTEM_AVATAR) });
+            // Resolved here, so the UI only ever sees full CHAT and ROOM_CHAT messages
+            case CHAT_REF -> {
+                if (fields.length < 1) return;
+                String[] sender = senderOf(frame.senderId());
+                String[] full = new String[fields.length + 2];
+                full[0] = sender[0]; full[1] = sender[1];
+                System.arraycopy(fields, 0, full, 2, fields.length);
+                receiver.offer(FrameType.CHAT, full);
+            }
+            case ROOM_CHAT_REF -> {
+                if (fields.length < 2) return;
+                String[] sender = senderOf(frame.senderId());
+                String[] full = new String[fields.length + 2];
+                full[0] = fields[0]; full[1] = sender[0]; full[2] = sender[1];
+                System.arraycopy(fields, 1, full, 3, fields.length - 1);
+                receiver.offer(FrameType.ROOM_CHAT, full);
+            }
+            default -> dispatch(type, fields);
+        }
+    }
 
-                VBox bubble = new VBox(3, nameLbl, msgContent);
-                if (isSelf) {
-                    bubble.setStyle("-fx-background-color: #E3F2FD; -fx-background-radius: 15 0 15 15; -fx-padding: 8 12;");
-                    bubble.setAlignment(Pos.TOP_RIGHT);
-                } else {
-                    bubble.setStyle("-fx-background-color: #F1F1F1; -fx-background-radius: 0 15 15 15; -fx-padding: 8 12;");
-                    bubble.setAlignment(Pos.TOP_LEFT);
-                }
+    /**
+     * Queues a parsed packet for the UI, except for the session bookkeeping, which stays
+     * on the network thread. Every packet has been counted already; SESSION starts the count.
+     */
+    private static void dispatch(FrameType type, String[] fields) {
+        switch (type) {
+            case SESSION -> {
+                sessionToken = fields[0];
+                sessionGraceSeconds = Integer.parseInt(fields[1]);
+                receivedSeq = 0;
+            }
+            case RESUMED, RESUME_FAILED -> { } // Only expected right after a RESUME, see resumeSession
+            // The attachment port is on the same host as the chat
+            case FILES -> Attachments.configure(tempIP, Integer.parseInt(fields[0]), fields[1]);
+            // Answered right here: a busy FX thread must not make a live client look dead
+            case PING -> sendCommand(FrameType.PONG, Protocol.PONG);
+            default -> receiver.offer(type, fields);
+        }
+    }
 
-                HBox row = new HBox(10);
-                if (isSelf) {
-                    row.setAlignment(Pos.TOP_RIGHT); row.getChildren().addAll(bubble, avatarView);
-                } else {
-                    row.setAlignment(Pos.TOP_LEFT); row.getChildren().addAll(avatarView, bubble);
-                }
-                container.getChildren().add(row);
-            } catch (Exception e) { e.printStackTrace(); }
-        });
+    /**
+     * @return { name, avatar } of an interned sender; the server defines every id before its first use
+     */
+    private static String[] senderOf(int senderId) {
+        return senderIds.getOrDefault(senderId, new String[] { "#" + senderId, Protocol.SYSTEM_AVATAR });
     }
 
-    private void handleMessageRouting(String packet) {
+    /**
+     * Updates the UI for one message, whichever protocol version it arrived in.
+     * Called by the receive pipeline on the FX thread, in arrival order, which a history
+     * page relies on: its messages follow its header.
+     */
+    private void routeMessage(FrameType type, String[] fields) {
         if (activeController == null) return;
-        if (packet.startsWith("USERLIST:")) {
-            String[] users = packet.substring(9).split(",");
-            Platform.runLater(() -> {
-                if (activeController.userListView != null) {
-                    activeController.userListView.getItems().clear();
-                    for (String u : users) if (!u.isEmpty()) activeController.userListView.getItems().add(u);
+        switch (type) {
+            case USERLIST -> replaceUserList(lobbyUsers, fields, 0);
+            case PRESENCE_SNAPSHOT -> {
+                presenceVersion = Long.parseLong(fields[0]);
+                awaitingSnapshot = false;
+                replaceUserList(lobbyUsers, fields, 1);
+            }
+            case PRESENCE_JOIN, PRESENCE_LEAVE -> {
+                long version = Long.parseLong(fields[0]);
+                // Until the (next) snapshot arrives, deltas cannot be applied safely
+                if (awaitingSnapshot || version <= presenceVersion) return;
+                if (version != presenceVersion + 1) {
+                    requestPresenceSnapshot();
+                    return;
                 }
-            });
-        } else if (packet.contains("|")) {
-            String[] parts = packet.split("\\|");
-            if (parts.length < 3) return;
-            String header = parts[0]; String avatar = parts[1]; String text = parts[2];
-
-            if (header.startsWith("[Private from ")) {
-                String sender = header.substring(14, header.length() - 1);
+                presenceVersion = version;
+                if (type == FrameType.PRESENCE_JOIN) addUser(lobbyUsers, fields[1]);
+                else removeUser(lobbyUsers, fields[1]);
+            }
+            case ROOM_JOINED -> {
+                String room = fields[0];
+                roomVersions.put(room, Long.parseLong(fields[1]));
+                replaceUserList(roomUsers.computeIfAbsent(room, r -> FXCollections.observableArrayList()), fields, 2);
+                openRoomTab(room, true);
+            }
+            case ROOM_LEFT -> {
+                roomUsers.remove(fields[0]);
+                roomVersions.remove(fields[0]);
+                historyCursors.remove("#" + fields[0]);
+                Tab tab = tabMap.remove("#" + fields[0]);
+                privateChatLog.remove("#" + fields[0]);
+                if (tab != null) activeController.chatTabPane.getTabs().remove(tab);
+            }
+            case ROOM_JOIN, ROOM_LEAVE -> {
+                String room = fields[0];
+                Long known = roomVersions.get(room);
+                long version = Long.parseLong(fields[1]);
+                if (known == null || version <= known) return;
+                if (version != known + 1) {
+                    // Gap: joining again is harmless and answers with a fresh snapshot
+                    sendCommand(FrameType.JOIN_ROOM, Protocol.JOIN_ROOM + " " + room, room);
+                    return;
+                }
+                roomVersions.put(room, version);
+                if (type == FrameType.ROOM_JOIN) addUser(roomUsers.get(room), fields[2]);
+                else removeUser(roomUsers.get(room), fields[2]);
+            }
+            case ROOM_CHAT -> {
+                ChatLog box = privateChatLog.get("#" + fields[0]);
+                if (box != null) {
+                    long id = messageId(fields, 4);
+                    int index = placeMessage("#" + fields[0], id);
+                    addMessageBubble("#" + fields[0], box, id, fields[1], fields[2], fields[3], fields[1].equals(userName), index);
+                    if (index == APPEND) notifyTab("#" + fields[0]);
+                }
+            }
+            case HISTORY -> {
+                String key = fields[0].equals(Protocol.LOBBY) ? "General" : "#" + fields[0];
+                HistoryCursor cursor = historyCursors.computeIfAbsent(key, k -> new HistoryCursor());
+                cursor.pending = Integer.parseInt(fields[1]);
+                cursor.insertAt = 0;
+                // Messages already on screen (e.g. arrived live while the backfill was on its way) are not repeated
+                cursor.pageBelowId = cursor.oldestShown;
+                cursor.nextBefore = Long.parseLong(fields[2]);
+                if (cursor.pending == 0) finishHistoryPage(key, cursor);
+            }
+            case SEARCH_RESULTS -> {
+                searchNextBefore = Long.parseLong(fields[1]);
+                pendingSearchHits = Integer.parseInt(fields[0]);
+                String text = fields[0].equals("0") ? "No messages found for \"" + fields[2] + "\"."
+                        : "Messages with \"" + fields[2] + "\", newest first:";
+                if (activeController.chatBox != null) {
+                    addMessageBubble("General", activeController.chatBox, "[Search]", Protocol.SYSTEM_AVATAR, text, false);
+                }
+            }
+            case SEARCH_HIT -> {
+                // id, timestamp, channel, name, avatar, text
+                String when = HIT_TIME.format(Instant.ofEpochMilli(messageId(fields, 1)));
+                String where = fields[2].equals(Protocol.LOBBY) ? "" : " in " + fields[2];
+                if (activeController.chatBox != null) {
+                    addMessageBubble("General", activeController.chatBox, fields[3] + where + ", " + when, fields[4],
+                            fields[5], fields[3].equals(userName));
+                }
+                if (--pendingSearchHits == 0 && searchNextBefore > 0 && activeController.chatBox != null) {
+                    addMessageBubble("General", activeController.chatBox, "[Search]", Protocol.SYSTEM_AVATAR,
+                            "Type /search for older messages.", false);
+                }
+            }
+            case ROOM_LIST -> {
+                StringBuilder text = new StringBuilder(fields.length == 0 ? "No rooms yet. Create one with /join <room>." : "Rooms:");
+                for (int i = 0; i + 1 < fields.length; i += 2) text.append(" #").append(fields[i]).append(" (").append(fields[i + 1]).append(")");
+                if (activeController.chatBox != null) {
+                    addMessageBubble("General", activeController.chatBox, "[System]", Protocol.SYSTEM_AVATAR, text.toString(), false);
+                }
+            }
+            case PRIVATE_FROM -> {
+                String sender = fields[0]; String avatar = fields[1]; String text = fields[2];
                 openPrivateTab(sender, false);
-                Platform.runLater(() -> {
-                    VBox box = privateChatLog.get(sender);
-                    if (box != null) {
-                        addMessageBubble(box, sender, avatar, text, false);
-                        notifyTab(sender);
-                    }
-                });
-            } else if (header.startsWith("[Private to ")) {
-                String target = header.substring(12, header.length() - 1);
+                ChatLog box = privateChatLog.get(sender);
+                if (box != null) {
+                    addMessageBubble(sender, box, sender, avatar, text, false);
+                    notifyTab(sender);
+                }
+            }
+            case PRIVATE_TO -> {
+                String target = fields[0]; String text = fields[2];
                 openPrivateTab(target, false);
-                Platform.runLater(() -> {
-                    VBox box = privateChatLog.get(target);
-                    if (box != null) addMessageBubble(box, userName, currentAvatarPath, text, true);
-                });
-            } else {
+                ChatLog box = privateChatLog.get(target);
+                if (box != null) addMessageBubble(target, box, userName, currentAvatarPath, text, true);
+            }
+            case CHAT -> {
+                String header = fields[0];
                 boolean isSelf = header.equals(userName);
                 if (activeController.chatBox != null) {
-                    addMessageBubble(activeController.chatBox, header, avatar, text, isSelf);
+                    long id = header.startsWith("[") ? 0 : messageId(fields, 3);
+                    int index = header.startsWith("[") ? APPEND : placeMessage("General", id);
+                    addMessageBubble("General", activeController.chatBox, id, header, fields[1], fields[2], isSelf, index);
+                }
+            }
+            default -> { }
+        }
+    }
+
+    private static long messageId(String[] fields, int index) {
+        try {
+            return index < fields.length ? Long.parseLong(fields[index]) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Decides where a chat message goes: APPEND for a live message, its position if it is
+     * part of the history page being received, or DROP if it is already on screen.
+     */
+    private static int placeMessage(String key, long id) {
+        HistoryCursor cursor = historyCursors.computeIfAbsent(key, k -> new HistoryCursor());
+        if (cursor.pending == 0) {
+            if (id > 0) cursor.oldestShown = Math.min(cursor.oldestShown, id);
+            return APPEND;
+        }
+        int index = DROP;
+        if (id > 0 && id < cursor.pageBelowId) {
+            index = cursor.insertAt++;
+            cursor.oldestShown = Math.min(cursor.oldestShown, id);
+        }
+        if (--cursor.pending == 0) finishHistoryPage(key, cursor);
+        return index;
+    }
+
+    /**
+     * Asks for the page before the oldest message shown, unless one is on its way already,
+     * the beginning of the history was reached or the log holds as many messages as it may.
+     */
+    private static void requestOlderHistory(String key) {
+        HistoryCursor cursor = historyCursors.get(key);
+        ChatLog log = chatLogOf(key);
+        if (cursor == null || cursor.loading || cursor.nextBefore <= 0 || log == null || log.isFull()) return;
+        cursor.loading = true;
+        String before = Long.toString(cursor.nextBefore);
+        String limit = Integer.toString(HISTORY_PAGE);
+        if (key.startsWith("#")) {
+            String room = key.substring(1);
+            sendCommand(FrameType.HISTORY_REQUEST, Protocol.HISTORY_REQUEST + " before=" + before + " limit=" + limit + " room=" + room, room, before, limit);
+        } else {
+            sendCommand(FrameType.HISTORY_REQUEST, Protocol.HISTORY_REQUEST + " before=" + before + " limit=" + limit, Protocol.LOBBY, before, limit);
+        }
+    }
+
+    /**
+     * Starts a new search, or continues the last one with its next older page if the query is empty.
+     */
+    private static void search(String query) {
+        long before = 0;
+        if (query.isEmpty()) {
+            if (searchQuery == null || searchNextBefore <= 0) {
+                if (activeController != null && activeController.chatBox != null) {
+                    addMessageBubble("General", activeController.chatBox, "[Search]", Protocol.SYSTEM_AVATAR,
+                            searchQuery == null ? "Usage: /search <words>" : "No older messages.", false);
                 }
+                return;
             }
+            query = searchQuery;
+            before = searchNextBefore;
         }
+        searchQuery = query;
+        String limit = "20";
+        sendCommand(FrameType.SEARCH, Protocol.SEARCH_REQUEST + " before=" + before + " limit=" + limit + " " + query,
+                query, Long.toString(before), limit);
+    }
+
+    /**
+     * Runs once the last message of a page was routed, which is added right after this
+     * call, so the scroll position is fixed up once the batch is applied: the backfill
+     * scrolls to the newest message, an older page keeps the message that was on top there.
+     */
+    private static void finishHistoryPage(String key, HistoryCursor cursor) {
+        boolean paged = cursor.loading;
+        cursor.loading = false;
+        receiver.afterBatch(() -> {
+            ChatLog log = chatLogOf(key);
+            if (log == null) return;
+            if (!paged) log.scrollToEnd();
+            else if (cursor.insertAt > 0) log.scrollTo(cursor.insertAt);
+            // An empty page can still point further back (the server bounds each search); keep going
+            else if (cursor.nextBefore > 0) requestOlderHistory(key);
+        });
+    }
+
+    private static ChatLog chatLogOf(String key) {
+        if (activeController == null) return null;
+        return key.equals("General") ? activeController.chatBox : privateChatLog.get(key);
+    }
+
+    /**
+     * Replaces a sidebar model with fields[from..], sorted, in a single list change.
+     */
+    private static void replaceUserList(ObservableList<String> target, String[] fields, int from) {
+        List<String> users = new ArrayList<>(fields.length - from);
+        for (int i = from; i < fields.length; i++) if (!fields[i].isEmpty()) users.add(fields[i]);
+        users.sort(USER_ORDER);
+        target.setAll(users);
+    }
+
+    private static void addUser(List<String> users, String name) {
+        int index = Collections.binarySearch(users, name, USER_ORDER);
+        if (index < 0) users.add(-index - 1, name); // Already listed after a re-login otherwise
+    }
+
+    private static void removeUser(List<String> users, String name) {
+        int index = Collections.binarySearch(users, name, USER_ORDER);
+        if (index >= 0) users.remove(index);
+    }
+
+    /**
+     * Called on a version gap: ignores further deltas and asks the server for a snapshot.
+     */
+    private static void requestPresenceSnapshot() {
+        awaitingSnapshot = true;
+        sendCommand(FrameType.PRESENCE_SYNC, Protocol.PRESENCE_SYNC);
+    }
+
+    /**
+     * Sends a request to the server in whichever protocol this connection speaks.
+     */
+    private static void sendCommand(FrameType type, String v1Line, String... fields) {
+        try {
+            if (protocolVersion == 2) writeFrame(type, fields);
+            else if (out != null) out.println(v1Line);
+        } catch (IOException e) { e.printStackTrace(); }
     }
 
     private void notifyTab(String name) {
@@ -181,13 +570,76 @@ public class ChatController {
 
     @FXML protected void onSendButtonClick() {
         String msg = messageField.getText().trim();
-        if (msg.isEmpty() || out == null) return;
+        if (msg.isEmpty() || (out == null && frameOut == null)) return;
         Tab sel = chatTabPane.getSelectionModel().getSelectedItem();
-        if (sel.getText().equals("General")) out.println(msg);
-        else out.println("@" + sel.getText() + ": " + msg);
+        String room = roomOfTab(sel);
+        try {
+            if (msg.startsWith("/join ")) {
+                sendCommand(FrameType.JOIN_ROOM, Protocol.JOIN_ROOM + " " + msg.substring(6).trim(), msg.substring(6).trim());
+            } else if (msg.equals("/leave") && room != null) {
+                // Same as closing the tab; the server confirms with ROOM_LEFT
+                sendCommand(FrameType.LEAVE_ROOM, Protocol.LEAVE_ROOM + " " + room, room);
+            } else if (msg.equals("/rooms")) {
+                sendCommand(FrameType.LIST_ROOMS, Protocol.LIST_ROOMS);
+            } else if (msg.equals("/search") || msg.startsWith("/search ")) {
+                search(msg.substring(7).trim());
+            } else if (msg.equals("/attach") || msg.startsWith("/attach ")) {
+                attach(msg.substring(7).trim(), sel);
+            } else if (msg.equals("/stats")) {
+                // Local only: how the client keeps up with what it receives
+                String text = receiver.summary() + "\nAvatar cache: " + AvatarCache.size() + " avatars, "
+                        + AvatarCache.hits() + " hits, " + AvatarCache.misses() + " misses, " + AvatarCache.evictions() + " evictions";
+                addMessageBubble("General", chatBox, "[System]", Protocol.SYSTEM_AVATAR, text, false);
+            } else if (msg.length() > Protocol.MAX_TEXT_LENGTH) {
+                // The server would refuse it; keep the text in the field so it can be shortened
+                addMessageBubble("General", chatBox, "[System]", Protocol.SYSTEM_AVATAR,
+                        "Messages are limited to " + Protocol.MAX_TEXT_LENGTH + " characters.", false);
+                return;
+            } else if (room != null) {
+                if (protocolVersion == 2) writeFrame(FrameType.SEND_ROOM, room, msg);
+                else out.println(Protocol.ROOM_MESSAGE + " " + room + " " + msg);
+            } else if (sel.getText().equals("General")) {
+                if (protocolVersion == 2) writeFrame(FrameType.SEND_PUBLIC, msg);
+                // Logged in with capabilities, so a leading '/' would make it a request
+                else out.println(Protocol.escapeText(msg));
+            } else {
+                if (protocolVersion == 2) writeFrame(FrameType.SEND_PRIVATE, sel.getText(), msg);
+                else out.println("@" + sel.getText() + ": " + msg);
+            }
+        } catch (IOException e) { e.printStackTrace(); }
         messageField.clear();
     }
 
+    /**
+     * "/attach <path>" sends a file to the chat of the selected tab; "/attach" alone lets the user pick one.
+     */
+    private void attach(String path, Tab tab) {
+        File file;
+        if (path.isEmpty()) {
+            FileChooser chooser = new FileChooser();
+            chooser.setTitle("Send a file");
+            file = chooser.showOpenDialog(chatTabPane.getScene().getWindow());
+            if (file == null) return;
+        } else {
+            file = new File(path);
+        }
+        if (!file.isFile()) {
+            addMessageBubble("General", chatBox, "[System]", Protocol.SYSTEM_AVATAR, "No such file: " + path, false);
+            return;
+        }
+        String room = roomOfTab(tab);
+        String channel = room != null ? "#" + room
+                : tab.getText().equals("General") ? Protocol.LOBBY : "@" + tab.getText();
+        Attachments.upload(Path.of(file.getPath()), channel);
+    }
+
+    // The network thread answers PINGs while the FX thread sends, so whole frames are written one at a time
+    private static synchronized void writeFrame(FrameType type, String... fields) throws IOException {
+        ByteBuffer frame = FrameEncoder.encode(type, 0, fields);
+        frameOut.write(frame.array(), 0, frame.limit());
+        frameOut.flush();
+    }
+
     @FXML protected void onConnectButtonClick() {
         if (nameField.getText().trim().isEmpty()) {
             statusLabel.setText("Please enter your name!");
@@ -211,10 +663,23 @@ public class ChatController {
             new Thread(() -> {
                 try {
                     Thread.sleep(500);
-                    socket = new Socket(tempIP, tempPort);
-                    out = new PrintWriter(socket.getOutputStream(), true);
-                    in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    out.println(userName + "|" + currentAvatarPath);
+                    // A delta-capable server starts with a snapshot; an older one sends USERLIST
+                    presenceVersion = 0;
+                    awaitingSnapshot = true;
+                    sessionToken = null;
+                    // Until this server says where its attachment port is, if it has one
+                    Attachments.configure(null, 0, null);
+                    // Whichever controller shows the chat when a batch is applied routes it
+                    receiver = new ReceivePipeline((type, fields) -> {
+                        if (activeController != null) activeController.routeMessage(type, fields);
+                    });
+                    if (!(PREFER_V2 && connectV2())) {
+                        protocolVersion = 1;
+                        socket = new Socket(tempIP, tempPort);
+                        out = new PrintWriter(socket.getOutputStream(), true);
+                        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                        out.println(userName + "|" + currentAvatarPath + "|" + LOGIN_CAPABILITIES);
+                    }
                     isRunning = true;
                     new Thread(this::listenToServer).start();
                 } catch (Exception ex) { ex.printStackTrace(); }
@@ -222,19 +687,144 @@ public class ChatController {
         } catch (Exception ex) { ex.printStackTrace(); }
     }
 
-    private void listenToServer() {
+    /**
+     * Tries the v2 handshake: sends "CHAT/2" and waits for the server's HELLO frame.
+     * A v1 server ignores the line, so after the timeout the caller reconnects with v1.
+     */
+    private boolean connectV2() {
         try {
-            String line;
-            while (isRunning && (line = in.readLine()) != null) {
-                final String m = line; Platform.runLater(() -> handleMessageRouting(m));
+            senderIds.clear();
+            avatarIds.clear();
+            openV2();
+            protocolVersion = 2;
+            writeFrame(FrameType.LOGIN, userName, currentAvatarPath, LOGIN_CAPABILITIES);
+            return true;
+        } catch (IOException e) {
+            // SocketTimeoutException included: the server only speaks v1
+            try { if (socket != null) socket.close(); } catch (IOException ignored) {}
+            frameOut = null;
+            return false;
+        }
+    }
+
+    /**
+     * Connects and completes the v2 handshake, up to the HELLO frame.
+     */
+    private static void openV2() throws IOException {
+        socket = new Socket(tempIP, tempPort);
+        frameIn = socket.getInputStream();
+        frameOut = socket.getOutputStream();
+        frameDecoder = new FrameDecoder(Protocol.MAX_SERVER_FRAME_LENGTH);
+        frameBuffer.clear().flip();
+        frameOut.write((Protocol.HANDSHAKE_V2 + "\n").getBytes(StandardCharsets.UTF_8));
+        frameOut.flush();
+
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        Frame hello = readFrame();
+        socket.setSoTimeout(0);
+        if (hello == null || hello.type() != FrameType.HELLO) throw new IOException("No v2 HELLO");
+    }
+
+    /**
+     * Blocks until one complete v2 frame has arrived.
+     *
+     * @return the frame (valid until the next call), or null at end of stream
+     */
+    private static Frame readFrame() throws IOException {
+        while (true) {
+            if (frameBuffer.hasRemaining()) {
+                Frame frame = frameDecoder.next(frameBuffer);
+                if (frame != null) return frame;
             }
-        } catch (IOException e) {} finally { if (isRunning) Platform.runLater(this::showErrorPopup); }
+            frameBuffer.clear();
+            int n = frameIn.read(frameBuffer.array());
+            if (n < 0) return null;
+            frameBuffer.limit(n);
+        }
+    }
+
+    private void listenToServer() {
+        do {
+            try {
+                if (protocolVersion == 2) {
+                    Frame frame;
+                    while (isRunning && (frame = readFrame()) != null) handleFrame(frame);
+                } else {
+                    String line;
+                    while (isRunning && (line = in.readLine()) != null) {
+                        receivedSeq++;
+                        LegacyParser.parse(line, ChatController::dispatch);
+                    }
+                }
+            } catch (IOException e) {}
+        } while (isRunning && resumeSession());
+        if (isRunning) Platform.runLater(this::showErrorPopup);
+    }
+
+    /**
+     * After the connection dropped: connects again and resumes the session, retrying
+     * until the server's grace period is over. The server replays what was lost with the
+     * old connection, so the chat just continues and nobody sees this user leave.
+     *
+     * @return true if the session was resumed and listening can go on
+     */
+    private static boolean resumeSession() {
+        String token = sessionToken;
+        if (token == null) return false;
+        sessionToken = null;
+        receiver.offer(FrameType.CHAT, new String[] { "[System]", Protocol.SYSTEM_AVATAR, "Connection lost, reconnecting..." });
+        long deadline = System.nanoTime() + sessionGraceSeconds * 1_000_000_000L;
+        long backoff = 250;
+        while (isRunning && System.nanoTime() < deadline) {
+            try { if (socket != null) socket.close(); } catch (IOException ignored) {}
+            try {
+                if (!(protocolVersion == 2 ? resumeV2(token) : resumeV1(token))) return false; // The session is gone
+                sessionToken = token;
+                receiver.offer(FrameType.CHAT, new String[] { "[System]", Protocol.SYSTEM_AVATAR, "Reconnected." });
+                return true;
+            } catch (IOException e) {
+                // Not reachable (yet); try again
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    return false;
+                }
+                backoff = Math.min(2 * backoff, 2000);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the server answered RESUMED, false for RESUME_FAILED
+     */
+    private static boolean resumeV2(String token) throws IOException {
+        openV2();
+        writeFrame(FrameType.RESUME, token, Long.toString(receivedSeq));
+        socket.setSoTimeout(RESUME_TIMEOUT_MS);
+        Frame answer = readFrame();
+        socket.setSoTimeout(0);
+        if (answer == null) throw new IOException("Closed during resume");
+        return answer.type() == FrameType.RESUMED;
+    }
+
+    private static boolean resumeV1(String token) throws IOException {
+        socket = new Socket(tempIP, tempPort);
+        out = new PrintWriter(socket.getOutputStream(), true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        out.println(Protocol.RESUME_PREFIX + token + ":" + receivedSeq);
+        socket.setSoTimeout(RESUME_TIMEOUT_MS);
+        String answer = in.readLine();
+        socket.setSoTimeout(0);
+        if (answer == null) throw new IOException("Closed during resume");
+        return answer.startsWith(Protocol.RESUMED_PREFIX);
     }
 
     private void showErrorPopup() {
         Platform.runLater(() -> {
             try {
-                isRunning = false; if (socket != null) socket.close();
+                isRunning = false; sessionToken = null; if (socket != null) socket.close();
+                if (receiver != null) receiver.stop();
                 if (activeController != null && activeController.chatTabPane != null) {
                     ((Stage) activeController.chatTabPane.getScene().getWindow()).close();
                 }
@@ -251,8 +841,14 @@ public class ChatController {
     protected void onDisconnectButtonClick(ActionEvent event) {
         isRunning = false;
         try {
+            // Leaving on purpose: the server drops the session instead of keeping it for a reconnect
+            if (sessionToken != null) sendCommand(FrameType.LOGOUT, Protocol.LOGOUT);
+            sessionToken = null;
             if (socket != null) socket.close();
+            if (receiver != null) receiver.stop();
             privateChatLog.clear(); tabMap.clear();
+            roomUsers.clear(); roomVersions.clear(); lobbyUsers.clear(); historyCursors.clear();
+            searchQuery = null; searchNextBefore = 0; pendingSearchHits = 0;
 
             // Find the stage from the event source (the button clicked)
             Stage stage = (Stage) ((Node) event.getSource()).getScene().getWindow();
@@ -268,7 +864,7 @@ public class ChatController {
         activeController = next;
         if (p.contains("chat-view")) {
             next.welcomeLabel.setText("User: " + userName);
-            next.userAvatarImage.setImage(new Image(getClass().getResourceAsStream(currentAvatarPath)));
+            next.userAvatarImage.setImage(AvatarCache.get(currentAvatarPath));
         }
     }
 
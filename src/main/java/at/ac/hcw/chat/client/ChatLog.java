@@ -0,0 +1,201 @@
+package at.ac.hcw.chat.client;
+
+import at.ac.hcw.chat.protocol.Protocol;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.geometry.Pos;
+import javafx.scene.control.Hyperlink;
+import javafx.scene.control.IndexedCell;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.skin.VirtualFlow;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+import javafx.scene.shape.Circle;
+
+/**
+ * The messages of one chat tab (General, a room or a private chat) in a virtualized
+ * ListView: the log itself is a list of {@link ChatMessage} records, and only the rows
+ * on screen become nodes. Scrolling hands the same few cells new messages instead of
+ * creating a bubble per message, so a long session costs no more layout than a short one.
+ *
+ * The log keeps at most MAX_MESSAGES (-Dchat.client.maxMessages, default 1000): a live
+ * message beyond that drops the oldest one. Scrolling back through history stops once
+ * the log is full. FX thread only.
+ *
+ * A message announcing an attachment is drawn as a preview (images) or a link that saves
+ * the file; either is only downloaded once a cell actually shows the message.
+ */
+final class ChatLog {
+    static final int MAX_MESSAGES = Math.max(50, Integer.getInteger("chat.client.maxMessages", 1000));
+
+    private final ListView<ChatMessage> view;
+    private final ObservableList<ChatMessage> messages = FXCollections.observableArrayList();
+    private VirtualFlow<?> flow;
+    private Runnable onScrolledToTop = () -> { };
+    // Set while following new messages until the next layout shows where the view ended up
+    private boolean following;
+
+    ChatLog(ListView<ChatMessage> view) {
+        this.view = view;
+        view.setItems(messages);
+        view.getStyleClass().add("chat-log");
+        view.setFocusTraversable(false);
+        view.setCellFactory(list -> new MessageCell());
+        // The flow exists once the skin does; it tells which rows are on screen
+        view.skinProperty().addListener((obs, oldSkin, skin) -> {
+            if (!(view.lookup(".virtual-flow") instanceof VirtualFlow<?> virtualFlow)) return;
+            flow = virtualFlow;
+            flow.positionProperty().addListener((o, oldValue, position) -> {
+                if (position.doubleValue() <= 0) onScrolledToTop.run();
+            });
+        });
+        view.needsLayoutProperty().addListener((obs, wasNeeded, needed) -> {
+            if (!needed) following = false;
+        });
+    }
+
+    ChatLog() {
+        this(new ListView<>());
+    }
+
+    ListView<ChatMessage> view() {
+        return view;
+    }
+
+    int size() {
+        return messages.size();
+    }
+
+    boolean isFull() {
+        return messages.size() >= MAX_MESSAGES;
+    }
+
+    /**
+     * Adds a live message at the bottom. The view follows it if the newest message was
+     * visible before, like a chat should; a reader scrolled up stays where they are.
+     * A batch appended within one frame is followed as a whole: until the next layout
+     * the visible cells still show the state before the batch.
+     *
+     * @return how many of the oldest messages were dropped to stay within the cap
+     */
+    int append(ChatMessage message) {
+        following = following || showsLast();
+        messages.add(message);
+        int dropped = messages.size() - MAX_MESSAGES;
+        if (dropped > 0) messages.remove(0, dropped);
+        if (following) scrollToEnd();
+        return Math.max(0, dropped);
+    }
+
+    /**
+     * Inserts a history message above the live ones (index 0 is the oldest message).
+     */
+    void insert(int index, ChatMessage message) {
+        messages.add(Math.min(index, messages.size()), message);
+    }
+
+    /**
+     * @return the id of the oldest message that has one, or 0 if none has
+     */
+    long oldestId() {
+        for (ChatMessage message : messages) {
+            if (message.id() > 0) return message.id();
+        }
+        return 0;
+    }
+
+    void scrollTo(int index) {
+        view.scrollTo(index);
+    }
+
+    void scrollToEnd() {
+        if (!messages.isEmpty()) view.scrollTo(messages.size() - 1);
+    }
+
+    /**
+     * Runs the action whenever the log is scrolled to the very top.
+     */
+    void onScrolledToTop(Runnable action) {
+        onScrolledToTop = action;
+    }
+
+    private boolean showsLast() {
+        if (flow == null || messages.isEmpty()) return true;
+        IndexedCell<?> last = flow.getLastVisibleCell();
+        return last == null || last.getIndex() >= messages.size() - 1;
+    }
+
+    /**
+     * One bubble row, built once per cell and refilled for whichever message scrolls into it.
+     */
+    private static final class MessageCell extends ListCell<ChatMessage> {
+        private final ImageView avatarView = new ImageView();
+        private final Label nameLbl = new Label();
+        private final Label msgContent = new Label();
+        private final ImageView preview = new ImageView();
+        private final Hyperlink fileLink = new Hyperlink();
+        private final VBox bubble = new VBox(3, nameLbl, msgContent);
+        private final HBox row = new HBox(10);
+        // Id of the attachment this cell currently shows, so a late preview is not put into a recycled cell
+        private String attachmentId;
+
+        MessageCell() {
+            avatarView.setFitHeight(AvatarCache.SIZE); avatarView.setFitWidth(AvatarCache.SIZE);
+            avatarView.setClip(new Circle(20, 20, 20));
+            nameLbl.setStyle("-fx-font-size: 9px; -fx-text-fill: #90A4AE; -fx-font-weight: bold;");
+            msgContent.setWrapText(true); msgContent.setMaxWidth(300);
+            preview.setPreserveRatio(true);
+            // Without this a wide message would widen the cell instead of wrapping
+            setPrefWidth(0);
+        }
+
+        @Override
+        protected void updateItem(ChatMessage message, boolean empty) {
+            super.updateItem(message, empty);
+            if (empty || message == null) {
+                setGraphic(null);
+                return;
+            }
+            nameLbl.setText(message.sender() + "  " + message.time());
+            showContent(message.text());
+            avatarView.setImage(AvatarCache.get(message.avatar()));
+            if (message.self()) {
+                bubble.setStyle("-fx-background-color: #E3F2FD; -fx-background-radius: 15 0 15 15; -fx-padding: 8 12;");
+                bubble.setAlignment(Pos.TOP_RIGHT);
+                row.setAlignment(Pos.TOP_RIGHT); row.getChildren().setAll(bubble, avatarView);
+            } else {
+                bubble.setStyle("-fx-background-color: #F1F1F1; -fx-background-radius: 0 15 15 15; -fx-padding: 8 12;");
+                bubble.setAlignment(Pos.TOP_LEFT);
+                row.setAlignment(Pos.TOP_LEFT); row.getChildren().setAll(avatarView, bubble);
+            }
+            setGraphic(row);
+        }
+
+        private void showContent(String text) {
+            String[] attachment = Attachments.available() ? Protocol.parseAttachment(text) : null;
+            if (attachment == null) {
+                attachmentId = null;
+                msgContent.setText(text);
+                bubble.getChildren().setAll(nameLbl, msgContent);
+                return;
+            }
+            String id = attachment[0];
+            String name = attachment[2];
+            attachmentId = id;
+            if (Attachments.isImage(name)) {
+                // Asking for the preview is what starts the download
+                preview.setImage(Attachments.preview(id, name, image -> {
+                    if (id.equals(attachmentId)) preview.setImage(image);
+                }));
+                bubble.getChildren().setAll(nameLbl, preview);
+            } else {
+                fileLink.setText(name + " (" + Attachments.formatSize(Long.parseLong(attachment[1])) + ")");
+                fileLink.setOnAction(e -> Attachments.save(id, name));
+                bubble.getChildren().setAll(nameLbl, fileLink);
+            }
+        }
+    }
+}
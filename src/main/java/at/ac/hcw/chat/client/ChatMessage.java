@@ -0,0 +1,23 @@
+package at.ac.hcw.chat.client;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * One line of a chat log, as plain data. The nodes that show it are created by
+ * {@link ChatLog} for the visible rows only and are recycled while scrolling.
+ *
+ * @param id     the server's message id, or 0 if it has none (private and system messages)
+ * @param sender name shown above the text ("[System]" for server notices)
+ * @param avatar resource path of the sender's avatar
+ * @param text   the message text
+ * @param self   true if this user sent it (drawn on the right)
+ * @param time   when it arrived, "HH:mm"
+ */
+record ChatMessage(long id, String sender, String avatar, String text, boolean self, String time) {
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm");
+
+    static ChatMessage received(long id, String sender, String avatar, String text, boolean self) {
+        return new ChatMessage(id, sender, avatar, text, self, LocalTime.now().format(TIME));
+    }
+}
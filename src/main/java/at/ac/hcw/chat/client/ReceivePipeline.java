@@ -0,0 +1,129 @@
+package at.ac.hcw.chat.client;
+
+import at.ac.hcw.chat.protocol.FrameType;
+import at.ac.hcw.chat.protocol.LegacyParser;
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands received packets from the network thread to the FX thread, one batch per frame.
+ *
+ * The reader parses each line or frame on its own thread and only queues the result.
+ * An AnimationTimer drains the queue once per pulse and routes the whole batch in one
+ * go, before that pulse's CSS and layout pass: a burst of 1,000 messages costs one
+ * layout instead of flooding the FX event queue with thousands of runnables.
+ *
+ * The timer only runs while there is something to drain; the first packet after a quiet
+ * period starts it with a single runLater.
+ */
+final class ReceivePipeline {
+    private record Packet(FrameType type, String[] fields) { }
+
+    private final ConcurrentLinkedQueue<Packet> queue = new ConcurrentLinkedQueue<>();
+    // ConcurrentLinkedQueue.size() walks the whole queue, so the depth is counted separately
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final LegacyParser.Sink router;
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            drain();
+        }
+    };
+
+    // Tasks that must see the whole batch applied, e.g. scrolling after a history page
+    private final List<Runnable> afterBatch = new ArrayList<>();
+    private boolean draining;
+    private volatile boolean stopped;
+
+    // Statistics, written on the FX thread (maxDepth also by the reader)
+    private volatile int maxDepth;
+    private long frames, packets, lastDrainNanos, maxDrainNanos, totalDrainNanos;
+
+    /**
+     * @param router applies one packet to the UI; called on the FX thread only
+     */
+    ReceivePipeline(LegacyParser.Sink router) {
+        this.router = router;
+    }
+
+    /**
+     * Queues a parsed packet. Called by the network thread.
+     */
+    void offer(FrameType type, String[] fields) {
+        if (stopped) return;
+        queue.add(new Packet(type, fields));
+        int queued = depth.incrementAndGet();
+        if (queued > maxDepth) maxDepth = queued;
+        if (scheduled.compareAndSet(false, true)) Platform.runLater(timer::start);
+    }
+
+    /**
+     * Runs the task once the current batch is applied, or right away outside of a batch.
+     * FX thread only.
+     */
+    void afterBatch(Runnable task) {
+        if (draining) afterBatch.add(task);
+        else task.run();
+    }
+
+    /**
+     * Drops whatever is still queued and stops draining; used when the connection ends.
+     */
+    void stop() {
+        stopped = true;
+        queue.clear();
+        depth.set(0);
+        Platform.runLater(timer::stop);
+    }
+
+    private void drain() {
+        long start = System.nanoTime();
+        // Only what is queued now: a sender that never pauses must not starve the frame
+        int batch = depth.get();
+        draining = true;
+        try {
+            for (int i = 0; i < batch; i++) {
+                Packet packet = queue.poll();
+                if (packet == null) break;
+                depth.decrementAndGet();
+                try {
+                    router.accept(packet.type(), packet.fields());
+                } catch (RuntimeException e) { e.printStackTrace(); }
+                packets++;
+            }
+        } finally {
+            draining = false;
+        }
+        for (Runnable task : afterBatch) task.run();
+        afterBatch.clear();
+
+        if (batch > 0) {
+            lastDrainNanos = System.nanoTime() - start;
+            maxDrainNanos = Math.max(maxDrainNanos, lastDrainNanos);
+            totalDrainNanos += lastDrainNanos;
+            frames++;
+        }
+        if (queue.isEmpty()) {
+            timer.stop();
+            scheduled.set(false);
+            // A packet queued between the check and the reset found the timer still scheduled
+            if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) timer.start();
+        }
+    }
+
+    /**
+     * One line for the "/stats" command: queue depth and the time spent draining per frame.
+     */
+    String summary() {
+        return String.format("Receive queue: %d queued (max %d), %d packets in %d frames, drain %.2f ms last, %.2f ms avg, %.2f ms max",
+                depth.get(), maxDepth, packets, frames, lastDrainNanos / 1e6,
+                frames == 0 ? 0.0 : totalDrainNanos / 1e6 / frames, maxDrainNanos / 1e6);
+    }
+}
@@ -0,0 +1,103 @@
+package at.ac.hcw.chat.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A decoded v2 frame, viewed in place.
+ *
+ * The frame does not copy its bytes: it only remembers where the fields start
+ * inside the decoder's (or the socket's) buffer. Strings are created only for
+ * the fields a caller actually asks for. A Frame is reused by its decoder and
+ * is only valid until the next call to {@link FrameDecoder#next}.
+ */
+public final class Frame {
+    // type byte + sender id
+    static final int FIXED_LENGTH = 1 + 4;
+
+    private ByteBuffer buffer;
+    private FrameType type;
+    private int senderId;
+    private int fieldCount;
+    private int[] offsets = new int[8];
+    private int[] lengths = new int[8];
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Points this frame at buffer[start .. start+length), where start is the first
+     * byte after the length prefix, and validates the field table.
+     */
+    void wrap(ByteBuffer buffer, int start, int length) throws ProtocolException {
+        FrameType decodedType = FrameType.fromCode(buffer.get(start));
+        if (decodedType == null) throw new ProtocolException("Unknown frame type " + (buffer.get(start) & 0xFF));
+
+        int position = start + FIXED_LENGTH;
+        int end = start + length;
+        int count = 0;
+        while (position < end) {
+            if (end - position < 2) throw new ProtocolException("Truncated field header");
+            int fieldLength = buffer.getShort(position) & 0xFFFF;
+            position += 2;
+            if (fieldLength > end - position) throw new ProtocolException("Field exceeds frame");
+            /* No separate field limit: every field costs at least its two header bytes, so
+               the frame length already bounds the count. Presence snapshots and user lists
+               carry one field per online user and easily exceed any small fixed limit. */
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            offsets[count] = position;
+            lengths[count] = fieldLength;
+            count++;
+            position += fieldLength;
+        }
+
+        this.buffer = buffer;
+        this.type = decodedType;
+        this.senderId = buffer.getInt(start + 1);
+        this.fieldCount = count;
+    }
+
+    public FrameType type() {
+        return type;
+    }
+
+    public int senderId() {
+        return senderId;
+    }
+
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * Decodes one field as UTF-8.
+     */
+    public String string(int index) {
+        checkIndex(index);
+        int offset = offsets[index];
+        int length = lengths[index];
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        // Direct buffers: copy through one reusable scratch array
+        if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+        buffer.get(offset, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the field, or the fallback if the frame has fewer fields
+     */
+    public String string(int index, String fallback) {
+        return index < fieldCount ? string(index) : fallback;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= fieldCount) {
+            throw new IndexOutOfBoundsException("Field " + index + " of " + fieldCount + " in " + type);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package at.ac.hcw.chat.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns a stream of bytes into v2 frames.
+ *
+ * Wire layout, big-endian:
+ *   int32  length     number of bytes that follow (type + sender + fields)
+ *   byte   type       see FrameType
+ *   int32  senderId   0 for the server itself
+ *   fields            repeated: uint16 length, UTF-8 bytes
+ *
+ * Complete frames are decoded directly inside the caller's buffer. Only a frame
+ * that is split across two reads is copied into the decoder's reusable buffer.
+ */
+public final class FrameDecoder {
+    private final int maxFrameLength;
+    private final Frame frame = new Frame();
+    // Holds the prefix of a frame that did not arrive in one piece
+    private ByteBuffer partial = ByteBuffer.allocate(256);
+
+    public FrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Consumes bytes from the buffer until one frame is complete.
+     *
+     * @return the decoded frame (valid until the next call), or null if more bytes are needed
+     * @throws ProtocolException if the bytes cannot be a valid frame
+     */
+    public Frame next(ByteBuffer in) throws ProtocolException {
+        if (partial.position() == 0 && in.remaining() >= 4) {
+            // Fast path: the whole frame is already in the caller's buffer
+            int length = checkLength(in.getInt(in.position()));
+            if (in.remaining() >= 4 + length) {
+                int start = in.position() + 4;
+                in.position(start + length);
+                frame.wrap(in, start, length);
+                return frame;
+            }
+        }
+
+        // Slow path: collect the length prefix, then the body
+        if (partial.position() < 4) {
+            copy(in, 4 - partial.position());
+            if (partial.position() < 4) return null;
+        }
+        int length = checkLength(partial.getInt(0));
+        if (partial.capacity() < 4 + length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(4 + length, partial.capacity() * 2));
+            partial.flip();
+            bigger.put(partial);
+            partial = bigger;
+        }
+        copy(in, 4 + length - partial.position());
+        if (partial.position() < 4 + length) return null;
+
+        // The bytes stay in place until the next call overwrites them
+        partial.clear();
+        frame.wrap(partial, 4, length);
+        return frame;
+    }
+
+    /**
+     * @return true if part of a frame is waiting for more bytes
+     */
+    public boolean hasPartialFrame() {
+        return partial.position() > 0;
+    }
+
+    private int checkLength(int length) throws ProtocolException {
+        if (length < Frame.FIXED_LENGTH || length > maxFrameLength) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        return length;
+    }
+
+    private void copy(ByteBuffer in, int wanted) {
+        int count = Math.min(wanted, in.remaining());
+        partial.put(partial.position(), in, in.position(), count);
+        partial.position(partial.position() + count);
+        in.position(in.position() + count);
+    }
+}
@@ -0,0 +1,49 @@
+package at.ac.hcw.chat.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds v2 frames (layout documented in {@link FrameDecoder}).
+ */
+public final class FrameEncoder {
+    private FrameEncoder() {
+    }
+
+    /**
+     * Encodes one client frame into a new heap buffer, ready to be written.
+     *
+     * @throws IllegalArgumentException if it is longer than Protocol.MAX_FRAME_LENGTH
+     */
+    public static ByteBuffer encode(FrameType type, int senderId, String... fields) {
+        return encode(type, senderId, fields, false, Protocol.MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Encodes one frame into a heap or direct buffer, ready to be written.
+     *
+     * @param maxFrameLength the limit the receiving decoder enforces: Protocol.MAX_FRAME_LENGTH
+     *                       for frames from a client, Protocol.MAX_SERVER_FRAME_LENGTH for
+     *                       frames from a server
+     * @throws IllegalArgumentException if a field is longer than 65535 bytes, or the frame
+     *                                  longer than maxFrameLength
+     */
+    public static ByteBuffer encode(FrameType type, int senderId, String[] fields, boolean direct, int maxFrameLength) {
+        byte[][] encoded = new byte[fields.length][];
+        int length = Frame.FIXED_LENGTH;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            if (encoded[i].length > 0xFFFF) throw new IllegalArgumentException("Field too long: " + encoded[i].length);
+            length += 2 + encoded[i].length;
+        }
+        // Checked here, so an oversized frame fails at its sender instead of at every receiver
+        if (length > maxFrameLength) throw new IllegalArgumentException("Frame too long: " + length);
+
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(4 + length) : ByteBuffer.allocate(4 + length);
+        buffer.putInt(length).put(type.code()).putInt(senderId);
+        for (byte[] field : encoded) {
+            buffer.putShort((short) field.length).put(field);
+        }
+        return buffer.flip();
+    }
+}
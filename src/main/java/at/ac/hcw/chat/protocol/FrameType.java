@@ -0,0 +1,130 @@
+package at.ac.hcw.chat.protocol;
+
+/**
+ * The type byte of a v2 frame.
+ *
+ * Fields per type (all UTF-8 strings):
+ *   LOGIN          name, avatar[, caps]      (client -> server)
+ *   SEND_PUBLIC    text                      (client -> server)
+ *   SEND_PRIVATE   target, text              (client -> server)
+ *   PRESENCE_SYNC  -                         (client -> server, asks for a snapshot)
+ *   JOIN_ROOM      room                      (client -> server)
+ *   LEAVE_ROOM     room                      (client -> server)
+ *   LIST_ROOMS     -                         (client -> server)
+ *   SEND_ROOM      room, text                (client -> server)
+ *   HISTORY_REQUEST channel, before, limit   (client -> server)
+ *   RESUME         token, lastSeq            (client -> server, instead of LOGIN)
+ *   LOGOUT         -                         (client -> server, ends the session)
+ *   PONG           -                         (client -> server, answers PING)
+ *   SEARCH         query, before, limit      (client -> server, "search" capability)
+ *   HELLO          -                         (server -> client, confirms v2)
+ *   CHAT           name, avatar, text[, id]
+ *   PRIVATE_FROM   name, avatar, text
+ *   PRIVATE_TO     target, avatar, text
+ *   PRIVATE_ERROR  target, text
+ *   SYSTEM         text
+ *   USERLIST       name...
+ *   PRESENCE_JOIN      version, name
+ *   PRESENCE_LEAVE     version, name
+ *   PRESENCE_SNAPSHOT  version, name...
+ *   ROOM_JOINED    room, version, name...    (snapshot, answers JOIN_ROOM)
+ *   ROOM_LEFT      room
+ *   ROOM_JOIN      room, version, name
+ *   ROOM_LEAVE     room, version, name
+ *   ROOM_CHAT      room, name, avatar, text[, id]
+ *   ROOM_LIST      room, members, room, members...
+ *   HISTORY        channel, count, nextBefore (the next count messages are history)
+ *   AVATAR         avatarId, avatar          (defines an avatar id, "interning" capability)
+ *   SENDER         senderId, name, avatarId  (defines a sender id, "interning" capability)
+ *   CHAT_REF       text[, id]                (CHAT from the sender id in the frame header)
+ *   ROOM_CHAT_REF  room, text[, id]          (ROOM_CHAT from the sender id in the frame header)
+ *   SESSION        token, graceSeconds       (after LOGIN, "resume" capability)
+ *   RESUMED        lastSeq                   (answers RESUME; the missed packets follow)
+ *   RESUME_FAILED  -                         (answers RESUME; log in instead)
+ *   PING           -                         ("heartbeat" capability; answer with PONG)
+ *   SEARCH_RESULTS count, nextBefore, query  (answers SEARCH; count SEARCH_HIT frames follow)
+ *   SEARCH_HIT     id, timestamp, channel, name, avatar, text
+ *   FILES          port, token               (after LOGIN, "attachments" capability)
+ *
+ * Between the nodes of a server cluster (never sent to clients):
+ *   PEER_HELLO     node[, secret]            (first frame in both directions)
+ *   PEER_USERS     name...                   (all users of the sending node)
+ *   PEER_JOIN      name
+ *   PEER_LEAVE     name
+ *   PEER_CHAT      name, avatar, text        (a public message, once per node)
+ *   PEER_PRIVATE   target, name, avatar, text
+ *   PEER_PRIVATE_ERROR sender, target        (the target was not on that node after all)
+ */
+public enum FrameType {
+    LOGIN(1),
+    SEND_PUBLIC(2),
+    SEND_PRIVATE(3),
+    PRESENCE_SYNC(4),
+    JOIN_ROOM(5),
+    LEAVE_ROOM(6),
+    LIST_ROOMS(7),
+    SEND_ROOM(8),
+    HISTORY_REQUEST(9),
+    RESUME(10),
+    LOGOUT(11),
+    PONG(12),
+    SEARCH(13),
+    HELLO(16),
+    CHAT(17),
+    PRIVATE_FROM(18),
+    PRIVATE_TO(19),
+    PRIVATE_ERROR(20),
+    SYSTEM(21),
+    USERLIST(22),
+    PRESENCE_JOIN(23),
+    PRESENCE_LEAVE(24),
+    PRESENCE_SNAPSHOT(25),
+    ROOM_JOINED(26),
+    ROOM_LEFT(27),
+    ROOM_JOIN(28),
+    ROOM_LEAVE(29),
+    ROOM_CHAT(30),
+    ROOM_LIST(31),
+    HISTORY(32),
+    AVATAR(33),
+    SENDER(34),
+    CHAT_REF(35),
+    ROOM_CHAT_REF(36),
+    SESSION(37),
+    RESUMED(38),
+    RESUME_FAILED(39),
+    PING(40),
+    SEARCH_RESULTS(41),
+    SEARCH_HIT(42),
+    FILES(43),
+    PEER_HELLO(48),
+    PEER_USERS(49),
+    PEER_JOIN(50),
+    PEER_LEAVE(51),
+    PEER_CHAT(52),
+    PEER_PRIVATE(53),
+    PEER_PRIVATE_ERROR(54);
+
+    private static final FrameType[] BY_CODE = new FrameType[256];
+
+    static {
+        for (FrameType type : values()) BY_CODE[type.code] = type;
+    }
+
+    private final int code;
+
+    FrameType(int code) {
+        this.code = code;
+    }
+
+    public byte code() {
+        return (byte) code;
+    }
+
+    /**
+     * @return the type for the given byte, or null if unknown
+     */
+    public static FrameType fromCode(byte code) {
+        return BY_CODE[code & 0xFF];
+    }
+}
@@ -0,0 +1,86 @@
+package at.ac.hcw.chat.protocol;
+
+/**
+ * Renders server-to-client messages in the v1 text format, so the server can
+ * keep serving legacy clients from the same structured messages it sends as
+ * v2 frames.
+ */
+public final class LegacyFormat {
+    private LegacyFormat() {
+    }
+
+    /**
+     * @return the text line (without newline) a v1 client expects for this message
+     */
+    public static String format(FrameType type, String[] fields) {
+        // v2 text may contain line breaks, which would split the v1 line in two
+        return render(type, fields).replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static String render(FrameType type, String[] fields) {
+        return switch (type) {
+            // "SenderName|SenderAvatar|Message" plus "|<id>" for stored messages
+            case CHAT -> fields[0] + "|" + fields[1] + "|" + fields[2] + optionalField(fields, 3);
+            // "[Private from Name]|SenderAvatar|Message"
+            case PRIVATE_FROM -> "[Private from " + fields[0] + "]|" + fields[1] + "|" + fields[2];
+            // "[Private to Name]|SenderAvatar|Message"
+            case PRIVATE_TO -> "[Private to " + fields[0] + "]|" + fields[1] + "|" + fields[2];
+            // "[Private Error Name]|SystemAvatar|ErrorText"
+            case PRIVATE_ERROR -> "[Private Error " + fields[0] + "]|" + Protocol.SYSTEM_AVATAR + "|" + fields[1];
+            case SYSTEM -> "[System]|" + Protocol.SYSTEM_AVATAR + "|" + fields[0];
+            // "USERLIST:User1,User2,..."
+            case USERLIST -> {
+                StringBuilder sb = new StringBuilder("USERLIST:");
+                for (String name : fields) sb.append(name).append(",");
+                yield sb.toString();
+            }
+            // "PRESENCE:JOIN:<version>:<name>" / "PRESENCE:LEAVE:<version>:<name>"
+            case PRESENCE_JOIN -> Protocol.PRESENCE_PREFIX + "JOIN:" + fields[0] + ":" + fields[1];
+            case PRESENCE_LEAVE -> Protocol.PRESENCE_PREFIX + "LEAVE:" + fields[0] + ":" + fields[1];
+            // "PRESENCE:SNAPSHOT:<version>:User1,User2,..."
+            case PRESENCE_SNAPSHOT -> {
+                StringBuilder sb = new StringBuilder(Protocol.PRESENCE_PREFIX).append("SNAPSHOT:").append(fields[0]).append(":");
+                for (int i = 1; i < fields.length; i++) sb.append(fields[i]).append(",");
+                yield sb.toString();
+            }
+            // "ROOM:JOINED:<room>:<version>:User1,User2,..."
+            case ROOM_JOINED -> {
+                StringBuilder sb = new StringBuilder(Protocol.ROOM_PREFIX).append("JOINED:")
+                        .append(fields[0]).append(":").append(fields[1]).append(":");
+                for (int i = 2; i < fields.length; i++) sb.append(fields[i]).append(",");
+                yield sb.toString();
+            }
+            case ROOM_LEFT -> Protocol.ROOM_PREFIX + "LEFT:" + fields[0];
+            case ROOM_JOIN -> Protocol.ROOM_PREFIX + "JOIN:" + fields[0] + ":" + fields[1] + ":" + fields[2];
+            case ROOM_LEAVE -> Protocol.ROOM_PREFIX + "LEAVE:" + fields[0] + ":" + fields[1] + ":" + fields[2];
+            // "ROOM:CHAT:<room>:SenderName|SenderAvatar|Message"
+            case ROOM_CHAT -> Protocol.ROOM_PREFIX + "CHAT:" + fields[0] + ":" + fields[1] + "|" + fields[2] + "|" + fields[3]
+                    + optionalField(fields, 4);
+            // "HISTORY:<channel>:<count>:<nextBefore>"
+            case HISTORY -> Protocol.HISTORY_PREFIX + fields[0] + ":" + fields[1] + ":" + fields[2];
+            // "ROOM:LIST:<room>=<members>,..."
+            case ROOM_LIST -> {
+                StringBuilder sb = new StringBuilder(Protocol.ROOM_PREFIX).append("LIST:");
+                for (int i = 0; i + 1 < fields.length; i += 2) sb.append(fields[i]).append("=").append(fields[i + 1]).append(",");
+                yield sb.toString();
+            }
+            // "SESSION:<token>:<graceSeconds>", "RESUMED:<lastSeq>", "RESUME:FAILED"
+            case SESSION -> Protocol.SESSION_PREFIX + fields[0] + ":" + fields[1];
+            case RESUMED -> Protocol.RESUMED_PREFIX + fields[0];
+            case RESUME_FAILED -> Protocol.RESUME_FAILED;
+            case PING -> Protocol.PING;
+            // "SEARCH:RESULTS:<count>:<nextBefore>:<query>"
+            case SEARCH_RESULTS -> Protocol.SEARCH_PREFIX + "RESULTS:" + fields[0] + ":" + fields[1] + ":" + fields[2];
+            // "SEARCH:HIT:<id>:<timestamp>:<channel>|<name>|<avatar>|<text>"
+            case SEARCH_HIT -> Protocol.SEARCH_PREFIX + "HIT:" + fields[0] + ":" + fields[1] + ":"
+                    + fields[2] + "|" + fields[3] + "|" + fields[4] + "|" + fields[5];
+            // "FILES:<port>:<token>"
+            case FILES -> Protocol.FILES_PREFIX + fields[0] + ":" + fields[1];
+            default -> throw new IllegalArgumentException(type + " has no v1 representation");
+        };
+    }
+
+    private static String optionalField(String[] fields, int index) {
+        return index < fields.length ? "|" + fields[index] : "";
+    }
+}
@@ -0,0 +1,139 @@
+package at.ac.hcw.chat.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The client side of {@link LegacyFormat}: parses a v1 text line back into the
+ * same (type, fields) shape a v2 frame has, so the UI handles both protocol
+ * versions with one code path.
+ *
+ * Kept free of any UI code, so it can be benchmarked and reused headless.
+ */
+public final class LegacyParser {
+    /**
+     * Receives every line that could be parsed; malformed and unknown lines are dropped.
+     */
+    @FunctionalInterface
+    public interface Sink {
+        void accept(FrameType type, String[] fields);
+    }
+
+    private LegacyParser() {
+    }
+
+    public static void parse(String packet, Sink sink) {
+        if (packet.startsWith("USERLIST:")) {
+            sink.accept(FrameType.USERLIST, packet.substring(9).split(","));
+        } else if (packet.startsWith(Protocol.ROOM_PREFIX)) {
+            // "ROOM:<KIND>:<room>[:<payload>]"
+            String[] parts = packet.split(":", 4);
+            if (parts.length < 3) return;
+            String room = parts[2];
+            String rest = parts.length > 3 ? parts[3] : "";
+            switch (parts[1]) {
+                case "JOINED" -> {
+                    String[] versionAndNames = rest.split(":", 2);
+                    if (versionAndNames.length < 2) return;
+                    String[] names = versionAndNames[1].split(",");
+                    String[] fields = new String[names.length + 2];
+                    fields[0] = room; fields[1] = versionAndNames[0];
+                    System.arraycopy(names, 0, fields, 2, names.length);
+                    sink.accept(FrameType.ROOM_JOINED, fields);
+                }
+                case "LEFT" -> sink.accept(FrameType.ROOM_LEFT, new String[] { room });
+                case "JOIN", "LEAVE" -> {
+                    String[] versionAndName = rest.split(":", 2);
+                    if (versionAndName.length < 2) return;
+                    sink.accept(parts[1].equals("JOIN") ? FrameType.ROOM_JOIN : FrameType.ROOM_LEAVE,
+                            new String[] { room, versionAndName[0], versionAndName[1] });
+                }
+                case "CHAT" -> {
+                    String[] msg = rest.split("\\|", 3);
+                    if (msg.length < 3) return;
+                    String[] textAndId = splitMessageId(msg[2]);
+                    sink.accept(FrameType.ROOM_CHAT, new String[] { room, msg[0], msg[1], textAndId[0], textAndId[1] });
+                }
+                case "LIST" -> {
+                    // Here parts[2] is the whole "room=n,room=n," list
+                    List<String> fields = new ArrayList<>();
+                    for (String entry : packet.substring(10).split(",")) {
+                        int eq = entry.indexOf('=');
+                        if (eq > 0) { fields.add(entry.substring(0, eq)); fields.add(entry.substring(eq + 1)); }
+                    }
+                    sink.accept(FrameType.ROOM_LIST, fields.toArray(new String[0]));
+                }
+                default -> { }
+            }
+        } else if (packet.startsWith(Protocol.SESSION_PREFIX)) {
+            String[] parts = packet.split(":");
+            if (parts.length == 3) sink.accept(FrameType.SESSION, new String[] { parts[1], parts[2] });
+        } else if (packet.startsWith(Protocol.RESUMED_PREFIX)) {
+            sink.accept(FrameType.RESUMED, new String[] { packet.substring(Protocol.RESUMED_PREFIX.length()) });
+        } else if (packet.equals(Protocol.RESUME_FAILED)) {
+            sink.accept(FrameType.RESUME_FAILED, new String[0]);
+        } else if (packet.equals(Protocol.PING)) {
+            sink.accept(FrameType.PING, new String[0]);
+        } else if (packet.startsWith(Protocol.SEARCH_PREFIX)) {
+            // "SEARCH:RESULTS:<count>:<nextBefore>:<query>" / "SEARCH:HIT:<id>:<timestamp>:<channel>|<name>|<avatar>|<text>"
+            String[] parts = packet.split(":", 5);
+            if (parts.length < 5) return;
+            if (parts[1].equals("RESULTS")) {
+                sink.accept(FrameType.SEARCH_RESULTS, new String[] { parts[2], parts[3], parts[4] });
+            } else if (parts[1].equals("HIT")) {
+                String[] hit = parts[4].split("\\|", 4);
+                if (hit.length == 4) sink.accept(FrameType.SEARCH_HIT, new String[] { parts[2], parts[3], hit[0], hit[1], hit[2], hit[3] });
+            }
+        } else if (packet.startsWith(Protocol.FILES_PREFIX)) {
+            // "FILES:<port>:<token>"
+            String[] parts = packet.split(":");
+            if (parts.length == 3) sink.accept(FrameType.FILES, new String[] { parts[1], parts[2] });
+        } else if (packet.startsWith(Protocol.HISTORY_PREFIX)) {
+            // "HISTORY:<channel>:<count>:<nextBefore>"
+            String[] parts = packet.split(":");
+            if (parts.length == 4) sink.accept(FrameType.HISTORY, new String[] { parts[1], parts[2], parts[3] });
+        } else if (packet.startsWith(Protocol.PRESENCE_PREFIX)) {
+            // "PRESENCE:<KIND>:<version>:<payload>"
+            String[] parts = packet.split(":", 4);
+            if (parts.length < 4) return;
+            switch (parts[1]) {
+                case "JOIN" -> sink.accept(FrameType.PRESENCE_JOIN, new String[] { parts[2], parts[3] });
+                case "LEAVE" -> sink.accept(FrameType.PRESENCE_LEAVE, new String[] { parts[2], parts[3] });
+                case "SNAPSHOT" -> {
+                    String[] names = parts[3].split(",");
+                    String[] fields = new String[names.length + 1];
+                    fields[0] = parts[2];
+                    System.arraycopy(names, 0, fields, 1, names.length);
+                    sink.accept(FrameType.PRESENCE_SNAPSHOT, fields);
+                }
+                default -> { }
+            }
+        } else if (packet.contains("|")) {
+            String[] parts = packet.split("\\|");
+            if (parts.length < 3) return;
+            String header = parts[0]; String avatar = parts[1]; String text = parts[2];
+
+            if (header.startsWith("[Private from ")) {
+                sink.accept(FrameType.PRIVATE_FROM, new String[] { header.substring(14, header.length() - 1), avatar, text });
+            } else if (header.startsWith("[Private to ")) {
+                sink.accept(FrameType.PRIVATE_TO, new String[] { header.substring(12, header.length() - 1), avatar, text });
+            } else {
+                // Public messages end with "|<id>"; the text itself may contain '|'
+                String[] textAndId = splitMessageId(packet.split("\\|", 3)[2]);
+                sink.accept(FrameType.CHAT, new String[] { header, avatar, textAndId[0], textAndId[1] });
+            }
+        }
+    }
+
+    /**
+     * Splits "text|<id>" into text and id; the id is "0" if there is none (older servers).
+     */
+    private static String[] splitMessageId(String textAndId) {
+        int bar = textAndId.lastIndexOf('|');
+        if (bar >= 0 && bar + 1 < textAndId.length()) {
+            String id = textAndId.substring(bar + 1);
+            if (id.chars().allMatch(Character::isDigit)) return new String[] { textAndId.substring(0, bar), id };
+        }
+        return new String[] { textAndId, "0" };
+    }
+}
@@ -0,0 +1,223 @@
+package at.ac.hcw.chat.protocol;
+
+/**
+ * Constants shared by client and server for both wire formats.
+ *
+ * v1 (legacy): newline-delimited text, fields separated by '|'.
+ * v2 (opt-in): length-prefixed binary frames, see {@link FrameEncoder}.
+ *
+ * Negotiation: a v2 client sends the text line {@link #HANDSHAKE_V2} before
+ * anything else. A v2 server answers with a binary HELLO frame and from then on
+ * both directions use frames only, starting with the client's LOGIN frame.
+ * A v1 server never answers, so the client can fall back after a timeout.
+ *
+ * Capabilities: the login ("Name|Avatar|cap,cap" in v1, the optional third LOGIN
+ * field in v2) may list optional features the client understands. Servers that
+ * predate a capability simply ignore the extra field.
+ */
+public final class Protocol {
+    public static final String HANDSHAKE_V2 = "CHAT/2";
+
+    // Largest frame a client may send (everything after the 4 byte length prefix)
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+    /*
+     * Largest frame a server sends, to its clients and to the other nodes of a cluster.
+     * Presence snapshots, user lists and room snapshots carry one field per user, so they
+     * outgrow MAX_FRAME_LENGTH at a few thousand users; this leaves room for tens of
+     * thousands even with the longest names. Encoder and decoders use the same limit.
+     */
+    public static final int MAX_SERVER_FRAME_LENGTH = 4 * 1024 * 1024;
+
+    /*
+     * Limits on what a client may send, counted in chars. The server relays a message with
+     * name, avatar and id added, and a char takes up to three bytes in UTF-8, so even the
+     * longest message, name and avatar still fit into one field (65535 bytes) and one frame.
+     */
+    public static final int MAX_TEXT_LENGTH = 16 * 1024;
+    public static final int MAX_NAME_LENGTH = 64;
+    public static final int MAX_AVATAR_LENGTH = 512;
+
+    // Avatar used for messages that come from the server itself
+    public static final String SYSTEM_AVATAR = "/at/ac/hcw/chat/client/images/profile0.jpeg";
+
+    /*
+     * v1 requests: a login that lists capabilities (any at all) puts the connection into
+     * command mode. Every request of such a client is then a line starting with '/', and
+     * chat text that starts with a '/' of its own goes out with it doubled ("//shrug" for
+     * "/shrug"); the server takes one off again. So a request can never be mistaken for
+     * text, nor text for a request. Logins without capabilities send no requests, and
+     * each of their lines is text as it stands. v2 frames need none of this.
+     */
+    public static final String COMMAND_PREFIX = "/";
+
+    /**
+     * Chat text as a client in command mode writes it on a v1 line.
+     */
+    public static String escapeText(String text) {
+        return text.startsWith(COMMAND_PREFIX) ? COMMAND_PREFIX + text : text;
+    }
+
+    /*
+     * Capability: presence is sent as versioned JOIN/LEAVE deltas (plus a snapshot on
+     * login) instead of a full USERLIST on every change.
+     * v1 lines: "PRESENCE:JOIN:<version>:<name>", "PRESENCE:LEAVE:<version>:<name>",
+     *           "PRESENCE:SNAPSHOT:<version>:<name>,<name>,..."
+     */
+    public static final String CAP_PRESENCE_DELTAS = "presence-deltas";
+    public static final String PRESENCE_PREFIX = "PRESENCE:";
+    // Sent by a delta client (v1 request) that noticed a version gap; the server answers with a snapshot
+    public static final String PRESENCE_SYNC = "/sync";
+
+    /*
+     * Capability: the client understands rooms besides the "General" lobby.
+     * v1 requests: "/join <room>", "/leave <room>", "/rooms" and "/room <room> <text>".
+     * v1 replies:  "ROOM:JOINED:<room>:<version>:<name>,<name>,..." (snapshot of the room),
+     *              "ROOM:LEFT:<room>", "ROOM:JOIN:<room>:<version>:<name>",
+     *              "ROOM:LEAVE:<room>:<version>:<name>", "ROOM:CHAT:<room>:<name>|<avatar>|<text>",
+     *              "ROOM:LIST:<room>=<members>,<room>=<members>,..."
+     * Joining a room again is harmless and returns a fresh snapshot, which is also how a
+     * client recovers from a gap in a room's presence versions.
+     */
+    public static final String CAP_ROOMS = "rooms";
+    public static final String ROOM_PREFIX = "ROOM:";
+    // Every user is always in the lobby; it is not a joinable room
+    public static final String LOBBY = "General";
+    public static final int MAX_ROOM_NAME_LENGTH = 32;
+    public static final String JOIN_ROOM = "/join";
+    public static final String LEAVE_ROOM = "/leave";
+    public static final String LIST_ROOMS = "/rooms";
+    public static final String ROOM_MESSAGE = "/room";
+
+    /**
+     * Room names are restricted to letters, digits, '-' and '_' so they can never clash
+     * with the separators of the v1 format.
+     */
+    public static boolean isValidRoomName(String name) {
+        if (name == null || name.isEmpty() || name.length() > MAX_ROOM_NAME_LENGTH) return false;
+        if (name.equalsIgnoreCase(LOBBY)) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+            if (!ok) return false;
+        }
+        return true;
+    }
+
+    /*
+     * Capability: the client understands history batches. Chat messages carry their id as
+     * an extra last field ("Name|Avatar|Text|<id>" in v1) for every client.
+     * v1 request: "/history before=<id> limit=<n>" for the lobby, plus " room=<room>" for a room.
+     * v1 reply:   "HISTORY:<channel>:<count>:<nextBefore>" followed by <count> ordinary chat
+     *             messages of that channel, oldest first. The channel is the lobby or the
+     *             room name; nextBefore is the "before" of the next older page, 0 once there
+     *             is nothing older.
+     * Right after login (and after joining a room) the server sends the most recent
+     * messages as such a batch without being asked.
+     */
+    public static final String CAP_HISTORY = "history";
+    public static final String HISTORY_PREFIX = "HISTORY:";
+    public static final String HISTORY_REQUEST = "/history";
+    // Largest page a client may ask for
+    public static final int MAX_HISTORY_PAGE = 200;
+
+    /*
+     * Capability: the client may search the history for messages containing every word
+     * of a query (case-insensitive, whole words). Only messages the user may see match:
+     * the lobby, the rooms they are currently in, and their own private messages.
+     * v1 request: "/search [before=<id>] [limit=<n>] <query>".
+     * v1 reply:   "SEARCH:RESULTS:<count>:<nextBefore>:<query>" followed by <count> lines
+     *             "SEARCH:HIT:<id>:<timestamp>:<channel>|<name>|<avatar>|<text>", newest first.
+     *             The channel is the lobby, "#room", or "@name" of the other side of a
+     *             private conversation; the timestamp is in milliseconds since the epoch.
+     *             nextBefore is the "before" of the next older page, 0 once there is none.
+     */
+    public static final String CAP_SEARCH = "search";
+    public static final String SEARCH_PREFIX = "SEARCH:";
+    public static final String SEARCH_REQUEST = "/search";
+    // Largest page of hits a client may ask for
+    public static final int MAX_SEARCH_PAGE = 50;
+
+    /*
+     * Capability (v2 only): chat messages name their sender by a compact id instead of
+     * repeating name and avatar path in every message. The server numbers every distinct
+     * sender (name + avatar) and every avatar path once, and defines an id for a client
+     * (AVATAR, then SENDER frames) right before the first message that uses it. From then
+     * on that sender's public and room messages arrive as CHAT_REF / ROOM_CHAT_REF, with
+     * the sender id in the frame header. Ids stay valid for the whole connection.
+     * A v1 login listing this capability is served as before.
+     */
+    public static final String CAP_INTERNING = "interning";
+
+    /*
+     * Capability: the session survives a dropped connection for a grace period.
+     * Right after the login the server sends "SESSION:<token>:<graceSeconds>". From then on
+     * the client counts every packet it receives (lines in v1, frames in v2 except AVATAR and
+     * SENDER definitions); that count is the sequence number of the last packet received.
+     * After a disconnect the client connects again and sends, instead of a login,
+     * "RESUME:<token>:<lastSeq>" (v2: a RESUME frame). The server answers "RESUMED:<lastSeq>"
+     * followed by every packet after lastSeq, and nobody sees the user leave and join again.
+     * If that is no longer possible it answers "RESUME:FAILED" and the client logs in normally.
+     * "/logout" (v2: LOGOUT) ends a session right away instead of keeping it for the grace period.
+     */
+    public static final String CAP_RESUME = "resume";
+    public static final String SESSION_PREFIX = "SESSION:";
+    public static final String RESUME_PREFIX = "RESUME:";
+    public static final String RESUMED_PREFIX = "RESUMED:";
+    public static final String RESUME_FAILED = "RESUME:FAILED";
+    public static final String LOGOUT = "/logout";
+
+    /*
+     * Capability: the server sends "PING" (v2: a PING frame) once nothing arrived from the
+     * client for a while, and the client answers "/pong" (v2: PONG). Anything the client
+     * sends counts as a sign of life. A client that stays silent for the idle timeout is
+     * treated as dead and disconnected. Clients without the capability are never pinged.
+     */
+    public static final String CAP_HEARTBEAT = "heartbeat";
+    public static final String PING = "PING";
+    public static final String PONG = "/pong";
+
+    /*
+     * Capability: files travel on a separate attachment port, never on the chat connection.
+     * Right after the login the server sends "FILES:<port>:<token>"; the token authenticates
+     * the user on that port for as long as the login lasts. Every request there is its own
+     * connection that starts with one '|' separated header line:
+     *   "PUT|<token>|<channel>|<size>|<name>": the server answers "READY" (or "ERROR|<text>"),
+     *       the client sends exactly size bytes, the server answers "OK|<id>" and posts the
+     *       attachment to the channel as an ordinary chat message with the text
+     *       "[Attachment:<id>:<size>] <name>". The channel is the lobby, "#room" or "@name".
+     *   "GET|<token>|<id>": the server answers "OK|<size>|<name>" followed by size bytes, or
+     *       "ERROR|<text>" if there is no such attachment the user may see.
+     * Because the announcement is a normal message, history, search and resume need nothing
+     * new; clients without the capability simply show the text.
+     */
+    public static final String CAP_ATTACHMENTS = "attachments";
+    public static final String FILES_PREFIX = "FILES:";
+    public static final String ATTACHMENT_PREFIX = "[Attachment:";
+
+    /**
+     * The chat text announcing an attachment.
+     */
+    public static String attachmentText(String id, long size, String name) {
+        return ATTACHMENT_PREFIX + id + ":" + size + "] " + name;
+    }
+
+    /**
+     * Reverse of {@link #attachmentText}.
+     *
+     * @return {id, size, name}, or null if the text does not announce an attachment
+     */
+    public static String[] parseAttachment(String text) {
+        if (text == null || !text.startsWith(ATTACHMENT_PREFIX)) return null;
+        int end = text.indexOf("] ", ATTACHMENT_PREFIX.length());
+        if (end < 0) return null;
+        String[] head = text.substring(ATTACHMENT_PREFIX.length(), end).split(":");
+        if (head.length != 2 || head[0].isEmpty() || head[1].isEmpty() || head[1].length() > 18) return null;
+        for (int i = 0; i < head[1].length(); i++) {
+            if (!Character.isDigit(head[1].charAt(i))) return null;
+        }
+        return new String[] {head[0], head[1], text.substring(end + 2)};
+    }
+
+    private Protocol() {
+    }
+}
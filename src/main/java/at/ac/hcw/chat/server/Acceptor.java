@@ -0,0 +1,149 @@
+package at.ac.hcw.chat.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The accept side of both engines: acceptThreads threads that do nothing but accept,
+ * admit and hand over. Everything slow (thread creation, registration with a selector,
+ * parsing the login) happens on the engine's side of the hand-over.
+ *
+ * Where the OS supports SO_REUSEPORT every thread gets a listening socket of its own on
+ * the same port, and the kernel spreads incoming connections over their backlogs; a
+ * single accept queue and its lock are no longer the bottleneck of a reconnect storm.
+ * Elsewhere the threads share one socket, which still spreads the work after accept().
+ * Note that with SO_REUSEPORT a second server started on the same port by the same user
+ * binds successfully and shares the connections instead of failing.
+ *
+ * Before every accept a thread takes a handshake slot from the {@link AdmissionControl};
+ * a connection from an address over its rate is reset right away.
+ */
+final class Acceptor implements Closeable {
+    // Pause after a failed accept (e.g. out of file descriptors), so the thread does not spin
+    private static final long ERROR_BACKOFF_MILLIS = 50;
+
+    /**
+     * Takes over an accepted, admitted channel together with the handshake slot it holds.
+     */
+    interface Handoff {
+        void accept(SocketChannel channel, long acceptedNanos) throws IOException;
+    }
+
+    private final String name;
+    private final ServerConfig config;
+    private final AdmissionControl admission;
+    private final Handoff handoff;
+    private final ServerSocketChannel[] listeners;
+    private final Thread[] threads;
+    private volatile boolean closed;
+
+    Acceptor(String name, ChatHub hub, Handoff handoff) {
+        this.name = name;
+        this.config = hub.config();
+        this.admission = hub.admission();
+        this.handoff = handoff;
+        this.threads = new Thread[config.acceptThreads()];
+        this.listeners = new ServerSocketChannel[threads.length];
+    }
+
+    /**
+     * Binds the listening socket(s) and starts the threads.
+     */
+    void start(int port) throws IOException {
+        listeners[0] = ServerSocketChannel.open();
+        boolean reusePort = threads.length > 1
+                && listeners[0].supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        for (int i = 0; i < (reusePort ? threads.length : 1); i++) {
+            if (i > 0) listeners[i] = ServerSocketChannel.open();
+            if (reusePort) listeners[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            // Port 0 picks a free port once; the other sockets join that one
+            listeners[i].bind(new InetSocketAddress(i == 0 ? port : localPort()), config.acceptBacklog());
+        }
+        for (int i = 0; i < threads.length; i++) {
+            ServerSocketChannel listener = listeners[reusePort ? i : 0];
+            threads[i] = new Thread(() -> acceptLoop(listener), name + "-" + i);
+            threads[i].start();
+        }
+        if (threads.length > 1) {
+            ServerLog.info("SERVER", "Accepting on " + threads.length + " threads"
+                    + (reusePort ? " with SO_REUSEPORT" : " sharing one socket") + ", backlog " + config.acceptBacklog());
+        }
+    }
+
+    private void acceptLoop(ServerSocketChannel listener) {
+        while (!closed && listener.isOpen()) {
+            try {
+                if (!admission.acquireSlot(() -> !closed && listener.isOpen())) return;
+            } catch (InterruptedException e) {
+                return;
+            }
+            SocketChannel channel;
+            try {
+                // Blocking call: execution pauses here until a client joins
+                channel = listener.accept();
+            } catch (IOException e) {
+                admission.releaseSlot();
+                if (closed || !listener.isOpen()) return;
+                ServerLog.error("SERVER", "Accept failed: " + e.getMessage());
+                try {
+                    Thread.sleep(ERROR_BACKOFF_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+            long acceptedNanos = System.nanoTime();
+            InetAddress address = channel.socket().getInetAddress();
+            if (!admission.admit(address, acceptedNanos)) {
+                admission.releaseSlot();
+                reject(channel);
+                continue;
+            }
+            // Per connection, so only when somebody asked for DEBUG
+            if (ServerLog.isEnabled(LogLevel.DEBUG)) ServerLog.debug("CONNECT", "Connection established with " + address);
+            try {
+                handoff.accept(channel, acceptedNanos);
+            } catch (IOException | RuntimeException e) {
+                // The engine is shutting down; the slot goes with the channel
+                admission.releaseSlot();
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Closes with a reset instead of the usual FIN: no TIME_WAIT on this side, and the
+     * client learns at once that it has to try again later.
+     */
+    private static void reject(SocketChannel channel) {
+        try {
+            channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            channel.close();
+        } catch (IOException ignored) {
+            // Gone already
+        }
+    }
+
+    int localPort() {
+        return listeners[0].socket().getLocalPort();
+    }
+
+    void join() throws InterruptedException {
+        for (Thread thread : threads) {
+            if (thread != null) thread.join();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (ServerSocketChannel listener : listeners) {
+            try { if (listener != null) listener.close(); } catch (IOException ignored) {}
+        }
+    }
+}
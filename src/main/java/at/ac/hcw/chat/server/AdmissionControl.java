@@ -0,0 +1,144 @@
+package at.ac.hcw.chat.server;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Keeps a reconnect storm from burying the server, see {@link Acceptor}.
+ *
+ * Handshakes: every accepted connection holds one of maxHandshakes slots until it has
+ * logged in (or resumed) or is closed. With all slots taken the acceptors simply stop
+ * accepting. The waiting connections cost nothing but their place in the kernel's
+ * backlog, and the logins already in progress get the CPU instead of new sockets that
+ * could not be served anyway. A connection that never logs in gives its slot back at
+ * the handshake timeout.
+ *
+ * Source addresses: each one has a token bucket of perIpBurst connections, refilled at
+ * perIpRate per second. A connection beyond that is reset right after the accept,
+ * before anything is allocated for it.
+ */
+final class AdmissionControl {
+    // How often an acceptor waiting for a slot checks whether its listener was closed
+    private static final long SLOT_POLL_MILLIS = 100;
+    // Buckets untouched for this long are full again and dropped, so the map stays small
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Connections an address may still open right now; refilled lazily when it asks.
+     */
+    private static final class Bucket {
+        double tokens;
+        long lastNanos;
+
+        Bucket(double tokens, long lastNanos) {
+            this.tokens = tokens;
+            this.lastNanos = lastNanos;
+        }
+    }
+
+    private final ServerStats stats;
+    private final int maxHandshakes;
+    private final Semaphore slots;
+    private final double perIpRate;
+    private final double perIpBurst;
+    private final Map<InetAddress, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweepNanos = new AtomicLong(System.nanoTime());
+
+    AdmissionControl(ServerConfig config, ServerStats stats) {
+        this.stats = stats;
+        this.maxHandshakes = config.maxHandshakes() == 0 ? Integer.MAX_VALUE : config.maxHandshakes();
+        this.slots = new Semaphore(maxHandshakes);
+        this.perIpRate = config.perIpRate();
+        this.perIpBurst = config.perIpBurst();
+    }
+
+    /**
+     * Takes a handshake slot for the next accept, waiting as long as all are taken.
+     *
+     * @param open whether the listener is still open; waiting ends once it is not
+     * @return false if the listener was closed before a slot became free
+     */
+    boolean acquireSlot(BooleanSupplier open) throws InterruptedException {
+        if (slots.tryAcquire()) return true;
+        stats.admissionDeferred.increment();
+        while (open.getAsBoolean()) {
+            if (slots.tryAcquire(SLOT_POLL_MILLIS, TimeUnit.MILLISECONDS)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gives back a slot that never made it to a connection (the accept failed or was rejected).
+     */
+    void releaseSlot() {
+        slots.release();
+    }
+
+    /**
+     * Hands the slot taken for this accept over to the connection created for it.
+     */
+    void startHandshake(Connection connection, long acceptedNanos) {
+        connection.acceptedNanos = acceptedNanos;
+        connection.handshaking.set(true);
+    }
+
+    /**
+     * Ends the connection's handshake and frees its slot; only the first call counts.
+     *
+     * @param loggedIn true for a login or resume (recorded as accept-to-login latency),
+     *                 false for a connection that closed before getting that far
+     */
+    void finishHandshake(Connection connection, boolean loggedIn) {
+        if (!connection.handshaking.compareAndSet(true, false)) return;
+        slots.release();
+        if (loggedIn) stats.loginNanos.record(System.nanoTime() - connection.acceptedNanos);
+    }
+
+    /**
+     * Whether the address may open another connection now; takes one of its tokens if so.
+     */
+    boolean admit(InetAddress address, long nowNanos) {
+        if (perIpRate <= 0 || address == null) return true;
+        sweep(nowNanos);
+        Bucket bucket = buckets.computeIfAbsent(address, a -> new Bucket(perIpBurst, nowNanos));
+        synchronized (bucket) {
+            // Another acceptor may have taken a later timestamp already
+            long elapsed = Math.max(0, nowNanos - bucket.lastNanos);
+            bucket.tokens = Math.min(perIpBurst, bucket.tokens + elapsed * perIpRate / 1e9);
+            bucket.lastNanos += elapsed;
+            if (bucket.tokens < 1) {
+                stats.admissionRejected.increment();
+                return false;
+            }
+            bucket.tokens -= 1;
+            return true;
+        }
+    }
+
+    /**
+     * Drops the buckets that have refilled completely; one acceptor does it every SWEEP_INTERVAL.
+     */
+    private void sweep(long nowNanos) {
+        long last = lastSweepNanos.get();
+        if (nowNanos - last < SWEEP_INTERVAL_NANOS || !lastSweepNanos.compareAndSet(last, nowNanos)) return;
+        long refillNanos = (long) (perIpBurst / perIpRate * 1e9);
+        buckets.values().removeIf(bucket -> {
+            synchronized (bucket) {
+                return nowNanos - bucket.lastNanos > refillNanos;
+            }
+        });
+    }
+
+    /**
+     * Slots taken: connections accepted and not yet logged in or closed, plus the slot
+     * each acceptor takes before it blocks in accept().
+     */
+    int handshakesInProgress() {
+        return maxHandshakes - slots.availablePermits();
+    }
+}
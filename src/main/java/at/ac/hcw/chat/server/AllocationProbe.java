@@ -0,0 +1,39 @@
+package at.ac.hcw.chat.server;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Reads how many bytes the current thread has allocated so far.
+ *
+ * Used to check that the broadcast hot path stays (almost) allocation free.
+ * Falls back to "unsupported" on JVMs without the HotSpot extension.
+ */
+final class AllocationProbe {
+    private static final com.sun.management.ThreadMXBean THREADS = lookup();
+
+    private AllocationProbe() {
+    }
+
+    private static com.sun.management.ThreadMXBean lookup() {
+        try {
+            if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                    && bean.isThreadAllocatedMemorySupported()) {
+                bean.setThreadAllocatedMemoryEnabled(true);
+                return bean;
+            }
+        } catch (UnsupportedOperationException | SecurityException ignored) {
+        }
+        return null;
+    }
+
+    static boolean isSupported() {
+        return THREADS != null;
+    }
+
+    /**
+     * @return allocated bytes of the calling thread, or -1 if unsupported (e.g. on a virtual thread)
+     */
+    static long currentThreadAllocatedBytes() {
+        return THREADS == null ? -1 : THREADS.getCurrentThreadAllocatedBytes();
+    }
+}
@@ -0,0 +1,384 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.Protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The side channel for file attachments: its own port, so a file never travels on (and
+ * never delays) a chat connection. See {@link Protocol#CAP_ATTACHMENTS} for the requests.
+ *
+ * Every request is one connection: a header line, then the file bytes in one direction.
+ * An upload goes from the socket straight into "<id>" in the attachment directory with
+ * FileChannel.transferFrom, and a download from that file to the socket with transferTo
+ * (sendfile on Linux), so file contents never pass through the heap. Who sent a file
+ * where is kept next to it in "<id>.meta", which is all a download needs to decide
+ * whether the requesting user may see it.
+ *
+ * Flow control: both directions move in chunks of CHUNK_BYTES and are paced to the
+ * configured rate per transfer. Pacing an upload simply stops reading, so TCP slows
+ * the sender down; a transfer can therefore never flood the client's link and queue
+ * up in front of its chat messages. A transfer that makes no progress for
+ * STALL_TIMEOUT_SECONDS is closed.
+ *
+ * Disk use: the files are kept until an operator removes them, so the directory has a
+ * quota. An upload reserves its announced size before READY and gives it back if it does
+ * not complete; once the reservations would pass the quota, uploads are refused.
+ */
+final class AttachmentServer implements Closeable {
+    private static final int CHUNK_BYTES = 64 * 1024;
+    private static final int MAX_HEADER_LENGTH = 1024;
+    private static final int MAX_TRANSFERS = 64;
+    private static final long STALL_TIMEOUT_SECONDS = 30;
+    private static final String META_SUFFIX = ".meta";
+    private static final String PART_SUFFIX = ".part";
+
+    /**
+     * What a download needs to know about a stored file.
+     */
+    private static final class Meta {
+        final String channel;
+        final String sender;
+        final long size;
+        final String name;
+
+        Meta(String channel, String sender, long size, String name) {
+            this.channel = channel;
+            this.sender = sender;
+            this.size = size;
+            this.name = name;
+        }
+    }
+
+    /**
+     * One request in progress; the stall check closes its channel once it stops moving.
+     */
+    private static final class Transfer {
+        final SocketChannel channel;
+        volatile long lastProgressNanos = System.nanoTime();
+        volatile boolean done;
+
+        Transfer(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final ChatHub hub;
+    private final ServerStats stats;
+    private final Path dir;
+    private final int port;
+    private final long maxBytes;
+    // Total for the directory, 0 for no limit, and what the stored files and running uploads take
+    private final long quotaBytes;
+    private final AtomicLong usedBytes = new AtomicLong();
+    // Bytes per second and transfer, 0 for no limit
+    private final long rateBytes;
+    private final Semaphore slots = new Semaphore(MAX_TRANSFERS);
+    private final Map<Transfer, Boolean> transfers = new ConcurrentHashMap<>();
+    private final SecureRandom ids = new SecureRandom();
+    private ServerSocketChannel server;
+    private volatile boolean closed;
+
+    AttachmentServer(ChatHub hub, ServerConfig config) {
+        this.hub = hub;
+        this.stats = hub.stats();
+        this.dir = Path.of(config.attachmentDir());
+        this.port = config.attachmentPort();
+        this.maxBytes = config.attachmentMaxBytes();
+        this.quotaBytes = config.attachmentQuotaBytes();
+        this.rateBytes = config.attachmentRateKbps() * 1024L;
+    }
+
+    /**
+     * Creates the attachment directory, adds up what is stored in it and binds the port.
+     */
+    void start() throws IOException {
+        Files.createDirectories(dir);
+        // Left over from uploads that were cut off by a crash
+        try (var leftovers = Files.newDirectoryStream(dir, "*" + PART_SUFFIX)) {
+            for (Path part : leftovers) Files.deleteIfExists(part);
+        }
+        try (var files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                // The few lines of a .meta file are not worth counting
+                if (Files.isRegularFile(file) && !file.toString().endsWith(META_SUFFIX)) usedBytes.addAndGet(Files.size(file));
+            }
+        }
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        Thread acceptor = new Thread(this::acceptLoop, "chat-attachments-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        hub.timers().schedule(STALL_TIMEOUT_SECONDS, TimeUnit.SECONDS, this::checkStalled);
+        ServerLog.info("FILES", "Attachments in " + dir.toAbsolutePath() + " on port " + port()
+                + ", up to " + (maxBytes >> 20) + " MB each, " + (usedBytes.get() >> 20) + " MB stored"
+                + (quotaBytes > 0 ? " of " + (quotaBytes >> 20) + " MB" : ""));
+    }
+
+    int port() {
+        return server == null ? 0 : ((InetSocketAddress) server.socket().getLocalSocketAddress()).getPort();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                SocketChannel channel = server.accept();
+                if (!slots.tryAcquire()) {
+                    reply(channel, "ERROR|Too many transfers, try again later.");
+                    channel.close();
+                    continue;
+                }
+                Thread thread = new Thread(() -> {
+                    try {
+                        serve(channel);
+                    } finally {
+                        slots.release();
+                    }
+                }, "chat-attachment");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!closed) ServerLog.error("FILES", "Accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        Transfer transfer = new Transfer(channel);
+        transfers.put(transfer, Boolean.TRUE);
+        try (channel) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            String[] header = readHeader(channel, transfer);
+            if (header == null) return;
+            Connection user = header.length >= 2 ? hub.attachmentUser(header[1]) : null;
+            if (user == null) {
+                reply(channel, "ERROR|Not logged in.");
+            } else if (header[0].equals("PUT") && header.length == 5) {
+                upload(transfer, user, header[2], ChatHub.parseLong(header[3], -1), header[4]);
+            } else if (header[0].equals("GET") && header.length == 3) {
+                download(transfer, user, header[2]);
+            } else {
+                reply(channel, "ERROR|Bad request.");
+            }
+        } catch (IOException e) {
+            // Client went away, or the stall check closed the channel
+        } finally {
+            transfer.done = true;
+            transfers.remove(transfer);
+        }
+    }
+
+    /**
+     * "PUT|<token>|<channel>|<size>|<name>": checks the request, answers READY, stores
+     * exactly size bytes, answers "OK|<id>" and posts the attachment to the channel.
+     */
+    private void upload(Transfer transfer, Connection user, String channel, long size, String name) throws IOException {
+        // Only the file name itself, on one line
+        name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1).replaceAll("\\p{Cntrl}", " ").strip();
+        if (name.isEmpty()) name = "file";
+        if (size < 0 || size > maxBytes) {
+            reply(transfer.channel, "ERROR|Files are limited to " + (maxBytes >> 20) + " MB.");
+            return;
+        }
+        if (!hub.mayPostAttachment(user, channel)) {
+            reply(transfer.channel, "ERROR|You cannot post to " + channel + ".");
+            return;
+        }
+        if (!reserve(size)) {
+            stats.attachmentsRefused.increment();
+            ServerLog.warn("FILES", "Refused an upload of " + size + " bytes from " + user.clientName + ": the quota is full");
+            reply(transfer.channel, "ERROR|The attachment storage is full, try again later.");
+            return;
+        }
+        String id = newId();
+        Path part = dir.resolve(id + PART_SUFFIX);
+        boolean stored = false;
+        try {
+            reply(transfer.channel, "READY");
+            if (!receive(transfer, part, size)) return;
+            writeMeta(id, new Meta(channel, user.clientName, size, name));
+            Files.move(part, dir.resolve(id), StandardCopyOption.ATOMIC_MOVE);
+            stored = true;
+        } finally {
+            if (!stored) {
+                Files.deleteIfExists(part);
+                Files.deleteIfExists(dir.resolve(id + META_SUFFIX));
+                usedBytes.addAndGet(-size);
+            }
+        }
+        stats.attachmentBytesIn.add(size);
+        stats.attachmentsUploaded.increment();
+        reply(transfer.channel, "OK|" + id);
+        hub.postAttachment(user, channel, Protocol.attachmentText(id, size, name));
+    }
+
+    /**
+     * Takes size bytes of the quota, unless that would go past it.
+     */
+    private boolean reserve(long size) {
+        while (true) {
+            long used = usedBytes.get();
+            if (quotaBytes > 0 && used + size > quotaBytes) return false;
+            if (usedBytes.compareAndSet(used, used + size)) return true;
+        }
+    }
+
+    /**
+     * Copies exactly size bytes from the socket into a new file.
+     *
+     * @return false if the client closed the connection before all of them arrived
+     */
+    private boolean receive(Transfer transfer, Path part, long size) throws IOException {
+        try (FileChannel file = FileChannel.open(part, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long startNanos = System.nanoTime();
+            long position = 0;
+            while (position < size) {
+                long n = file.transferFrom(transfer.channel, position, Math.min(CHUNK_BYTES, size - position));
+                // A blocking socket only transfers nothing at the end of the stream
+                if (n == 0) return false;
+                position += n;
+                progress(transfer, startNanos, position);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * "GET|<token>|<id>": answers "OK|<size>|<name>" and sends the file, if the user may see
+     * the channel it was posted to.
+     */
+    private void download(Transfer transfer, Connection user, String id) throws IOException {
+        Meta meta = isValidId(id) ? readMeta(id) : null;
+        if (meta == null || !hub.maySeeAttachment(user, meta.channel, meta.sender)) {
+            reply(transfer.channel, "ERROR|No such attachment.");
+            return;
+        }
+        try (FileChannel file = FileChannel.open(dir.resolve(id), StandardOpenOption.READ)) {
+            reply(transfer.channel, "OK|" + meta.size + "|" + meta.name);
+            long startNanos = System.nanoTime();
+            long position = 0;
+            while (position < meta.size) {
+                // Straight from the page cache to the socket
+                position += file.transferTo(position, Math.min(CHUNK_BYTES, meta.size - position), transfer.channel);
+                progress(transfer, startNanos, position);
+            }
+        }
+        stats.attachmentsServed.increment();
+        stats.attachmentBytesOut.add(meta.size);
+    }
+
+    /**
+     * Notes the progress for the stall check and, if the transfer is ahead of its rate,
+     * waits until it is not.
+     */
+    private void progress(Transfer transfer, long startNanos, long position) throws IOException {
+        transfer.lastProgressNanos = System.nanoTime();
+        if (rateBytes <= 0) return;
+        long dueNanos = startNanos + position * 1_000_000_000L / rateBytes;
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    private void checkStalled() {
+        if (closed) return;
+        long limit = System.nanoTime() - TimeUnit.SECONDS.toNanos(STALL_TIMEOUT_SECONDS);
+        for (Transfer transfer : transfers.keySet()) {
+            if (!transfer.done && transfer.lastProgressNanos < limit) {
+                try { transfer.channel.close(); } catch (IOException ignored) {}
+            }
+        }
+        hub.timers().schedule(STALL_TIMEOUT_SECONDS, TimeUnit.SECONDS, this::checkStalled);
+    }
+
+    /**
+     * Reads the header line byte by byte, so nothing of the body is consumed with it.
+     *
+     * @return the '|' separated fields, or null if the line is missing or too long
+     */
+    private static String[] readHeader(SocketChannel channel, Transfer transfer) throws IOException {
+        ByteBuffer line = ByteBuffer.allocate(MAX_HEADER_LENGTH);
+        ByteBuffer one = ByteBuffer.allocate(1);
+        while (line.hasRemaining()) {
+            one.clear();
+            if (channel.read(one) < 0) return null;
+            transfer.lastProgressNanos = System.nanoTime();
+            byte b = one.get(0);
+            if (b == '\n') {
+                String text = new String(line.array(), 0, line.position(), StandardCharsets.UTF_8).strip();
+                return text.split("\\|", 5);
+            }
+            line.put(b);
+        }
+        return null;
+    }
+
+    private static void reply(SocketChannel channel, String line) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap((line.replace('\n', ' ') + "\n").getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) channel.write(bytes);
+    }
+
+    private String newId() {
+        byte[] bytes = new byte[12];
+        ids.nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    // Ids are hex only, so a request can never name a file outside the directory
+    static boolean isValidId(String id) {
+        if (id.isEmpty() || id.length() > 64) return false;
+        for (int i = 0; i < id.length(); i++) {
+            if (Character.digit(id.charAt(i), 16) < 0) return false;
+        }
+        return true;
+    }
+
+    private void writeMeta(String id, Meta meta) throws IOException {
+        Files.write(dir.resolve(id + META_SUFFIX),
+                List.of(meta.channel, meta.sender, Long.toString(meta.size), meta.name), StandardCharsets.UTF_8);
+    }
+
+    private Meta readMeta(String id) {
+        try {
+            List<String> lines = Files.readAllLines(dir.resolve(id + META_SUFFIX), StandardCharsets.UTF_8);
+            if (lines.size() < 4) return null;
+            return new Meta(lines.get(0), lines.get(1), Long.parseLong(lines.get(2)), lines.get(3));
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try { if (server != null) server.close(); } catch (IOException ignored) {}
+        for (Transfer transfer : transfers.keySet()) {
+            try { transfer.channel.close(); } catch (IOException ignored) {}
+        }
+    }
+}
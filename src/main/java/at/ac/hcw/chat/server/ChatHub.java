@@ -0,0 +1,1349 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.Frame;
+import at.ac.hcw.chat.protocol.FrameType;
+import at.ac.hcw.chat.protocol.Protocol;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The protocol brain of the server, shared by every engine.
+ *
+ * Protocol (v1 text, see at.ac.hcw.chat.protocol for the v2 frames):
+ * 1. Initial Connection: Expects "Name|AvatarPath"
+ * 2. Public Broadcast: Sends "SenderName|SenderAvatar|Message"
+ * 3. Private Message: Sends "[Private from Name]|SenderAvatar|Message"
+ * 4. Presence: "USERLIST:a,b,..." for legacy clients, versioned JOIN/LEAVE deltas
+ *    for clients that announced the presence-deltas capability at login
+ * 5. Rooms: every user is in the lobby ("General"); clients with the rooms
+ *    capability can additionally join rooms, see {@link Protocol#CAP_ROOMS}
+ * 6. History: public and room messages carry an id; clients with the history
+ *    capability get the recent ones on login and can page back, see {@link Protocol#CAP_HISTORY}
+ * 7. Cluster: with a cluster port configured, the users of all nodes see each other
+ *    in the lobby and can write to each other privately, see {@link ClusterNode}.
+ *    Rooms and history stay local to each node.
+ * 8. Sessions: a client with the resume capability can reconnect within a grace period
+ *    and continue where it stopped, see {@link Protocol#CAP_RESUME} and {@link #resume}.
+ * 9. Search: public, room and private messages are indexed as they are recorded, and a
+ *    client with the search capability can look them up, see {@link Protocol#CAP_SEARCH}.
+ * 10. Attachments: files go through a separate port, see {@link AttachmentServer}; the
+ *    chat only carries a message announcing each one, see {@link Protocol#CAP_ATTACHMENTS}.
+ *
+ * Engines decode lines or frames from their sockets and hand them to
+ * {@link #onLine} / {@link #onFrame}. Both are translated into the same
+ * structured calls, and every outgoing Packet is rendered in the wire format
+ * of each recipient, so v1 and v2 clients can chat with each other.
+ */
+final class ChatHub {
+    // From this many recipients on, a broadcast is encoded into direct buffers
+    private static final int DIRECT_FANOUT_THRESHOLD = 8;
+    // Upper bound of rooms one connection can be in at the same time
+    private static final int MAX_ROOMS_PER_CONNECTION = 32;
+    // Hits per search page when the client does not ask for a size
+    private static final int SEARCH_PAGE = 20;
+
+    /**
+     * clientMap: Stores active users.
+     * Key: Username (String) | Value: Their connection
+     */
+    private final Map<String, Connection> clientMap = new ConcurrentHashMap<>();
+
+    // Sender ids carried by v2 frames; 0 is reserved for the server
+    private final AtomicInteger nextClientId = new AtomicInteger(1);
+    // Compact ids of message senders, for clients with the interning capability
+    private final SenderTable senders = new SenderTable();
+
+    /*
+     * Presence version, bumped on every join and leave. Both the bump and the queueing of
+     * the matching delta happen under presenceLock, so every client receives the deltas
+     * in version order and a snapshot always matches the version it carries.
+     */
+    private final Object presenceLock = new Object();
+    private long presenceVersion;
+
+    private final RoomRegistry rooms;
+    // The last public messages of the lobby; every room has its own
+    private final RecentHistory lobbyRecent;
+    // Durable record of every chat message; null if history is disabled
+    private volatile MessageLog history;
+    // Read the log for history pages past the in-memory rings and for search hits; null if history is disabled
+    private volatile ExecutorService historyReaders;
+    // Full-text index over the history; null if history or search is disabled
+    private volatile SearchIndex search;
+    // Message ids while there is no MessageLog to hand them out
+    private final AtomicLong nextMessageId = new AtomicLong(1);
+
+    /*
+     * Replicated presence directory: the users of the other cluster nodes and the node
+     * each one is on. Only changed under presenceLock, like clientMap.
+     */
+    private final Map<String, String> remoteUsers = new ConcurrentHashMap<>();
+    // Link to the other nodes; null for a standalone server
+    private volatile ClusterNode cluster;
+    private final ServerConfig config;
+    private final ServerStats stats = new ServerStats();
+    // Handshake slots and per-address connection rates, shared by the engine's acceptors
+    private final AdmissionControl admission;
+
+    /*
+     * Sessions of clients with the resume capability, by token. The connection is the one
+     * currently holding the session: the live one, or a closed one whose queue is parked
+     * until the client resumes or the grace period ends.
+     */
+    private final Map<String, Connection> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom tokens = new SecureRandom();
+    // Logged-in users by their token for the attachment port
+    private final Map<String, Connection> fileTokens = new ConcurrentHashMap<>();
+    // The attachment side channel; null if attachments are disabled
+    private volatile AttachmentServer attachments;
+    // Heartbeats, idle timeouts, session expiry and stalled transfers
+    private final TimerWheel timers = new TimerWheel();
+    // The same PING goes to every silent client
+    private final Packet ping = Packet.of(FrameType.PING, 0);
+
+    ChatHub(ServerConfig config) {
+        this.config = config;
+        this.rooms = new RoomRegistry(config.roomShards(), config.historyRecent());
+        this.lobbyRecent = new RecentHistory(config.historyRecent());
+        this.admission = new AdmissionControl(config, stats);
+        ServerLog.setLevel(config.logLevel());
+    }
+
+    ServerStats stats() {
+        return stats;
+    }
+
+    ServerConfig config() {
+        return config;
+    }
+
+    AdmissionControl admission() {
+        return admission;
+    }
+
+    SenderTable senders() {
+        return senders;
+    }
+
+    /**
+     * Opens the message log configured in the ServerConfig. Called once, before any client connects.
+     */
+    void openHistory() throws IOException {
+        if (config.historyDir() == null) {
+            ServerLog.info("HISTORY", "Off; start with -Dchat.history.dir=<dir> to keep the messages.");
+            return;
+        }
+        historyReaders = Executors.newFixedThreadPool(config.historyReaders(), runnable -> {
+            Thread thread = new Thread(runnable, "chat-history-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        history = MessageLog.open(config, stats);
+        if (config.searchEnabled()) search = SearchIndex.start(history, stats);
+    }
+
+    void closeHistory() {
+        ExecutorService readers = historyReaders;
+        if (readers != null) {
+            readers.shutdown();
+            try {
+                // A read still running would fail on the closed log
+                readers.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        SearchIndex index = search;
+        if (index != null) index.close();
+        MessageLog log = history;
+        if (log != null) log.close();
+    }
+
+    /**
+     * The search index, or null if there is none.
+     */
+    SearchIndex search() {
+        return search;
+    }
+
+    /**
+     * Joins the cluster configured in the ServerConfig, if any. Called once the engine runs.
+     */
+    void startCluster() throws IOException {
+        if (config.clusterPort() == 0) return;
+        ClusterNode node = new ClusterNode(this, config);
+        node.start();
+        cluster = node;
+    }
+
+    void closeCluster() {
+        ClusterNode node = cluster;
+        if (node != null) node.close();
+    }
+
+    /**
+     * Opens the attachment port configured in the ServerConfig, if any.
+     */
+    void startAttachments() throws IOException {
+        if (config.attachmentPort() == 0) return;
+        AttachmentServer server = new AttachmentServer(this, config);
+        server.start();
+        attachments = server;
+    }
+
+    void closeAttachments() {
+        AttachmentServer server = attachments;
+        if (server != null) server.close();
+    }
+
+    TimerWheel timers() {
+        return timers;
+    }
+
+    void closeTimers() {
+        timers.close();
+    }
+
+    /**
+     * Every connection gets its own bounded queue, sized and policed by the config.
+     */
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(config.outboundCapacity(), config.overflowPolicy(), stats);
+    }
+
+    /**
+     * Entry point for every complete v1 text line received from a client.
+     */
+    void onLine(Connection connection, String line) {
+        stats.messagesIn.increment();
+        if (!connection.loginAttempted) {
+            connection.loginAttempted = true;
+            if (line.startsWith(Protocol.RESUME_PREFIX)) {
+                // "RESUME:<token>:<lastSeq>" instead of a login
+                String[] parts = line.split(":");
+                resume(connection, parts.length == 3 ? parts[1] : "", parts.length == 3 ? parseLong(parts[2], -1) : -1);
+                return;
+            }
+            /*
+             * LOGIN PROTOCOL
+             * Expecting the client to send a formatted string: "Username|/path/to/avatar.jpeg"
+             * optionally followed by "|capability,capability"
+             */
+            String[] login = parseLogin(line);
+            if (login != null) login(connection, login[0], login[1], login[2]);
+            return;
+        }
+        // Lines from a connection that never completed the login are ignored
+        if (connection.clientName == null) return;
+
+        if (connection.commands && line.startsWith(Protocol.COMMAND_PREFIX)) {
+            if (!line.startsWith(Protocol.COMMAND_PREFIX, 1)) {
+                handleCommand(connection, line);
+                return;
+            }
+            // "//text": text that starts with a '/' of its own
+            line = line.substring(1);
+        }
+
+        /*
+         * MAIN MESSAGE ROUTING
+         * Decipher if the message is Private or Public.
+         */
+        String[] privateMessage = parsePrivateMessage(line);
+        if (privateMessage != null) {
+            handlePrivateMessage(connection, privateMessage[0], privateMessage[1]);
+        } else {
+            handlePublicMessage(connection, line);
+        }
+    }
+
+    /**
+     * A v1 request of a client in command mode (see {@link Protocol#COMMAND_PREFIX}):
+     * "/name" or "/name arguments". A request of a capability the client did not list is
+     * ignored, like its v2 frame would be; an unknown one is answered, so a typo does not
+     * just vanish.
+     */
+    private void handleCommand(Connection connection, String line) {
+        int space = line.indexOf(' ');
+        String command = space < 0 ? line : line.substring(0, space);
+        String arguments = space < 0 ? "" : line.substring(space + 1).trim();
+        switch (command) {
+            case Protocol.LOGOUT -> logout(connection);
+            case Protocol.PONG -> { } // Only a sign of life, already noted when the bytes were read
+            case Protocol.PRESENCE_SYNC -> {
+                if (connection.presenceDeltas) sendPresenceSnapshot(connection);
+            }
+            case Protocol.HISTORY_REQUEST -> {
+                if (connection.historyEnabled) handleHistoryLine(connection, arguments);
+            }
+            case Protocol.SEARCH_REQUEST -> {
+                if (connection.searchEnabled) handleSearchLine(connection, arguments);
+            }
+            case Protocol.JOIN_ROOM -> {
+                if (connection.roomsEnabled) joinRoom(connection, arguments);
+            }
+            case Protocol.LEAVE_ROOM -> {
+                if (connection.roomsEnabled) leaveRoom(connection, arguments);
+            }
+            case Protocol.LIST_ROOMS -> {
+                if (connection.roomsEnabled) listRooms(connection);
+            }
+            case Protocol.ROOM_MESSAGE -> {
+                if (connection.roomsEnabled) handleRoomLine(connection, arguments);
+            }
+            default -> sendSystem(connection, "Unknown command " + roomForReply(command)
+                    + ". Start a message with // to send text that begins with /.");
+        }
+    }
+
+    /**
+     * Splits a v1 login line into name, avatar and capabilities ("" if none were sent).
+     *
+     * @return null if the line is not a login
+     */
+    static String[] parseLogin(String line) {
+        if (line == null || !line.contains("|")) return null;
+        // \\| is needed because the Pipe character is a regex reserved symbol
+        String[] parts = line.split("\\|");
+        if (parts.length < 2) return null;
+        return new String[] { parts[0], parts[1], parts.length >= 3 ? parts[2] : "" };
+    }
+
+    /**
+     * Splits "@Target: text" into target name and text.
+     *
+     * @return null if the line is a public message
+     */
+    static String[] parsePrivateMessage(String line) {
+        if (!line.startsWith("@") || !line.contains(":")) return null;
+        int colonIndex = line.indexOf(":");
+        String targetName = line.substring(1, colonIndex).trim(); // Extract target name
+        String content = line.substring(colonIndex + 1).trim(); // Extract text
+        return new String[] { targetName, content };
+    }
+
+    /**
+     * Entry point for every complete v2 frame received from a client.
+     */
+    void onFrame(Connection connection, Frame frame) {
+        stats.messagesIn.increment();
+        if (!connection.loginAttempted) {
+            connection.loginAttempted = true;
+            if (frame.type() == FrameType.LOGIN && frame.fieldCount() >= 2) {
+                login(connection, frame.string(0), frame.string(1), frame.string(2, ""));
+            } else if (frame.type() == FrameType.RESUME && frame.fieldCount() >= 2) {
+                resume(connection, frame.string(0), parseLong(frame.string(1), -1));
+            }
+            return;
+        }
+        if (connection.clientName == null) return;
+
+        switch (frame.type()) {
+            case SEND_PUBLIC -> handlePublicMessage(connection, frame.string(0, ""));
+            case SEND_PRIVATE -> {
+                if (frame.fieldCount() >= 2) handlePrivateMessage(connection, frame.string(0), frame.string(1));
+            }
+            case PRESENCE_SYNC -> {
+                if (connection.presenceDeltas) sendPresenceSnapshot(connection);
+            }
+            case JOIN_ROOM -> {
+                if (connection.roomsEnabled) joinRoom(connection, frame.string(0, ""));
+            }
+            case LEAVE_ROOM -> {
+                if (connection.roomsEnabled) leaveRoom(connection, frame.string(0, ""));
+            }
+            case LIST_ROOMS -> {
+                if (connection.roomsEnabled) listRooms(connection);
+            }
+            case SEND_ROOM -> {
+                Room room = connection.rooms.get(frame.string(0, ""));
+                if (room != null && frame.fieldCount() >= 2) handleRoomMessage(connection, room, frame.string(1));
+            }
+            case HISTORY_REQUEST -> {
+                if (connection.historyEnabled) {
+                    handleHistoryRequest(connection, frame.string(0, Protocol.LOBBY),
+                            parseLong(frame.string(1, ""), 0), (int) parseLong(frame.string(2, ""), 0));
+                }
+            }
+            case SEARCH -> {
+                if (connection.searchEnabled) {
+                    handleSearch(connection, frame.string(0, ""), parseLong(frame.string(1, ""), 0),
+                            (int) parseLong(frame.string(2, ""), 0));
+                }
+            }
+            case LOGOUT -> logout(connection);
+            case PONG -> { } // Only a sign of life, already noted when the bytes were read
+            default -> { } // Server-to-client types are not valid here; ignore them
+        }
+    }
+
+    private void login(Connection connection, String name, String avatar, String capabilities) {
+        // Both go into every message of the user, so they have to leave room for the text
+        if (name.length() > Protocol.MAX_NAME_LENGTH || avatar.length() > Protocol.MAX_AVATAR_LENGTH) {
+            connection.close(DisconnectReason.PROTOCOL_ERROR);
+            return;
+        }
+        admission.finishHandshake(connection, true);
+        connection.clientName = name;
+        connection.avatarUrl = avatar; // Store the avatar path for broadcasting
+        connection.clientId = nextClientId.getAndIncrement();
+        connection.presenceDeltas = hasCapability(capabilities, Protocol.CAP_PRESENCE_DELTAS);
+        connection.roomsEnabled = hasCapability(capabilities, Protocol.CAP_ROOMS);
+        connection.historyEnabled = hasCapability(capabilities, Protocol.CAP_HISTORY);
+        connection.searchEnabled = hasCapability(capabilities, Protocol.CAP_SEARCH);
+        connection.heartbeat = hasCapability(capabilities, Protocol.CAP_HEARTBEAT);
+        connection.commands = !capabilities.isEmpty();
+        // Before anything is queued for the client: from here on its writer interns senders
+        if (connection.protocolVersion == Packet.V2 && hasCapability(capabilities, Protocol.CAP_INTERNING)) {
+            connection.protocolVersion = Packet.V2_INTERNED;
+        }
+        // First packet of the session: the client counts everything after it
+        if (config.resumeGraceSeconds() > 0 && hasCapability(capabilities, Protocol.CAP_RESUME)) startSession(connection);
+        AttachmentServer files = attachments;
+        if (files != null && hasCapability(capabilities, Protocol.CAP_ATTACHMENTS)) {
+            connection.fileToken = newToken();
+            fileTokens.put(connection.fileToken, connection);
+            connection.send(Packet.of(FrameType.FILES, 0, Integer.toString(files.port()), connection.fileToken));
+        }
+
+        Connection previous;
+        synchronized (presenceLock) {
+            previous = clientMap.put(connection.clientName, connection);
+            presenceVersion++;
+            // A delta newcomer learns the whole room from its snapshot, everybody else from the broadcast
+            if (connection.presenceDeltas) sendPresenceSnapshot(connection);
+            broadcastPresence(FrameType.PRESENCE_JOIN, name, connection.presenceDeltas ? connection : null);
+            publishToCluster(Packet.of(FrameType.PEER_JOIN, 0, name));
+        }
+        ServerLog.info("LOG", connection.clientName + " joined using avatar: " + connection.avatarUrl);
+        // Logged in again instead of resuming: the old session can never be resumed now
+        if (previous != null && previous.sessionToken != null) sessions.remove(previous.sessionToken, previous);
+
+        // What was said before the newcomer arrived
+        if (connection.historyEnabled && config.historyBackfill() > 0) {
+            handleHistoryRequest(connection, Protocol.LOBBY, Long.MAX_VALUE, config.historyBackfill());
+        }
+
+        // Announce the new user as a system bubble
+        broadcast(FrameType.SYSTEM, 0, connection.clientName + " joined the room.");
+    }
+
+    /**
+     * Starts the handshake timeout and the idle check of a freshly accepted connection.
+     * Called once by the engine.
+     */
+    void watch(Connection connection) {
+        if (config.handshakeTimeoutSeconds() > 0) {
+            timers.schedule(config.handshakeTimeoutSeconds(), TimeUnit.SECONDS, () -> {
+                // Still holding its handshake slot: neither logged in nor closed
+                if (connection.handshaking.get()) connection.close(DisconnectReason.HANDSHAKE_TIMEOUT);
+            });
+        }
+        if (config.idleTimeoutSeconds() > 0) {
+            // The first check by the ping interval, so a client that logs in and goes quiet is pinged in time
+            timers.schedule(Math.min(config.heartbeatSeconds(), config.idleTimeoutSeconds()), TimeUnit.SECONDS,
+                    () -> checkIdle(connection));
+        }
+    }
+
+    /**
+     * Runs on the timer wheel whenever the connection's next check is due. Reads only record
+     * their time, so there is a single timeout per connection, moved forward here rather
+     * than on every read. A connection that never logged in gets the idle timeout to do so;
+     * a heartbeat client is pinged when silent and closed when the silence reaches the
+     * timeout. The close takes the normal disconnect path (and may park a session).
+     */
+    private void checkIdle(Connection connection) {
+        if (!connection.isOpen()) return;
+        // Logged in without the capability: silence proves nothing, so stop watching
+        if (connection.clientName != null && !connection.heartbeat) return;
+        long timeoutNanos = TimeUnit.SECONDS.toNanos(config.idleTimeoutSeconds());
+        long pingNanos = TimeUnit.SECONDS.toNanos(Math.min(config.heartbeatSeconds(), config.idleTimeoutSeconds()));
+        long idle = System.nanoTime() - connection.lastReadNanos;
+        if (idle >= timeoutNanos) {
+            ServerLog.info("LOG", (connection.clientName != null ? connection.clientName : connection.remoteAddress())
+                    + " timed out after " + TimeUnit.NANOSECONDS.toSeconds(idle) + "s of silence.");
+            connection.close(DisconnectReason.IDLE_TIMEOUT);
+            return;
+        }
+        long next;
+        if (connection.clientName == null) {
+            next = timeoutNanos - idle;
+        } else if (idle >= pingNanos) {
+            connection.send(ping);
+            stats.pingsSent.increment();
+            // Ping again every interval until the timeout
+            next = Math.min(pingNanos, timeoutNanos - idle);
+        } else {
+            next = pingNanos - idle;
+        }
+        timers.schedule(TimeUnit.NANOSECONDS.toMillis(next), TimeUnit.MILLISECONDS, () -> checkIdle(connection));
+    }
+
+    /**
+     * CLEANUP: Called exactly once by the engine when a connection is gone.
+     */
+    void onDisconnect(Connection connection) {
+        stats.recordDisconnect(connection.disconnectReason());
+        admission.finishHandshake(connection, false);
+        String name = connection.clientName;
+        if (name == null) return;
+        if (connection.sessionToken != null && connection.releaseOutbound()) {
+            // Still listed and still receiving into its parked queue until the grace period ends
+            if (!connection.outbound.isForwarded()) {
+                stats.sessionsParked.increment();
+                timers.schedule(config.resumeGraceSeconds(), TimeUnit.SECONDS, () -> expireSession(connection));
+                ServerLog.info("LOG", name + " lost the connection; session kept for " + config.resumeGraceSeconds() + "s.");
+            }
+            return;
+        }
+        leave(connection);
+    }
+
+    /**
+     * The user is gone for good: out of every room, the lobby and the cluster directory.
+     */
+    private void leave(Connection connection) {
+        String name = connection.clientName;
+        if (connection.fileToken != null) fileTokens.remove(connection.fileToken, connection);
+        for (Room room : connection.rooms.values()) leaveRoom(connection, room.name);
+        boolean removed;
+        synchronized (presenceLock) {
+            // Only remove the entry if it still belongs to this connection (a re-login may have replaced it)
+            removed = clientMap.remove(name, connection);
+            if (removed) {
+                publishToCluster(Packet.of(FrameType.PEER_LEAVE, 0, name));
+                // Still listed if a user of the same name is on another node
+                if (!remoteUsers.containsKey(name)) {
+                    presenceVersion++;
+                    broadcastPresence(FrameType.PRESENCE_LEAVE, name, null);
+                }
+            }
+        }
+        if (removed) {
+            broadcast(FrameType.SYSTEM, 0, name + " left.");
+            ServerLog.info("LOG", name + " disconnected.");
+        }
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[16];
+        tokens.nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    private void startSession(Connection connection) {
+        String token = newToken();
+        connection.sessionToken = token;
+        sessions.put(token, connection);
+        Packet session = Packet.of(FrameType.SESSION, 0, token, Integer.toString(config.resumeGraceSeconds()));
+        connection.outbound.startSession(session, 0, config.resumeBuffer());
+        connection.send(session);
+    }
+
+    /**
+     * A client reconnected and wants its session back instead of logging in. The old
+     * connection's queue is handed over to the new one (see OutboundQueue.handOver), then
+     * the new connection takes the old one's place in the user list and in every room.
+     * Nobody else notices: there is no leave, no join and no new user list.
+     *
+     * If the session is gone (unknown token, expired, or more was missed than the queue
+     * remembers), the client is told RESUME_FAILED and may send a normal login next.
+     */
+    private void resume(Connection connection, String token, long lastSeq) {
+        // Runs on the new connection's reader, so its own onDisconnect cannot run before this is done
+        Connection old = token.isEmpty() ? null : sessions.get(token);
+        if (old != null && old.isOpen()) {
+            // The client knows its old connection is dead even if this side has not noticed yet
+            old.close(DisconnectReason.IO_ERROR);
+        }
+        int replayed = -1;
+        if (old != null && old.clientName != null && clientMap.get(old.clientName) == old) {
+            int version = connection.protocolVersion;
+            // The writer may take the first packet as soon as the hand-over is done
+            if (version == Packet.V2 && old.protocolVersion == Packet.V2_INTERNED) connection.protocolVersion = Packet.V2_INTERNED;
+            // A write error right after the hand-over must park the queue, not drop it
+            connection.sessionToken = token;
+            replayed = OutboundQueue.handOver(old.outbound, connection.outbound,
+                    Packet.of(FrameType.RESUMED, 0, Long.toString(lastSeq)), lastSeq, config.resumeBuffer(),
+                    () -> old.forwardTo(connection));
+            if (replayed < 0) {
+                connection.protocolVersion = version;
+                connection.sessionToken = null;
+            }
+        }
+        if (replayed >= 0) {
+            // The hand-over queued straight into the new queue; an NIO writer has to be woken
+            connection.onEnqueued();
+        } else {
+            stats.resumesFailed.increment();
+            connection.loginAttempted = false;
+            connection.send(Packet.of(FrameType.RESUME_FAILED, 0));
+            return;
+        }
+
+        connection.clientName = old.clientName;
+        connection.avatarUrl = old.avatarUrl;
+        connection.clientId = old.clientId;
+        connection.presenceDeltas = old.presenceDeltas;
+        connection.roomsEnabled = old.roomsEnabled;
+        connection.historyEnabled = old.historyEnabled;
+        connection.searchEnabled = old.searchEnabled;
+        connection.heartbeat = old.heartbeat;
+        connection.commands = old.commands;
+        connection.fileToken = old.fileToken;
+        if (old.fileToken != null) fileTokens.replace(old.fileToken, old, connection);
+        sessions.replace(token, old, connection);
+        synchronized (presenceLock) {
+            clientMap.replace(old.clientName, old, connection);
+        }
+        for (Room room : old.rooms.values()) {
+            synchronized (room) {
+                if (room.members.replace(old.clientName, old, connection)) connection.rooms.put(room.name, room);
+            }
+        }
+        old.rooms.clear();
+        admission.finishHandshake(connection, true);
+        stats.sessionsResumed.increment();
+        stats.packetsReplayed.add(replayed);
+        ServerLog.info("LOG", connection.clientName + " resumed the session (" + replayed + " packets replayed).");
+    }
+
+    /**
+     * The grace period of a parked session is over without a resume.
+     */
+    private void expireSession(Connection connection) {
+        if (!sessions.remove(connection.sessionToken, connection)) {
+            // Logged in again meanwhile; whatever the old connection still holds has to go
+            if (connection.outbound.closeIfParked()) leave(connection);
+            return;
+        }
+        if (!connection.outbound.closeIfParked()) return;
+        stats.sessionsExpired.increment();
+        leave(connection);
+    }
+
+    /**
+     * LOGOUT: the user leaves on purpose, so the session ends right away.
+     */
+    private void logout(Connection connection) {
+        connection.loggedOut = true;
+        if (connection.sessionToken != null) sessions.remove(connection.sessionToken, connection);
+        connection.close(DisconnectReason.CLIENT_CLOSED);
+    }
+
+    private void handlePublicMessage(Connection sender, String text) {
+        if (!fitsMessage(sender, text)) return;
+        // Per message, so the string is only built when somebody asked for DEBUG
+        if (ServerLog.isEnabled(LogLevel.DEBUG)) ServerLog.debug("MSG", sender.clientName + ": " + text);
+        deliverPublicMessage(sender.clientId, sender.clientName, sender.avatarUrl, text);
+        // One frame per peer node; each node fans it out to its own users
+        publishToCluster(Packet.of(FrameType.PEER_CHAT, sender.clientId, sender.clientName, sender.avatarUrl, text));
+    }
+
+    /**
+     * Delivers a public message to the users of this node and keeps it in the history.
+     * A message relayed from another node gets an id of this node.
+     */
+    private void deliverPublicMessage(int senderId, String name, String avatar, String text) {
+        Packet packet = newMessage(Protocol.LOBBY, clientMap.size() >= DIRECT_FANOUT_THRESHOLD,
+                FrameType.CHAT, senderId, name, avatar, text);
+        broadcast(packet);
+        lobbyRecent.add(packet);
+    }
+
+    /**
+     * Builds a public or room message with the next message id and appends it to the
+     * history. Only copies into the mapped log; the disk is written by the log's commit thread,
+     * and the message is only queued for the search index.
+     */
+    private Packet newMessage(String channel, boolean direct, FrameType type, int senderId, String... fields) {
+        MessageLog log = history;
+        if (log == null) return Packet.message(nextMessageId.getAndIncrement(), direct, type, senderId, fields);
+        SearchIndex index = search;
+        return log.append(channel, id -> {
+            // Still under the log's lock, so the index receives the messages in id order
+            int nameField = type == FrameType.ROOM_CHAT ? 1 : 0;
+            if (index != null) index.add(id, channel, fields[nameField], fields[nameField + 2]);
+            return Packet.message(id, direct, type, senderId, fields);
+        });
+    }
+
+    /**
+     * Appends a delivered message that does not carry its id (a private message) to the
+     * history, and queues it for the search index like {@link #newMessage} does.
+     */
+    private void record(String channel, Packet packet, String sender, String text) {
+        MessageLog log = history;
+        if (log == null) return;
+        SearchIndex index = search;
+        log.append(channel, id -> {
+            if (index != null) index.add(id, channel, sender, text);
+            return packet;
+        });
+    }
+
+    /**
+     * The arguments of "/history before=<id> limit=<n> [room=<room>]"; missing or malformed
+     * values fall back to the newest messages and the backfill size.
+     */
+    private void handleHistoryLine(Connection connection, String arguments) {
+        long before = 0;
+        int limit = 0;
+        String channel = Protocol.LOBBY;
+        for (String token : arguments.split("\\s+")) {
+            if (token.startsWith("before=")) before = parseLong(token.substring(7), 0);
+            else if (token.startsWith("limit=")) limit = (int) parseLong(token.substring(6), 0);
+            else if (token.startsWith("room=")) channel = token.substring(5);
+        }
+        handleHistoryRequest(connection, channel, before, limit);
+    }
+
+    /**
+     * Sends one page of a channel's history: a HISTORY header, then the messages themselves
+     * (oldest first) as one uninterrupted batch. The page comes from the channel's
+     * in-memory ring as far as it reaches and from the MessageLog beyond that; a page that
+     * needs the log is sent later, from a history reader.
+     *
+     * @param channel the lobby or the name of a room the connection is a member of
+     * @param before  only messages with a smaller id; 0 or less for the newest ones
+     */
+    private void handleHistoryRequest(Connection connection, String channel, long before, int limit) {
+        RecentHistory recent;
+        String logChannel;
+        if (channel.isEmpty() || channel.equals(Protocol.LOBBY)) {
+            channel = Protocol.LOBBY;
+            recent = lobbyRecent;
+            logChannel = Protocol.LOBBY;
+        } else {
+            // Only members may read a room's history
+            Room room = connection.rooms.get(channel);
+            if (room == null) {
+                sendSystem(connection, "You are not in room " + roomForReply(channel) + ".");
+                return;
+            }
+            recent = room.recent;
+            logChannel = "#" + room.name;
+        }
+        if (before <= 0) before = Long.MAX_VALUE;
+        if (limit <= 0) limit = Math.max(1, config.historyBackfill());
+        limit = Math.min(limit, Protocol.MAX_HISTORY_PAGE);
+
+        List<Packet> recentPage = recent.before(before, limit);
+        MessageLog log = history;
+        if (recentPage.size() == limit || log == null) {
+            sendHistoryPage(connection, channel, recentPage, recentPage.size() < limit ? 0 : recentPage.get(0).messageId());
+            return;
+        }
+        // The ring does not reach back far enough; continue below its oldest message in the log
+        String pageChannel = channel;
+        long below = recentPage.isEmpty() ? before : recentPage.get(0).messageId();
+        int missing = limit - recentPage.size();
+        readLog(() -> {
+            List<Packet> page = recentPage;
+            long nextBefore;
+            try {
+                MessageLog.Page older = log.readBefore(logChannel, below, missing);
+                page = new ArrayList<>(older.messages.size() + recentPage.size());
+                for (StoredMessage message : older.messages) page.add(message.toPacket());
+                page.addAll(recentPage);
+                nextBefore = older.nextBefore;
+            } catch (IOException e) {
+                ServerLog.error("HISTORY", "Read failed: " + e.getMessage());
+                nextBefore = 0;
+            }
+            sendHistoryPage(connection, pageChannel, page, nextBefore);
+        });
+    }
+
+    /**
+     * Runs a read of the message log on one of the history readers. The thread that took
+     * the request serves other connections too (an NIO event loop hundreds of them), so it
+     * must not wait for the disk; the reader sends the answer through the connection's queue.
+     */
+    private void readLog(Runnable read) {
+        try {
+            historyReaders.execute(read);
+        } catch (RejectedExecutionException e) {
+            // Shutting down; nobody is going to read the answer
+        }
+    }
+
+    /**
+     * Sends a page of history as a HISTORY header and the messages, in one batch.
+     */
+    private void sendHistoryPage(Connection connection, String channel, List<Packet> page, long nextBefore) {
+        Packet[] batch = new Packet[page.size() + 1];
+        batch[0] = Packet.of(FrameType.HISTORY, 0, channel, Integer.toString(page.size()), Long.toString(nextBefore));
+        for (int i = 0; i < page.size(); i++) batch[i + 1] = page.get(i);
+        connection.sendAll(batch);
+        stats.historyPages.increment();
+        stats.historyPageMessages.add(page.size());
+    }
+
+    /**
+     * The arguments of "/search [before=<id>] [limit=<n>] <query>": the options are only
+     * recognized in front of the query, everything from the first other word on is the query.
+     */
+    private void handleSearchLine(Connection connection, String arguments) {
+        long before = 0;
+        int limit = 0;
+        String query = arguments;
+        while (true) {
+            int space = query.indexOf(' ');
+            String token = space < 0 ? query : query.substring(0, space);
+            if (token.startsWith("before=")) before = parseLong(token.substring(7), 0);
+            else if (token.startsWith("limit=")) limit = (int) parseLong(token.substring(6), 0);
+            else break;
+            query = space < 0 ? "" : query.substring(space + 1).trim();
+        }
+        handleSearch(connection, query, before, limit);
+    }
+
+    /**
+     * Answers a search with one page of hits: a SEARCH_RESULTS header, then one SEARCH_HIT
+     * per message, newest first, as one uninterrupted batch. The index finds the message
+     * ids; only the messages of this page are read back from the log. Both run on a
+     * history reader, which sends the answer.
+     *
+     * @param before only messages with a smaller id; 0 or less for the newest ones
+     */
+    private void handleSearch(Connection connection, String query, long before, int limit) {
+        SearchIndex index = search;
+        MessageLog log = history;
+        if (index == null || log == null) {
+            sendSystem(connection, "Search is not available on this server.");
+            return;
+        }
+        // The query is repeated in the answer, next to the other fields
+        if (query.length() > Protocol.MAX_TEXT_LENGTH) {
+            sendSystem(connection, "Search query is longer than " + Protocol.MAX_TEXT_LENGTH + " characters.");
+            return;
+        }
+        long startNanos = System.nanoTime();
+        int pageSize = Math.min(limit <= 0 ? SEARCH_PAGE : limit, Protocol.MAX_SEARCH_PAGE);
+        // The rooms as they are now, not as they are once a reader gets to the query
+        List<String> rooms = List.copyOf(connection.rooms.keySet());
+
+        readLog(() -> {
+            SearchIndex.Hits hits = index.search(query, connection.clientName, rooms, before, pageSize);
+            List<Packet> batch = new ArrayList<>(hits.messageIds.length + 1);
+            batch.add(null);
+            try {
+                for (long id : hits.messageIds) {
+                    StoredMessage message = log.get(id);
+                    // Gone if retention deleted it after it was indexed
+                    Packet hit = message == null ? null : searchHit(connection, message);
+                    if (hit != null) batch.add(hit);
+                }
+            } catch (IOException e) {
+                ServerLog.error("SEARCH", "Read failed: " + e.getMessage());
+            }
+            batch.set(0, Packet.of(FrameType.SEARCH_RESULTS, 0, Integer.toString(batch.size() - 1),
+                    Long.toString(hits.nextBefore), query));
+            connection.sendAll(batch.toArray(new Packet[0]));
+            stats.searchQueries.increment();
+            stats.searchHits.add(batch.size() - 1);
+            stats.searchNanos.record(System.nanoTime() - startNanos);
+        });
+    }
+
+    /**
+     * A SEARCH_HIT for a stored message. A private message is shown under the other side
+     * of the conversation, whichever of the two searched.
+     */
+    private static Packet searchHit(Connection viewer, StoredMessage message) {
+        String[] fields = message.fields;
+        String channel;
+        int nameField;
+        switch (message.type) {
+            case CHAT -> {
+                channel = Protocol.LOBBY;
+                nameField = 0;
+            }
+            case ROOM_CHAT -> {
+                channel = message.channel;
+                nameField = 1;
+            }
+            case PRIVATE_FROM -> {
+                channel = fields[0].equals(viewer.clientName) ? message.channel : "@" + fields[0];
+                nameField = 0;
+            }
+            default -> {
+                return null;
+            }
+        }
+        if (fields.length < nameField + 3) return null;
+        return Packet.of(FrameType.SEARCH_HIT, 0, Long.toString(message.id), Long.toString(message.timestamp),
+                channel, fields[nameField], fields[nameField + 1], fields[nameField + 2]);
+    }
+
+    /**
+     * The arguments of "/room <room> <text>".
+     */
+    private void handleRoomLine(Connection connection, String arguments) {
+        int space = arguments.indexOf(' ');
+        String roomName = space < 0 ? arguments : arguments.substring(0, space);
+        Room room = connection.rooms.get(roomName);
+        if (room == null) {
+            sendSystem(connection, "You are not in room " + roomForReply(roomName) + ".");
+            return;
+        }
+        handleRoomMessage(connection, room, space < 0 ? "" : arguments.substring(space + 1).trim());
+    }
+
+    /**
+     * Adds the connection to the room (creating it on first use) and sends it a snapshot
+     * of the members. Joining a room again only resends the snapshot.
+     */
+    private void joinRoom(Connection connection, String roomName) {
+        if (!Protocol.isValidRoomName(roomName)) {
+            sendSystem(connection, "Invalid room name: " + roomForReply(roomName));
+            return;
+        }
+        if (!connection.rooms.containsKey(roomName) && connection.rooms.size() >= MAX_ROOMS_PER_CONNECTION) {
+            sendSystem(connection, "You cannot join more than " + MAX_ROOMS_PER_CONNECTION + " rooms.");
+            return;
+        }
+        while (true) {
+            Room room = rooms.getOrCreate(roomName);
+            synchronized (room) {
+                if (room.closed) continue; // Dropped by its last member just now; create a fresh one
+                boolean fresh = room.members.get(connection.clientName) != connection;
+                if (fresh) {
+                    room.members.put(connection.clientName, connection);
+                    connection.rooms.put(roomName, room);
+                    room.presenceVersion++;
+                }
+                String[] names = room.members.keySet().toArray(new String[0]);
+                String[] fields = new String[names.length + 2];
+                fields[0] = room.name;
+                fields[1] = Long.toString(room.presenceVersion);
+                System.arraycopy(names, 0, fields, 2, names.length);
+                connection.send(Packet.of(FrameType.ROOM_JOINED, 0, fields));
+                if (fresh) broadcastToRoom(room, FrameType.ROOM_JOIN, 0, connection,
+                        room.name, Long.toString(room.presenceVersion), connection.clientName);
+                if (!fresh || !connection.historyEnabled || config.historyBackfill() == 0) return;
+            }
+            // Outside the room's monitor: the backfill may have to read the log
+            handleHistoryRequest(connection, roomName, Long.MAX_VALUE, config.historyBackfill());
+            return;
+        }
+    }
+
+    private void leaveRoom(Connection connection, String roomName) {
+        Room room = connection.rooms.remove(roomName);
+        if (room == null) return;
+        synchronized (room) {
+            if (room.members.remove(connection.clientName, connection)) {
+                room.presenceVersion++;
+                broadcastToRoom(room, FrameType.ROOM_LEAVE, 0, null,
+                        room.name, Long.toString(room.presenceVersion), connection.clientName);
+            }
+        }
+        if (connection.isOpen()) connection.send(Packet.of(FrameType.ROOM_LEFT, 0, room.name));
+        rooms.removeIfEmpty(room);
+    }
+
+    private void listRooms(Connection connection) {
+        List<Room> all = rooms.rooms();
+        String[] fields = new String[all.size() * 2];
+        for (int i = 0; i < all.size(); i++) {
+            fields[2 * i] = all.get(i).name;
+            fields[2 * i + 1] = Integer.toString(all.get(i).members.size());
+        }
+        connection.send(Packet.of(FrameType.ROOM_LIST, 0, fields));
+    }
+
+    private void handleRoomMessage(Connection sender, Room room, String text) {
+        if (!fitsMessage(sender, text)) return;
+        if (ServerLog.isEnabled(LogLevel.DEBUG)) ServerLog.debug("MSG", sender.clientName + " in #" + room.name + ": " + text);
+        Packet packet = newMessage("#" + room.name, room.members.size() >= DIRECT_FANOUT_THRESHOLD,
+                FrameType.ROOM_CHAT, sender.clientId, room.name, sender.clientName, sender.avatarUrl, text);
+        broadcastToRoom(room, packet, null);
+        room.recent.add(packet);
+    }
+
+    /**
+     * The user an attachment request with this token comes from, or null if the token is
+     * unknown or its login has been replaced.
+     */
+    Connection attachmentUser(String token) {
+        Connection connection = fileTokens.get(token);
+        if (connection == null || connection.clientName == null) return null;
+        return clientMap.get(connection.clientName) == connection ? connection : null;
+    }
+
+    /**
+     * Whether the user may post to the channel: the lobby, a room they are in, or a user
+     * who is online on some node.
+     */
+    boolean mayPostAttachment(Connection connection, String channel) {
+        if (channel.equals(Protocol.LOBBY)) return true;
+        if (channel.startsWith("#")) return connection.rooms.containsKey(channel.substring(1));
+        if (channel.startsWith("@")) {
+            String target = channel.substring(1);
+            return clientMap.containsKey(target) || remoteUsers.containsKey(target);
+        }
+        return false;
+    }
+
+    /**
+     * Whether the user may download a file posted to the channel: the same rule as for
+     * search hits, so an attachment is visible exactly where its message is.
+     */
+    boolean maySeeAttachment(Connection connection, String channel, String sender) {
+        if (channel.equals(Protocol.LOBBY)) return true;
+        if (channel.startsWith("#")) return connection.rooms.containsKey(channel.substring(1));
+        if (channel.startsWith("@")) {
+            return channel.substring(1).equals(connection.clientName) || sender.equals(connection.clientName);
+        }
+        return false;
+    }
+
+    /**
+     * Announces a stored attachment in its channel, exactly as if the user had typed the text.
+     */
+    void postAttachment(Connection sender, String channel, String text) {
+        if (channel.equals(Protocol.LOBBY)) {
+            handlePublicMessage(sender, text);
+        } else if (channel.startsWith("#")) {
+            Room room = sender.rooms.get(channel.substring(1));
+            if (room != null) handleRoomMessage(sender, room, text);
+        } else if (channel.startsWith("@")) {
+            handlePrivateMessage(sender, channel.substring(1), text);
+        }
+    }
+
+    private void sendSystem(Connection connection, String text) {
+        connection.send(Packet.of(FrameType.SYSTEM, 0, text));
+    }
+
+    /**
+     * Refuses a message longer than Protocol.MAX_TEXT_LENGTH and tells the sender why.
+     * The line and frame limits alone are not enough: the server adds name, avatar and id
+     * to every message, and the result must still fit into one v2 field.
+     */
+    private boolean fitsMessage(Connection sender, String text) {
+        if (text.length() <= Protocol.MAX_TEXT_LENGTH) return true;
+        sendSystem(sender, "Message not sent: it is longer than " + Protocol.MAX_TEXT_LENGTH + " characters.");
+        return false;
+    }
+
+    /**
+     * A room name from a request, for a reply; one too long to be valid is cut short, so
+     * the reply fits however long the request was.
+     */
+    private static String roomForReply(String roomName) {
+        if (roomName.length() <= Protocol.MAX_ROOM_NAME_LENGTH) return roomName;
+        return roomName.substring(0, Protocol.MAX_ROOM_NAME_LENGTH) + "...";
+    }
+
+    /**
+     * Logic for routing private messages to a specific user.
+     */
+    private void handlePrivateMessage(Connection sender, String targetName, String content) {
+        if (targetName.length() > Protocol.MAX_NAME_LENGTH) {
+            sendSystem(sender, "Message not sent: no user has such a long name.");
+            return;
+        }
+        if (!fitsMessage(sender, content)) return;
+        Connection target = clientMap.get(targetName);
+        String targetNode = target == null ? remoteUsers.get(targetName) : null;
+        ClusterNode node = cluster;
+        if (target != null) {
+            // Send to Receiver: "[Private from Name]|Avatar|Message"
+            Packet message = Packet.of(FrameType.PRIVATE_FROM, sender.clientId, sender.clientName, sender.avatarUrl, content);
+            target.send(message);
+            // Send confirmation to Sender: "[Private to Name]|Avatar|Message"
+            sender.send(Packet.of(FrameType.PRIVATE_TO, sender.clientId, targetName, sender.avatarUrl, content));
+            record("@" + targetName, message, sender.clientName, content);
+        } else if (targetNode != null && node != null && node.sendTo(targetNode, Packet.of(FrameType.PEER_PRIVATE,
+                sender.clientId, targetName, sender.clientName, sender.avatarUrl, content))) {
+            // Straight to the node of the target, which delivers and records it (or reports back)
+            sender.send(Packet.of(FrameType.PRIVATE_TO, sender.clientId, targetName, sender.avatarUrl, content));
+        } else {
+            // Target not found: "[Private Error Name]|SystemAvatar|ErrorText"
+            sender.send(Packet.of(FrameType.PRIVATE_ERROR, 0, targetName, "User offline."));
+        }
+    }
+
+    /**
+     * Entry point for every frame received from a cluster peer, on that link's reader thread.
+     */
+    void onPeerFrame(String node, Frame frame) {
+        switch (frame.type()) {
+            case PEER_USERS -> {
+                String[] names = new String[frame.fieldCount()];
+                for (int i = 0; i < names.length; i++) names[i] = frame.string(i);
+                onPeerUsers(node, names);
+            }
+            case PEER_JOIN -> remoteJoin(node, frame.string(0, ""));
+            case PEER_LEAVE -> remoteLeave(node, frame.string(0, ""));
+            case PEER_CHAT -> {
+                if (frame.fieldCount() >= 3) {
+                    deliverPublicMessage(frame.senderId(), frame.string(0), frame.string(1), frame.string(2));
+                }
+            }
+            case PEER_PRIVATE -> {
+                if (frame.fieldCount() >= 4) {
+                    deliverRemotePrivate(node, frame.senderId(), frame.string(0), frame.string(1), frame.string(2), frame.string(3));
+                }
+            }
+            case PEER_PRIVATE_ERROR -> {
+                Connection sender = clientMap.get(frame.string(0, ""));
+                if (sender != null) sender.send(Packet.of(FrameType.PRIVATE_ERROR, 0, frame.string(1, ""), "User offline."));
+            }
+            default -> { } // Client frames are not valid on a peer link; ignore them
+        }
+    }
+
+    /**
+     * A peer's link went down: its users are gone until it reconnects and sends them again.
+     */
+    void onPeerDown(String node) {
+        ServerLog.info("CLUSTER", "Node " + node + " is gone");
+        onPeerUsers(node, new String[0]);
+    }
+
+    /**
+     * Called by a PeerLink that has just connected. The snapshot of the local users is
+     * queued under presenceLock, so it is followed by exactly the joins and leaves after it.
+     */
+    void attachPeer(PeerLink link, OutboundQueue queue) {
+        synchronized (presenceLock) {
+            link.activate(queue, Packet.of(FrameType.PEER_USERS, 0, clientMap.keySet().toArray(new String[0])));
+        }
+    }
+
+    /**
+     * Replaces everything the directory knows about the users of one node.
+     */
+    private void onPeerUsers(String node, String[] names) {
+        Set<String> current = new HashSet<>(List.of(names));
+        for (Map.Entry<String, String> entry : remoteUsers.entrySet()) {
+            if (entry.getValue().equals(node) && !current.contains(entry.getKey())) remoteLeave(node, entry.getKey());
+        }
+        for (String name : names) remoteJoin(node, name);
+    }
+
+    private void remoteJoin(String node, String name) {
+        if (name.isEmpty()) return;
+        boolean announce;
+        synchronized (presenceLock) {
+            // Somebody of that name already listed (on this node or another) is not a new user
+            announce = remoteUsers.put(name, node) == null && !clientMap.containsKey(name);
+            if (announce) {
+                presenceVersion++;
+                broadcastPresence(FrameType.PRESENCE_JOIN, name, null);
+            }
+        }
+        if (announce) broadcast(FrameType.SYSTEM, 0, name + " joined the room.");
+    }
+
+    private void remoteLeave(String node, String name) {
+        boolean announce;
+        synchronized (presenceLock) {
+            announce = remoteUsers.remove(name, node) && !clientMap.containsKey(name);
+            if (announce) {
+                presenceVersion++;
+                broadcastPresence(FrameType.PRESENCE_LEAVE, name, null);
+            }
+        }
+        if (announce) broadcast(FrameType.SYSTEM, 0, name + " left.");
+    }
+
+    private void deliverRemotePrivate(String fromNode, int senderId, String targetName, String senderName,
+                                      String avatar, String content) {
+        Connection target = clientMap.get(targetName);
+        if (target != null) {
+            Packet message = Packet.of(FrameType.PRIVATE_FROM, senderId, senderName, avatar, content);
+            target.send(message);
+            record("@" + targetName, message, senderName, content);
+        } else {
+            // Left between the sender's lookup and now
+            ClusterNode node = cluster;
+            if (node != null) node.sendTo(fromNode, Packet.of(FrameType.PEER_PRIVATE_ERROR, 0, senderName, targetName));
+        }
+    }
+
+    private void publishToCluster(Packet packet) {
+        ClusterNode node = cluster;
+        if (node != null) node.publish(packet);
+    }
+
+    /**
+     * Users logged in on this node.
+     */
+    int localUserCount() {
+        return clientMap.size();
+    }
+
+    /**
+     * Users the other cluster nodes reported.
+     */
+    int remoteUserCount() {
+        return remoteUsers.size();
+    }
+
+    /**
+     * Packets waiting in all outbound queues of logged-in users together.
+     * Walks every connection, so it is meant for the admin endpoint, not for hot paths.
+     */
+    long outboundQueuedTotal() {
+        long total = 0;
+        for (Connection connection : clientMap.values()) total += connection.outbound.size();
+        return total;
+    }
+
+    /**
+     * The deepest outbound queue of any logged-in user, i.e. the slowest reader.
+     */
+    int outboundQueuedMax() {
+        int max = 0;
+        for (Connection connection : clientMap.values()) max = Math.max(max, connection.outbound.size());
+        return max;
+    }
+
+    /**
+     * Everybody in the lobby: the users of this node and those of the other nodes.
+     */
+    String[] userNames() {
+        if (remoteUsers.isEmpty()) return clientMap.keySet().toArray(new String[0]);
+        Set<String> names = new LinkedHashSet<>(clientMap.keySet());
+        names.addAll(remoteUsers.keySet());
+        return names.toArray(new String[0]);
+    }
+
+    /**
+     * Builds the packet once and queues the same instance for every active connection.
+     * Only enqueues: a slow client never delays the ones after it.
+     *
+     * @return the packet, so the caller can also append it to the history
+     */
+    private Packet broadcast(FrameType type, int senderId, String... fields) {
+        return broadcast(newBroadcastPacket(type, senderId, fields));
+    }
+
+    private Packet broadcast(Packet packet) {
+        long startNanos = System.nanoTime();
+        long allocatedBefore = AllocationProbe.currentThreadAllocatedBytes();
+        int recipients = 0;
+        for (Connection connection : clientMap.values()) {
+            connection.send(packet);
+            recipients++;
+        }
+        recordBroadcast(recipients, startNanos, allocatedBefore);
+        return packet;
+    }
+
+    /**
+     * Same as {@link #broadcast}, but only to the members of one room.
+     */
+    private Packet broadcastToRoom(Room room, FrameType type, int senderId, Connection skip, String... fields) {
+        return broadcastToRoom(room, room.members.size() >= DIRECT_FANOUT_THRESHOLD
+                ? Packet.shared(type, senderId, fields)
+                : Packet.of(type, senderId, fields), skip);
+    }
+
+    private Packet broadcastToRoom(Room room, Packet packet, Connection skip) {
+        long startNanos = System.nanoTime();
+        long allocatedBefore = AllocationProbe.currentThreadAllocatedBytes();
+        int recipients = 0;
+        for (Connection connection : room.members.values()) {
+            if (connection == skip) continue;
+            connection.send(packet);
+            recipients++;
+        }
+        recordBroadcast(recipients, startNanos, allocatedBefore);
+        return packet;
+    }
+
+    /**
+     * Publishes a join or leave of the given user. Must be called under presenceLock,
+     * right after presenceVersion was bumped.
+     *
+     * Delta clients get a tiny JOIN/LEAVE packet, legacy clients still get the full
+     * user list ("USERLIST:User1,User2,..." in v1). Each of the two is built at most
+     * once and only if somebody needs it.
+     */
+    private void broadcastPresence(FrameType deltaType, String name, Connection skip) {
+        long startNanos = System.nanoTime();
+        long allocatedBefore = AllocationProbe.currentThreadAllocatedBytes();
+        Packet delta = null;
+        Packet userList = null;
+        int recipients = 0;
+        for (Connection connection : clientMap.values()) {
+            if (connection == skip) continue;
+            if (connection.presenceDeltas) {
+                if (delta == null) delta = newBroadcastPacket(deltaType, 0, Long.toString(presenceVersion), name);
+                connection.send(delta);
+            } else {
+                if (userList == null) userList = newBroadcastPacket(FrameType.USERLIST, 0, userNames());
+                connection.send(userList);
+            }
+            recipients++;
+        }
+        recordBroadcast(recipients, startNanos, allocatedBefore);
+    }
+
+    /**
+     * Sends the full presence state, tagged with its version, to one delta client.
+     */
+    private void sendPresenceSnapshot(Connection connection) {
+        synchronized (presenceLock) {
+            String[] names = userNames();
+            String[] fields = new String[names.length + 1];
+            fields[0] = Long.toString(presenceVersion);
+            System.arraycopy(names, 0, fields, 1, names.length);
+            connection.send(Packet.of(FrameType.PRESENCE_SNAPSHOT, 0, fields));
+        }
+    }
+
+    private Packet newBroadcastPacket(FrameType type, int senderId, String... fields) {
+        return clientMap.size() >= DIRECT_FANOUT_THRESHOLD
+                ? Packet.shared(type, senderId, fields)
+                : Packet.of(type, senderId, fields);
+    }
+
+    private void recordBroadcast(int recipients, long startNanos, long allocatedBefore) {
+        stats.broadcastNanos.record(System.nanoTime() - startNanos);
+        stats.broadcasts.increment();
+        stats.broadcastRecipients.add(recipients);
+        long allocatedAfter = AllocationProbe.currentThreadAllocatedBytes();
+        if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+            stats.broadcastAllocationSamples.increment();
+            stats.broadcastAllocatedBytes.add(allocatedAfter - allocatedBefore);
+        }
+    }
+
+    static long parseLong(String value, long fallback) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static boolean hasCapability(String capabilities, String capability) {
+        for (String candidate : capabilities.split(",")) {
+            if (candidate.trim().equals(capability)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,79 @@
+package at.ac.hcw.chat.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Wires a ChatHub to the engine chosen in the ServerConfig.
+ *
+ * Server.main uses this after the console prompts; load tests can create
+ * one directly and start it on port 0.
+ */
+public final class ChatServer implements Closeable {
+    private final ServerConfig config;
+    private final ChatHub hub;
+    private ServerEngine engine;
+    private ServerMetrics metrics;
+
+    public ChatServer(ServerConfig config) {
+        this.config = config;
+        this.hub = new ChatHub(config);
+    }
+
+    /**
+     * Binds the port and starts accepting clients in the background.
+     */
+    public void start(int port) throws IOException {
+        hub.openHistory();
+        engine = switch (config.engine()) {
+            case NIO -> new NioEngine(hub, config.eventLoops());
+            case THREAD -> new ThreadEngine(hub, false);
+            case VIRTUAL -> new ThreadEngine(hub, true);
+        };
+        engine.start(port);
+        hub.startCluster();
+        hub.startAttachments();
+        metrics = new ServerMetrics(hub);
+        metrics.start(engine.localPort());
+    }
+
+    public ServerStats stats() {
+        return hub.stats();
+    }
+
+    public int port() {
+        return engine.localPort();
+    }
+
+    /**
+     * The port of the metrics endpoint, 0 if it is disabled.
+     */
+    public int adminPort() {
+        return metrics == null ? 0 : metrics.adminPort();
+    }
+
+    /**
+     * All metrics in Prometheus text format, as served on the admin port.
+     */
+    public String metrics() {
+        return metrics == null ? "" : metrics.prometheus();
+    }
+
+    /**
+     * Blocks the calling thread until the server is closed.
+     */
+    public void awaitTermination() throws InterruptedException {
+        engine.awaitTermination();
+    }
+
+    @Override
+    public void close() {
+        if (metrics != null) metrics.close();
+        hub.closeCluster();
+        hub.closeAttachments();
+        if (engine != null) engine.close();
+        hub.closeTimers();
+        hub.closeHistory();
+        ServerLog.flush();
+    }
+}
@@ -0,0 +1,124 @@
+package at.ac.hcw.chat.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * Handles one specific client with blocking I/O, on platform or virtual threads.
+ *
+ * Two tasks per client: the reader (run) and a writer that drains the
+ * connection's OutboundQueue. Broadcasting threads only enqueue, so the socket
+ * is written by exactly one thread and needs no lock of its own.
+ */
+final class ClientHandler extends Connection implements Runnable {
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private final ChatHub hub;
+    private final SocketChannel channel;
+    private final Executor writers;
+    private final ServerStats stats;
+    private final TcpPolicy tcpPolicy;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+
+    ClientHandler(ChatHub hub, SocketChannel channel, Executor writers) {
+        super(hub);
+        this.hub = hub;
+        this.channel = channel;
+        this.writers = writers;
+        this.stats = hub.stats();
+        this.tcpPolicy = hub.config().tcpPolicy();
+        this.maxBatch = hub.config().flushMaxBatch();
+        this.maxDelayNanos = hub.config().flushMaxDelayMillis() * 1_000_000L;
+    }
+
+    @Override
+    public void run() {
+        try {
+            tcpPolicy.configure(channel);
+            writers.execute(this::writeLoop);
+            hub.watch(this);
+
+            /*
+             * Blocking reads straight from the channel (its locks are virtual-thread friendly).
+             * The bytes go through the same decoders as in the NIO engine, so a client can
+             * negotiate protocol v2 on its first line.
+             */
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            int n;
+            while ((n = channel.read(buffer)) >= 0) {
+                stats.bytesIn.add(n);
+                buffer.flip();
+                onBytes(buffer);
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            // Connection lost, client crash or malformed input
+            close(reasonOf(e));
+        } catch (RuntimeException e) {
+            fail("SERVER", e);
+        } finally {
+            // CLEANUP: Free resources and notify others
+            hub.onDisconnect(this);
+            close();
+        }
+    }
+
+    /**
+     * Writer task: waits for the first packet, then gives the rest of the batch up to
+     * the configured delay to arrive, and writes the shared packet buffers with one
+     * gathering write, without copying them.
+     */
+    private void writeLoop() {
+        Packet[] batch = new Packet[maxBatch];
+        ByteBuffer[] views = new ByteBuffer[maxBatch];
+        try {
+            while ((batch[0] = outbound.take()) != null) {
+                if (maxDelayNanos > 0 && maxBatch > 1) {
+                    outbound.awaitSize(maxBatch - 1, System.nanoTime() + maxDelayNanos);
+                }
+                int count = 1 + outbound.drainTo(batch, 1, maxBatch - 1);
+                for (int i = 0; i < count; i++) {
+                    views[i] = view(batch[i]);
+                    batch[i] = null;
+                }
+                tcpPolicy.beginBatch(channel);
+                writeFully(views, count);
+                tcpPolicy.endBatch(channel);
+                stats.recordFlush(count);
+            }
+        } catch (IOException | InterruptedException e) {
+            // The reader notices the closed socket and runs the normal cleanup
+            close(DisconnectReason.IO_ERROR);
+        } catch (RuntimeException e) {
+            fail("SERVER", e);
+        }
+    }
+
+    private void writeFully(ByteBuffer[] views, int count) throws IOException {
+        int first = 0;
+        while (first < count) {
+            stats.bytesOut.add(channel.write(views, first, count - first));
+            while (first < count && !views[first].hasRemaining()) views[first++] = null;
+        }
+    }
+
+    @Override
+    void close() {
+        releaseOutbound();
+        try { channel.close(); } catch (IOException ignored) {}
+    }
+
+    @Override
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    InetAddress remoteAddress() {
+        return channel.socket().getInetAddress();
+    }
+}
@@ -0,0 +1,218 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.Frame;
+import at.ac.hcw.chat.protocol.FrameDecoder;
+import at.ac.hcw.chat.protocol.FrameType;
+import at.ac.hcw.chat.protocol.Protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This server's membership in a cluster of chat servers: a full TCP mesh between
+ * the nodes, speaking v2 frames (see the PEER_* types of FrameType).
+ *
+ * Every node dials every configured peer (a PeerLink per peer, used only for
+ * sending) and accepts the peers' links on its cluster port (used only for
+ * receiving). A node announces its own users and relays its public messages
+ * over its outgoing links; what arrives on the incoming links is handed to the
+ * ChatHub, which keeps the replicated presence directory and delivers to the
+ * local clients.
+ *
+ * The cost of a public message on the mesh is one frame per peer node, no
+ * matter how many users that node has. Private messages only travel to the
+ * node that holds the target.
+ *
+ * A peer can announce users and speak for any of them, so the cluster port is
+ * not for everybody: it listens on loopback unless configured otherwise, and with
+ * a shared secret configured both sides of every link must present it in their
+ * HELLO. A connection that does not say HELLO in time is dropped.
+ */
+final class ClusterNode implements Closeable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int HELLO_TIMEOUT_SECONDS = 10;
+
+    private final ChatHub hub;
+    private final String nodeId;
+    private final int port;
+    private final String bindAddress;
+    // Null if the cluster has no secret
+    private final byte[] secret;
+    private final List<PeerLink> links = new ArrayList<>();
+    // Outgoing links that are up, by the node id of the peer
+    private final Map<String, PeerLink> linksByNode = new ConcurrentHashMap<>();
+    // Incoming links, by the node id of the peer; a reconnect replaces the old entry
+    private final Map<String, SocketChannel> inbound = new ConcurrentHashMap<>();
+    private ServerSocketChannel server;
+    private volatile boolean closed;
+
+    ClusterNode(ChatHub hub, ServerConfig config) {
+        this.hub = hub;
+        this.nodeId = config.clusterNodeId();
+        this.port = config.clusterPort();
+        this.bindAddress = config.clusterBind();
+        this.secret = config.clusterSecret() == null ? null : config.clusterSecret().getBytes(StandardCharsets.UTF_8);
+        for (String peer : config.clusterPeers()) links.add(new PeerLink(peer, this, hub));
+    }
+
+    /**
+     * Binds the cluster port and starts dialing the peers in the background.
+     */
+    void start() throws IOException {
+        server = ServerSocketChannel.open();
+        InetSocketAddress address = new InetSocketAddress(bindAddress, port);
+        server.bind(address);
+        startDaemon(this::acceptLoop, "chat-cluster-accept");
+        for (PeerLink link : links) startDaemon(link, "chat-cluster-link-" + link.address);
+        ServerLog.info("CLUSTER", "Node " + nodeId + " listening for peers on " + bindAddress + ":" + port
+                + ", peers " + links.size() + (secret != null ? ", secret required" : ""));
+        if (secret == null && !address.getAddress().isLoopbackAddress()) {
+            ServerLog.warn("CLUSTER", "The cluster port is reachable from other hosts and no secret is set:"
+                    + " anybody who can connect can join the cluster");
+        }
+    }
+
+    /**
+     * The HELLO this node opens every link with, in both directions.
+     */
+    Packet hello() {
+        if (secret == null) return Packet.of(FrameType.PEER_HELLO, 0, nodeId);
+        return Packet.of(FrameType.PEER_HELLO, 0, nodeId, new String(secret, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Whether the HELLO comes from a node of this cluster: it carries the shared secret,
+     * if there is one.
+     */
+    boolean isAuthentic(Frame hello) {
+        if (hello.type() != FrameType.PEER_HELLO || hello.fieldCount() < 1) return false;
+        if (secret == null) return true;
+        // Compared in constant time, so the answer times do not give the secret away
+        return hello.fieldCount() >= 2 && MessageDigest.isEqual(secret, hello.string(1).getBytes(StandardCharsets.UTF_8));
+    }
+
+    String nodeId() {
+        return nodeId;
+    }
+
+    boolean isSelf(String node) {
+        return nodeId.equals(node);
+    }
+
+    void linkUp(PeerLink link) {
+        linksByNode.put(link.nodeId, link);
+    }
+
+    void linkDown(PeerLink link) {
+        linksByNode.remove(link.nodeId, link);
+    }
+
+    /**
+     * Queues the same packet once for every peer that is currently linked.
+     */
+    void publish(Packet packet) {
+        for (PeerLink link : links) link.send(packet);
+    }
+
+    /**
+     * Queues a packet for one peer.
+     *
+     * @return false if there is no link to that node right now
+     */
+    boolean sendTo(String node, Packet packet) {
+        PeerLink link = linksByNode.get(node);
+        if (link == null || !link.isUp()) return false;
+        link.send(packet);
+        return true;
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                startDaemon(() -> readLoop(channel), "chat-cluster-in");
+            } catch (IOException e) {
+                if (!closed) ServerLog.error("CLUSTER", "Accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reader of one incoming peer link: answers its HELLO with ours, then hands every
+     * frame to the hub. When the link goes away, the peer's users go with it, unless
+     * the peer has already reconnected on a newer link.
+     */
+    private void readLoop(SocketChannel channel) {
+        String peer = null;
+        TimerWheel.Timeout helloTimeout = hub.timers().schedule(HELLO_TIMEOUT_SECONDS, TimeUnit.SECONDS, () -> {
+            try { channel.close(); } catch (IOException ignored) {}
+        });
+        try {
+            FrameDecoder decoder = new FrameDecoder(Protocol.MAX_SERVER_FRAME_LENGTH);
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                Frame frame;
+                while ((frame = decoder.next(buffer)) != null) {
+                    if (peer == null) {
+                        if (!isAuthentic(frame)) {
+                            ServerLog.warn("CLUSTER", "Refused a peer link from " + channel.getRemoteAddress()
+                                    + ": no HELLO with the cluster secret");
+                            return;
+                        }
+                        helloTimeout.cancel();
+                        peer = frame.string(0);
+                        ByteBuffer hello = hello().view(Packet.V2);
+                        while (hello.hasRemaining()) channel.write(hello);
+                        if (isSelf(peer)) return;
+                        SocketChannel previous = inbound.put(peer, channel);
+                        if (previous != null) previous.close();
+                        Thread.currentThread().setName("chat-cluster-in-" + peer);
+                    } else {
+                        hub.onPeerFrame(peer, frame);
+                    }
+                }
+                buffer.compact();
+            }
+        } catch (IOException e) {
+            // Peer went away or sent garbage
+        } finally {
+            helloTimeout.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+            if (peer != null && inbound.remove(peer, channel)) {
+                hub.onPeerDown(peer);
+                PeerLink link = linksByNode.get(peer);
+                if (link != null) link.reset();
+            }
+        }
+    }
+
+    private static void startDaemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (PeerLink link : links) link.close();
+        try { if (server != null) server.close(); } catch (IOException ignored) {}
+        for (SocketChannel channel : inbound.values()) {
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+}
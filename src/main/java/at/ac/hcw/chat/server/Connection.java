@@ -0,0 +1,262 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.Frame;
+import at.ac.hcw.chat.protocol.FrameDecoder;
+import at.ac.hcw.chat.protocol.FrameType;
+import at.ac.hcw.chat.protocol.Protocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One client connection, independent of the engine that drives its socket.
+ *
+ * The ChatHub only ever talks to this abstraction, so the blocking
+ * thread-per-client engine and the NIO event-loop engine share exactly
+ * the same login and message routing logic.
+ *
+ * Every connection owns a bounded OutboundQueue that is drained by its own
+ * writer. Sending therefore never blocks on the network: one client with a
+ * full TCP window cannot stall the broadcast for everybody else.
+ *
+ * Incoming bytes start out as v1 text lines. If the very first line is the
+ * v2 handshake, the connection switches to binary frames for both directions.
+ */
+abstract class Connection {
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    // Identity of the user, filled in by the ChatHub once the login was parsed
+    volatile String clientName;
+    volatile String avatarUrl;
+    volatile int clientId;
+
+    // Capability from the login: receives presence deltas instead of full user lists
+    volatile boolean presenceDeltas;
+    // Listed capabilities at all: its v1 requests are '/' lines and its text is escaped, see Protocol.COMMAND_PREFIX
+    volatile boolean commands;
+    // Capability from the login: may join rooms besides the lobby
+    volatile boolean roomsEnabled;
+    // Capability from the login: receives a backfill of recent messages and may page back through history
+    volatile boolean historyEnabled;
+    // Capability from the login: may search the history
+    volatile boolean searchEnabled;
+
+    // Capability from the login: authenticates the user on the attachment port; null otherwise
+    volatile String fileToken;
+
+    // Capability from the login: the session outlives the socket for the grace period; null otherwise
+    volatile String sessionToken;
+    // Set by a LOGOUT: the user left on purpose, so the session ends with the connection
+    volatile boolean loggedOut;
+    // The connection that resumed this one's session; every later send goes there
+    private volatile Connection successor;
+
+    // Capability from the login: answers PINGs, so silence means the peer is gone
+    volatile boolean heartbeat;
+    // System.nanoTime() of the last bytes read; the idle check compares against it
+    volatile long lastReadNanos = System.nanoTime();
+
+    // Rooms this connection is a member of, by name
+    final Map<String, Room> rooms = new ConcurrentHashMap<>();
+
+    // The first line (or frame) on every connection is the login
+    boolean loginAttempted;
+    // Holds one of the admission control's handshake slots from the accept until the login (or the close)
+    final AtomicBoolean handshaking = new AtomicBoolean();
+    // System.nanoTime() of the accept, for the accept-to-login latency
+    volatile long acceptedNanos;
+
+    // Wire format used towards this client; read by the writer for every packet
+    volatile int protocolVersion = Packet.V1;
+    // V2_INTERNED only: the sender and avatar ids this client has been told, used by the writer only
+    private final BitSet knownSenders = new BitSet();
+    private final BitSet knownAvatars = new BitSet();
+
+    final OutboundQueue outbound;
+    private final ChatHub hub;
+    private final LineDecoder lines = new LineDecoder(MAX_LINE_LENGTH);
+    private FrameDecoder frames;
+    // Why the connection ended; the first reason given wins, see DisconnectReason
+    private volatile DisconnectReason disconnectReason;
+
+    Connection(ChatHub hub) {
+        this.hub = hub;
+        this.outbound = hub.newOutboundQueue();
+        hub.stats().connectionsOpened.increment();
+    }
+
+    /**
+     * Feeds freshly read bytes through the decoder of the current protocol and hands
+     * every complete line or frame to the hub. Called by the connection's reader only.
+     *
+     * @throws IOException if the client sent an overlong line or a malformed frame
+     */
+    final void onBytes(ByteBuffer in) throws IOException {
+        // One plain store per read; the timer wheel looks at it only when the check is due
+        lastReadNanos = System.nanoTime();
+        while (in.hasRemaining() && isOpen()) {
+            if (frames != null) {
+                Frame frame = frames.next(in);
+                if (frame == null) return;
+                hub.onFrame(this, frame);
+                continue;
+            }
+            String line = lines.next(in);
+            if (line == null) return;
+            if (!loginAttempted && Protocol.HANDSHAKE_V2.equals(line)) {
+                // Switch first, so the HELLO (and everything after it) goes out as a frame
+                protocolVersion = Packet.V2;
+                frames = new FrameDecoder(Protocol.MAX_FRAME_LENGTH);
+                send(Packet.of(FrameType.HELLO, 0));
+                continue;
+            }
+            hub.onLine(this, line);
+        }
+    }
+
+    /**
+     * Queues a packet, which may be shared with other recipients.
+     * May be called from any thread and never waits for the network.
+     */
+    final void send(Packet packet) {
+        if (!outbound.offer(packet)) {
+            // Resumed elsewhere while the sender still held on to this connection
+            Connection next = successor;
+            if (next != null) {
+                next.send(packet);
+                return;
+            }
+            // OverflowPolicy.DISCONNECT: evict the slow consumer
+            close(DisconnectReason.SLOW_CONSUMER);
+            return;
+        }
+        onEnqueued();
+    }
+
+    /**
+     * Queues several packets back to back, e.g. a page of history behind its header,
+     * without packets of concurrent senders slipping in between.
+     */
+    final void sendAll(Packet... packets) {
+        if (!outbound.offerAll(packets)) {
+            Connection next = successor;
+            if (next != null) {
+                next.sendAll(packets);
+                return;
+            }
+            close(DisconnectReason.SLOW_CONSUMER);
+            return;
+        }
+        onEnqueued();
+    }
+
+    /**
+     * The bytes to write for a packet in this connection's wire format. Called by the
+     * connection's writer only, in the order the packets go out, which is what makes the
+     * bookkeeping of known sender ids exact: a definition is written exactly once, right
+     * before the first message that uses it, and no later overflow can drop it.
+     */
+    final ByteBuffer view(Packet packet) {
+        int version = protocolVersion;
+        if (version != Packet.V2_INTERNED) return packet.view(version);
+        SenderTable.Sender sender = packet.sender(hub.senders());
+        if (sender == null) return packet.view(Packet.V2);
+        ByteBuffer reference = packet.view(Packet.V2_INTERNED);
+        if (knownSenders.get(sender.id)) return reference;
+
+        // First message of this sender: its definitions share the buffer, so the batch size stays the same
+        boolean newAvatar = !knownAvatars.get(sender.avatar.id);
+        ByteBuffer combined = ByteBuffer.allocate((newAvatar ? sender.avatar.definition.remaining() : 0)
+                + sender.definition.remaining() + reference.remaining());
+        if (newAvatar) combined.put(sender.avatar.definition.duplicate());
+        combined.put(sender.definition.duplicate()).put(reference);
+        knownAvatars.set(sender.avatar.id);
+        knownSenders.set(sender.id);
+        return combined.flip();
+    }
+
+    /**
+     * Called by the engines when the connection closes, instead of closing the queue:
+     * the queue of a session that may still be resumed is only parked.
+     *
+     * @return true if the session is kept for a resume (or was resumed already)
+     */
+    final boolean releaseOutbound() {
+        DisconnectReason reason = disconnectReason();
+        boolean resumable = sessionToken != null && !loggedOut
+                && (reason == DisconnectReason.CLIENT_CLOSED || reason == DisconnectReason.IO_ERROR
+                        || reason == DisconnectReason.IDLE_TIMEOUT);
+        if (resumable && outbound.park()) return true;
+        outbound.close();
+        return false;
+    }
+
+    /**
+     * Makes this connection forward everything sent to it from now on. Called by the hub
+     * during a resume, while it holds this connection's queue lock.
+     */
+    final void forwardTo(Connection next) {
+        successor = next;
+    }
+
+    /**
+     * Hook for engines whose writer must be woken up explicitly.
+     */
+    void onEnqueued() {
+    }
+
+    /**
+     * @return false once the connection has been closed
+     */
+    abstract boolean isOpen();
+
+    /**
+     * Closes the underlying socket. Safe to call more than once.
+     */
+    abstract void close();
+
+    /**
+     * Closes the connection and records why, unless an earlier reason was recorded already.
+     */
+    final void close(DisconnectReason reason) {
+        if (disconnectReason == null) disconnectReason = reason;
+        close();
+    }
+
+    /**
+     * Closes the connection after an unexpected exception while serving it. The reader or
+     * writer catches it, so the failure ends this one client instead of the thread, which
+     * in the NIO engine serves many others.
+     */
+    final void fail(String tag, RuntimeException e) {
+        String who = clientName != null ? clientName : String.valueOf(remoteAddress());
+        ServerLog.error(tag, "Closing connection of " + who + " after " + e);
+        close(DisconnectReason.SERVER_ERROR);
+    }
+
+    /**
+     * The recorded reason, or CLIENT_CLOSED if the connection just ended.
+     */
+    final DisconnectReason disconnectReason() {
+        DisconnectReason reason = disconnectReason;
+        return reason != null ? reason : DisconnectReason.CLIENT_CLOSED;
+    }
+
+    /**
+     * PROTOCOL_ERROR for malformed input (ProtocolException), IO_ERROR for everything else.
+     */
+    static DisconnectReason reasonOf(IOException e) {
+        return e instanceof ProtocolException ? DisconnectReason.PROTOCOL_ERROR : DisconnectReason.IO_ERROR;
+    }
+
+    /**
+     * The address of the remote peer, used for logging.
+     */
+    abstract InetAddress remoteAddress();
+}
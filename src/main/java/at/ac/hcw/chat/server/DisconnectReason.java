@@ -0,0 +1,24 @@
+package at.ac.hcw.chat.server;
+
+/**
+ * Why a client connection ended, counted per reason in the ServerStats.
+ * If several apply (an evicted client's reader then fails too), the first one wins.
+ */
+public enum DisconnectReason {
+    /** The client closed its socket (or quit the app). */
+    CLIENT_CLOSED,
+    /** Its outbound queue overflowed under the DISCONNECT policy. */
+    SLOW_CONSUMER,
+    /** It sent an overlong line or a malformed frame. */
+    PROTOCOL_ERROR,
+    /** The connection broke: reset by the peer, a failed write, and so on. */
+    IO_ERROR,
+    /** The server was shut down. */
+    SERVER_SHUTDOWN,
+    /** Nothing arrived for the idle timeout, not even an answer to a PING: presumably a dead peer. */
+    IDLE_TIMEOUT,
+    /** It did not log in within the handshake timeout after the accept. */
+    HANDSHAKE_TIMEOUT,
+    /** Serving it failed with an unexpected exception; only this connection is closed. */
+    SERVER_ERROR
+}
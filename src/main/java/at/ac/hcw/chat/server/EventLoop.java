@@ -0,0 +1,191 @@
+package at.ac.hcw.chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One selector thread serving many NioConnections.
+ *
+ * Other threads never touch the selector directly: they submit tasks with
+ * {@link #execute}, which the loop runs between two select() calls.
+ */
+final class EventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final ChatHub hub;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    /*
+     * Connections waiting for a flush, as an intrusive lock-free stack linked through
+     * NioConnection.nextFlush. Scheduling a flush therefore allocates nothing, which
+     * keeps the broadcast fan-out allocation free.
+     */
+    private final AtomicReference<NioConnection> flushStack = new AtomicReference<>();
+    /*
+     * Connections parked until their batch deadline, loop thread only. Every connection
+     * waits the same delay, so insertion order is deadline order and a FIFO is enough.
+     * Entries can be stale (the batch was flushed early); they are skipped when reached.
+     */
+    private final ArrayDeque<NioConnection> delayedFlushes = new ArrayDeque<>();
+    // One direct read buffer per loop, reused by every connection on it
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private volatile boolean running = true;
+
+    EventLoop(ChatHub hub, int index) throws IOException {
+        this.hub = hub;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, "chat-event-loop-" + index);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Runs the task on this loop's thread. Wakes the selector at most once per batch of tasks.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Asks the loop to flush the connection. The caller guarantees (via its
+     * flushScheduled flag) that a connection is on the stack at most once.
+     */
+    void scheduleFlush(NioConnection connection) {
+        NioConnection head;
+        do {
+            head = flushStack.get();
+            connection.nextFlush = head;
+        } while (!flushStack.compareAndSet(head, connection));
+        if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Parks a connection until its flushDeadline. Loop thread only.
+     */
+    void delayFlush(NioConnection connection) {
+        delayedFlushes.add(connection);
+    }
+
+    /**
+     * Hands a freshly accepted channel, and the handshake slot it holds, over to this loop.
+     */
+    void register(SocketChannel channel, long acceptedNanos) {
+        execute(() -> {
+            NioConnection connection = new NioConnection(hub, this, channel);
+            hub.admission().startHandshake(connection, acceptedNanos);
+            try {
+                channel.configureBlocking(false);
+                connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+                hub.watch(connection);
+            } catch (IOException e) {
+                connection.close(DisconnectReason.IO_ERROR);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                wakeupPending.set(false);
+                if (!tasks.isEmpty() || flushStack.get() != null) selector.selectNow();
+                else if (delayedFlushes.isEmpty()) selector.select();
+                else selector.select(millisUntil(delayedFlushes.peek().flushDeadline));
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isValid() && key.isReadable()) connection.onReadable(readBuffer);
+                    if (key.isValid() && key.isWritable()) connection.flush();
+                }
+                runTasks();
+                runFlushes();
+                runDelayedFlushes();
+            } catch (IOException | RuntimeException e) {
+                // Connections handle their own failures; whatever gets here must not end the loop
+                ServerLog.error("NIO", "Event loop error: " + e);
+            }
+        }
+        closeAll();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                ServerLog.error("NIO", "Task failed: " + e);
+            }
+        }
+    }
+
+    private void runFlushes() {
+        NioConnection connection = flushStack.getAndSet(null);
+        long now = System.nanoTime();
+        while (connection != null) {
+            NioConnection next = connection.nextFlush;
+            connection.nextFlush = null;
+            connection.onFlushScheduled(now);
+            connection = next;
+        }
+    }
+
+    private void runDelayedFlushes() {
+        long now = System.nanoTime();
+        NioConnection connection;
+        while ((connection = delayedFlushes.peek()) != null) {
+            if (connection.flushState.get() != NioConnection.DELAYED) {
+                delayedFlushes.poll(); // stale: already flushed because its batch filled up
+                continue;
+            }
+            if (connection.flushDeadline - now > 0) break;
+            delayedFlushes.poll();
+            if (connection.flushState.compareAndSet(NioConnection.DELAYED, NioConnection.SCHEDULED)) {
+                connection.flush();
+            }
+        }
+    }
+
+    private static long millisUntil(long deadlineNanos) {
+        long nanos = deadlineNanos - System.nanoTime();
+        // select(0) would block forever, so never go below one millisecond
+        return Math.max(1, (nanos + 999_999) / 1_000_000);
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection connection) connection.close(DisconnectReason.SERVER_SHUTDOWN);
+        }
+        try { selector.close(); } catch (IOException ignored) {}
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    void join() throws InterruptedException {
+        thread.join();
+    }
+}
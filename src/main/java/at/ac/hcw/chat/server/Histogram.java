@@ -0,0 +1,75 @@
+package at.ac.hcw.chat.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Durations counted in fixed buckets, cheap enough to record on every broadcast.
+ *
+ * The bucket bounds follow the Prometheus convention (cumulative "le" buckets when
+ * exported), so the admin endpoint can publish it without any conversion.
+ */
+final class Histogram {
+    // Upper bounds in nanoseconds: 1 µs .. 10 s; anything slower lands in the +Inf bucket
+    private static final long[] BOUNDS_NANOS = {
+            1_000, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000, 25_000_000, 50_000_000, 100_000_000,
+            250_000_000, 500_000_000, 1_000_000_000, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L };
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram() {
+        for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+    }
+
+    void record(long nanos) {
+        int i = 0;
+        while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) i++;
+        buckets[i].increment();
+        sumNanos.add(nanos);
+    }
+
+    static int bucketCount() {
+        return BOUNDS_NANOS.length + 1;
+    }
+
+    /**
+     * @return the upper bound of a bucket in nanoseconds, Long.MAX_VALUE for the last one
+     */
+    static long upperBoundNanos(int bucket) {
+        return bucket < BOUNDS_NANOS.length ? BOUNDS_NANOS[bucket] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Non-cumulative count of one bucket.
+     */
+    long bucket(int bucket) {
+        return buckets[bucket].sum();
+    }
+
+    long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) count += bucket.sum();
+        return count;
+    }
+
+    /**
+     * Upper bound of the bucket holding the given quantile (0..1) of the recorded values,
+     * 0 if nothing was recorded.
+     */
+    long quantileUpperBoundNanos(double quantile) {
+        long total = count();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i].sum();
+            if (seen >= rank) return upperBoundNanos(i);
+        }
+        return Long.MAX_VALUE;
+    }
+
+    long sumNanos() {
+        return sumNanos.sum();
+    }
+}
@@ -0,0 +1,14 @@
+package at.ac.hcw.chat.server;
+
+/**
+ * When appended history records are forced from the page cache to the disk.
+ *
+ * Neither level makes a broadcast wait for the disk: appends only copy into the
+ * memory-mapped segment, and forcing happens on the commit thread.
+ */
+public enum HistoryDurability {
+    /** Never force; survives a server crash, but an OS crash or power loss may lose recent history. */
+    OS,
+    /** Group commit: force everything appended since the last commit every "chat.history.commitMs". */
+    GROUP_COMMIT
+}
@@ -0,0 +1,49 @@
+package at.ac.hcw.chat.server;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits a byte stream into newline-terminated UTF-8 lines (protocol v1).
+ *
+ * Partial lines are kept in one reusable byte array per connection, so a
+ * read that ends in the middle of a message costs no extra allocation. Bytes
+ * after a complete line stay in the caller's buffer, which lets the connection
+ * switch to frame decoding right after the v2 handshake line.
+ */
+final class LineDecoder {
+    private final int maxLineLength;
+    private byte[] pending = new byte[256];
+    private int length;
+
+    LineDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Consumes bytes from the buffer up to and including the next '\n'.
+     *
+     * @return the completed line (without "\r\n"), or null if the buffer ran out first
+     * @throws IOException if a line grows beyond the configured maximum
+     */
+    String next(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                int end = length;
+                if (end > 0 && pending[end - 1] == '\r') end--;
+                length = 0;
+                return new String(pending, 0, end, StandardCharsets.UTF_8);
+            }
+            if (length == pending.length) {
+                if (length >= maxLineLength) throw new ProtocolException("Line exceeds " + maxLineLength + " bytes");
+                pending = Arrays.copyOf(pending, Math.min(length * 2, maxLineLength));
+            }
+            pending[length++] = b;
+        }
+        return null;
+    }
+}
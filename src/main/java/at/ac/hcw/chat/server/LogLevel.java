@@ -0,0 +1,18 @@
+package at.ac.hcw.chat.server;
+
+/**
+ * Threshold of the server's console log; everything below it is skipped before
+ * any string is built.
+ */
+public enum LogLevel {
+    /** Every chat message ("[MSG]: ..."), meant for debugging only. */
+    DEBUG,
+    /** Connects, logins, leaves, cluster and history events (the default). */
+    INFO,
+    /** Recoverable problems. */
+    WARN,
+    /** Failures of the server itself, e.g. a socket or history error. */
+    ERROR,
+    /** Nothing at all, e.g. for benchmarks. */
+    OFF
+}
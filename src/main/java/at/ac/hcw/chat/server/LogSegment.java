@@ -0,0 +1,378 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.Frame;
+import at.ac.hcw.chat.protocol.FrameDecoder;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Predicate;
+import java.util.zip.CRC32C;
+
+/**
+ * One file of the MessageLog: "<baseId>.log" holds the records, "<baseId>.idx"
+ * a sparse index over them. Both files are memory-mapped at their full size
+ * when the segment is created, so an append is a plain memory copy.
+ *
+ * Record layout, big-endian:
+ *   int32  crc        CRC32C of everything after this field
+ *   int64  id         message id, strictly increasing, never 0
+ *   int64  timestamp  milliseconds since the epoch, never decreasing
+ *   uint16 length     of the channel name, followed by its UTF-8 bytes
+ *   frame             the message as a complete v2 frame (length prefix included)
+ * The first record with id 0 (the zero-filled rest of the file) marks the end.
+ *
+ * Index entry: int64 id, int64 timestamp, int32 position. The first record and
+ * then one record per INDEX_INTERVAL bytes are indexed.
+ */
+final class LogSegment {
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".idx";
+    static final int INDEX_INTERVAL = 4096;
+    private static final int INDEX_ENTRY = 8 + 8 + 4;
+    // crc + id + timestamp + channel length
+    private static final int RECORD_HEADER = 4 + 8 + 8 + 2;
+    // The MessageLog never appends a longer record
+    static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+    final long baseId;
+    private final Path logFile;
+    private final Path indexFile;
+    private final int capacity;
+
+    // Null for a segment found at startup until somebody reads it
+    private MappedByteBuffer log;
+    private MappedByteBuffer index;
+    private int indexEntries;
+    // Records below writePosition are complete; the volatile write publishes them to readers
+    private volatile int writePosition;
+    // False for segments found at startup: their end is only known by scanning
+    private boolean endKnown;
+    // Only touched by the appending thread
+    private int lastIndexedPosition = -INDEX_INTERVAL;
+    private final CRC32C crc = new CRC32C();
+    // Only touched by the commit thread
+    private int forcedPosition;
+    private int forcedIndexEntries;
+
+    private volatile long firstTimestamp;
+    private long lastId;
+    private long lastTimestamp;
+
+    private LogSegment(Path dir, long baseId, int capacity) {
+        this.baseId = baseId;
+        this.logFile = dir.resolve(fileName(baseId, LOG_SUFFIX));
+        this.indexFile = dir.resolve(fileName(baseId, INDEX_SUFFIX));
+        this.capacity = capacity;
+    }
+
+    static String fileName(long baseId, String suffix) {
+        // Zero padded, so the files sort by name in id order
+        return String.format("%020d%s", baseId, suffix);
+    }
+
+    /**
+     * Creates and maps a new, empty segment for appending.
+     */
+    static LogSegment create(Path dir, long baseId, int capacity) throws IOException {
+        LogSegment segment = new LogSegment(dir, baseId, capacity);
+        segment.log = map(segment.logFile, FileChannel.MapMode.READ_WRITE, capacity, true);
+        segment.index = map(segment.indexFile, FileChannel.MapMode.READ_WRITE, indexCapacity(capacity), true);
+        segment.endKnown = true;
+        return segment;
+    }
+
+    /**
+     * Registers an old segment found at startup without mapping or scanning it;
+     * only its first index entry is read.
+     */
+    static LogSegment openSealed(Path dir, long baseId) throws IOException {
+        LogSegment segment = new LogSegment(dir, baseId, (int) Files.size(dir.resolve(fileName(baseId, LOG_SUFFIX))));
+        try (FileChannel channel = FileChannel.open(segment.indexFile, StandardOpenOption.READ)) {
+            ByteBuffer first = ByteBuffer.allocate(INDEX_ENTRY);
+            channel.read(first, 0);
+            if (first.position() == INDEX_ENTRY) segment.firstTimestamp = first.getLong(8);
+        }
+        return segment;
+    }
+
+    /**
+     * Maps the newest segment for appending and finds its end: starting at the last
+     * index entry, records are scanned until the first one that is missing or torn
+     * (bad checksum), and whatever is left of a torn record is zeroed.
+     */
+    static LogSegment recoverTail(Path dir, long baseId) throws IOException {
+        int capacity = (int) Files.size(dir.resolve(fileName(baseId, LOG_SUFFIX)));
+        LogSegment segment = new LogSegment(dir, baseId, capacity);
+        segment.log = map(segment.logFile, FileChannel.MapMode.READ_WRITE, capacity, false);
+        segment.index = map(segment.indexFile, FileChannel.MapMode.READ_WRITE, indexCapacity(capacity), false);
+        segment.indexEntries = countIndexEntries(segment.index);
+
+        int position = 0;
+        if (segment.indexEntries > 0) {
+            int last = (segment.indexEntries - 1) * INDEX_ENTRY;
+            position = segment.index.getInt(last + 16);
+            segment.lastIndexedPosition = position;
+            segment.firstTimestamp = segment.index.getLong(8);
+        }
+        int length;
+        while ((length = segment.validRecordLength(segment.log, position, capacity)) > 0) {
+            segment.lastId = segment.log.getLong(position + 4);
+            segment.lastTimestamp = segment.log.getLong(position + 12);
+            position += length;
+        }
+        // Zero a torn record, so a shorter record appended over it cannot be followed by its leftovers
+        int tornEnd = Math.min(capacity, position + MAX_RECORD_LENGTH);
+        for (int i = position; i < tornEnd; i++) {
+            if (segment.log.get(i) != 0) segment.log.put(i, (byte) 0);
+        }
+
+        segment.writePosition = position;
+        segment.forcedPosition = position;
+        segment.forcedIndexEntries = segment.indexEntries;
+        segment.endKnown = true;
+        return segment;
+    }
+
+    /**
+     * Appends one record.
+     *
+     * @return false if the record does not fit; the caller rolls to a new segment
+     */
+    boolean append(long id, long timestamp, byte[] channel, ByteBuffer frame) {
+        int length = RECORD_HEADER + channel.length + frame.remaining();
+        int position = writePosition;
+        if (position + length > capacity) return false;
+
+        log.putLong(position + 4, id);
+        log.putLong(position + 12, timestamp);
+        log.putShort(position + 20, (short) channel.length);
+        log.put(position + RECORD_HEADER, channel);
+        log.put(position + RECORD_HEADER + channel.length, frame, frame.position(), frame.remaining());
+        crc.reset();
+        crc.update(log.slice(position + 4, length - 4));
+        log.putInt(position, (int) crc.getValue());
+
+        if (position - lastIndexedPosition >= INDEX_INTERVAL) {
+            int entry = indexEntries * INDEX_ENTRY;
+            index.putLong(entry, id).putLong(entry + 8, timestamp).putInt(entry + 16, position);
+            indexEntries++;
+            lastIndexedPosition = position;
+        }
+        if (firstTimestamp == 0) firstTimestamp = timestamp;
+        lastId = id;
+        lastTimestamp = timestamp;
+        writePosition = position + length;
+        return true;
+    }
+
+    /**
+     * Forces everything appended since the last call to the disk. Commit thread only.
+     */
+    void force() {
+        int end = writePosition;
+        int entries = indexEntries;
+        if (end > forcedPosition) {
+            log.force(forcedPosition, end - forcedPosition);
+            forcedPosition = end;
+        }
+        if (entries > forcedIndexEntries) {
+            index.force(forcedIndexEntries * INDEX_ENTRY, (entries - forcedIndexEntries) * INDEX_ENTRY);
+            forcedIndexEntries = entries;
+        }
+    }
+
+    boolean isEmpty() {
+        return endKnown && writePosition == 0;
+    }
+
+    long lastId() {
+        return lastId;
+    }
+
+    long lastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * Timestamp of the oldest record, 0 if the segment is empty.
+     */
+    long firstTimestamp() {
+        return firstTimestamp;
+    }
+
+    /**
+     * Bytes this segment occupies, used for size based retention.
+     */
+    long sizeBytes() {
+        return endKnown ? writePosition : capacity;
+    }
+
+    /**
+     * Visits the records with id >= fromId in order.
+     *
+     * @return false if the visitor asked to stop
+     */
+    boolean read(long fromId, Predicate<StoredMessage> visitor) throws IOException {
+        return read(fromId, null, visitor);
+    }
+
+    /**
+     * Visits the records of one channel with id >= fromId in order. Records of other
+     * channels are skipped by comparing the raw channel bytes, without decoding them.
+     *
+     * @param channel the UTF-8 channel name, or null for every channel
+     * @return false if the visitor asked to stop
+     */
+    boolean read(long fromId, byte[] channel, Predicate<StoredMessage> visitor) throws IOException {
+        ensureMapped();
+        int end = endOfData();
+        return scan(positionOf(fromId, true), end, fromId, Long.MIN_VALUE, channel, visitor);
+    }
+
+    /**
+     * Visits the records with timestamp >= fromTimestamp in order.
+     *
+     * @return false if the visitor asked to stop
+     */
+    boolean readFromTime(long fromTimestamp, Predicate<StoredMessage> visitor) throws IOException {
+        ensureMapped();
+        int end = endOfData();
+        return scan(positionOf(fromTimestamp, false), end, Long.MIN_VALUE, fromTimestamp, null, visitor);
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(indexFile);
+        Files.deleteIfExists(logFile);
+    }
+
+    /**
+     * Read before the index, so every index entry a reader sees points below this end.
+     */
+    private int endOfData() {
+        return endKnown ? writePosition : capacity;
+    }
+
+    private boolean scan(int position, int end, long fromId, long fromTimestamp, byte[] channelFilter,
+                         Predicate<StoredMessage> visitor) throws ProtocolException {
+        ByteBuffer buffer = log.duplicate();
+        FrameDecoder decoder = new FrameDecoder(capacity);
+        int length;
+        while ((length = endKnown ? recordLength(buffer, position, end) : validRecordLength(buffer, position, end)) > 0) {
+            long id = buffer.getLong(position + 4);
+            long timestamp = buffer.getLong(position + 12);
+            int channelLength = buffer.getShort(position + 20) & 0xFFFF;
+            if (id >= fromId && timestamp >= fromTimestamp && matches(buffer, position + RECORD_HEADER, channelLength, channelFilter)) {
+                byte[] channel = new byte[channelLength];
+                buffer.get(position + RECORD_HEADER, channel);
+                int frameStart = position + RECORD_HEADER + channelLength;
+                Frame frame = decoder.next(buffer.slice(frameStart, position + length - frameStart));
+                if (frame == null) throw new ProtocolException("Truncated frame in " + logFile);
+                String[] fields = new String[frame.fieldCount()];
+                for (int i = 0; i < fields.length; i++) fields[i] = frame.string(i);
+                StoredMessage message = new StoredMessage(id, timestamp,
+                        new String(channel, StandardCharsets.UTF_8), frame.type(), frame.senderId(), fields);
+                if (!visitor.test(message)) return false;
+            }
+            position += length;
+        }
+        return true;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int position, int length, byte[] channel) {
+        if (channel == null) return true;
+        if (channel.length != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(position + i) != channel[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the total length of the record at position, or 0 at the end of the data
+     */
+    private static int recordLength(ByteBuffer buffer, int position, int end) {
+        if (position + RECORD_HEADER + 4 > end || buffer.getLong(position + 4) == 0) return 0;
+        int channelLength = buffer.getShort(position + 20) & 0xFFFF;
+        int framePosition = position + RECORD_HEADER + channelLength;
+        if (framePosition + 4 > end) return 0;
+        int frameLength = buffer.getInt(framePosition);
+        if (frameLength < 0 || framePosition + 4 + frameLength > end) return 0;
+        return RECORD_HEADER + channelLength + 4 + frameLength;
+    }
+
+    /**
+     * Same as {@link #recordLength}, but also verifies the checksum (torn writes).
+     */
+    private int validRecordLength(ByteBuffer buffer, int position, int end) {
+        int length = recordLength(buffer, position, end);
+        if (length == 0) return 0;
+        CRC32C check = new CRC32C();
+        check.update(buffer.slice(position + 4, length - 4));
+        return buffer.getInt(position) == (int) check.getValue() ? length : 0;
+    }
+
+    /**
+     * Log position of the last indexed record at or before the given id (byId) or
+     * timestamp, so a scan from there cannot miss a matching record.
+     */
+    private int positionOf(long key, boolean byId) {
+        int low = 0;
+        int high = indexEntries - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = index.getLong(mid * INDEX_ENTRY + (byId ? 0 : 8));
+            // For timestamps ties must go left: several records can share one millisecond
+            if (byId ? value <= key : value < key) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found < 0 ? 0 : index.getInt(found * INDEX_ENTRY + 16);
+    }
+
+    private synchronized void ensureMapped() throws IOException {
+        if (log != null) return;
+        index = map(indexFile, FileChannel.MapMode.READ_ONLY, Files.size(indexFile), false);
+        indexEntries = countIndexEntries(index);
+        forcedIndexEntries = indexEntries;
+        log = map(logFile, FileChannel.MapMode.READ_ONLY, capacity, false);
+    }
+
+    private static int countIndexEntries(ByteBuffer index) {
+        // Entries are filled from the front, so the used part ends at the first zero id
+        int low = 0;
+        int high = index.capacity() / INDEX_ENTRY;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (index.getLong(mid * INDEX_ENTRY) != 0) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private static int indexCapacity(int capacity) {
+        return (capacity / INDEX_INTERVAL + 1) * INDEX_ENTRY;
+    }
+
+    private static MappedByteBuffer map(Path file, FileChannel.MapMode mode, long size, boolean createNew) throws IOException {
+        StandardOpenOption[] options = mode == FileChannel.MapMode.READ_ONLY
+                ? new StandardOpenOption[] { StandardOpenOption.READ }
+                : createNew
+                        ? new StandardOpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW }
+                        : new StandardOpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE };
+        // The mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(file, options)) {
+            return channel.map(mode, 0, size);
+        }
+    }
+}
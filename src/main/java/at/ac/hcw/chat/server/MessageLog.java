@@ -0,0 +1,313 @@
+package at.ac.hcw.chat.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Durable chat history: an append-only log split into memory-mapped segments.
+ *
+ * Appending a message copies its already encoded v2 frame into the tail segment
+ * and never waits for the disk. A background commit thread forces new records
+ * to the disk as a group (see {@link HistoryDurability}) and applies retention:
+ * the oldest segments are deleted once they are older than the retention period
+ * or the log grows beyond its size limit.
+ *
+ * On startup only the newest segment is scanned to find the end of the log;
+ * older segments are just registered and mapped when somebody reads them.
+ */
+final class MessageLog implements Closeable {
+    private static final long RETENTION_CHECK_INTERVAL_MILLIS = 10_000;
+    // readBefore walks backwards in windows of this many ids...
+    private static final long SCAN_WINDOW_IDS = 4096;
+    // ...and gives up (returning a cursor to continue from) after this many
+    private static final long MAX_SCAN_IDS = 16 * SCAN_WINDOW_IDS;
+
+    /**
+     * One page of a channel's history, oldest first.
+     */
+    static final class Page {
+        final List<StoredMessage> messages;
+        // Pass as "before" to get the next older page; 0 once the beginning of the history was reached
+        final long nextBefore;
+
+        Page(List<StoredMessage> messages, long nextBefore) {
+            this.messages = messages;
+            this.nextBefore = nextBefore;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long retentionMillis;
+    private final long maxBytes;
+    private final HistoryDurability durability;
+    private final long commitIntervalMillis;
+    private final ServerStats stats;
+
+    // Oldest first; the last one is the tail that receives appends
+    private final List<LogSegment> segments = new CopyOnWriteArrayList<>();
+    // Guarded by this
+    private LogSegment tail;
+    private long nextId;
+    private long lastTimestamp;
+
+    private final Thread committer;
+    private volatile boolean closed;
+
+    private MessageLog(ServerConfig config, ServerStats stats) {
+        this.dir = Path.of(config.historyDir());
+        this.segmentBytes = config.historySegmentBytes();
+        this.retentionMillis = config.historyRetentionMillis();
+        this.maxBytes = config.historyMaxBytes();
+        this.durability = config.historyDurability();
+        this.commitIntervalMillis = config.historyCommitMillis();
+        this.stats = stats;
+        this.committer = new Thread(this::commitLoop, "chat-history-commit");
+        this.committer.setDaemon(true);
+    }
+
+    /**
+     * Opens (or creates) the log in the configured directory and recovers its end.
+     */
+    static MessageLog open(ServerConfig config, ServerStats stats) throws IOException {
+        MessageLog messageLog = new MessageLog(config, stats);
+        messageLog.recover();
+        messageLog.committer.start();
+        return messageLog;
+    }
+
+    private void recover() throws IOException {
+        Files.createDirectories(dir);
+        List<Long> baseIds = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(LogSegment.LOG_SUFFIX))
+                    .forEach(name -> baseIds.add(Long.parseLong(name.substring(0, name.length() - LogSegment.LOG_SUFFIX.length()))));
+        }
+        baseIds.sort(null);
+
+        for (int i = 0; i < baseIds.size() - 1; i++) segments.add(LogSegment.openSealed(dir, baseIds.get(i)));
+        if (baseIds.isEmpty()) {
+            tail = LogSegment.create(dir, 1, segmentBytes);
+            nextId = 1;
+        } else {
+            tail = LogSegment.recoverTail(dir, baseIds.get(baseIds.size() - 1));
+            nextId = tail.isEmpty() ? tail.baseId : tail.lastId() + 1;
+            lastTimestamp = tail.lastTimestamp();
+        }
+        segments.add(tail);
+        ServerLog.info("HISTORY", segments.size() + " segment(s) in " + dir.toAbsolutePath()
+                + ", next message id " + nextId);
+    }
+
+    /**
+     * Appends a message that was just delivered. The id is assigned first and the packet
+     * is built for it, both under the log's lock, so ids are unique and stored in order.
+     *
+     * @param channel     the lobby, "#room" or "@recipient", see {@link StoredMessage}
+     * @param packetForId builds the message for the id it is given
+     * @return the message; it keeps its id even if it could not be stored
+     */
+    Packet append(String channel, LongFunction<Packet> packetForId) {
+        byte[] channelBytes = channel.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            Packet packet = packetForId.apply(nextId);
+            // A failed append still uses up the id, so an id is never handed out twice
+            if (!store(channelBytes, packet)) nextId++;
+            return packet;
+        }
+    }
+
+    // Caller holds the lock; stores the packet under nextId
+    private boolean store(byte[] channelBytes, Packet packet) {
+        if (closed) return false;
+        // The v2 encoding is the one the packet caches for v2 recipients anyway
+        ByteBuffer frame = packet.view(Packet.V2);
+        if (channelBytes.length > 0xFFFF || frame.remaining() + channelBytes.length + 64 > LogSegment.MAX_RECORD_LENGTH) return false;
+        long id = nextId;
+        // Timestamps never go backwards, even if the wall clock does, so the time index stays sorted
+        long timestamp = Math.max(lastTimestamp, System.currentTimeMillis());
+        try {
+            if (!tail.append(id, timestamp, channelBytes, frame)) {
+                roll(id);
+                if (!tail.append(id, timestamp, channelBytes, frame)) return false;
+            }
+        } catch (IOException e) {
+            ServerLog.error("HISTORY", "Append failed: " + e.getMessage());
+            return false;
+        }
+        nextId = id + 1;
+        lastTimestamp = timestamp;
+        stats.historyAppends.increment();
+        return true;
+    }
+
+    /**
+     * Starts a new tail segment whose first record will get the given id. The old tail
+     * is forced by the commit thread like any other segment, not here.
+     */
+    private void roll(long baseId) throws IOException {
+        tail = LogSegment.create(dir, baseId, segmentBytes);
+        segments.add(tail);
+    }
+
+    /**
+     * Visits the stored messages with id >= fromId, oldest first, until the visitor returns false.
+     */
+    void read(long fromId, Predicate<StoredMessage> visitor) throws IOException {
+        read(fromId, null, visitor);
+    }
+
+    private void read(long fromId, byte[] channel, Predicate<StoredMessage> visitor) throws IOException {
+        List<LogSegment> snapshot = new ArrayList<>(segments);
+        for (int i = 0; i < snapshot.size(); i++) {
+            // Skip segments whose successor starts at or before fromId
+            if (i + 1 < snapshot.size() && snapshot.get(i + 1).baseId <= fromId) continue;
+            if (!snapshot.get(i).read(fromId, channel, visitor)) return;
+        }
+    }
+
+    /**
+     * The stored message with the given id, or null if there is none (never stored, or
+     * already deleted by retention). Only the records from the index entry before it on
+     * are scanned, a few KB at most.
+     */
+    StoredMessage get(long id) throws IOException {
+        StoredMessage[] found = new StoredMessage[1];
+        read(id, message -> {
+            if (message.id == id) found[0] = message;
+            return false;
+        });
+        return found[0];
+    }
+
+    /**
+     * Up to limit of the newest messages of one channel with an id below beforeId.
+     *
+     * Segments can only be read forwards, so this reads windows of ids backwards from
+     * beforeId until the page is full, the beginning of the log is reached or the scan
+     * budget is used up. In a quiet channel the page may then be short (even empty)
+     * while its nextBefore still points further back.
+     */
+    Page readBefore(String channel, long beforeId, int limit) throws IOException {
+        byte[] channelBytes = channel.getBytes(StandardCharsets.UTF_8);
+        long lowestId = segments.get(0).baseId;
+        long end = Math.min(beforeId, nextId());
+        ArrayDeque<StoredMessage> page = new ArrayDeque<>();
+        long scanned = 0;
+        while (page.size() < limit && end > lowestId && scanned < MAX_SCAN_IDS) {
+            long start = Math.max(lowestId, end - SCAN_WINDOW_IDS);
+            long windowEnd = end;
+            List<StoredMessage> window = new ArrayList<>();
+            read(start, channelBytes, message -> {
+                if (message.id >= windowEnd) return false;
+                window.add(message);
+                return true;
+            });
+            for (int i = window.size() - 1; i >= 0 && page.size() < limit; i--) page.addFirst(window.get(i));
+            scanned += end - start;
+            end = start;
+        }
+        long nextBefore = page.size() == limit ? page.getFirst().id : end > lowestId ? end : 0;
+        return new Page(new ArrayList<>(page), nextBefore);
+    }
+
+    /**
+     * Visits the stored messages written at or after the given time, oldest first,
+     * until the visitor returns false.
+     */
+    void readFromTime(long fromTimestamp, Predicate<StoredMessage> visitor) throws IOException {
+        List<LogSegment> snapshot = new ArrayList<>(segments);
+        for (int i = 0; i < snapshot.size(); i++) {
+            // Every record of segment i is older than the first record of segment i + 1
+            if (i + 1 < snapshot.size() && snapshot.get(i + 1).firstTimestamp() != 0
+                    && snapshot.get(i + 1).firstTimestamp() <= fromTimestamp) continue;
+            if (!snapshot.get(i).readFromTime(fromTimestamp, visitor)) return;
+        }
+    }
+
+    /**
+     * The id the next appended message will get.
+     */
+    synchronized long nextId() {
+        return nextId;
+    }
+
+    private void commitLoop() {
+        long lastRetentionCheck = System.currentTimeMillis();
+        while (!closed) {
+            try {
+                Thread.sleep(durability == HistoryDurability.GROUP_COMMIT ? commitIntervalMillis : RETENTION_CHECK_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (durability == HistoryDurability.GROUP_COMMIT) commit();
+            if (System.currentTimeMillis() - lastRetentionCheck >= RETENTION_CHECK_INTERVAL_MILLIS) {
+                lastRetentionCheck = System.currentTimeMillis();
+                enforceRetention();
+            }
+        }
+    }
+
+    /**
+     * Forces every segment with unforced records, i.e. the tail and any segment that
+     * was rolled over since the last commit. Commit thread (or close) only.
+     */
+    private void commit() {
+        long start = System.nanoTime();
+        for (LogSegment segment : segments) segment.force();
+        stats.historyCommits.increment();
+        stats.historyCommitNanos.add(System.nanoTime() - start);
+    }
+
+    /**
+     * Deletes the oldest segments while they are past the retention period or the log
+     * is over its size limit. The tail is never deleted.
+     */
+    private void enforceRetention() {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        long total = 0;
+        for (LogSegment segment : segments) total += segment.sizeBytes();
+        while (segments.size() > 1) {
+            LogSegment oldest = segments.get(0);
+            // All of its records are older than the first record of the next segment
+            boolean expired = segments.get(1).firstTimestamp() != 0 && segments.get(1).firstTimestamp() < cutoff;
+            if (!expired && total <= maxBytes) break;
+            segments.remove(0);
+            total -= oldest.sizeBytes();
+            try {
+                oldest.delete();
+                ServerLog.info("HISTORY", "Deleted segment " + oldest.baseId + (expired ? " (expired)" : " (size limit)"));
+            } catch (IOException e) {
+                ServerLog.error("HISTORY", "Retention failed: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        committer.interrupt();
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // A clean shutdown always leaves the history on disk, whatever the durability level
+        commit();
+    }
+}
@@ -0,0 +1,180 @@
+package at.ac.hcw.chat.server;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Named metrics of one server, readable as Prometheus text and as flat JMX attributes.
+ *
+ * The registry stores no values of its own: every metric reads a LongAdder, a
+ * histogram or a gauge function when it is scraped. Registering a metric is
+ * therefore all it takes to publish a new counter on both the admin endpoint and JMX.
+ */
+final class MetricsRegistry {
+    private final List<Metric> metrics = new CopyOnWriteArrayList<>();
+    private final List<Rate> rates = new CopyOnWriteArrayList<>();
+
+    private interface Metric {
+        void writePrometheus(StringBuilder out);
+
+        void addAttributes(Map<String, Object> attributes);
+    }
+
+    /**
+     * A value that only ever grows, e.g. messages received.
+     */
+    void counter(String name, String help, LongSupplier value) {
+        metrics.add(new Metric() {
+            @Override
+            public void writePrometheus(StringBuilder out) {
+                header(out, name, help, "counter");
+                out.append(name).append(' ').append(value.getAsLong()).append('\n');
+            }
+
+            @Override
+            public void addAttributes(Map<String, Object> attributes) {
+                attributes.put(name, value.getAsLong());
+            }
+        });
+    }
+
+    /**
+     * One counter per label value, e.g. disconnects per reason.
+     */
+    void counters(String name, String help, String label, Map<String, LongSupplier> values) {
+        Map<String, LongSupplier> byLabel = new LinkedHashMap<>(values);
+        metrics.add(new Metric() {
+            @Override
+            public void writePrometheus(StringBuilder out) {
+                header(out, name, help, "counter");
+                byLabel.forEach((labelValue, value) -> out.append(name).append('{').append(label).append("=\"")
+                        .append(labelValue).append("\"} ").append(value.getAsLong()).append('\n'));
+            }
+
+            @Override
+            public void addAttributes(Map<String, Object> attributes) {
+                byLabel.forEach((labelValue, value) -> attributes.put(name + "_" + labelValue, value.getAsLong()));
+            }
+        });
+    }
+
+    /**
+     * A value that goes up and down, e.g. connected clients.
+     */
+    void gauge(String name, String help, DoubleSupplier value) {
+        metrics.add(new Metric() {
+            @Override
+            public void writePrometheus(StringBuilder out) {
+                header(out, name, help, "gauge");
+                out.append(name).append(' ').append(format(value.getAsDouble())).append('\n');
+            }
+
+            @Override
+            public void addAttributes(Map<String, Object> attributes) {
+                attributes.put(name, value.getAsDouble());
+            }
+        });
+    }
+
+    /**
+     * A gauge with the increase of a counter per second, over the last sampled second.
+     * Prometheus can compute rates itself; JMX consoles and the stats command cannot.
+     */
+    void rate(String name, String help, LongSupplier counter) {
+        Rate rate = new Rate(counter);
+        rates.add(rate);
+        gauge(name, help, () -> rate.perSecond);
+    }
+
+    /**
+     * Durations, exported in seconds as a cumulative Prometheus histogram.
+     */
+    void histogram(String name, String help, Histogram histogram) {
+        metrics.add(new Metric() {
+            @Override
+            public void writePrometheus(StringBuilder out) {
+                header(out, name, help, "histogram");
+                long cumulative = 0;
+                for (int i = 0; i < Histogram.bucketCount(); i++) {
+                    cumulative += histogram.bucket(i);
+                    long bound = Histogram.upperBoundNanos(i);
+                    out.append(name).append("_bucket{le=\"")
+                            .append(bound == Long.MAX_VALUE ? "+Inf" : format(bound / 1e9))
+                            .append("\"} ").append(cumulative).append('\n');
+                }
+                out.append(name).append("_sum ").append(format(histogram.sumNanos() / 1e9)).append('\n');
+                out.append(name).append("_count ").append(cumulative).append('\n');
+            }
+
+            @Override
+            public void addAttributes(Map<String, Object> attributes) {
+                long count = histogram.count();
+                attributes.put(name + "_count", count);
+                attributes.put(name + "_mean", count == 0 ? 0.0 : histogram.sumNanos() / 1e9 / count);
+            }
+        });
+    }
+
+    /**
+     * Updates all rates; called once per second by the owner of the registry.
+     */
+    void sampleRates(long nowNanos) {
+        for (Rate rate : rates) rate.sample(nowNanos);
+    }
+
+    /**
+     * All metrics in the Prometheus text exposition format (version 0.0.4).
+     */
+    String prometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Metric metric : metrics) metric.writePrometheus(out);
+        return out.toString();
+    }
+
+    /**
+     * All metrics as attribute name to value (Long or Double), in registration order.
+     */
+    Map<String, Object> attributes() {
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        for (Metric metric : metrics) metric.addAttributes(attributes);
+        return attributes;
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    // Whole numbers without ".0"; Double.toString otherwise (Prometheus parses "1.0E-6" fine)
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    private static final class Rate {
+        private final LongSupplier counter;
+        private long lastValue;
+        private long lastNanos;
+        volatile double perSecond;
+
+        Rate(LongSupplier counter) {
+            this.counter = counter;
+            this.lastValue = counter.getAsLong();
+            this.lastNanos = System.nanoTime();
+        }
+
+        // Only called by the sampling thread
+        void sample(long nowNanos) {
+            long value = counter.getAsLong();
+            long elapsed = nowNanos - lastNanos;
+            if (elapsed <= 0) return;
+            perSecond = (value - lastValue) * 1e9 / elapsed;
+            lastValue = value;
+            lastNanos = nowNanos;
+        }
+    }
+}
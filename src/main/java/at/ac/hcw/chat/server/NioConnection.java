@@ -0,0 +1,189 @@
+package at.ac.hcw.chat.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A client served by an EventLoop.
+ *
+ * Reads and writes only ever happen on the owning loop's thread. Other threads
+ * (e.g. a broadcast started by a client on a different loop) just append to the
+ * bounded outbound queue and ask the loop to flush.
+ *
+ * Flushes are batched: the loop parks a connection for up to the configured
+ * delay so that a burst (a join produces a user list plus a system message)
+ * leaves in one gathering write. A full batch is flushed right away.
+ */
+final class NioConnection extends Connection {
+    // Flush states: nothing pending / on the loop's flush stack or being written / parked by the loop
+    static final int IDLE = 0;
+    static final int SCHEDULED = 1;
+    static final int DELAYED = 2;
+
+    private final ChatHub hub;
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final ServerStats stats;
+    private final TcpPolicy tcpPolicy;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    final AtomicInteger flushState = new AtomicInteger(IDLE);
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private SelectionKey key;
+    // Link in the loop's flush stack; written before the CAS that publishes it
+    NioConnection nextFlush;
+    // When a DELAYED connection must be flushed at the latest; loop thread only
+    long flushDeadline;
+    /*
+     * Gathering-write state, only touched by the loop thread: views[first .. first+pending)
+     * are read-only views over shared packet buffers that still have bytes to write.
+     */
+    private final Packet[] batch;
+    private final ByteBuffer[] views;
+    private int first;
+    private int pending;
+
+    NioConnection(ChatHub hub, EventLoop loop, SocketChannel channel) {
+        super(hub);
+        this.hub = hub;
+        this.loop = loop;
+        this.channel = channel;
+        this.stats = hub.stats();
+        this.tcpPolicy = hub.config().tcpPolicy();
+        this.maxBatch = hub.config().flushMaxBatch();
+        this.maxDelayNanos = hub.config().flushMaxDelayMillis() * 1_000_000L;
+        this.batch = new Packet[maxBatch];
+        this.views = new ByteBuffer[maxBatch];
+    }
+
+    void attach(SelectionKey key) throws IOException {
+        this.key = key;
+        tcpPolicy.configure(channel);
+    }
+
+    @Override
+    void onEnqueued() {
+        // Only the first packet of a burst needs to wake the loop up...
+        if (flushState.compareAndSet(IDLE, SCHEDULED)) {
+            loop.scheduleFlush(this);
+        } else if (flushState.get() == DELAYED && outbound.size() >= maxBatch
+                && flushState.compareAndSet(DELAYED, SCHEDULED)) {
+            // ...unless a parked batch is already full: then it must not wait for its deadline
+            loop.scheduleFlush(this);
+        }
+    }
+
+    /**
+     * Called by the loop for a connection taken from its flush stack (state SCHEDULED).
+     * Either parks it until the batch deadline or flushes immediately.
+     */
+    void onFlushScheduled(long now) {
+        if (pending == 0 && maxDelayNanos > 0 && outbound.size() < maxBatch) {
+            flushDeadline = now + maxDelayNanos;
+            flushState.set(DELAYED);
+            loop.delayFlush(this);
+            return;
+        }
+        flush();
+    }
+
+    /**
+     * Called by the loop when the socket is readable; the read buffer is shared by all
+     * connections of that loop.
+     */
+    void onReadable(ByteBuffer readBuffer) {
+        try {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                close(DisconnectReason.CLIENT_CLOSED);
+                return;
+            }
+            stats.bytesIn.add(n);
+            readBuffer.flip();
+            onBytes(readBuffer);
+        } catch (IOException e) {
+            // Connection lost or client sent garbage
+            close(reasonOf(e));
+        } catch (RuntimeException e) {
+            fail("NIO", e);
+        }
+    }
+
+    /**
+     * Writes as much of the outbound queue as the socket accepts, one batch per
+     * gathering write. If the kernel buffer is full, OP_WRITE interest is registered
+     * and the loop calls this again later.
+     */
+    void flush() {
+        if (closed.get() || key == null) return;
+        try {
+            while (pending > 0 || refill()) {
+                stats.bytesOut.add(channel.write(views, first, pending));
+                while (pending > 0 && !views[first].hasRemaining()) {
+                    views[first++] = null;
+                    pending--;
+                }
+                if (pending > 0) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                tcpPolicy.endBatch(channel);
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            flushState.set(IDLE);
+            // A packet may have been queued between the last poll() and going idle
+            if (!outbound.isEmpty() && flushState.compareAndSet(IDLE, SCHEDULED)) loop.scheduleFlush(this);
+        } catch (IOException e) {
+            close(DisconnectReason.IO_ERROR);
+        } catch (RuntimeException e) {
+            fail("NIO", e);
+        }
+    }
+
+    /**
+     * Moves the next batch of queued packets into the gathering array.
+     */
+    private boolean refill() throws IOException {
+        int count = outbound.drainTo(batch, 0, maxBatch);
+        for (int i = 0; i < count; i++) {
+            views[i] = view(batch[i]);
+            batch[i] = null;
+        }
+        first = 0;
+        pending = count;
+        if (count == 0) return false;
+        stats.recordFlush(count);
+        tcpPolicy.beginBatch(channel);
+        return true;
+    }
+
+    @Override
+    void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        if (key != null) key.cancel();
+        try { channel.close(); } catch (IOException ignored) {}
+        releaseOutbound();
+        /*
+         * CLEANUP: notify others, always from the loop thread. close() may run inside a
+         * broadcast (slow-consumer eviction) that holds a presence or room lock, and
+         * the leave must not be published in the middle of that broadcast.
+         */
+        loop.execute(() -> hub.onDisconnect(this));
+    }
+
+    @Override
+    boolean isOpen() {
+        return !closed.get();
+    }
+
+    @Override
+    InetAddress remoteAddress() {
+        return channel.socket().getInetAddress();
+    }
+}
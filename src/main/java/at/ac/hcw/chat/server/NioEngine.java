@@ -0,0 +1,56 @@
+package at.ac.hcw.chat.server;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event-loop engine: the acceptor threads plus a fixed pool of EventLoops.
+ *
+ * Accepted channels are spread round-robin over the loops, so the number of
+ * server threads stays constant no matter how many users are connected.
+ */
+final class NioEngine implements ServerEngine {
+    private final ChatHub hub;
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+    private Acceptor acceptor;
+
+    NioEngine(ChatHub hub, int loopCount) {
+        this.hub = hub;
+        this.loops = new EventLoop[loopCount];
+    }
+
+    @Override
+    public void start(int port) throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(hub, i);
+            loops[i].start();
+        }
+        acceptor = new Acceptor("chat-nio-acceptor", hub, (channel, acceptedNanos) ->
+                // The event loops themselves never block; registering happens on the loop
+                loops[Math.floorMod(next.getAndIncrement(), loops.length)].register(channel, acceptedNanos));
+        acceptor.start(port);
+    }
+
+    @Override
+    public int localPort() {
+        return acceptor.localPort();
+    }
+
+    @Override
+    public void awaitTermination() throws InterruptedException {
+        acceptor.join();
+        for (EventLoop loop : loops) {
+            if (loop != null) loop.join();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (acceptor != null) acceptor.close();
+        for (EventLoop loop : loops) {
+            if (loop != null) loop.shutdown();
+        }
+    }
+}
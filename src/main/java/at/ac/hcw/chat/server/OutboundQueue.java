@@ -0,0 +1,347 @@
+package at.ac.hcw.chat.server;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of packets waiting to be written to one client.
+ *
+ * Any thread may offer; only the connection's own writer takes. Offering never
+ * waits for the network: when the queue is full the OverflowPolicy decides what
+ * to give up. The lock is only held for a few array operations, and it is a
+ * ReentrantLock so a virtual-thread writer waiting in {@link #take} unmounts.
+ *
+ * For a resumable session (see Protocol.CAP_RESUME) the queue also numbers the packets
+ * its writer takes and remembers the last few of them, and it can be parked when the
+ * connection drops: it keeps collecting packets, nobody writes them, and a resume hands
+ * both over to the queue of the new connection (see {@link #handOver}).
+ */
+final class OutboundQueue {
+    private final Packet[] ring;
+    private final OverflowPolicy policy;
+    private final ServerStats stats;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private int head;
+    private int size;
+    private boolean closed;
+    // The waiting writer is only signalled once this many packets are queued
+    private int wakeThreshold = 1;
+
+    // Parked: the connection is gone but its session is kept; offers still queue, takes return nothing
+    private boolean parked;
+    // Set if a parked queue had to drop a packet: the session cannot be resumed without a gap
+    private boolean lost;
+    // Set once a resume moved everything to another queue; offers then fail, see Connection.send
+    private boolean forwarded;
+    /*
+     * Sequence numbers of a session. Numbering starts when the writer takes sessionStart
+     * (the SESSION or RESUMED packet) and counts every packet taken after it; the last
+     * replay.length of them are kept, packet number n at replay[(n - 1) % replay.length].
+     */
+    private Packet sessionStart;
+    private long sessionStartSeq;
+    private Packet[] replay;
+    private long taken;
+
+    OutboundQueue(int capacity, OverflowPolicy policy, ServerStats stats) {
+        this.ring = new Packet[Math.max(1, capacity)];
+        this.policy = policy;
+        this.stats = stats;
+    }
+
+    /**
+     * Appends a packet, applying the overflow policy when full.
+     *
+     * @return false if the policy demands that this consumer be disconnected
+     */
+    boolean offer(Packet packet) {
+        lock.lock();
+        try {
+            return enqueue(packet);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends several packets as one uninterrupted run: packets offered concurrently
+     * by other threads end up before or after all of them, never in between.
+     *
+     * @return false if the policy demands that this consumer be disconnected
+     */
+    boolean offerAll(Packet[] packets) {
+        lock.lock();
+        try {
+            for (Packet packet : packets) {
+                if (!enqueue(packet)) return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds the lock
+    private boolean enqueue(Packet packet) {
+        if (forwarded) return false;
+        if (closed) return true;
+        if (size == ring.length) {
+            if (parked) {
+                // Nobody reads a parked queue; give up the resume rather than the queue's memory bound
+                lost = true;
+                stats.droppedNewest.increment();
+                return true;
+            }
+            switch (policy) {
+                case DROP_NEWEST -> {
+                    stats.droppedNewest.increment();
+                    return true;
+                }
+                case DROP_OLDEST -> {
+                    ring[head] = null;
+                    head = (head + 1) % ring.length;
+                    size--;
+                    stats.droppedOldest.increment();
+                }
+                case DISCONNECT -> {
+                    stats.slowConsumerDisconnects.increment();
+                    return false;
+                }
+            }
+        }
+        ring[(head + size) % ring.length] = packet;
+        size++;
+        stats.packetsQueued.increment();
+        if (size >= wakeThreshold) notEmpty.signal();
+        return true;
+    }
+
+    /**
+     * Non-blocking take for the event-loop engine.
+     *
+     * @return the oldest packet, or null if the queue is empty
+     */
+    Packet poll() {
+        lock.lock();
+        try {
+            return size == 0 || parked ? null : takeHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocking take for the writer thread of the blocking engines.
+     *
+     * @return the oldest packet, or null once the queue has been closed or parked
+     */
+    Packet take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (size == 0 && !closed && !parked) notEmpty.await();
+            return size == 0 || parked ? null : takeHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until at least the given number of packets is queued, the deadline passes
+     * or the queue is closed. Offers in between do not wake the writer, which is what
+     * lets a burst of packets collect into one batch.
+     */
+    void awaitSize(int wanted, long deadlineNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            wakeThreshold = Math.max(1, wanted);
+            long remaining;
+            while (size < wanted && !closed && !parked && (remaining = deadlineNanos - System.nanoTime()) > 0) {
+                notEmpty.awaitNanos(remaining);
+            }
+        } finally {
+            wakeThreshold = 1;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves up to max queued packets into dst (starting at offset) with a single lock
+     * acquisition, so a writer can hand a whole batch to one gathering write.
+     *
+     * @return the number of packets moved
+     */
+    int drainTo(Packet[] dst, int offset, int max) {
+        lock.lock();
+        try {
+            int count = parked ? 0 : Math.min(size, Math.min(max, dst.length - offset));
+            for (int i = 0; i < count; i++) dst[offset + i] = takeHead();
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Drops everything still queued and releases a waiting writer.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            parked = false;
+            while (size > 0) removeHead();
+            replay = null;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts numbering the packets once the writer takes the given one, with seq as the
+     * number of that packet itself. Also makes the queue remember the last packets taken.
+     */
+    void startSession(Packet marker, long seq, int replayCapacity) {
+        lock.lock();
+        try {
+            sessionStart = marker;
+            sessionStartSeq = seq;
+            if (replay == null || replay.length != replayCapacity) replay = new Packet[replayCapacity];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the writer but keeps the queue (and the session's sequence numbers) for a resume.
+     *
+     * @return false if the queue was closed already; true if it is parked or already handed over
+     */
+    boolean park() {
+        lock.lock();
+        try {
+            if (forwarded) return true;
+            if (closed) return false;
+            parked = true;
+            notEmpty.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isParked() {
+        lock.lock();
+        try {
+            return parked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isForwarded() {
+        lock.lock();
+        try {
+            return forwarded;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the queue if it is still parked, i.e. its session expired without a resume.
+     *
+     * @return false if the queue was handed over (or closed) in the meantime
+     */
+    boolean closeIfParked() {
+        lock.lock();
+        try {
+            if (!parked) return false;
+        } finally {
+            lock.unlock();
+        }
+        close();
+        return true;
+    }
+
+    /**
+     * Resumes a parked session on the queue of a new connection: queues the marker, then
+     * every packet the client has not received (those the old writer took after lastSeq,
+     * then those that were still waiting) and forwards all later offers. Both locks are
+     * held throughout, so a concurrent broadcast lands either before the hand-over in the
+     * old queue or after it in the new one, and no packet is lost or delivered twice.
+     *
+     * @param onForward runs under both locks right before the old queue starts forwarding
+     * @return the number of packets replayed, or -1 if the session cannot be resumed
+     *         (not parked, packets lost, or lastSeq outside of what the queue remembers)
+     */
+    static int handOver(OutboundQueue from, OutboundQueue to, Packet marker, long lastSeq,
+                        int replayCapacity, Runnable onForward) {
+        // Always the new queue first: nobody else ever holds two queue locks
+        to.lock.lock();
+        from.lock.lock();
+        try {
+            // A session whose SESSION packet was never even written cannot be known to the client
+            if (!from.parked || from.lost || from.replay == null || from.sessionStart != null || to.closed) return -1;
+            long oldest = Math.max(0, from.taken - from.replay.length);
+            if (lastSeq < oldest || lastSeq > from.taken) return -1;
+            int missed = (int) (from.taken - lastSeq);
+            if (to.size + 1 + missed + from.size > to.ring.length) return -1;
+
+            to.sessionStart = marker;
+            to.sessionStartSeq = lastSeq;
+            if (to.replay == null || to.replay.length != replayCapacity) to.replay = new Packet[replayCapacity];
+            to.enqueue(marker);
+            for (long seq = lastSeq + 1; seq <= from.taken; seq++) {
+                to.enqueue(from.replay[(int) ((seq - 1) % from.replay.length)]);
+            }
+            while (from.size > 0) to.enqueue(from.removeHead());
+
+            onForward.run();
+            from.forwarded = true;
+            from.parked = false;
+            from.closed = true;
+            from.replay = null;
+            return missed;
+        } finally {
+            from.lock.unlock();
+            to.lock.unlock();
+        }
+    }
+
+    // Caller holds the lock
+    private Packet removeHead() {
+        Packet packet = ring[head];
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        size--;
+        return packet;
+    }
+
+    // Caller holds the lock; the writer took the packet, so it counts as sent
+    private Packet takeHead() {
+        Packet packet = removeHead();
+        if (packet == sessionStart) {
+            sessionStart = null;
+            taken = sessionStartSeq;
+        } else if (replay != null && sessionStart == null) {
+            replay[(int) (taken % replay.length)] = packet;
+            taken++;
+        }
+        return packet;
+    }
+}
@@ -0,0 +1,13 @@
+package at.ac.hcw.chat.server;
+
+/**
+ * What a full outbound queue does with the next packet.
+ */
+public enum OverflowPolicy {
+    /** Discard the oldest queued packet to make room (the client misses old news). */
+    DROP_OLDEST,
+    /** Discard the packet that did not fit (the client misses new news). */
+    DROP_NEWEST,
+    /** Evict the slow consumer: close its connection. */
+    DISCONNECT
+}
@@ -0,0 +1,151 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.FrameEncoder;
+import at.ac.hcw.chat.protocol.FrameType;
+import at.ac.hcw.chat.protocol.LegacyFormat;
+import at.ac.hcw.chat.protocol.Protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * One outgoing message, encoded at most once per protocol version.
+ *
+ * The packet keeps the structured message (type, sender, fields). The first
+ * writer that needs the v1 text line or the v2 frame encodes it, and every
+ * other recipient shares the same immutable bytes read-only. Writers never copy
+ * them; they only take a {@link #view}, which gives them their own position.
+ */
+final class Packet {
+    static final int V1 = 1;
+    static final int V2 = 2;
+    // v2 with the "interning" capability; see Connection.view for how it is written
+    static final int V2_INTERNED = 3;
+
+    private final FrameType type;
+    private final int senderId;
+    private final String[] fields;
+    private final boolean direct;
+    // Id of a chat message (also sent as its last field), 0 for everything else
+    private final long messageId;
+    // Lazily encoded; a racing second encode is harmless because the result is identical
+    private volatile ByteBuffer text;
+    private volatile ByteBuffer frame;
+    // CHAT and ROOM_CHAT only: the interned sender and the CHAT_REF / ROOM_CHAT_REF frame naming it
+    private volatile SenderTable.Sender sender;
+    private volatile ByteBuffer reference;
+
+    private Packet(FrameType type, int senderId, String[] fields, boolean direct, long messageId) {
+        this.type = type;
+        this.senderId = senderId;
+        this.fields = fields;
+        this.direct = direct;
+        this.messageId = messageId;
+    }
+
+    /**
+     * A packet for one or a few recipients, kept on the heap.
+     */
+    static Packet of(FrameType type, int senderId, String... fields) {
+        return new Packet(type, senderId, fields, false, 0);
+    }
+
+    /**
+     * A packet for a large fan-out. Direct buffers let every socket write go straight
+     * from this memory to the kernel instead of through a temporary direct copy.
+     */
+    static Packet shared(FrameType type, int senderId, String... fields) {
+        return new Packet(type, senderId, fields, true, 0);
+    }
+
+    /**
+     * A chat message that can later be found by its id; the id is appended as the last field.
+     */
+    static Packet message(long messageId, boolean direct, FrameType type, int senderId, String... fields) {
+        String[] withId = Arrays.copyOf(fields, fields.length + 1);
+        withId[fields.length] = Long.toString(messageId);
+        return new Packet(type, senderId, withId, direct, messageId);
+    }
+
+    /**
+     * A chat message read back from the history, whose fields already end with its id.
+     */
+    static Packet stored(long messageId, FrameType type, int senderId, String... fields) {
+        return new Packet(type, senderId, fields, false, messageId);
+    }
+
+    /**
+     * A fresh read-only view over the shared bytes for the given protocol version.
+     * V2_INTERNED gives the reference frame if the packet has an interned sender.
+     */
+    ByteBuffer view(int version) {
+        if (version == V2_INTERNED && sender != null) return reference().duplicate();
+        return (version >= V2 ? frame() : text()).duplicate();
+    }
+
+    /**
+     * The interned sender of a public or room chat message, assigned on first use.
+     *
+     * @return null for all other packets, or if the table is full
+     */
+    SenderTable.Sender sender(SenderTable senders) {
+        SenderTable.Sender interned = sender;
+        if (interned == null) {
+            int name = switch (type) {
+                case CHAT -> 0;
+                case ROOM_CHAT -> 1;
+                default -> -1;
+            };
+            if (name < 0 || fields.length < name + 3) return null;
+            sender = interned = senders.intern(fields[name], fields[name + 1]);
+        }
+        return interned;
+    }
+
+    // The message without name and avatar; the frame header carries the sender id instead
+    private ByteBuffer reference() {
+        ByteBuffer encoded = reference;
+        if (encoded == null) {
+            String[] rest;
+            FrameType referenceType;
+            if (type == FrameType.CHAT) {
+                referenceType = FrameType.CHAT_REF;
+                rest = Arrays.copyOfRange(fields, 2, fields.length);
+            } else {
+                referenceType = FrameType.ROOM_CHAT_REF;
+                rest = new String[fields.length - 2];
+                rest[0] = fields[0];
+                System.arraycopy(fields, 3, rest, 1, fields.length - 3);
+            }
+            reference = encoded = FrameEncoder.encode(referenceType, sender.id, rest, direct, Protocol.MAX_SERVER_FRAME_LENGTH).asReadOnlyBuffer();
+        }
+        return encoded;
+    }
+
+    private ByteBuffer text() {
+        ByteBuffer encoded = text;
+        if (encoded == null) {
+            byte[] bytes = (LegacyFormat.format(type, fields) + "\n").getBytes(StandardCharsets.UTF_8);
+            encoded = direct ? ByteBuffer.allocateDirect(bytes.length).put(bytes).flip() : ByteBuffer.wrap(bytes);
+            text = encoded = encoded.asReadOnlyBuffer();
+        }
+        return encoded;
+    }
+
+    private ByteBuffer frame() {
+        ByteBuffer encoded = frame;
+        if (encoded == null) {
+            frame = encoded = FrameEncoder.encode(type, senderId, fields, direct, Protocol.MAX_SERVER_FRAME_LENGTH).asReadOnlyBuffer();
+        }
+        return encoded;
+    }
+
+    FrameType type() {
+        return type;
+    }
+
+    long messageId() {
+        return messageId;
+    }
+}
@@ -0,0 +1,196 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.Frame;
+import at.ac.hcw.chat.protocol.FrameDecoder;
+import at.ac.hcw.chat.protocol.Protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The outgoing half of the link to one cluster peer: everything this node tells
+ * that peer travels over this connection, nothing ever comes back on it except
+ * the peer's HELLO. (The peer's own link to us is a separate connection that
+ * ClusterNode accepts.) One direction per connection keeps each stream in order
+ * without any coordination between the two nodes.
+ *
+ * The link dials, exchanges HELLOs, and then lets the hub queue the full user
+ * list of this node before any delta, so the peer always starts from a
+ * consistent snapshot. If the connection drops, it dials again with a backoff.
+ * Whatever was queued in between is lost; the fresh snapshot after the
+ * reconnect repairs the presence directory, chat messages are not replayed.
+ */
+final class PeerLink implements Runnable {
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long MIN_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    // Peer links carry the traffic of a whole node, so they get a much deeper queue than a client
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int MAX_BATCH = 256;
+
+    final String address;
+    private final ClusterNode cluster;
+    private final ChatHub hub;
+
+    // Node id of the peer, known after the first HELLO; null before
+    volatile String nodeId;
+    // The queue of the current connection, null while disconnected
+    private volatile OutboundQueue outbound;
+    private volatile SocketChannel channel;
+    private volatile boolean closed;
+
+    PeerLink(String address, ClusterNode cluster, ChatHub hub) {
+        this.address = address;
+        this.cluster = cluster;
+        this.hub = hub;
+    }
+
+    @Override
+    public void run() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (!closed) {
+            try {
+                connect();
+                backoff = MIN_BACKOFF_MILLIS;
+                writeLoop();
+            } catch (IOException e) {
+                // Peer down or not up yet; try again below
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                disconnect();
+            }
+            if (closed || cluster.isSelf(nodeId)) break;
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                break;
+            }
+            backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+        }
+    }
+
+    private void connect() throws IOException {
+        int colon = address.lastIndexOf(':');
+        SocketChannel socket = SocketChannel.open();
+        channel = socket;
+        socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        socket.socket().connect(new InetSocketAddress(address.substring(0, colon),
+                Integer.parseInt(address.substring(colon + 1))), CONNECT_TIMEOUT_MILLIS);
+
+        writeFully(cluster.hello().view(Packet.V2));
+        String peer = readHello(socket);
+        if (cluster.isSelf(peer)) {
+            // Our own address in the shared peer list
+            nodeId = peer;
+            throw new IOException("Link to self");
+        }
+        nodeId = peer;
+        ServerLog.info("CLUSTER", "Linked to " + peer + " at " + address);
+
+        // From here on the hub queues presence deltas for this peer, starting with the snapshot
+        OutboundQueue queue = new OutboundQueue(QUEUE_CAPACITY, OverflowPolicy.DISCONNECT, hub.stats());
+        hub.attachPeer(this, queue);
+        cluster.linkUp(this);
+    }
+
+    private String readHello(SocketChannel socket) throws IOException {
+        FrameDecoder decoder = new FrameDecoder(Protocol.MAX_SERVER_FRAME_LENGTH);
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        while (true) {
+            if (socket.read(buffer) < 0) throw new IOException("Peer closed during HELLO");
+            buffer.flip();
+            Frame frame = decoder.next(buffer);
+            if (frame != null) {
+                // The secret goes both ways: we do not send our users to a stranger either
+                if (!cluster.isAuthentic(frame)) throw new IOException("No peer HELLO with the cluster secret");
+                return frame.string(0);
+            }
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Called by the hub under its presence lock, so no delta can be queued before the snapshot.
+     */
+    void activate(OutboundQueue queue, Packet snapshot) {
+        queue.offer(snapshot);
+        outbound = queue;
+    }
+
+    /**
+     * Queues a packet for the peer if the link is up. Never waits for the network.
+     */
+    void send(Packet packet) {
+        OutboundQueue queue = outbound;
+        if (queue != null && !queue.offer(packet)) {
+            // The peer cannot keep up: drop the connection, the reconnect resynchronizes presence
+            closeChannel();
+        }
+    }
+
+    boolean isUp() {
+        return outbound != null;
+    }
+
+    private void writeLoop() throws IOException, InterruptedException {
+        OutboundQueue queue = outbound;
+        Packet[] batch = new Packet[MAX_BATCH];
+        ByteBuffer[] views = new ByteBuffer[MAX_BATCH];
+        while ((batch[0] = queue.take()) != null) {
+            int count = 1 + queue.drainTo(batch, 1, MAX_BATCH - 1);
+            for (int i = 0; i < count; i++) {
+                views[i] = batch[i].view(Packet.V2);
+                batch[i] = null;
+            }
+            int first = 0;
+            while (first < count) {
+                channel.write(views, first, count - first);
+                while (first < count && !views[first].hasRemaining()) views[first++] = null;
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    private void disconnect() {
+        OutboundQueue queue = outbound;
+        outbound = null;
+        if (queue != null) {
+            queue.close();
+            cluster.linkDown(this);
+            ServerLog.info("CLUSTER", "Lost link to " + nodeId + " at " + address);
+        }
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        SocketChannel socket = channel;
+        if (socket != null) {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Drops the current connection; the link dials again and starts over with a snapshot.
+     * Used when the peer's own link to us went down: it has most likely restarted, and our
+     * idle connection to its old incarnation would not notice before the next write.
+     */
+    void reset() {
+        OutboundQueue queue = outbound;
+        if (queue != null) queue.close();
+        closeChannel();
+    }
+
+    void close() {
+        closed = true;
+        OutboundQueue queue = outbound;
+        if (queue != null) queue.close();
+        closeChannel();
+    }
+}
@@ -0,0 +1,65 @@
+package at.ac.hcw.chat.server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The last N chat messages of one channel (the lobby or a room), kept in memory
+ * for late joiners.
+ *
+ * Lock-free: a writer claims the next sequence number and overwrites that slot,
+ * a reader walks back from the newest sequence and skips every slot that does
+ * not hold the sequence it expects (already overwritten, or claimed but not yet
+ * written). Neither side ever waits for the other.
+ *
+ * The stored packets are the ones that were broadcast, so replaying history
+ * reuses their cached encodings.
+ */
+final class RecentHistory {
+    private static final class Entry {
+        final long sequence;
+        final Packet packet;
+
+        Entry(long sequence, Packet packet) {
+            this.sequence = sequence;
+            this.packet = packet;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    RecentHistory(int capacity) {
+        // Power of two, so the slot is a simple mask of the sequence
+        int size = 1;
+        while (size < capacity) size <<= 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    void add(Packet message) {
+        long sequence = nextSequence.getAndIncrement();
+        slots.set((int) (sequence & mask), new Entry(sequence, message));
+    }
+
+    /**
+     * Up to limit of the newest messages with an id below beforeId, oldest first.
+     */
+    List<Packet> before(long beforeId, int limit) {
+        List<Packet> found = new ArrayList<>(Math.min(limit, slots.length()));
+        long newest = nextSequence.get() - 1;
+        long oldest = Math.max(0, newest - mask);
+        for (long sequence = newest; sequence >= oldest && found.size() < limit; sequence--) {
+            Entry entry = slots.get((int) (sequence & mask));
+            if (entry == null || entry.sequence != sequence) continue;
+            if (entry.packet.messageId() < beforeId) found.add(entry.packet);
+        }
+        // Concurrent writers can store ids slightly out of order
+        found.sort(Comparator.comparingLong(Packet::messageId));
+        return found;
+    }
+}
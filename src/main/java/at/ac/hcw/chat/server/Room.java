@@ -0,0 +1,37 @@
+package at.ac.hcw.chat.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One chat room (channel) besides the lobby.
+ *
+ * Messages to a room only fan out to its members, so the cost of a message is
+ * bounded by the size of the room instead of the size of the server.
+ *
+ * The room's monitor plays the role the presence lock plays for the lobby:
+ * membership changes, the version bump and the queueing of the matching delta
+ * happen under it, so members see the room's presence versions in order.
+ */
+final class Room {
+    final String name;
+
+    /**
+     * members: Users currently in this room.
+     * Key: Username (String) | Value: Their connection
+     */
+    final Map<String, Connection> members = new ConcurrentHashMap<>();
+
+    // The last public messages of the room, for members who join later
+    final RecentHistory recent;
+
+    // Guarded by this room's monitor
+    long presenceVersion;
+    // Set (under the registry shard and this monitor) once the empty room was dropped
+    boolean closed;
+
+    Room(String name, int recentCapacity) {
+        this.name = name;
+        this.recent = new RecentHistory(recentCapacity);
+    }
+}
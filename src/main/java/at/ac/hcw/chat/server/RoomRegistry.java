@@ -0,0 +1,84 @@
+package at.ac.hcw.chat.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All rooms of the server, split into independently locked shards by room name.
+ *
+ * A shard lock is only held to look a room up, create it or drop it once it is
+ * empty. Joins and leaves then synchronize on the room itself, so activity in
+ * different rooms does not contend at all, and rooms in the same shard only
+ * contend for that short lookup.
+ *
+ * Lock order: shard, then room. Code holding a room's monitor never takes a
+ * shard lock.
+ */
+final class RoomRegistry {
+    private final Shard[] shards;
+    private final int mask;
+    private final int recentCapacity;
+
+    private static final class Shard {
+        // Guarded by the shard's monitor
+        final Map<String, Room> rooms = new HashMap<>();
+    }
+
+    RoomRegistry(int shardCount, int recentCapacity) {
+        this.recentCapacity = recentCapacity;
+        // Round up to a power of two so the shard index is a simple mask
+        int count = 1;
+        while (count < shardCount) count <<= 1;
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++) shards[i] = new Shard();
+        this.mask = count - 1;
+    }
+
+    /**
+     * Returns the room with this name, creating it if needed. The caller must check
+     * {@link Room#closed} under the room's monitor and retry if it lost a race with
+     * {@link #removeIfEmpty}.
+     */
+    Room getOrCreate(String name) {
+        Shard shard = shardFor(name);
+        synchronized (shard) {
+            return shard.rooms.computeIfAbsent(name, key -> new Room(key, recentCapacity));
+        }
+    }
+
+    /**
+     * Drops the room if its last member has left. Must not be called while holding
+     * the room's monitor.
+     */
+    void removeIfEmpty(Room room) {
+        Shard shard = shardFor(room.name);
+        synchronized (shard) {
+            synchronized (room) {
+                if (!room.closed && room.members.isEmpty()) {
+                    room.closed = true;
+                    shard.rooms.remove(room.name, room);
+                }
+            }
+        }
+    }
+
+    /**
+     * A point-in-time copy of all rooms, one shard at a time.
+     */
+    List<Room> rooms() {
+        List<Room> result = new ArrayList<>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                result.addAll(shard.rooms.values());
+            }
+        }
+        return result;
+    }
+
+    private Shard shardFor(String name) {
+        int h = name.hashCode();
+        return shards[(h ^ (h >>> 16)) & mask];
+    }
+}
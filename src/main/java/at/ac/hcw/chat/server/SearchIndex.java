@@ -0,0 +1,495 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.Protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Full-text search over the chat history: an in-memory inverted index from every word
+ * to the messages that contain it.
+ *
+ * Every indexed message gets a document number, in message id order. A word's posting
+ * list holds the document numbers of its messages, ascending, as varint-encoded gaps:
+ * in a busy chat most gaps fit into one byte. The list is cut into blocks of
+ * BLOCK_SIZE postings whose first document is kept uncompressed, so a query can jump
+ * to any block and walk the list backwards, newest first, decoding one block at a time.
+ * Per document only the message id, the channel and the sender are kept; the text
+ * itself stays in the MessageLog and is read back for the hits of a page only.
+ *
+ * Indexing never happens on the thread that delivers a message: the hub hands the
+ * message over with {@link #add}, which only queues it, and the indexer thread
+ * ("chat-search-index", a daemon) adds whole batches under the write lock. At startup
+ * that thread first indexes everything already in the log. Queries take the read lock;
+ * the hub runs them, and the read-back of their hits, on its history readers.
+ *
+ * Messages deleted from the log by retention keep their postings; their hits are
+ * skipped when the page is read back.
+ */
+final class SearchIndex implements Closeable {
+    // Postings per block; the first one of every block is stored uncompressed
+    private static final int BLOCK_SIZE = 128;
+    // Longer words (links, base64...) are not worth indexing
+    static final int MAX_TERM_LENGTH = 32;
+    static final int MAX_QUERY_TERMS = 8;
+    // Messages waiting for the indexer; beyond this they are dropped (and counted) instead of blocking the sender
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int BATCH = 1024;
+    // A query gives up (returning a cursor to continue from) after this many candidates
+    private static final int MAX_SCAN = 200_000;
+
+    /**
+     * One page of hits, newest first.
+     */
+    static final class Hits {
+        final long[] messageIds;
+        // Pass as "before" to continue with older hits; 0 once there are none
+        final long nextBefore;
+
+        Hits(long[] messageIds, long nextBefore) {
+            this.messageIds = messageIds;
+            this.nextBefore = nextBefore;
+        }
+    }
+
+    private static final Hits NONE = new Hits(new long[0], 0);
+
+    // A message on its way from the hub to the indexer thread
+    private static final class Pending {
+        final long id;
+        final String channel;
+        final String sender;
+        final String text;
+
+        Pending(long id, String channel, String sender, String text) {
+            this.id = id;
+            this.channel = channel;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    /**
+     * The posting list of one word. Only the indexer thread appends, under the write lock.
+     */
+    private static final class Postings {
+        private byte[] data = new byte[4];
+        private int length;
+        private int count;
+        private int last = -1;
+        // First document and data offset of every block
+        private int[] blockFirst = new int[1];
+        private int[] blockOffset = new int[1];
+
+        void add(int doc) {
+            // A word repeated within one message is one posting
+            if (doc == last) return;
+            if (count % BLOCK_SIZE == 0) {
+                int block = count / BLOCK_SIZE;
+                if (block == blockFirst.length) {
+                    blockFirst = Arrays.copyOf(blockFirst, block * 2);
+                    blockOffset = Arrays.copyOf(blockOffset, block * 2);
+                }
+                blockFirst[block] = doc;
+                blockOffset[block] = length;
+            } else {
+                writeVarint(doc - last);
+            }
+            last = doc;
+            count++;
+        }
+
+        private void writeVarint(int value) {
+            if (length + 5 > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+            while ((value & ~0x7F) != 0) {
+                data[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+
+        /**
+         * Decodes one block into docs, ascending.
+         *
+         * @return the number of postings in the block
+         */
+        int decode(int block, int[] docs) {
+            int size = Math.min(BLOCK_SIZE, count - block * BLOCK_SIZE);
+            int doc = blockFirst[block];
+            int position = blockOffset[block];
+            docs[0] = doc;
+            for (int i = 1; i < size; i++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                doc += delta;
+                docs[i] = doc;
+            }
+            return size;
+        }
+
+        /**
+         * @return the last block whose first document is at or below doc, -1 if there is none
+         */
+        int blockOf(int doc) {
+            int low = 0;
+            int high = (count + BLOCK_SIZE - 1) / BLOCK_SIZE - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (blockFirst[mid] <= doc) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        long bytes() {
+            return data.length + 8L * blockFirst.length;
+        }
+    }
+
+    /**
+     * Walks one posting list backwards; lives for one query.
+     */
+    private static final class Cursor {
+        final Postings postings;
+        private final int[] docs = new int[BLOCK_SIZE];
+        private int block = -1;
+        private int position;
+
+        Cursor(Postings postings) {
+            this.postings = postings;
+        }
+
+        /**
+         * Moves to the greatest document at or below target.
+         *
+         * @return that document, or -1 if there is none
+         */
+        int floor(int target) {
+            int wanted = target < 0 ? -1 : postings.blockOf(target);
+            if (wanted < 0) return -1;
+            if (wanted != block) {
+                postings.decode(wanted, docs);
+                block = wanted;
+            }
+            int size = Math.min(BLOCK_SIZE, postings.count - block * BLOCK_SIZE);
+            int index = Arrays.binarySearch(docs, 0, size, target);
+            position = index >= 0 ? index : -index - 2;
+            return docs[position];
+        }
+
+        /**
+         * Moves to the next older document.
+         *
+         * @return that document, or -1 at the beginning of the list
+         */
+        int previous() {
+            if (position > 0) return docs[--position];
+            if (block == 0) return -1;
+            postings.decode(--block, docs);
+            position = BLOCK_SIZE - 1;
+            return docs[position];
+        }
+    }
+
+    private final ServerStats stats;
+    private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Thread indexer;
+    private volatile boolean closed;
+
+    // Everything below is guarded by lock
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final Map<String, Integer> channelCodes = new HashMap<>();
+    private final List<String> channels = new ArrayList<>();
+    private final Map<String, Integer> senderCodes = new HashMap<>();
+    // Per document: message id (ascending), channel code and sender code
+    private long[] messageIds = new long[1024];
+    private int[] docChannels = new int[1024];
+    private int[] docSenders = new int[1024];
+    private int documents;
+    private long postingBytes;
+
+    private SearchIndex(MessageLog log, ServerStats stats) {
+        this.stats = stats;
+        this.indexer = new Thread(() -> run(log), "chat-search-index");
+        this.indexer.setDaemon(true);
+    }
+
+    /**
+     * Starts the indexer thread, which indexes what the log already holds before it
+     * turns to the messages handed over with {@link #add}. Call before messages are added.
+     */
+    static SearchIndex start(MessageLog log, ServerStats stats) {
+        SearchIndex index = new SearchIndex(log, stats);
+        index.indexer.start();
+        return index;
+    }
+
+    /**
+     * Queues a delivered message for indexing; never blocks. Must be called in message
+     * id order, which the hub guarantees by calling it under the MessageLog's lock.
+     *
+     * @param channel the lobby, "#room" or "@recipient", see {@link StoredMessage}
+     */
+    void add(long id, String channel, String sender, String text) {
+        if (!queue.offer(new Pending(id, channel, sender, text))) stats.searchDropped.increment();
+    }
+
+    /**
+     * Finds the newest messages that contain every word of the query and that the viewer
+     * may see: the lobby, the rooms it is in, and the private messages it sent or received.
+     *
+     * @param rooms  the rooms the viewer is currently a member of
+     * @param before only messages with a smaller id; 0 or less for the newest ones
+     */
+    Hits search(String query, String viewer, Collection<String> rooms, long before, int limit) {
+        Set<String> words = terms(query);
+        if (words.isEmpty() || limit <= 0) return NONE;
+        lock.readLock().lock();
+        try {
+            Cursor[] cursors = new Cursor[Math.min(words.size(), MAX_QUERY_TERMS)];
+            int n = 0;
+            for (String word : words) {
+                if (n == cursors.length) break;
+                Postings postings = terms.get(word);
+                if (postings == null) return NONE;
+                cursors[n++] = new Cursor(postings);
+            }
+            // The rarest word drives the search, the others only confirm its candidates
+            Arrays.sort(cursors, Comparator.comparingInt(cursor -> cursor.postings.count));
+            int[] visible = visibleChannels(viewer, rooms);
+            Integer self = senderCodes.get(viewer);
+            int viewerCode = self == null ? -1 : self;
+
+            int bound = before <= 0 ? documents : firstDocumentAtOrAfter(before);
+            long[] hits = new long[limit];
+            int found = 0;
+            int scanned = 0;
+            Cursor lead = cursors[0];
+            int doc = lead.floor(bound - 1);
+            while (doc >= 0 && found < limit && scanned < MAX_SCAN) {
+                scanned++;
+                if (isVisible(doc, visible, viewerCode) && containsAll(cursors, doc)) hits[found++] = messageIds[doc];
+                doc = lead.previous();
+            }
+            long nextBefore = doc < 0 ? 0 : found == limit ? hits[found - 1] : messageIds[doc] + 1;
+            return new Hits(Arrays.copyOf(hits, found), nextBefore);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Messages indexed so far.
+     */
+    int size() {
+        lock.readLock().lock();
+        try {
+            return documents;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Distinct words indexed so far.
+     */
+    int termCount() {
+        lock.readLock().lock();
+        try {
+            return terms.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Approximate heap used by the posting lists and the document table.
+     */
+    long memoryBytes() {
+        lock.readLock().lock();
+        try {
+            return postingBytes + 16L * messageIds.length;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        indexer.interrupt();
+    }
+
+    /**
+     * The words of a text as they are indexed: maximal runs of letters and digits,
+     * lowercased, at most MAX_TERM_LENGTH long (longer ones are left out), without repeats.
+     */
+    static Set<String> terms(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        StringBuilder word = new StringBuilder();
+        boolean tooLong = false;
+        for (int i = 0; i <= text.length(); ) {
+            int c = i < text.length() ? text.codePointAt(i) : ' ';
+            i += i < text.length() ? Character.charCount(c) : 1;
+            if (Character.isLetterOrDigit(c)) {
+                if (word.length() < MAX_TERM_LENGTH) word.appendCodePoint(Character.toLowerCase(c));
+                else tooLong = true;
+            } else {
+                if (!word.isEmpty() && !tooLong) words.add(word.toString());
+                word.setLength(0);
+                tooLong = false;
+            }
+        }
+        return words;
+    }
+
+    private void run(MessageLog log) {
+        try {
+            rebuild(log);
+            List<Pending> batch = new ArrayList<>(BATCH);
+            while (!closed) {
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH - 1);
+                index(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Indexes the messages stored before the server started. New messages get ids from
+     * nextId() on and arrive through the queue meanwhile.
+     */
+    private void rebuild(MessageLog log) {
+        long end = log.nextId();
+        long startNanos = System.nanoTime();
+        List<Pending> batch = new ArrayList<>(BATCH);
+        try {
+            log.read(0, message -> {
+                if (closed || message.id >= end) return false;
+                Pending pending = pendingOf(message);
+                if (pending != null) batch.add(pending);
+                if (batch.size() == BATCH) {
+                    index(batch);
+                    batch.clear();
+                }
+                return true;
+            });
+        } catch (IOException e) {
+            ServerLog.error("SEARCH", "Reading the history failed: " + e.getMessage());
+        }
+        index(batch);
+        ServerLog.info("SEARCH", "Indexed " + size() + " stored message(s) in "
+                + (System.nanoTime() - startNanos) / 1_000_000 + " ms");
+    }
+
+    /**
+     * The searchable part of a stored chat message; null for anything else.
+     */
+    private static Pending pendingOf(StoredMessage message) {
+        String[] fields = message.fields;
+        return switch (message.type) {
+            case CHAT -> fields.length >= 3 ? new Pending(message.id, message.channel, fields[0], fields[2]) : null;
+            case ROOM_CHAT -> fields.length >= 4 ? new Pending(message.id, message.channel, fields[1], fields[3]) : null;
+            case PRIVATE_FROM -> fields.length >= 3 ? new Pending(message.id, message.channel, fields[0], fields[2]) : null;
+            default -> null;
+        };
+    }
+
+    private void index(List<Pending> batch) {
+        if (batch.isEmpty()) return;
+        int added = 0;
+        lock.writeLock().lock();
+        try {
+            for (Pending pending : batch) {
+                // Ids only grow; an older one would break the order of the document table
+                if (documents > 0 && pending.id <= messageIds[documents - 1]) continue;
+                if (documents == messageIds.length) {
+                    messageIds = Arrays.copyOf(messageIds, documents * 2);
+                    docChannels = Arrays.copyOf(docChannels, documents * 2);
+                    docSenders = Arrays.copyOf(docSenders, documents * 2);
+                }
+                int doc = documents++;
+                messageIds[doc] = pending.id;
+                docChannels[doc] = channelCodes.computeIfAbsent(pending.channel, channel -> {
+                    channels.add(channel);
+                    return channels.size() - 1;
+                });
+                docSenders[doc] = senderCodes.computeIfAbsent(pending.sender, sender -> senderCodes.size());
+                for (String word : terms(pending.text)) {
+                    Postings postings = terms.computeIfAbsent(word, w -> new Postings());
+                    long bytesBefore = postings.bytes();
+                    postings.add(doc);
+                    postingBytes += postings.bytes() - bytesBefore;
+                }
+                added++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        stats.searchIndexed.add(added);
+    }
+
+    // Caller holds the read lock
+    private int firstDocumentAtOrAfter(long id) {
+        int index = Arrays.binarySearch(messageIds, 0, documents, id);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    // Caller holds the read lock; sorted codes of the channels everybody in them may read
+    private int[] visibleChannels(String viewer, Collection<String> rooms) {
+        int[] codes = new int[rooms.size() + 2];
+        int n = 0;
+        Integer code = channelCodes.get(Protocol.LOBBY);
+        if (code != null) codes[n++] = code;
+        // Private messages to the viewer; the ones it sent are recognized by their sender
+        code = channelCodes.get("@" + viewer);
+        if (code != null) codes[n++] = code;
+        for (String room : rooms) {
+            code = channelCodes.get("#" + room);
+            if (code != null && n < codes.length) codes[n++] = code;
+        }
+        codes = Arrays.copyOf(codes, n);
+        Arrays.sort(codes);
+        return codes;
+    }
+
+    private boolean isVisible(int doc, int[] visible, int viewerCode) {
+        int channel = docChannels[doc];
+        if (Arrays.binarySearch(visible, channel) >= 0) return true;
+        return docSenders[doc] == viewerCode && channels.get(channel).startsWith("@");
+    }
+
+    private static boolean containsAll(Cursor[] cursors, int doc) {
+        for (int i = 1; i < cursors.length; i++) {
+            if (cursors[i].floor(doc) != doc) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,74 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.FrameEncoder;
+import at.ac.hcw.chat.protocol.FrameType;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compact ids for the senders of chat messages, for clients with the "interning"
+ * capability (see Protocol.CAP_INTERNING).
+ *
+ * A sender is a name together with an avatar path; both are numbered once per server
+ * and the numbers are never reused, so one encoded CHAT_REF frame means the same thing
+ * to every client and can be shared like any other packet. Which ids a client already
+ * knows is tracked by its connection's writer, which sends the definitions (encoded once
+ * here as well) right before the first message that needs them.
+ *
+ * The table only grows. Once it holds MAX_SENDERS senders, messages of new senders are
+ * sent in full, which is always correct.
+ */
+final class SenderTable {
+    static final int MAX_SENDERS = 1 << 16;
+
+    private record Key(String name, String avatar) {
+    }
+
+    static final class Sender {
+        final int id;
+        final Avatar avatar;
+        // The SENDER frame defining this id
+        final ByteBuffer definition;
+
+        Sender(int id, String name, Avatar avatar) {
+            this.id = id;
+            this.avatar = avatar;
+            this.definition = FrameEncoder.encode(FrameType.SENDER, 0,
+                    Integer.toString(id), name, Integer.toString(avatar.id)).asReadOnlyBuffer();
+        }
+    }
+
+    static final class Avatar {
+        final int id;
+        // The AVATAR frame defining this id
+        final ByteBuffer definition;
+
+        Avatar(int id, String path) {
+            this.id = id;
+            this.definition = FrameEncoder.encode(FrameType.AVATAR, 0, Integer.toString(id), path).asReadOnlyBuffer();
+        }
+    }
+
+    private final ConcurrentHashMap<Key, Sender> senders = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Avatar> avatars = new ConcurrentHashMap<>();
+    // Ids start at 1, so 0 can mean "none" in a frame header
+    private final AtomicInteger nextSenderId = new AtomicInteger(1);
+    private final AtomicInteger nextAvatarId = new AtomicInteger(1);
+
+    /**
+     * @return the sender's ids, assigned on first use, or null once the table is full
+     */
+    Sender intern(String name, String avatar) {
+        Key key = new Key(name, avatar);
+        Sender sender = senders.get(key);
+        if (sender != null || senders.size() >= MAX_SENDERS) return sender;
+        return senders.computeIfAbsent(key, k -> new Sender(nextSenderId.getAndIncrement(), name,
+                avatars.computeIfAbsent(avatar, path -> new Avatar(nextAvatarId.getAndIncrement(), path))));
+    }
+
+    int size() {
+        return senders.size();
+    }
+}
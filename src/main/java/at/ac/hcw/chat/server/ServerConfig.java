@@ -0,0 +1,582 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.Protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Startup configuration of the chat server.
+ *
+ * Every value can be preset with a "-Dchat.*" system property, so benchmarks and
+ * scripts can start the server without answering the console prompts.
+ */
+public final class ServerConfig {
+
+    /**
+     * The available connection engines.
+     * THREAD: one blocking platform thread per client (the original design).
+     * VIRTUAL: the same blocking handlers, each on its own Java 21 virtual thread.
+     * NIO: a small fixed pool of selector-based event loops.
+     */
+    public enum Engine { THREAD, VIRTUAL, NIO }
+
+    private Engine engine = Engine.THREAD;
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private int acceptThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    private int acceptBacklog = 4096;
+    private int maxHandshakes = 1024;
+    private int handshakeTimeoutSeconds = 10;
+    private int perIpRate = 100;
+    private int perIpBurst = 200;
+    private int outboundCapacity = 1024;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+    private int flushMaxDelayMillis = 1;
+    private int flushMaxBatch = 64;
+    private TcpPolicy tcpPolicy = TcpPolicy.NODELAY;
+    private int roomShards = 4 * Runtime.getRuntime().availableProcessors();
+    private String historyDir;
+    private int historySegmentBytes = 64 * 1024 * 1024;
+    private long historyRetentionMillis = 7L * 24 * 60 * 60 * 1000;
+    private long historyMaxBytes = 1024L * 1024 * 1024;
+    private HistoryDurability historyDurability = HistoryDurability.GROUP_COMMIT;
+    private int historyCommitMillis = 50;
+    private int historyRecent = 256;
+    private int historyBackfill = 50;
+    private int historyReaders = 2;
+    private boolean searchEnabled = true;
+    private int resumeGraceSeconds = 30;
+    private int resumeBuffer = 512;
+    private int heartbeatSeconds = 20;
+    private int idleTimeoutSeconds = 60;
+    private int clusterPort;
+    private String clusterNodeId;
+    private List<String> clusterPeers = List.of();
+    private String clusterBind = "127.0.0.1";
+    private String clusterSecret;
+    private int attachmentPort;
+    private String attachmentDir = "chat-attachments";
+    private long attachmentMaxBytes = 25L * 1024 * 1024;
+    private long attachmentQuotaBytes = 10L * 1024 * 1024 * 1024;
+    private int attachmentRateKbps = 4096;
+    private LogLevel logLevel = LogLevel.INFO;
+    private int adminPort;
+    private boolean jmxEnabled = true;
+
+    /**
+     * Reads "chat.engine", "chat.nio.loops", "chat.accept.threads", "chat.accept.backlog", the
+     * "chat.admission.*" settings (handshakes, handshakeTimeout, perIpRate, perIpBurst),
+     * "chat.outbound.capacity", "chat.outbound.policy",
+     * "chat.flush.maxDelayMs", "chat.flush.maxBatch", "chat.tcp.policy", "chat.rooms.shards" and the
+     * "chat.history.*" settings (dir, segmentMb, retentionHours, maxMb, durability, commitMs, recent, backfill, readers),
+     * "chat.search", "chat.resume.grace", "chat.resume.buffer", "chat.heartbeat.interval", "chat.idle.timeout", the "chat.cluster.*" settings (port, node, peers, bind, secret),
+     * the "chat.attachments.*" settings (port, dir, maxMb, quotaMb, rateKbps), "chat.log.level", "chat.admin.port" and "chat.jmx"
+     * from the system properties.
+     */
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.engine(parseEngine(System.getProperty("chat.engine"), config.engine));
+        config.eventLoops(Integer.getInteger("chat.nio.loops", config.eventLoops));
+        config.acceptThreads(Integer.getInteger("chat.accept.threads", config.acceptThreads));
+        config.acceptBacklog(Integer.getInteger("chat.accept.backlog", config.acceptBacklog));
+        config.maxHandshakes(Integer.getInteger("chat.admission.handshakes", config.maxHandshakes));
+        config.handshakeTimeoutSeconds(Integer.getInteger("chat.admission.handshakeTimeout", config.handshakeTimeoutSeconds));
+        config.perIpRate(Integer.getInteger("chat.admission.perIpRate", config.perIpRate));
+        config.perIpBurst(Integer.getInteger("chat.admission.perIpBurst", config.perIpBurst));
+        config.outboundCapacity(Integer.getInteger("chat.outbound.capacity", config.outboundCapacity));
+        String policy = System.getProperty("chat.outbound.policy");
+        if (policy != null) config.overflowPolicy(OverflowPolicy.valueOf(policy.trim().toUpperCase()));
+        config.flushMaxDelayMillis(Integer.getInteger("chat.flush.maxDelayMs", config.flushMaxDelayMillis));
+        config.flushMaxBatch(Integer.getInteger("chat.flush.maxBatch", config.flushMaxBatch));
+        String tcp = System.getProperty("chat.tcp.policy");
+        if (tcp != null) config.tcpPolicy(TcpPolicy.valueOf(tcp.trim().toUpperCase()));
+        config.roomShards(Integer.getInteger("chat.rooms.shards", config.roomShards));
+        config.historyDir(System.getProperty("chat.history.dir", config.historyDir));
+        config.historySegmentBytes(Integer.getInteger("chat.history.segmentMb", config.historySegmentBytes >> 20) << 20);
+        config.historyRetentionMillis(Long.getLong("chat.history.retentionHours", config.historyRetentionMillis / 3_600_000) * 3_600_000);
+        config.historyMaxBytes(Long.getLong("chat.history.maxMb", config.historyMaxBytes >> 20) << 20);
+        String durability = System.getProperty("chat.history.durability");
+        if (durability != null) config.historyDurability(HistoryDurability.valueOf(durability.trim().toUpperCase()));
+        config.historyCommitMillis(Integer.getInteger("chat.history.commitMs", config.historyCommitMillis));
+        config.historyRecent(Integer.getInteger("chat.history.recent", config.historyRecent));
+        config.historyBackfill(Integer.getInteger("chat.history.backfill", config.historyBackfill));
+        config.historyReaders(Integer.getInteger("chat.history.readers", config.historyReaders));
+        config.searchEnabled(Boolean.parseBoolean(System.getProperty("chat.search", Boolean.toString(config.searchEnabled))));
+        config.resumeGraceSeconds(Integer.getInteger("chat.resume.grace", config.resumeGraceSeconds));
+        config.resumeBuffer(Integer.getInteger("chat.resume.buffer", config.resumeBuffer));
+        config.heartbeatSeconds(Integer.getInteger("chat.heartbeat.interval", config.heartbeatSeconds));
+        config.idleTimeoutSeconds(Integer.getInteger("chat.idle.timeout", config.idleTimeoutSeconds));
+        config.clusterPort(Integer.getInteger("chat.cluster.port", config.clusterPort));
+        config.clusterNodeId(System.getProperty("chat.cluster.node", config.clusterNodeId));
+        String peers = System.getProperty("chat.cluster.peers");
+        if (peers != null) config.clusterPeers(parsePeers(peers));
+        config.clusterBind(System.getProperty("chat.cluster.bind", config.clusterBind));
+        config.clusterSecret(System.getProperty("chat.cluster.secret", config.clusterSecret));
+        config.attachmentPort(Integer.getInteger("chat.attachments.port", config.attachmentPort));
+        config.attachmentDir(System.getProperty("chat.attachments.dir", config.attachmentDir));
+        config.attachmentMaxBytes(Long.getLong("chat.attachments.maxMb", config.attachmentMaxBytes >> 20) << 20);
+        config.attachmentQuotaBytes(Long.getLong("chat.attachments.quotaMb", config.attachmentQuotaBytes >> 20) << 20);
+        config.attachmentRateKbps(Integer.getInteger("chat.attachments.rateKbps", config.attachmentRateKbps));
+        String logLevel = System.getProperty("chat.log.level");
+        if (logLevel != null) config.logLevel(LogLevel.valueOf(logLevel.trim().toUpperCase()));
+        config.adminPort(Integer.getInteger("chat.admin.port", config.adminPort));
+        config.jmxEnabled(Boolean.parseBoolean(System.getProperty("chat.jmx", Boolean.toString(config.jmxEnabled))));
+        return config;
+    }
+
+    /**
+     * Accepts "thread"/"virtual"/"nio" in any case; anything else falls back to the given default.
+     */
+    public static Engine parseEngine(String value, Engine fallback) {
+        if (value == null || value.isBlank()) return fallback;
+        try {
+            return Engine.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Splits "host:port,host:port,..." into its entries, ignoring blanks.
+     */
+    public static List<String> parsePeers(String value) {
+        List<String> peers = new ArrayList<>();
+        for (String peer : value.split(",")) {
+            if (!peer.isBlank()) peers.add(peer.trim());
+        }
+        return peers;
+    }
+
+    public Engine engine() { return engine; }
+
+    public ServerConfig engine(Engine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    public int eventLoops() { return eventLoops; }
+
+    public ServerConfig eventLoops(int eventLoops) {
+        this.eventLoops = Math.max(1, eventLoops);
+        return this;
+    }
+
+    /**
+     * Threads accepting connections, each on its own listening socket where the OS supports
+     * SO_REUSEPORT (the kernel then spreads new connections over them), on one shared
+     * socket otherwise.
+     */
+    public int acceptThreads() { return acceptThreads; }
+
+    public ServerConfig acceptThreads(int acceptThreads) {
+        this.acceptThreads = Math.max(1, Math.min(64, acceptThreads));
+        return this;
+    }
+
+    /**
+     * Length of the kernel's queue of connections not accepted yet, per listening socket.
+     * The OS may cap it (net.core.somaxconn on Linux). Connections beyond it are dropped
+     * by the kernel and retried by the client's TCP, which is what a restart storm runs into.
+     */
+    public int acceptBacklog() { return acceptBacklog; }
+
+    public ServerConfig acceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = Math.max(1, acceptBacklog);
+        return this;
+    }
+
+    /**
+     * Connections that may be accepted but not yet logged in at the same time. Beyond that
+     * the acceptors stop accepting, so new connections wait in the backlog instead of
+     * competing with the logins in progress. 0 for no limit.
+     */
+    public int maxHandshakes() { return maxHandshakes; }
+
+    public ServerConfig maxHandshakes(int maxHandshakes) {
+        this.maxHandshakes = Math.max(0, maxHandshakes);
+        return this;
+    }
+
+    /**
+     * A connection that has not logged in (or resumed) this long after the accept is closed
+     * (HANDSHAKE_TIMEOUT), so idle sockets cannot hold on to the handshake slots. 0 leaves
+     * it to the idle timeout.
+     */
+    public int handshakeTimeoutSeconds() { return handshakeTimeoutSeconds; }
+
+    public ServerConfig handshakeTimeoutSeconds(int handshakeTimeoutSeconds) {
+        this.handshakeTimeoutSeconds = Math.max(0, handshakeTimeoutSeconds);
+        return this;
+    }
+
+    /**
+     * New connections per second one source address may open in the long run; 0 for no limit.
+     * Connections above the rate are reset right after the accept.
+     */
+    public int perIpRate() { return perIpRate; }
+
+    public ServerConfig perIpRate(int perIpRate) {
+        this.perIpRate = Math.max(0, perIpRate);
+        return this;
+    }
+
+    /**
+     * New connections one source address may open at once before the rate applies, e.g. a
+     * whole classroom behind one NAT reconnecting after a restart.
+     */
+    public int perIpBurst() { return perIpBurst; }
+
+    public ServerConfig perIpBurst(int perIpBurst) {
+        this.perIpBurst = Math.max(1, perIpBurst);
+        return this;
+    }
+
+    /**
+     * Maximum number of packets waiting for one client before the overflow policy applies.
+     */
+    public int outboundCapacity() { return outboundCapacity; }
+
+    public ServerConfig outboundCapacity(int outboundCapacity) {
+        this.outboundCapacity = Math.max(1, outboundCapacity);
+        return this;
+    }
+
+    public OverflowPolicy overflowPolicy() { return overflowPolicy; }
+
+    public ServerConfig overflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * How long a writer may hold back the first packet of a batch, waiting for more (0 = never).
+     */
+    public int flushMaxDelayMillis() { return flushMaxDelayMillis; }
+
+    public ServerConfig flushMaxDelayMillis(int flushMaxDelayMillis) {
+        this.flushMaxDelayMillis = Math.max(0, flushMaxDelayMillis);
+        return this;
+    }
+
+    /**
+     * Maximum number of packets per flushed batch; a full batch is written without waiting.
+     */
+    public int flushMaxBatch() { return flushMaxBatch; }
+
+    public ServerConfig flushMaxBatch(int flushMaxBatch) {
+        this.flushMaxBatch = Math.max(1, flushMaxBatch);
+        return this;
+    }
+
+    public TcpPolicy tcpPolicy() { return tcpPolicy; }
+
+    public ServerConfig tcpPolicy(TcpPolicy tcpPolicy) {
+        this.tcpPolicy = tcpPolicy;
+        return this;
+    }
+
+    /**
+     * Number of independently locked shards of the room registry (rounded up to a power of two).
+     */
+    public int roomShards() { return roomShards; }
+
+    public ServerConfig roomShards(int roomShards) {
+        this.roomShards = Math.max(1, roomShards);
+        return this;
+    }
+
+    /**
+     * Directory of the message history, or null if history is disabled ("off" or empty).
+     * Off unless configured: every segment is a file of historySegmentBytes, so a server
+     * only keeps history where it was told to.
+     */
+    public String historyDir() { return historyDir; }
+
+    public ServerConfig historyDir(String historyDir) {
+        boolean off = historyDir == null || historyDir.isBlank() || historyDir.equalsIgnoreCase("off");
+        this.historyDir = off ? null : historyDir;
+        return this;
+    }
+
+    /**
+     * Size of one history segment file (1 MB to 1 GB).
+     */
+    public int historySegmentBytes() { return historySegmentBytes; }
+
+    public ServerConfig historySegmentBytes(int historySegmentBytes) {
+        this.historySegmentBytes = Math.max(LogSegment.MAX_RECORD_LENGTH, Math.min(1 << 30, historySegmentBytes));
+        return this;
+    }
+
+    /**
+     * Segments whose messages are all older than this are deleted.
+     */
+    public long historyRetentionMillis() { return historyRetentionMillis; }
+
+    public ServerConfig historyRetentionMillis(long historyRetentionMillis) {
+        this.historyRetentionMillis = Math.max(0, historyRetentionMillis);
+        return this;
+    }
+
+    /**
+     * The oldest segments are deleted while the history is larger than this.
+     */
+    public long historyMaxBytes() { return historyMaxBytes; }
+
+    public ServerConfig historyMaxBytes(long historyMaxBytes) {
+        this.historyMaxBytes = Math.max(0, historyMaxBytes);
+        return this;
+    }
+
+    public HistoryDurability historyDurability() { return historyDurability; }
+
+    public ServerConfig historyDurability(HistoryDurability historyDurability) {
+        this.historyDurability = historyDurability;
+        return this;
+    }
+
+    /**
+     * Group commit interval: at most this much acknowledged history is lost in an OS crash.
+     */
+    public int historyCommitMillis() { return historyCommitMillis; }
+
+    public ServerConfig historyCommitMillis(int historyCommitMillis) {
+        this.historyCommitMillis = Math.max(1, historyCommitMillis);
+        return this;
+    }
+
+    /**
+     * Number of recent messages kept in memory per channel (lobby and every room).
+     */
+    public int historyRecent() { return historyRecent; }
+
+    public ServerConfig historyRecent(int historyRecent) {
+        this.historyRecent = Math.max(1, Math.min(1 << 16, historyRecent));
+        return this;
+    }
+
+    /**
+     * Number of recent messages sent to a history-capable client right after its login
+     * or after it joined a room; 0 disables the backfill.
+     */
+    public int historyBackfill() { return historyBackfill; }
+
+    public ServerConfig historyBackfill(int historyBackfill) {
+        this.historyBackfill = Math.max(0, Math.min(Protocol.MAX_HISTORY_PAGE, historyBackfill));
+        return this;
+    }
+
+    /**
+     * Threads that read history pages and search results from the log. The engine threads
+     * hand them every search and every page the in-memory rings cannot answer, so they
+     * never wait for the disk.
+     */
+    public int historyReaders() { return historyReaders; }
+
+    public ServerConfig historyReaders(int historyReaders) {
+        this.historyReaders = Math.max(1, historyReaders);
+        return this;
+    }
+
+    /**
+     * Whether the history is indexed for full-text search (clients with the search
+     * capability). Needs the history; the index lives in memory and is rebuilt from the
+     * log on every start.
+     */
+    public boolean searchEnabled() { return searchEnabled; }
+
+    public ServerConfig searchEnabled(boolean searchEnabled) {
+        this.searchEnabled = searchEnabled;
+        return this;
+    }
+
+    /**
+     * How long the session of a client with the resume capability survives a dropped
+     * connection: the user stays listed and their messages are kept for a reconnect.
+     * 0 disables sessions.
+     */
+    public int resumeGraceSeconds() { return resumeGraceSeconds; }
+
+    public ServerConfig resumeGraceSeconds(int resumeGraceSeconds) {
+        this.resumeGraceSeconds = Math.max(0, Math.min(3600, resumeGraceSeconds));
+        return this;
+    }
+
+    /**
+     * Number of packets already written to a client that are kept for a resume, in case
+     * they were lost in flight together with the connection.
+     */
+    public int resumeBuffer() { return resumeBuffer; }
+
+    public ServerConfig resumeBuffer(int resumeBuffer) {
+        this.resumeBuffer = Math.max(16, Math.min(1 << 16, resumeBuffer));
+        return this;
+    }
+
+    /**
+     * After this long without a byte from a client with the heartbeat capability, the
+     * server sends it a PING.
+     */
+    public int heartbeatSeconds() { return heartbeatSeconds; }
+
+    public ServerConfig heartbeatSeconds(int heartbeatSeconds) {
+        this.heartbeatSeconds = Math.max(1, heartbeatSeconds);
+        return this;
+    }
+
+    /**
+     * A connection that sent nothing for this long is closed as dead (IDLE_TIMEOUT): a
+     * heartbeat client that did not answer its PINGs, or a socket that never logged in.
+     * Clients without the heartbeat capability are not reaped once logged in, since an idle
+     * one cannot be told from a dead one. 0 disables heartbeats and idle timeouts.
+     */
+    public int idleTimeoutSeconds() { return idleTimeoutSeconds; }
+
+    public ServerConfig idleTimeoutSeconds(int idleTimeoutSeconds) {
+        this.idleTimeoutSeconds = Math.max(0, idleTimeoutSeconds);
+        return this;
+    }
+
+    /**
+     * Port on which this node accepts links from its cluster peers; 0 runs a standalone server.
+     */
+    public int clusterPort() { return clusterPort; }
+
+    public ServerConfig clusterPort(int clusterPort) {
+        this.clusterPort = Math.max(0, clusterPort);
+        return this;
+    }
+
+    /**
+     * Name of this node in the cluster, unique among its peers ("node-<clusterPort>" if unset).
+     */
+    public String clusterNodeId() {
+        return clusterNodeId != null ? clusterNodeId : "node-" + clusterPort;
+    }
+
+    public ServerConfig clusterNodeId(String clusterNodeId) {
+        this.clusterNodeId = clusterNodeId == null || clusterNodeId.isBlank() ? null : clusterNodeId.trim();
+        return this;
+    }
+
+    /**
+     * Cluster ports ("host:port") of the other nodes. Every node should list every other
+     * node; listing the node itself is harmless, so all nodes can share one list.
+     */
+    public List<String> clusterPeers() { return clusterPeers; }
+
+    public ServerConfig clusterPeers(List<String> clusterPeers) {
+        this.clusterPeers = List.copyOf(clusterPeers);
+        return this;
+    }
+
+    /**
+     * Address the cluster port listens on. Loopback by default, so only nodes on the same
+     * host can link up; a cluster spread over several hosts names the interface of its
+     * private network here ("0.0.0.0" for all of them).
+     */
+    public String clusterBind() { return clusterBind; }
+
+    public ServerConfig clusterBind(String clusterBind) {
+        this.clusterBind = clusterBind == null || clusterBind.isBlank() ? "127.0.0.1" : clusterBind.trim();
+        return this;
+    }
+
+    /**
+     * Shared secret every node sends in its PEER_HELLO; a link presenting another one is
+     * refused. Null (the default) admits any node that can reach the cluster port. The
+     * secret travels in clear text: it keeps strangers out, it does not replace a private
+     * network between the nodes.
+     */
+    public String clusterSecret() { return clusterSecret; }
+
+    public ServerConfig clusterSecret(String clusterSecret) {
+        this.clusterSecret = clusterSecret == null || clusterSecret.isEmpty() ? null : clusterSecret;
+        return this;
+    }
+
+    /**
+     * Port of the attachment side channel (clients with the attachments capability);
+     * 0 disables attachments.
+     */
+    public int attachmentPort() { return attachmentPort; }
+
+    public ServerConfig attachmentPort(int attachmentPort) {
+        this.attachmentPort = Math.max(0, attachmentPort);
+        return this;
+    }
+
+    /**
+     * Directory the attachments are stored in, one file plus a ".meta" file each. Unlike
+     * the history it is never trimmed by the server; see {@link #attachmentQuotaBytes()}.
+     */
+    public String attachmentDir() { return attachmentDir; }
+
+    public ServerConfig attachmentDir(String attachmentDir) {
+        this.attachmentDir = attachmentDir;
+        return this;
+    }
+
+    /**
+     * Largest file that may be uploaded.
+     */
+    public long attachmentMaxBytes() { return attachmentMaxBytes; }
+
+    public ServerConfig attachmentMaxBytes(long attachmentMaxBytes) {
+        this.attachmentMaxBytes = Math.max(1024 * 1024, attachmentMaxBytes);
+        return this;
+    }
+
+    /**
+     * Total size the files in the attachment directory may take up; an upload that would
+     * go past it is refused. 0 for no limit.
+     */
+    public long attachmentQuotaBytes() { return attachmentQuotaBytes; }
+
+    public ServerConfig attachmentQuotaBytes(long attachmentQuotaBytes) {
+        this.attachmentQuotaBytes = Math.max(0, attachmentQuotaBytes);
+        return this;
+    }
+
+    /**
+     * Speed every single upload and download is paced to, in KB/s; 0 for no limit. Keeps a
+     * large transfer from saturating a client's link while it is also chatting.
+     */
+    public int attachmentRateKbps() { return attachmentRateKbps; }
+
+    public ServerConfig attachmentRateKbps(int attachmentRateKbps) {
+        this.attachmentRateKbps = Math.max(0, attachmentRateKbps);
+        return this;
+    }
+
+    /**
+     * Threshold of the console log; chat messages themselves are only logged at DEBUG.
+     */
+    public LogLevel logLevel() { return logLevel; }
+
+    public ServerConfig logLevel(LogLevel logLevel) {
+        this.logLevel = logLevel;
+        return this;
+    }
+
+    /**
+     * Local (loopback only) HTTP port serving the metrics in Prometheus text format
+     * at /metrics; 0 disables the admin endpoint.
+     */
+    public int adminPort() { return adminPort; }
+
+    public ServerConfig adminPort(int adminPort) {
+        this.adminPort = Math.max(0, adminPort);
+        return this;
+    }
+
+    /**
+     * Whether the metrics are also registered as an MBean ("at.ac.hcw.chat:type=ChatServer,port=<port>").
+     */
+    public boolean jmxEnabled() { return jmxEnabled; }
+
+    public ServerConfig jmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+        return this;
+    }
+}
@@ -0,0 +1,30 @@
+package at.ac.hcw.chat.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A strategy for accepting sockets and moving bytes between them and the ChatHub.
+ *
+ * Both engines speak the identical text protocol, so they can be run side by side
+ * (on different ports) and compared.
+ */
+interface ServerEngine extends Closeable {
+    /**
+     * Binds the listening socket and starts the engine's threads. Returns immediately.
+     */
+    void start(int port) throws IOException;
+
+    /**
+     * The port the engine is actually bound to (useful when started on port 0).
+     */
+    int localPort();
+
+    /**
+     * Blocks until the engine has been closed.
+     */
+    void awaitTermination() throws InterruptedException;
+
+    @Override
+    void close();
+}
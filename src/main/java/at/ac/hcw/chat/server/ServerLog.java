@@ -0,0 +1,116 @@
+package at.ac.hcw.chat.server;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Asynchronous console log of the server, in the familiar "[TAG]: message" format.
+ *
+ * System.out.println takes a lock and writes to the terminal on the calling
+ * thread, so logging every chat message used to stall the event loops behind the
+ * console. Here the caller only checks the level and offers the entry to a bounded
+ * queue; one daemon thread prints in batches. If the console cannot keep up the
+ * entry is dropped and counted instead of blocking a connection.
+ *
+ * Hot paths should check {@link #isEnabled} before building the message.
+ */
+final class ServerLog {
+    private static final int CAPACITY = 16 * 1024;
+    private static final int BATCH = 256;
+
+    private record Entry(LogLevel level, String tag, String message) {
+    }
+
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile LogLevel level = LogLevel.INFO;
+    // Entries taken from the queue but not printed yet, so flush() can wait for them
+    private static volatile int printing;
+
+    static {
+        Thread writer = new Thread(ServerLog::writeLoop, "server-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private ServerLog() {
+    }
+
+    static void setLevel(LogLevel newLevel) {
+        level = newLevel;
+    }
+
+    static boolean isEnabled(LogLevel candidate) {
+        return candidate != LogLevel.OFF && candidate.compareTo(level) >= 0;
+    }
+
+    static void debug(String tag, String message) {
+        log(LogLevel.DEBUG, tag, message);
+    }
+
+    static void info(String tag, String message) {
+        log(LogLevel.INFO, tag, message);
+    }
+
+    static void warn(String tag, String message) {
+        log(LogLevel.WARN, tag, message);
+    }
+
+    static void error(String tag, String message) {
+        log(LogLevel.ERROR, tag, message);
+    }
+
+    static void log(LogLevel entryLevel, String tag, String message) {
+        if (!isEnabled(entryLevel)) return;
+        if (!queue.offer(new Entry(entryLevel, tag, message))) dropped.increment();
+    }
+
+    /**
+     * Entries lost because the queue was full.
+     */
+    static long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Waits (up to a second) until everything logged so far was printed, e.g. before the JVM exits.
+     */
+    static void flush() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while ((!queue.isEmpty() || printing > 0) && System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+            Thread.yield();
+        }
+    }
+
+    private static void writeLoop() {
+        List<Entry> batch = new ArrayList<>(BATCH);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                printing = 1 + queue.drainTo(batch, BATCH - 1);
+                // Looked up per batch, so a redirected System.out is honoured
+                PrintStream out = System.out;
+                PrintStream err = System.err;
+                for (Entry entry : batch) {
+                    PrintStream target = entry.level.compareTo(LogLevel.WARN) >= 0 ? err : out;
+                    target.println("[" + entry.tag + "]: " + entry.message);
+                }
+                out.flush();
+                err.flush();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // A broken console must not kill the logger
+            } finally {
+                batch.clear();
+                printing = 0;
+            }
+        }
+    }
+}
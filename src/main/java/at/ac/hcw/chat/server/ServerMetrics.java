@@ -0,0 +1,251 @@
+package at.ac.hcw.chat.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * The instrumentation surface of one ChatServer: fills a MetricsRegistry from the
+ * ServerStats and the hub, and publishes it
+ * - on the admin port (loopback only) at GET /metrics, in Prometheus text format,
+ * - as the MBean "at.ac.hcw.chat:type=ChatServer,port=<port>" for jconsole/VisualVM.
+ *
+ * Nothing here runs on a hot path: the counters are the LongAdders the server
+ * updates anyway, and the gauges are only computed when somebody scrapes.
+ */
+final class ServerMetrics implements Closeable {
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final ChatHub hub;
+    private final ServerConfig config;
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private ScheduledExecutorService sampler;
+    private HttpServer admin;
+    private ObjectName mbeanName;
+
+    ServerMetrics(ChatHub hub) {
+        this.hub = hub;
+        this.config = hub.config();
+        register(hub.stats());
+    }
+
+    private void register(ServerStats stats) {
+        registry.gauge("chat_clients_connected", "Users logged in on this node.", hub::localUserCount);
+        registry.gauge("chat_clients_remote", "Users logged in on the other cluster nodes.", hub::remoteUserCount);
+        registry.gauge("chat_connections_open", "Client connections accepted and not yet closed.", stats::connectionsOpen);
+        registry.counter("chat_connections_opened_total", "Client connections accepted.", stats::connectionsOpened);
+
+        registry.counter("chat_messages_in_total", "Lines or frames received from clients.", stats::messagesIn);
+        registry.counter("chat_messages_out_total", "Packets written to client sockets.", stats::messagesOut);
+        registry.rate("chat_messages_in_per_second", "Lines or frames received during the last second.", stats::messagesIn);
+        registry.rate("chat_messages_out_per_second", "Packets written during the last second.", stats::messagesOut);
+        registry.counter("chat_bytes_in_total", "Bytes read from client sockets.", stats::bytesIn);
+        registry.counter("chat_bytes_out_total", "Bytes written to client sockets.", stats::bytesOut);
+        registry.rate("chat_bytes_in_per_second", "Bytes read during the last second.", stats::bytesIn);
+        registry.rate("chat_bytes_out_per_second", "Bytes written during the last second.", stats::bytesOut);
+
+        registry.counter("chat_broadcasts_total", "Broadcasts to the lobby, a room or presence subscribers.", stats::broadcasts);
+        registry.counter("chat_broadcast_recipients_total", "Packets queued by broadcasts.", stats::broadcastRecipients);
+        registry.histogram("chat_broadcast_duration_seconds", "Time to queue one broadcast for all its recipients.",
+                stats.broadcastNanos);
+        registry.counter("chat_flushes_total", "Gathering writes to client sockets.", stats::flushes);
+
+        registry.gauge("chat_outbound_queued_packets", "Packets waiting in all outbound queues.", hub::outboundQueuedTotal);
+        registry.gauge("chat_outbound_queue_depth_max", "Deepest outbound queue (the slowest reader).", hub::outboundQueuedMax);
+        Map<String, LongSupplier> dropped = new LinkedHashMap<>();
+        dropped.put("drop_oldest", stats::droppedOldest);
+        dropped.put("drop_newest", stats::droppedNewest);
+        registry.counters("chat_outbound_dropped_total", "Packets dropped by a full outbound queue.", "policy", dropped);
+
+        Map<String, LongSupplier> disconnects = new LinkedHashMap<>();
+        for (DisconnectReason reason : DisconnectReason.values()) {
+            disconnects.put(reason.name().toLowerCase(), () -> stats.disconnects(reason));
+        }
+        registry.counters("chat_disconnects_total", "Closed client connections by reason.", "reason", disconnects);
+
+        Map<String, LongSupplier> sessions = new LinkedHashMap<>();
+        sessions.put("parked", stats::sessionsParked);
+        sessions.put("resumed", stats::sessionsResumed);
+        sessions.put("expired", stats::sessionsExpired);
+        sessions.put("resume_failed", stats::resumesFailed);
+        registry.counters("chat_sessions_total", "Sessions kept after a dropped connection, by outcome.", "outcome", sessions);
+        registry.counter("chat_packets_replayed_total", "Packets sent again to resumed sessions.", stats::packetsReplayed);
+        registry.counter("chat_pings_sent_total", "PINGs sent to silent heartbeat clients.", stats::pingsSent);
+
+        registry.gauge("chat_interned_senders", "Senders with a compact id for interning clients.", () -> hub.senders().size());
+
+        registry.counter("chat_history_appends_total", "Messages appended to the history log.", stats::historyAppends);
+        registry.counter("chat_history_commits_total", "Group commits of the history log.", stats::historyCommits);
+        registry.counter("chat_history_pages_total", "History pages served.", stats::historyPages);
+        registry.counter("chat_search_indexed_total", "Messages added to the search index.", stats::searchIndexed);
+        registry.counter("chat_search_dropped_total", "Messages the search indexer could not keep up with.", stats::searchDropped);
+        registry.counter("chat_search_queries_total", "Searches answered.", stats::searchQueries);
+        registry.histogram("chat_search_duration_seconds", "Time to answer one search, reading the hits included.",
+                stats.searchNanos);
+        registry.gauge("chat_search_terms", "Distinct words in the search index.",
+                () -> hub.search() == null ? 0 : hub.search().termCount());
+        registry.gauge("chat_search_index_bytes", "Approximate heap used by the search index.",
+                () -> hub.search() == null ? 0 : hub.search().memoryBytes());
+        registry.histogram("chat_login_duration_seconds", "Time from the accept to the completed login or resume.",
+                stats.loginNanos);
+        registry.gauge("chat_handshakes_in_progress", "Handshake slots taken: connections not yet logged in, plus one per acceptor waiting in accept().",
+                () -> hub.admission().handshakesInProgress());
+        registry.counter("chat_admission_deferred_total", "Accepts that waited for a free handshake slot.", stats::admissionDeferred);
+        registry.counter("chat_admission_rejected_total", "Connections reset because their address exceeded its connection rate.",
+                stats::admissionRejected);
+        registry.counter("chat_attachments_uploaded_total", "Attachments stored.", stats::attachmentsUploaded);
+        registry.counter("chat_attachments_refused_total", "Uploads refused because the attachment quota was full.", stats::attachmentsRefused);
+        registry.counter("chat_attachments_served_total", "Attachment downloads completed.", stats::attachmentsServed);
+        registry.counter("chat_attachment_received_bytes_total", "Bytes of attachments uploaded.", stats::attachmentBytesIn);
+        registry.counter("chat_attachment_sent_bytes_total", "Bytes of attachments downloaded.", stats::attachmentBytesOut);
+        registry.counter("chat_log_dropped_total", "Console log entries dropped because the console lagged.", ServerLog::dropped);
+    }
+
+    /**
+     * Starts sampling the rates and opens the admin port and the MBean as configured.
+     *
+     * @param serverPort the chat port, used to tell several servers in one JVM apart
+     */
+    void start(int serverPort) throws IOException {
+        sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(() -> registry.sampleRates(System.nanoTime()), 1, 1, TimeUnit.SECONDS);
+
+        if (config.adminPort() > 0) {
+            // Loopback only: the metrics reveal user counts and traffic, they are not for the network
+            admin = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.adminPort()), 0);
+            admin.createContext("/metrics", this::serveMetrics);
+            admin.start();
+            ServerLog.info("ADMIN", "Metrics on http://" + InetAddress.getLoopbackAddress().getHostAddress()
+                    + ":" + adminPort() + "/metrics");
+        }
+
+        if (config.jmxEnabled()) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName("at.ac.hcw.chat:type=ChatServer,port=" + serverPort);
+                server.registerMBean(new MetricsMBean(registry), name);
+                mbeanName = name;
+            } catch (JMException e) {
+                ServerLog.warn("ADMIN", "JMX registration failed: " + e.getMessage());
+            }
+        }
+    }
+
+    int adminPort() {
+        return admin == null ? 0 : admin.getAddress().getPort();
+    }
+
+    String prometheus() {
+        return registry.prometheus();
+    }
+
+    private void serveMetrics(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = registry.prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", PROMETHEUS_CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (sampler != null) sampler.shutdownNow();
+        if (admin != null) admin.stop(0);
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Read-only view of the registry for JMX: one attribute per metric, read on access.
+     */
+    private static final class MetricsMBean implements DynamicMBean {
+        private final MetricsRegistry registry;
+        private final MBeanInfo info;
+
+        MetricsMBean(MetricsRegistry registry) {
+            this.registry = registry;
+            Map<String, Object> attributes = registry.attributes();
+            MBeanAttributeInfo[] infos = new MBeanAttributeInfo[attributes.size()];
+            int i = 0;
+            for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+                infos[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false);
+            }
+            this.info = new MBeanInfo(getClass().getName(), "Chat server metrics", infos, null, null, null);
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = registry.attributes().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Object> attributes = registry.attributes();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (attributes.containsKey(name)) list.add(new Attribute(name, attributes.get(name)));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("All metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return info;
+        }
+    }
+}
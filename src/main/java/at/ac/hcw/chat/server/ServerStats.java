@@ -0,0 +1,186 @@
+package at.ac.hcw.chat.server;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters shared by every connection of one server.
+ *
+ * LongAdder keeps the increments cheap even when many threads broadcast at once.
+ */
+public final class ServerStats {
+    final LongAdder packetsQueued = new LongAdder();
+    final LongAdder droppedOldest = new LongAdder();
+    final LongAdder droppedNewest = new LongAdder();
+    final LongAdder slowConsumerDisconnects = new LongAdder();
+    final LongAdder broadcasts = new LongAdder();
+    final LongAdder broadcastRecipients = new LongAdder();
+    // Allocation can only be sampled on platform threads, so samples are counted separately
+    final LongAdder broadcastAllocationSamples = new LongAdder();
+    final LongAdder broadcastAllocatedBytes = new LongAdder();
+    final LongAdder flushes = new LongAdder();
+    final LongAdder flushedPackets = new LongAdder();
+    final LongAdder historyAppends = new LongAdder();
+    final LongAdder historyCommits = new LongAdder();
+    final LongAdder historyCommitNanos = new LongAdder();
+    final LongAdder historyPages = new LongAdder();
+    final LongAdder historyPageMessages = new LongAdder();
+    // Traffic: lines or frames received from clients, and raw socket bytes in both directions
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder connectionsOpened = new LongAdder();
+    // Sessions kept after a dropped connection, and what became of them
+    final LongAdder sessionsParked = new LongAdder();
+    final LongAdder sessionsResumed = new LongAdder();
+    final LongAdder sessionsExpired = new LongAdder();
+    final LongAdder resumesFailed = new LongAdder();
+    final LongAdder packetsReplayed = new LongAdder();
+    final LongAdder pingsSent = new LongAdder();
+    // Full-text search: messages indexed, messages the indexer could not keep up with, and queries
+    final LongAdder searchIndexed = new LongAdder();
+    final LongAdder searchDropped = new LongAdder();
+    final LongAdder searchQueries = new LongAdder();
+    final LongAdder searchHits = new LongAdder();
+    // Time one search takes, reading the hits back from the log included
+    final Histogram searchNanos = new Histogram();
+    // Admission control: accepts that waited for a handshake slot, connections reset for their address's rate
+    final LongAdder admissionDeferred = new LongAdder();
+    final LongAdder admissionRejected = new LongAdder();
+    // Time from the accept to the completed login (or resume)
+    final Histogram loginNanos = new Histogram();
+    // Attachment side channel: files stored, refused for the quota and sent, and their bytes
+    final LongAdder attachmentsUploaded = new LongAdder();
+    final LongAdder attachmentsRefused = new LongAdder();
+    final LongAdder attachmentsServed = new LongAdder();
+    final LongAdder attachmentBytesIn = new LongAdder();
+    final LongAdder attachmentBytesOut = new LongAdder();
+    // Time one broadcast takes to queue a packet for all its recipients
+    final Histogram broadcastNanos = new Histogram();
+    private final LongAdder[] disconnects = new LongAdder[DisconnectReason.values().length];
+    // Batch size histogram, bucket i counts batches of [2^i, 2^(i+1)) packets; the last is open
+    private final LongAdder[] batchSizes = new LongAdder[8];
+
+    public ServerStats() {
+        for (int i = 0; i < batchSizes.length; i++) batchSizes[i] = new LongAdder();
+        for (int i = 0; i < disconnects.length; i++) disconnects[i] = new LongAdder();
+    }
+
+    void recordDisconnect(DisconnectReason reason) {
+        disconnects[reason.ordinal()].increment();
+    }
+
+    /**
+     * Records one flushed batch (one gathering write sequence) of the given size.
+     */
+    void recordFlush(int packets) {
+        flushes.increment();
+        flushedPackets.add(packets);
+        int bucket = 31 - Integer.numberOfLeadingZeros(Math.max(1, packets));
+        batchSizes[Math.min(bucket, batchSizes.length - 1)].increment();
+    }
+
+    public long packetsQueued() { return packetsQueued.sum(); }
+    public long droppedOldest() { return droppedOldest.sum(); }
+    public long droppedNewest() { return droppedNewest.sum(); }
+    public long slowConsumerDisconnects() { return slowConsumerDisconnects.sum(); }
+    public long broadcasts() { return broadcasts.sum(); }
+    public long broadcastRecipients() { return broadcastRecipients.sum(); }
+
+    /**
+     * Average bytes allocated by the broadcasting thread per broadcast (encoding included),
+     * or -1 if no broadcast could be sampled (unsupported JVM or virtual threads only).
+     */
+    public long allocatedBytesPerBroadcast() {
+        long samples = broadcastAllocationSamples.sum();
+        return samples == 0 ? -1 : broadcastAllocatedBytes.sum() / samples;
+    }
+
+    public long flushes() { return flushes.sum(); }
+    public long flushedPackets() { return flushedPackets.sum(); }
+
+    public long historyAppends() { return historyAppends.sum(); }
+    public long historyCommits() { return historyCommits.sum(); }
+    public long historyPages() { return historyPages.sum(); }
+    public long historyPageMessages() { return historyPageMessages.sum(); }
+
+    public long messagesIn() { return messagesIn.sum(); }
+    // Every packet written to a client socket
+    public long messagesOut() { return flushedPackets.sum(); }
+    public long bytesIn() { return bytesIn.sum(); }
+    public long bytesOut() { return bytesOut.sum(); }
+    public long connectionsOpened() { return connectionsOpened.sum(); }
+    public long sessionsParked() { return sessionsParked.sum(); }
+    public long sessionsResumed() { return sessionsResumed.sum(); }
+    public long sessionsExpired() { return sessionsExpired.sum(); }
+    public long resumesFailed() { return resumesFailed.sum(); }
+    public long packetsReplayed() { return packetsReplayed.sum(); }
+    public long pingsSent() { return pingsSent.sum(); }
+    public long searchIndexed() { return searchIndexed.sum(); }
+    public long searchDropped() { return searchDropped.sum(); }
+    public long searchQueries() { return searchQueries.sum(); }
+    public long searchHits() { return searchHits.sum(); }
+    public long admissionDeferred() { return admissionDeferred.sum(); }
+    public long admissionRejected() { return admissionRejected.sum(); }
+    public long logins() { return loginNanos.count(); }
+
+    /**
+     * Accept-to-login latency below which the given fraction of logins completed, as the
+     * upper bound of the histogram bucket it falls in (Long.MAX_VALUE beyond the last bound).
+     */
+    public long loginLatencyNanos(double quantile) { return loginNanos.quantileUpperBoundNanos(quantile); }
+    public long attachmentsUploaded() { return attachmentsUploaded.sum(); }
+    public long attachmentsRefused() { return attachmentsRefused.sum(); }
+    public long attachmentsServed() { return attachmentsServed.sum(); }
+    public long attachmentBytesIn() { return attachmentBytesIn.sum(); }
+    public long attachmentBytesOut() { return attachmentBytesOut.sum(); }
+    public long disconnects(DisconnectReason reason) { return disconnects[reason.ordinal()].sum(); }
+
+    /**
+     * Connections accepted and not yet closed, logged in or not.
+     */
+    public long connectionsOpen() {
+        long closed = 0;
+        for (LongAdder count : disconnects) closed += count.sum();
+        return connectionsOpened() - closed;
+    }
+
+    /**
+     * Average time one group commit (forcing the new history records) took, in microseconds.
+     */
+    public long averageHistoryCommitMicros() {
+        long commits = historyCommits();
+        return commits == 0 ? 0 : historyCommitNanos.sum() / commits / 1000;
+    }
+
+    /**
+     * Counts per batch size bucket: 1, 2-3, 4-7, ..., 128+ packets.
+     */
+    public long[] batchSizeHistogram() {
+        long[] counts = new long[batchSizes.length];
+        for (int i = 0; i < counts.length; i++) counts[i] = batchSizes[i].sum();
+        return counts;
+    }
+
+    /**
+     * One line summary for the admin console.
+     */
+    public String summary() {
+        return "messagesIn=" + messagesIn() + " messagesOut=" + messagesOut()
+                + " bytesIn=" + bytesIn() + " bytesOut=" + bytesOut() + " connectionsOpen=" + connectionsOpen()
+                + " queued=" + packetsQueued() + " droppedOldest=" + droppedOldest()
+                + " droppedNewest=" + droppedNewest() + " slowConsumerDisconnects=" + slowConsumerDisconnects()
+                + " broadcasts=" + broadcasts() + " recipients=" + broadcastRecipients()
+                + " allocBytesPerBroadcast=" + allocatedBytesPerBroadcast()
+                + " flushes=" + flushes() + " avgBatch=" + (flushes() == 0 ? 0 : flushedPackets() / (double) flushes())
+                + " batchHistogram=" + Arrays.toString(batchSizeHistogram())
+                + " historyAppends=" + historyAppends() + " historyCommits=" + historyCommits()
+                + " avgCommitMicros=" + averageHistoryCommitMicros()
+                + " historyPages=" + historyPages() + " historyPageMessages=" + historyPageMessages()
+                + " sessionsParked=" + sessionsParked() + " sessionsResumed=" + sessionsResumed()
+                + " sessionsExpired=" + sessionsExpired() + " packetsReplayed=" + packetsReplayed()
+                + " searchIndexed=" + searchIndexed() + " searchQueries=" + searchQueries()
+                + " logins=" + logins() + " loginP99Millis=" + loginLatencyNanos(0.99) / 1_000_000
+                + " admissionDeferred=" + admissionDeferred() + " admissionRejected=" + admissionRejected();
+    }
+}
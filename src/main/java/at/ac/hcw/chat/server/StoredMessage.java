@@ -0,0 +1,43 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.FrameType;
+
+/**
+ * One chat message read back from the MessageLog.
+ *
+ * channel says where it was said: the lobby ({@link at.ac.hcw.chat.protocol.Protocol#LOBBY}),
+ * "#room", or "@recipient" for a private message (then field 0 is the sender).
+ */
+final class StoredMessage {
+    final long id;
+    final long timestamp;
+    final String channel;
+    final FrameType type;
+    final int senderId;
+    final String[] fields;
+
+    StoredMessage(long id, long timestamp, String channel, FrameType type, int senderId, String[] fields) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.channel = channel;
+        this.type = type;
+        this.senderId = senderId;
+        this.fields = fields;
+    }
+
+    /**
+     * A packet for sending this message again, e.g. as scrollback.
+     */
+    Packet toPacket() {
+        int idField = switch (type) {
+            case CHAT -> 3;
+            case ROOM_CHAT -> 4;
+            default -> -1;
+        };
+        if (idField < 0) return Packet.of(type, senderId, fields);
+        // Messages stored before ids were sent along lack the trailing id field
+        return fields.length > idField
+                ? Packet.stored(id, type, senderId, fields)
+                : Packet.message(id, false, type, senderId, fields);
+    }
+}
@@ -0,0 +1,42 @@
+package at.ac.hcw.chat.server;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+
+/**
+ * How the kernel may coalesce the bytes of one outbound batch into TCP segments.
+ */
+public enum TcpPolicy {
+    /** TCP_NODELAY on: every flushed batch leaves immediately (batching is done by the server). */
+    NODELAY,
+    /** TCP_NODELAY off: Nagle's algorithm may hold small segments back until the peer ACKs. */
+    NAGLE,
+    /**
+     * Cork emulation (Java has no TCP_CORK option): Nagle stays on while a batch is
+     * being written, so even a batch split over several write calls goes out in full
+     * segments. Switching TCP_NODELAY on at the end of the batch pushes out the tail.
+     */
+    CORK;
+
+    /**
+     * Applies the initial socket option for a freshly accepted client.
+     */
+    void configure(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, this == NODELAY);
+    }
+
+    /**
+     * Called before the first write of a batch.
+     */
+    void beginBatch(SocketChannel channel) throws IOException {
+        if (this == CORK) channel.setOption(StandardSocketOptions.TCP_NODELAY, false);
+    }
+
+    /**
+     * Called after the last byte of a batch has been handed to the kernel.
+     */
+    void endBatch(SocketChannel channel) throws IOException {
+        if (this == CORK) channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+}
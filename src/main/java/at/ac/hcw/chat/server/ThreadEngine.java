@@ -0,0 +1,61 @@
+package at.ac.hcw.chat.server;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The original engine: one blocking ClientHandler per connected client.
+ *
+ * In platform mode every handler owns a real OS thread (and its stack). In virtual
+ * mode the very same handler code runs on a virtual thread, so an idle client only
+ * costs a few hundred bytes of heap instead of a native thread.
+ */
+final class ThreadEngine implements ServerEngine {
+    private final ChatHub hub;
+    private final ExecutorService handlers;
+    private Acceptor acceptor;
+
+    ThreadEngine(ChatHub hub, boolean virtualThreads) {
+        this.hub = hub;
+        this.handlers = virtualThreads
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("chat-client-", 0).factory())
+                : Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("chat-client-", 0).factory());
+    }
+
+    @Override
+    public void start(int port) throws IOException {
+        /*
+         * ServerSocketChannel (in blocking mode): Listens on the port and waits for client
+         * connection requests. Once a client connects, it returns a blocking 'SocketChannel'
+         * for that specific user, which allows gathering writes of shared packet buffers.
+         */
+        acceptor = new Acceptor("chat-acceptor", hub, this::handOff);
+        acceptor.start(port);
+    }
+
+    private void handOff(SocketChannel clientChannel, long acceptedNanos) {
+        ClientHandler handler = new ClientHandler(hub, clientChannel, handlers);
+        hub.admission().startHandshake(handler, acceptedNanos);
+        // Hand off the new connection to its own (platform or virtual) reader thread;
+        // the handler starts its writer on the same executor
+        handlers.execute(handler);
+    }
+
+    @Override
+    public int localPort() {
+        return acceptor.localPort();
+    }
+
+    @Override
+    public void awaitTermination() throws InterruptedException {
+        acceptor.join();
+    }
+
+    @Override
+    public void close() {
+        if (acceptor != null) acceptor.close();
+        handlers.shutdown();
+    }
+}
@@ -0,0 +1,175 @@
+package at.ac.hcw.chat.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Hashed timing wheel: the single timer of the server, for heartbeats, idle timeouts and
+ * session expiry.
+ *
+ * Time is cut into ticks of TICK_MILLIS, and a timeout lives in the slot of the tick it
+ * expires in (modulo the wheel size), with the number of whole rotations still to wait.
+ * Scheduling and cancelling are O(1) no matter how many timeouts exist, and the timer
+ * thread only ever looks at the one slot whose tick has come, instead of keeping 50k
+ * timeouts sorted the way a ScheduledThreadPoolExecutor's heap does.
+ *
+ * Any thread may schedule or cancel; new timeouts are handed to the timer thread through
+ * a queue, so the slots themselves are only touched by that thread. A cancelled timeout
+ * stays in its slot until its tick comes and is dropped then. Tasks run on the timer
+ * thread and must be short: closing a connection or queueing a packet, never blocking I/O.
+ *
+ * The thread ("chat-timer", a daemon) is started by the first schedule.
+ */
+final class TimerWheel {
+    static final long TICK_MILLIS = 100;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    // 512 slots of 100 ms: one rotation is 51.2 s, longer timeouts wait for whole rotations
+    private static final int WHEEL_SIZE = 512;
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    /**
+     * One scheduled task; {@link #cancel} may be called from any thread.
+     */
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private long rounds;
+        private Timeout next;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final Timeout[] slots = new Timeout[WHEEL_SIZE];
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final LongSupplier clock;
+    private final long startNanos;
+    // False for a wheel that only moves when advance() is called
+    private final boolean ownThread;
+    private final Object startLock = new Object();
+    private volatile Thread thread;
+    private volatile boolean running = true;
+    // The next tick to process; written by the timer thread only
+    private long tick;
+
+    TimerWheel() {
+        this(System::nanoTime, true);
+    }
+
+    /**
+     * A wheel on the given clock. Without its own thread nothing runs until {@link #advance}
+     * is called, so a test can step through minutes of ticks without waiting for them.
+     */
+    TimerWheel(LongSupplier clock, boolean ownThread) {
+        this.clock = clock;
+        this.startNanos = clock.getAsLong();
+        this.ownThread = ownThread;
+    }
+
+    /**
+     * Runs the task on the timer thread after the delay: never earlier, and at most
+     * about one tick later.
+     */
+    Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+        // The first tick that starts at or after the deadline
+        long deadlineNanos = clock.getAsLong() - startNanos + Math.max(0, unit.toNanos(delay));
+        Timeout timeout = new Timeout(task, (deadlineNanos + TICK_NANOS - 1) / TICK_NANOS);
+        added.add(timeout);
+        ensureStarted();
+        return timeout;
+    }
+
+    void close() {
+        running = false;
+        synchronized (startLock) {
+            if (thread != null) LockSupport.unpark(thread);
+        }
+    }
+
+    private long currentTick() {
+        return (clock.getAsLong() - startNanos) / TICK_NANOS;
+    }
+
+    private void ensureStarted() {
+        if (thread != null || !ownThread) return;
+        synchronized (startLock) {
+            if (thread != null || !running) return;
+            thread = new Thread(this::run, "chat-timer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void run() {
+        tick = currentTick();
+        while (running) {
+            if (currentTick() < tick) {
+                LockSupport.parkNanos(startNanos + tick * TICK_NANOS - clock.getAsLong());
+                continue;
+            }
+            advance();
+        }
+    }
+
+    /**
+     * Runs every task that is due by now, on the calling thread: the timer thread's, or a
+     * test's for a wheel without one.
+     */
+    void advance() {
+        long now = currentTick();
+        while (tick <= now) {
+            transferAdded();
+            // Catches up tick by tick if the thread fell behind, so no slot is skipped
+            expire(tick);
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) continue;
+            // Already due (scheduled while this thread was behind): the current slot
+            long deadline = Math.max(timeout.deadlineTick, tick);
+            timeout.rounds = (deadline - tick) / WHEEL_SIZE;
+            int slot = (int) (deadline & MASK);
+            timeout.next = slots[slot];
+            slots[slot] = timeout;
+        }
+    }
+
+    private void expire(long current) {
+        int slot = (int) (current & MASK);
+        Timeout previous = null;
+        Timeout timeout = slots[slot];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            boolean remove = timeout.cancelled || timeout.rounds == 0;
+            if (remove) {
+                if (previous == null) slots[slot] = next;
+                else previous.next = next;
+                timeout.next = null;
+                if (!timeout.cancelled) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        ServerLog.error("TIMER", "Task failed: " + e);
+                    }
+                }
+            } else {
+                timeout.rounds--;
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package at.ac.hcw.chat.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameDecoderTest {
+    private final FrameDecoder decoder = new FrameDecoder(Protocol.MAX_FRAME_LENGTH);
+
+    @Test
+    void decodesACompleteFrameInPlace() throws ProtocolException {
+        ByteBuffer in = FrameEncoder.encode(FrameType.LOGIN, 0, "alice", "/a.jpeg", "rooms");
+
+        Frame frame = decoder.next(in);
+
+        assertNotNull(frame);
+        assertEquals(FrameType.LOGIN, frame.type());
+        assertArrayEquals(new String[] {"alice", "/a.jpeg", "rooms"}, fields(frame));
+        assertFalse(in.hasRemaining());
+        assertFalse(decoder.hasPartialFrame());
+    }
+
+    @Test
+    void decodesBytesArrivingOneAtATime() throws ProtocolException {
+        ByteBuffer encoded = FrameEncoder.encode(FrameType.SEND_PRIVATE, 7, "bob", "hello");
+        int total = encoded.remaining();
+
+        for (int i = 0; i < total - 1; i++) {
+            assertNull(decoder.next(ByteBuffer.wrap(new byte[] {encoded.get(i)})), "byte " + i);
+            assertTrue(decoder.hasPartialFrame());
+        }
+        Frame frame = decoder.next(ByteBuffer.wrap(new byte[] {encoded.get(total - 1)}));
+
+        assertNotNull(frame);
+        assertEquals(FrameType.SEND_PRIVATE, frame.type());
+        assertEquals(7, frame.senderId());
+        assertArrayEquals(new String[] {"bob", "hello"}, fields(frame));
+        assertFalse(decoder.hasPartialFrame());
+    }
+
+    @Test
+    void decodesALengthPrefixSplitAcrossReads() throws ProtocolException {
+        byte[] bytes = bytes(FrameEncoder.encode(FrameType.SEND_PUBLIC, 0, "split"));
+
+        assertNull(decoder.next(ByteBuffer.wrap(bytes, 0, 2)));
+        Frame frame = decoder.next(ByteBuffer.wrap(bytes, 2, bytes.length - 2));
+
+        assertNotNull(frame);
+        assertEquals("split", frame.string(0));
+    }
+
+    @Test
+    void decodesSeveralFramesFromOneRead() throws ProtocolException {
+        byte[] first = bytes(FrameEncoder.encode(FrameType.SEND_PUBLIC, 0, "one"));
+        byte[] second = bytes(FrameEncoder.encode(FrameType.HELLO, 0));
+        ByteBuffer in = ByteBuffer.allocate(first.length + second.length).put(first).put(second).flip();
+
+        assertEquals("one", decoder.next(in).string(0));
+        assertEquals(FrameType.HELLO, decoder.next(in).type());
+        assertNull(decoder.next(in));
+    }
+
+    @Test
+    void keepsTheRestOfAReadAfterAFrameThatWasSplit() throws ProtocolException {
+        byte[] first = bytes(FrameEncoder.encode(FrameType.SEND_PUBLIC, 0, "first"));
+        byte[] second = bytes(FrameEncoder.encode(FrameType.SEND_PUBLIC, 0, "second"));
+        ByteBuffer rest = ByteBuffer.allocate(first.length - 3 + second.length)
+                .put(first, 3, first.length - 3).put(second).flip();
+
+        assertNull(decoder.next(ByteBuffer.wrap(first, 0, 3)));
+        assertEquals("first", decoder.next(rest).string(0));
+        assertEquals("second", decoder.next(rest).string(0));
+    }
+
+    @Test
+    void readsFieldsFromDirectBuffers() throws ProtocolException {
+        String text = "grüße ".repeat(100);
+        ByteBuffer in = FrameEncoder.encode(FrameType.CHAT, 3, new String[] {"alice", "/a.jpeg", text, "42"},
+                true, Protocol.MAX_SERVER_FRAME_LENGTH);
+
+        Frame frame = decoder.next(in);
+
+        assertEquals(text, frame.string(2));
+        assertEquals("42", frame.string(3, "0"));
+        assertEquals("fallback", frame.string(4, "fallback"));
+    }
+
+    @Test
+    void rejectsAnUnknownType() {
+        ByteBuffer in = ByteBuffer.allocate(4 + Frame.FIXED_LENGTH).putInt(Frame.FIXED_LENGTH).put((byte) 0xEE).putInt(0).flip();
+
+        ProtocolException e = assertThrows(ProtocolException.class, () -> decoder.next(in));
+        assertTrue(e.getMessage().contains("Unknown frame type"));
+    }
+
+    @Test
+    void rejectsATruncatedFieldHeader() {
+        // One byte left where a field needs its two byte length
+        ByteBuffer in = ByteBuffer.allocate(4 + Frame.FIXED_LENGTH + 1)
+                .putInt(Frame.FIXED_LENGTH + 1).put(FrameType.SEND_PUBLIC.code()).putInt(0).put((byte) 0).flip();
+
+        ProtocolException e = assertThrows(ProtocolException.class, () -> decoder.next(in));
+        assertTrue(e.getMessage().contains("Truncated field header"));
+    }
+
+    @Test
+    void rejectsAFieldLongerThanItsFrame() {
+        ByteBuffer in = ByteBuffer.allocate(4 + Frame.FIXED_LENGTH + 2 + 3)
+                .putInt(Frame.FIXED_LENGTH + 2 + 3).put(FrameType.SEND_PUBLIC.code()).putInt(0)
+                .putShort((short) 10).put(new byte[3]).flip();
+
+        ProtocolException e = assertThrows(ProtocolException.class, () -> decoder.next(in));
+        assertTrue(e.getMessage().contains("Field exceeds frame"));
+    }
+
+    @Test
+    void rejectsAnOversizedLengthBeforeReadingTheBody() {
+        // Only the prefix arrived: the decoder must not wait for (or allocate) the body
+        ByteBuffer in = ByteBuffer.allocate(4).putInt(Protocol.MAX_FRAME_LENGTH + 1).flip();
+
+        assertThrows(ProtocolException.class, () -> decoder.next(in));
+    }
+
+    @Test
+    void rejectsAnOversizedLengthSplitAcrossReads() throws ProtocolException {
+        byte[] prefix = ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE).array();
+
+        assertNull(decoder.next(ByteBuffer.wrap(prefix, 0, 1)));
+        assertThrows(ProtocolException.class, () -> decoder.next(ByteBuffer.wrap(prefix, 1, 3)));
+    }
+
+    @Test
+    void rejectsALengthShorterThanTheHeader() {
+        ByteBuffer in = ByteBuffer.allocate(8).putInt(Frame.FIXED_LENGTH - 1).putInt(0).flip();
+
+        assertThrows(ProtocolException.class, () -> decoder.next(in));
+    }
+
+    @Test
+    void takesServerSnapshotsOfThousandsOfUsersOnlyWithTheServerLimit() throws ProtocolException {
+        String[] fields = new String[7001];
+        fields[0] = "1";
+        for (int i = 1; i < fields.length; i++) fields[i] = String.format("bot-%05d", i);
+        byte[] snapshot = bytes(FrameEncoder.encode(FrameType.PRESENCE_SNAPSHOT, 0, fields, false,
+                Protocol.MAX_SERVER_FRAME_LENGTH));
+
+        Frame frame = new FrameDecoder(Protocol.MAX_SERVER_FRAME_LENGTH).next(ByteBuffer.wrap(snapshot));
+        assertEquals(7001, frame.fieldCount());
+        assertEquals("bot-07000", frame.string(7000));
+
+        assertThrows(ProtocolException.class, () -> decoder.next(ByteBuffer.wrap(snapshot)));
+    }
+
+    private static String[] fields(Frame frame) {
+        String[] fields = new String[frame.fieldCount()];
+        for (int i = 0; i < fields.length; i++) fields[i] = frame.string(i);
+        return fields;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,148 @@
+package at.ac.hcw.chat.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameEncoderTest {
+
+    @Test
+    void writesTheDocumentedLayout() {
+        ByteBuffer frame = FrameEncoder.encode(FrameType.SEND_PRIVATE, 0x01020304, "bob", "hé");
+        byte[] text = "hé".getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(4 + Frame.FIXED_LENGTH + 2 + 3 + 2 + text.length, frame.remaining());
+        assertEquals(frame.remaining() - 4, frame.getInt());
+        assertEquals(FrameType.SEND_PRIVATE.code(), frame.get());
+        assertEquals(0x01020304, frame.getInt());
+        assertEquals(3, frame.getShort());
+        frame.position(frame.position() + 3);
+        assertEquals(text.length, frame.getShort());
+    }
+
+    @Test
+    void roundTripsEveryFieldThroughTheDecoder() throws ProtocolException {
+        String[] fields = {"", "alice", "a|b:c,d", "zeilen\numbruch", "emoji 😀", "x".repeat(1000)};
+        ByteBuffer encoded = FrameEncoder.encode(FrameType.CHAT, 9, fields, true, Protocol.MAX_SERVER_FRAME_LENGTH);
+
+        Frame frame = new FrameDecoder(Protocol.MAX_SERVER_FRAME_LENGTH).next(encoded);
+
+        assertEquals(FrameType.CHAT, frame.type());
+        assertEquals(9, frame.senderId());
+        assertEquals(fields.length, frame.fieldCount());
+        for (int i = 0; i < fields.length; i++) assertEquals(fields[i], frame.string(i));
+    }
+
+    @Test
+    void encodesAFrameWithoutFields() throws ProtocolException {
+        ByteBuffer encoded = FrameEncoder.encode(FrameType.HELLO, 0);
+
+        assertEquals(4 + Frame.FIXED_LENGTH, encoded.remaining());
+        assertEquals(0, new FrameDecoder(Protocol.MAX_FRAME_LENGTH).next(encoded).fieldCount());
+    }
+
+    @Test
+    void rejectsAFieldOverSixtyFourKilobytes() {
+        String[] fields = {"x".repeat(0x10000)};
+
+        assertThrows(IllegalArgumentException.class,
+                () -> FrameEncoder.encode(FrameType.SYSTEM, 0, fields, false, Protocol.MAX_SERVER_FRAME_LENGTH));
+    }
+
+    @Test
+    void rejectsAFrameTheDecoderWouldRefuse() {
+        // Each field fits, the frame does not
+        String half = "x".repeat(Protocol.MAX_FRAME_LENGTH / 2);
+
+        assertThrows(IllegalArgumentException.class, () -> FrameEncoder.encode(FrameType.SEND_PRIVATE, 0, half, half));
+        FrameEncoder.encode(FrameType.SEND_PRIVATE, 0, new String[] {half, half}, false, Protocol.MAX_SERVER_FRAME_LENGTH);
+    }
+
+    @Test
+    void fitsTheLongestMessageOfTheLongestSender() throws ProtocolException {
+        // Three bytes per char in UTF-8, the worst case for the limits in Protocol
+        String[] fields = {"ä".repeat(Protocol.MAX_NAME_LENGTH), "€".repeat(Protocol.MAX_AVATAR_LENGTH),
+                "€".repeat(Protocol.MAX_TEXT_LENGTH), Long.toString(Long.MAX_VALUE)};
+
+        ByteBuffer encoded = FrameEncoder.encode(FrameType.CHAT, 1, fields);
+
+        assertTrue(encoded.remaining() - 4 <= Protocol.MAX_FRAME_LENGTH);
+        assertEquals(fields[2], new FrameDecoder(Protocol.MAX_FRAME_LENGTH).next(encoded).string(2));
+    }
+
+    @Test
+    void roundTripsServerMessagesThroughTheV1Format() {
+        assertV1RoundTrip(FrameType.CHAT, "alice", "/a.jpeg", "text with | bar", "17");
+        assertV1RoundTrip(FrameType.PRIVATE_FROM, "alice", "/a.jpeg", "secret");
+        assertV1RoundTrip(FrameType.PRIVATE_TO, "bob", "/a.jpeg", "secret");
+        assertV1RoundTrip(FrameType.USERLIST, "alice", "bob");
+        assertV1RoundTrip(FrameType.PRESENCE_JOIN, "5", "carol");
+        assertV1RoundTrip(FrameType.PRESENCE_LEAVE, "6", "carol");
+        assertV1RoundTrip(FrameType.PRESENCE_SNAPSHOT, "4", "alice", "bob");
+        assertV1RoundTrip(FrameType.ROOM_JOINED, "java", "2", "alice", "bob");
+        assertV1RoundTrip(FrameType.ROOM_LEFT, "java");
+        assertV1RoundTrip(FrameType.ROOM_JOIN, "java", "3", "carol");
+        assertV1RoundTrip(FrameType.ROOM_LEAVE, "java", "4", "carol");
+        assertV1RoundTrip(FrameType.ROOM_CHAT, "java", "alice", "/a.jpeg", "in the room", "18");
+        assertV1RoundTrip(FrameType.ROOM_LIST, "java", "2", "rust", "1");
+        assertV1RoundTrip(FrameType.HISTORY, "General", "20", "99");
+        assertV1RoundTrip(FrameType.SESSION, "abc123", "30");
+        assertV1RoundTrip(FrameType.RESUMED, "41");
+        assertV1RoundTrip(FrameType.RESUME_FAILED);
+        assertV1RoundTrip(FrameType.PING);
+        assertV1RoundTrip(FrameType.SEARCH_RESULTS, "1", "0", "two words");
+        assertV1RoundTrip(FrameType.SEARCH_HIT, "17", "1700000000000", "#java", "alice", "/a.jpeg", "found: it");
+        assertV1RoundTrip(FrameType.FILES, "9902", "token");
+    }
+
+    @Test
+    void v1ChatWithoutIdGetsIdZero() {
+        List<String[]> parsed = parse(LegacyFormat.format(FrameType.CHAT, new String[] {"alice", "/a.jpeg", "hi"}));
+
+        assertArrayEquals(new String[] {"alice", "/a.jpeg", "hi", "0"}, parsed.get(0));
+    }
+
+    @Test
+    void v1FormatKeepsALineOnOneLine() {
+        String line = LegacyFormat.format(FrameType.SYSTEM, new String[] {"two\nlines\r"});
+
+        assertFalse(line.contains("\n") || line.contains("\r"));
+    }
+
+    @Test
+    void v1ParserDropsMalformedLines() {
+        assertTrue(parse("ROOM:JOINED:java").isEmpty());
+        assertTrue(parse("PRESENCE:JOIN:5").isEmpty());
+        assertTrue(parse("SEARCH:HIT:1:2:only|three|fields").isEmpty());
+        assertTrue(parse("no separators at all").isEmpty());
+    }
+
+    private static void assertV1RoundTrip(FrameType type, String... fields) {
+        String line = LegacyFormat.format(type, fields);
+        List<FrameType> types = new ArrayList<>();
+        List<String[]> parsed = new ArrayList<>();
+        LegacyParser.parse(line, (parsedType, parsedFields) -> {
+            types.add(parsedType);
+            parsed.add(parsedFields);
+        });
+
+        assertEquals(List.of(type), types, line);
+        assertArrayEquals(fields, parsed.get(0), line);
+    }
+
+    private static List<String[]> parse(String line) {
+        List<String[]> parsed = new ArrayList<>();
+        LegacyParser.parse(line, (type, fields) -> parsed.add(fields));
+        return parsed;
+    }
+}
@@ -0,0 +1,190 @@
+package at.ac.hcw.chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdmissionControlTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final InetAddress FIRST = address(1);
+    private static final InetAddress OTHER = address(2);
+
+    private final ServerStats stats = new ServerStats();
+
+    @Test
+    void admitsABurstAndThenRejects() {
+        AdmissionControl admission = admission(new ServerConfig().perIpRate(10).perIpBurst(3));
+        long now = 5 * SECOND;
+
+        for (int i = 0; i < 3; i++) assertTrue(admission.admit(FIRST, now), "connection " + i);
+        assertFalse(admission.admit(FIRST, now));
+        assertEquals(1, stats.admissionRejected());
+    }
+
+    @Test
+    void refillsAtTheConfiguredRate() {
+        AdmissionControl admission = admission(new ServerConfig().perIpRate(10).perIpBurst(2));
+        long now = 5 * SECOND;
+        admission.admit(FIRST, now);
+        admission.admit(FIRST, now);
+
+        // 10 per second: one token every 100 ms
+        assertFalse(admission.admit(FIRST, now + SECOND / 20));
+        assertTrue(admission.admit(FIRST, now + SECOND / 10));
+        assertFalse(admission.admit(FIRST, now + SECOND / 10));
+        // Never more than the burst, however long the address stayed away
+        now += 60 * SECOND;
+        assertTrue(admission.admit(FIRST, now));
+        assertTrue(admission.admit(FIRST, now));
+        assertFalse(admission.admit(FIRST, now));
+    }
+
+    @Test
+    void aClockThatGoesBackDoesNotAddTokens() {
+        AdmissionControl admission = admission(new ServerConfig().perIpRate(10).perIpBurst(1));
+        long now = 5 * SECOND;
+        admission.admit(FIRST, now + SECOND);
+
+        // Another acceptor read the clock a moment earlier
+        assertFalse(admission.admit(FIRST, now));
+    }
+
+    @Test
+    void keepsOneBucketPerAddress() {
+        AdmissionControl admission = admission(new ServerConfig().perIpRate(1).perIpBurst(1));
+
+        assertTrue(admission.admit(FIRST, SECOND));
+        assertFalse(admission.admit(FIRST, SECOND));
+        assertTrue(admission.admit(OTHER, SECOND));
+    }
+
+    @Test
+    void aRateOfZeroAdmitsEverything() {
+        AdmissionControl admission = admission(new ServerConfig().perIpRate(0));
+
+        for (int i = 0; i < 1000; i++) assertTrue(admission.admit(FIRST, SECOND));
+        assertEquals(0, stats.admissionRejected());
+    }
+
+    @Test
+    void aLoginGivesTheHandshakeSlotBack() throws InterruptedException {
+        AdmissionControl admission = admission(new ServerConfig().maxHandshakes(1));
+        Connection connection = connection();
+
+        assertTrue(admission.acquireSlot(() -> true));
+        admission.startHandshake(connection, System.nanoTime());
+        assertEquals(1, admission.handshakesInProgress());
+
+        admission.finishHandshake(connection, true);
+        assertEquals(0, admission.handshakesInProgress());
+        assertEquals(1, stats.logins());
+        // The close after the login must not release the slot a second time
+        admission.finishHandshake(connection, false);
+        assertEquals(0, admission.handshakesInProgress());
+        assertTrue(admission.acquireSlot(() -> true));
+        assertFalse(admission.acquireSlot(() -> false));
+    }
+
+    @Test
+    void aConnectionClosedBeforeLoggingInGivesItsSlotBackWithoutALatency() throws InterruptedException {
+        AdmissionControl admission = admission(new ServerConfig().maxHandshakes(1));
+        Connection connection = connection();
+        admission.acquireSlot(() -> true);
+        admission.startHandshake(connection, System.nanoTime());
+
+        admission.finishHandshake(connection, false);
+
+        assertEquals(0, admission.handshakesInProgress());
+        assertEquals(0, stats.logins());
+    }
+
+    @Test
+    void anAcceptorWaitsForAFreeSlot() throws InterruptedException {
+        AdmissionControl admission = admission(new ServerConfig().maxHandshakes(1));
+        assertTrue(admission.acquireSlot(() -> true));
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread acceptor = new Thread(() -> {
+            try {
+                if (admission.acquireSlot(() -> true)) acquired.countDown();
+            } catch (InterruptedException e) {
+                // Test over
+            }
+        });
+        acceptor.start();
+
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        admission.releaseSlot();
+        assertTrue(acquired.await(2, TimeUnit.SECONDS));
+        assertEquals(1, stats.admissionDeferred());
+    }
+
+    @Test
+    void aWaitingAcceptorGivesUpOnceItsListenerCloses() throws InterruptedException {
+        AdmissionControl admission = admission(new ServerConfig().maxHandshakes(1));
+        admission.acquireSlot(() -> true);
+        AtomicBoolean open = new AtomicBoolean(true);
+        AtomicBoolean result = new AtomicBoolean(true);
+        Thread acceptor = new Thread(() -> {
+            try {
+                result.set(admission.acquireSlot(open::get));
+            } catch (InterruptedException e) {
+                // Test over
+            }
+        });
+        acceptor.start();
+
+        open.set(false);
+        acceptor.join(2000);
+
+        assertFalse(acceptor.isAlive());
+        assertFalse(result.get());
+    }
+
+    @Test
+    void zeroHandshakesMeansNoLimit() throws InterruptedException {
+        AdmissionControl admission = admission(new ServerConfig().maxHandshakes(0));
+
+        for (int i = 0; i < 10_000; i++) assertTrue(admission.acquireSlot(() -> false));
+    }
+
+    private AdmissionControl admission(ServerConfig config) {
+        return new AdmissionControl(config, stats);
+    }
+
+    /**
+     * A connection that is never opened; only its handshake state is used.
+     */
+    private static Connection connection() {
+        return new Connection(new ChatHub(new ServerConfig())) {
+            @Override
+            boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            void close() {
+            }
+
+            @Override
+            InetAddress remoteAddress() {
+                return InetAddress.getLoopbackAddress();
+            }
+        };
+    }
+
+    private static InetAddress address(int last) {
+        try {
+            return InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) last});
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.Protocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AttachmentServerTest {
+    private static final int MB = 1024 * 1024;
+
+    @TempDir
+    Path dir;
+    private ChatServer server;
+    private Socket chat;
+    private int filePort;
+    private String token;
+
+    @AfterEach
+    void shutDown() throws IOException {
+        if (chat != null) chat.close();
+        if (server != null) server.close();
+    }
+
+    @Test
+    void acceptsOnlyHexIds() {
+        assertTrue(AttachmentServer.isValidId("0123456789abcdefABCDEF"));
+        assertFalse(AttachmentServer.isValidId(""));
+        assertFalse(AttachmentServer.isValidId("../secret"));
+        assertFalse(AttachmentServer.isValidId("abc.meta"));
+        assertFalse(AttachmentServer.isValidId("ab/cd"));
+        assertFalse(AttachmentServer.isValidId("xyz"));
+        assertFalse(AttachmentServer.isValidId("a".repeat(65)));
+    }
+
+    @Test
+    void storesAFileAndSendsItBack() throws IOException {
+        start(0);
+        byte[] data = randomBytes(300_000);
+
+        String id = ok(put(token, Protocol.LOBBY, data.length, "../pictures/cat.png", data));
+
+        Socket get = request("GET|" + token + "|" + id);
+        assertEquals("OK|" + data.length + "|cat.png", readLine(get.getInputStream()));
+        assertArrayEquals(data, get.getInputStream().readNBytes(data.length));
+        get.close();
+    }
+
+    @Test
+    void answersNoSuchAttachmentForIdsOutsideTheDirectory() throws IOException {
+        start(0);
+        Files.writeString(dir.resolve("outside.meta"), "General\nalice\n5\nx\n");
+
+        for (String id : new String[] {"../outside", "outside", "..%2Foutside", ""}) {
+            Socket get = request("GET|" + token + "|" + id);
+            assertEquals("ERROR|No such attachment.", readLine(get.getInputStream()), id);
+            get.close();
+        }
+    }
+
+    @Test
+    void refusesAFileOverTheSizeLimitBeforeReadingIt() throws IOException {
+        start(0);
+
+        assertEquals("ERROR|Files are limited to 1 MB.", put(token, Protocol.LOBBY, MB + 1, "big.bin", null));
+        assertEquals("ERROR|Files are limited to 1 MB.", put(token, Protocol.LOBBY, -1, "negative.bin", null));
+        assertTrue(ok(put(token, Protocol.LOBBY, MB, "exact.bin", new byte[MB])).length() > 0);
+    }
+
+    @Test
+    void refusesAnUnknownToken() throws IOException {
+        start(0);
+
+        assertEquals("ERROR|Not logged in.", put("0123", Protocol.LOBBY, 10, "x.bin", null));
+    }
+
+    @Test
+    void refusesUploadsPastTheQuota() throws IOException {
+        start(MB + MB / 2);
+
+        ok(put(token, Protocol.LOBBY, MB, "first.bin", new byte[MB]));
+        assertEquals("ERROR|The attachment storage is full, try again later.",
+                put(token, Protocol.LOBBY, MB, "second.bin", null));
+        ok(put(token, Protocol.LOBBY, MB / 2, "third.bin", new byte[MB / 2]));
+        assertEquals(1, server.stats().attachmentsRefused());
+    }
+
+    @Test
+    void aCutOffUploadGivesItsShareOfTheQuotaBack() throws IOException {
+        start(MB);
+        Socket put = request("PUT|" + token + "|" + Protocol.LOBBY + "|" + MB + "|cut.bin");
+        assertEquals("READY", readLine(put.getInputStream()));
+        put.getOutputStream().write(new byte[1000]);
+        put.close();
+
+        // The server notices the end of the stream on its own thread
+        long deadline = System.currentTimeMillis() + 5000;
+        String reply;
+        do {
+            reply = put(token, Protocol.LOBBY, MB, "whole.bin", new byte[MB]);
+        } while (!reply.startsWith("OK|") && System.currentTimeMillis() < deadline);
+        ok(reply);
+        try (Stream<Path> files = Files.list(dir)) {
+            assertFalse(files.anyMatch(file -> file.toString().endsWith(".part")));
+        }
+    }
+
+    /**
+     * Starts a server with 1 MB files and the given quota, and logs in a user with the
+     * attachments capability.
+     */
+    private void start(long quotaBytes) throws IOException {
+        try (ServerSocket free = new ServerSocket(0)) {
+            filePort = free.getLocalPort();
+        }
+        server = new ChatServer(new ServerConfig()
+                .engine(ServerConfig.Engine.NIO)
+                .jmxEnabled(false)
+                .attachmentPort(filePort)
+                .attachmentDir(dir.toString())
+                .attachmentMaxBytes(MB)
+                .attachmentQuotaBytes(quotaBytes)
+                .attachmentRateKbps(0));
+        server.start(0);
+        chat = new Socket("127.0.0.1", server.port());
+        new PrintWriter(chat.getOutputStream(), true, StandardCharsets.UTF_8)
+                .println("alice|/alice.jpeg|" + Protocol.CAP_ATTACHMENTS);
+        BufferedReader in = new BufferedReader(new InputStreamReader(chat.getInputStream(), StandardCharsets.UTF_8));
+        chat.setSoTimeout(5000);
+        String line;
+        while (!(line = in.readLine()).startsWith(Protocol.FILES_PREFIX)) {
+            // Presence and history come first
+        }
+        String[] files = line.split(":");
+        assertEquals(Integer.toString(filePort), files[1]);
+        token = files[2];
+    }
+
+    /**
+     * Sends a PUT header and, once the server is READY, the data.
+     *
+     * @return the final reply
+     */
+    private String put(String token, String channel, long size, String name, byte[] data) throws IOException {
+        try (Socket socket = request("PUT|" + token + "|" + channel + "|" + size + "|" + name)) {
+            String reply = readLine(socket.getInputStream());
+            if (!reply.equals("READY")) return reply;
+            OutputStream out = socket.getOutputStream();
+            out.write(data);
+            out.flush();
+            return readLine(socket.getInputStream());
+        }
+    }
+
+    private Socket request(String header) throws IOException {
+        Socket socket = new Socket("127.0.0.1", filePort);
+        socket.setSoTimeout(5000);
+        socket.getOutputStream().write((header + "\n").getBytes(StandardCharsets.UTF_8));
+        return socket;
+    }
+
+    /**
+     * Reads one reply line byte by byte, so the file bytes after it stay in the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) break;
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String ok(String reply) {
+        assertTrue(reply.startsWith("OK|"), reply);
+        return reply.substring(3);
+    }
+
+    private static byte[] randomBytes(int count) {
+        byte[] bytes = new byte[count];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
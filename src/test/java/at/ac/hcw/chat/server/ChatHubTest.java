@@ -0,0 +1,282 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.Protocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatHubTest {
+    private static final String SYSTEM = "[System]|" + Protocol.SYSTEM_AVATAR + "|";
+
+    @TempDir
+    Path dir;
+    private ChatHub hub;
+
+    @AfterEach
+    void close() {
+        if (hub == null) return;
+        hub.closeHistory();
+        hub.closeTimers();
+    }
+
+    @Test
+    void aDeltaClientGetsASnapshotAndThenVersionedDeltas() {
+        start(new ServerConfig());
+        TestConnection alice = login("alice", Protocol.CAP_PRESENCE_DELTAS);
+        TestConnection bob = login("bob", Protocol.CAP_PRESENCE_DELTAS);
+
+        List<String> aliceLines = alice.lines();
+        assertEquals("PRESENCE:SNAPSHOT:1:alice,", aliceLines.get(0));
+        assertTrue(aliceLines.contains("PRESENCE:JOIN:2:bob"), aliceLines.toString());
+        // The newcomer learns about itself from its snapshot, not from a delta
+        List<String> bobLines = bob.lines();
+        assertEquals(snapshot(2, "alice", "bob"), snapshotOf(bobLines.get(0)));
+        assertFalse(bobLines.stream().anyMatch(line -> line.startsWith("PRESENCE:JOIN:")), bobLines.toString());
+
+        leave(bob);
+        assertTrue(alice.lines().contains("PRESENCE:LEAVE:3:bob"));
+    }
+
+    @Test
+    void aLegacyClientGetsTheWholeUserList() {
+        start(new ServerConfig());
+        TestConnection alice = login("alice", "");
+        login("bob", Protocol.CAP_PRESENCE_DELTAS);
+
+        List<String> lists = alice.lines().stream().filter(line -> line.startsWith("USERLIST:")).toList();
+        assertEquals(2, lists.size());
+        assertEquals(Set.of("alice"), names(lists.get(0).substring(9)));
+        assertEquals(Set.of("alice", "bob"), names(lists.get(1).substring(9)));
+    }
+
+    @Test
+    void aSyncAnswersWithASnapshotAtTheCurrentVersion() {
+        start(new ServerConfig());
+        TestConnection alice = login("alice", Protocol.CAP_PRESENCE_DELTAS);
+        leave(login("bob", ""));
+        alice.lines();
+
+        hub.onLine(alice, Protocol.PRESENCE_SYNC);
+
+        assertEquals(List.of("PRESENCE:SNAPSHOT:3:alice,"), alice.lines());
+    }
+
+    @Test
+    void pagesThroughTheRingAndThenTheLog() throws IOException {
+        start(new ServerConfig().historyDir(dir.toString()).historyRecent(4).historyBackfill(0));
+        hub.openHistory();
+        TestConnection alice = login("alice", Protocol.CAP_HISTORY);
+        for (int i = 1; i <= 10; i++) hub.onLine(alice, "m" + i);
+        alice.lines();
+
+        // The ring alone holds the newest page
+        hub.onLine(alice, Protocol.HISTORY_REQUEST + " before=0 limit=3");
+        assertEquals(List.of("HISTORY:General:3:8", "m8", "m9", "m10"), texts(alice.lines()));
+        // The rest of the ring is not enough, the log supplies the older part
+        hub.onLine(alice, Protocol.HISTORY_REQUEST + " before=8 limit=6");
+        assertEquals(List.of("HISTORY:General:6:2", "m2", "m3", "m4", "m5", "m6", "m7"), texts(alice.awaitLines(7)));
+        // The last page ends the history
+        hub.onLine(alice, Protocol.HISTORY_REQUEST + " before=2 limit=6");
+        assertEquals(List.of("HISTORY:General:1:0", "m1"), texts(alice.awaitLines(2)));
+    }
+
+    @Test
+    void onlyMembersReadTheHistoryOfARoom() {
+        start(new ServerConfig().historyBackfill(0));
+        TestConnection alice = login("alice", Protocol.CAP_HISTORY + "," + Protocol.CAP_ROOMS);
+        alice.lines();
+
+        hub.onLine(alice, Protocol.HISTORY_REQUEST + " room=java");
+
+        assertEquals(List.of(SYSTEM + "You are not in room java."), alice.lines());
+    }
+
+    @Test
+    void aDoubleSlashSendsTextThatStartsWithASlash() {
+        start(new ServerConfig());
+        TestConnection alice = login("alice", Protocol.CAP_ROOMS);
+        TestConnection bob = login("bob", "");
+        bob.lines();
+
+        hub.onLine(alice, "//shrug");
+
+        assertEquals(List.of("/shrug"), texts(bob.lines()));
+    }
+
+    @Test
+    void answersAnUnknownCommandInsteadOfSendingIt() {
+        start(new ServerConfig());
+        TestConnection alice = login("alice", Protocol.CAP_ROOMS);
+        TestConnection bob = login("bob", "");
+        alice.lines();
+        bob.lines();
+
+        hub.onLine(alice, "/shrug now");
+
+        assertEquals(List.of(SYSTEM + "Unknown command /shrug. Start a message with // to send text that begins with /."),
+                alice.lines());
+        assertEquals(List.of(), bob.lines());
+    }
+
+    @Test
+    void ignoresACommandOfACapabilityTheClientDidNotList() {
+        start(new ServerConfig());
+        TestConnection alice = login("alice", Protocol.CAP_HISTORY);
+        TestConnection bob = login("bob", "");
+        alice.lines();
+        bob.lines();
+
+        hub.onLine(alice, Protocol.JOIN_ROOM + " java");
+
+        assertEquals(List.of(), alice.lines());
+        assertEquals(List.of(), bob.lines());
+    }
+
+    @Test
+    void aLegacyClientSendsEveryLineAsText() {
+        start(new ServerConfig());
+        TestConnection alice = login("alice", "");
+        TestConnection bob = login("bob", Protocol.CAP_ROOMS);
+        bob.lines();
+
+        hub.onLine(alice, Protocol.PRESENCE_SYNC);
+        hub.onLine(alice, Protocol.JOIN_ROOM + " java");
+
+        assertEquals(List.of(Protocol.PRESENCE_SYNC, Protocol.JOIN_ROOM + " java"), texts(bob.lines()));
+    }
+
+    @Test
+    void postsToARoomOnlyWithARoomRequest() {
+        start(new ServerConfig());
+        TestConnection alice = login("alice", Protocol.CAP_ROOMS);
+        TestConnection bob = login("bob", Protocol.CAP_ROOMS);
+        hub.onLine(alice, Protocol.JOIN_ROOM + " java");
+        hub.onLine(bob, Protocol.JOIN_ROOM + " java");
+        alice.lines();
+        bob.lines();
+
+        hub.onLine(alice, Protocol.ROOM_MESSAGE + " java generics?");
+        // What used to address a room is ordinary text now
+        hub.onLine(alice, "#java: just text");
+
+        List<String> lines = bob.lines();
+        assertEquals(2, lines.size(), lines.toString());
+        assertTrue(lines.get(0).startsWith("ROOM:CHAT:java:alice|/alice.jpeg|generics?|"), lines.get(0));
+        assertEquals(List.of("#java: just text"), texts(lines.subList(1, 2)));
+    }
+
+    private void start(ServerConfig config) {
+        hub = new ChatHub(config);
+    }
+
+    private TestConnection login(String name, String capabilities) {
+        TestConnection connection = new TestConnection(hub);
+        hub.onLine(connection, name + "|/" + name + ".jpeg|" + capabilities);
+        return connection;
+    }
+
+    private void leave(TestConnection connection) {
+        connection.close();
+        hub.onDisconnect(connection);
+    }
+
+    private static Set<String> snapshot(long version, String... names) {
+        Set<String> snapshot = new HashSet<>(Arrays.asList(names));
+        snapshot.add("@" + version);
+        return snapshot;
+    }
+
+    // The names of a snapshot come in hash order, so compare them as a set
+    private static Set<String> snapshotOf(String line) {
+        String[] parts = line.split(":");
+        assertEquals("SNAPSHOT", parts[1], line);
+        Set<String> snapshot = names(parts[3]);
+        snapshot.add("@" + parts[2]);
+        return snapshot;
+    }
+
+    private static Set<String> names(String list) {
+        return Arrays.stream(list.split(",")).filter(name -> !name.isEmpty()).collect(Collectors.toSet());
+    }
+
+    /**
+     * The text of every chat line ("name|avatar|text|id"), other lines as they are.
+     */
+    private static List<String> texts(List<String> lines) {
+        return lines.stream().map(line -> {
+            if (line.startsWith("[") || line.indexOf('|') < 0) return line;
+            return line.split("\\|")[2];
+        }).toList();
+    }
+
+    /**
+     * A v1 connection without a socket: the test reads what the hub queued for it.
+     */
+    private static final class TestConnection extends Connection {
+        private volatile boolean open = true;
+
+        TestConnection(ChatHub hub) {
+            super(hub);
+        }
+
+        /**
+         * Everything queued so far, one v1 line per packet; "joined" and "left" notices
+         * are skipped.
+         */
+        List<String> lines() {
+            List<String> lines = new ArrayList<>();
+            Packet packet;
+            while ((packet = outbound.poll()) != null) {
+                String line = StandardCharsets.UTF_8.decode(packet.view(Packet.V1)).toString().stripTrailing();
+                if (line.startsWith(SYSTEM) && (line.endsWith(" joined the room.") || line.endsWith(" left."))) continue;
+                lines.add(line);
+            }
+            return lines;
+        }
+
+        /**
+         * Waits for an answer sent from another thread, such as a page a history reader read.
+         */
+        List<String> awaitLines(int count) {
+            List<String> lines = new ArrayList<>();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (lines.size() < count) {
+                if (System.currentTimeMillis() > deadline) Assertions.fail("got only " + lines);
+                lines.addAll(lines());
+                Thread.onSpinWait();
+            }
+            return lines;
+        }
+
+        @Override
+        boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        void close() {
+            open = false;
+        }
+
+        @Override
+        InetAddress remoteAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+    }
+}
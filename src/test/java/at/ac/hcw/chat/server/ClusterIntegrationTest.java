@@ -0,0 +1,265 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.Protocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Three nodes on localhost, linked over their cluster ports, with v1 clients on each.
+ * Measures what a message pays for crossing to another node.
+ */
+class ClusterIntegrationTest {
+    private static final String SECRET = "cluster-test-secret";
+    private static final int TIMEOUT_MILLIS = 5000;
+    private static final int LATENCY_SAMPLES = 200;
+
+    private final List<ChatServer> servers = new ArrayList<>();
+    private final List<Client> clients = new ArrayList<>();
+
+    @AfterEach
+    void shutDown() {
+        for (Client client : clients) client.close();
+        for (ChatServer server : servers) server.close();
+    }
+
+    @Test
+    void deliversPublicAndPrivateMessagesAcrossNodes() throws IOException {
+        int[] ports = startCluster(3, SECRET);
+        Client alice = connect(ports[0], "alice");
+        Client bob = connect(ports[1], "bob");
+        Client carol = connect(ports[2], "carol");
+        awaitMesh(alice, bob, carol);
+
+        alice.send("hello from node 0");
+        assertNotNull(bob.await(line -> line.startsWith("alice|/alice.jpeg|hello from node 0")));
+        assertNotNull(carol.await(line -> line.startsWith("alice|/alice.jpeg|hello from node 0")));
+
+        bob.send("@carol: just for you");
+        assertNotNull(carol.await(line -> line.equals("[Private from bob]|/bob.jpeg|just for you")));
+        assertNotNull(bob.await(line -> line.equals("[Private to carol]|/bob.jpeg|just for you")));
+        assertFalse(alice.sees(line -> line.contains("just for you")));
+
+        bob.send("@nobody: anyone there?");
+        assertNotNull(bob.await(line -> line.equals("[Private Error nobody]|" + Protocol.SYSTEM_AVATAR + "|User offline.")));
+    }
+
+    @Test
+    void measuresTheCrossNodePenalty() throws IOException {
+        int[] ports = startCluster(2, SECRET);
+        Client sender = connect(ports[0], "sender");
+        Client local = connect(ports[0], "local");
+        Client remote = connect(ports[1], "remote");
+        awaitMesh(sender, local, remote);
+
+        long[] sameNode = roundTrips(sender, local);
+        long[] crossNode = roundTrips(sender, remote);
+
+        long sameMedian = sameNode[sameNode.length / 2];
+        long crossMedian = crossNode[crossNode.length / 2];
+        System.out.printf("Private message latency over %d samples: same node p50 %d us p99 %d us,"
+                        + " cross node p50 %d us p99 %d us, penalty p50 %d us%n", LATENCY_SAMPLES,
+                sameMedian / 1000, sameNode[sameNode.length * 99 / 100] / 1000,
+                crossMedian / 1000, crossNode[crossNode.length * 99 / 100] / 1000, (crossMedian - sameMedian) / 1000);
+        // One extra hop over loopback; anything near the timeout means the link is not working
+        assertTrue(crossMedian < 500_000_000L, "cross node p50 " + crossMedian / 1000 + " us");
+    }
+
+    @Test
+    void refusesANodeWithTheWrongSecret() throws IOException {
+        int[] clusterPorts = freePorts(2);
+        int[] ports = new int[2];
+        ports[0] = startNode(clusterPorts[0], clusterPorts, SECRET);
+        ports[1] = startNode(clusterPorts[1], clusterPorts, "wrong");
+        Client inside = connect(ports[0], "inside");
+        Client outside = connect(ports[1], "outside");
+
+        outside.send("@inside: let me in");
+        assertNotNull(outside.await(line -> line.startsWith("[Private Error inside]")));
+        assertFalse(inside.sees(line -> line.contains("outside")));
+    }
+
+    @Test
+    void listensOnLoopbackUnlessConfiguredOtherwise() {
+        assertEquals("127.0.0.1", new ServerConfig().clusterBind());
+    }
+
+    /**
+     * Waits until every client has seen every other one online. A node learns about the
+     * users of another only over that node's link to it, so then all links are up.
+     */
+    private static void awaitMesh(Client... clients) throws IOException {
+        for (Client client : clients) {
+            for (Client other : clients) {
+                if (other != client) client.awaitPresence(other.name);
+            }
+        }
+    }
+
+    /**
+     * Sends private messages one at a time and measures each until the target has read it.
+     *
+     * @return the latencies in nanoseconds, sorted
+     */
+    private static long[] roundTrips(Client from, Client to) throws IOException {
+        String target = to.name;
+        long[] nanos = new long[LATENCY_SAMPLES];
+        for (int i = 0; i < nanos.length; i++) {
+            String text = "probe-" + target + "-" + i;
+            long start = System.nanoTime();
+            from.send("@" + target + ": " + text);
+            to.await(line -> line.endsWith("|" + text));
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        return nanos;
+    }
+
+    /**
+     * Starts a full mesh of nodes sharing one secret.
+     *
+     * @return the client ports
+     */
+    private int[] startCluster(int nodes, String secret) throws IOException {
+        int[] clusterPorts = freePorts(nodes);
+        int[] ports = new int[nodes];
+        for (int i = 0; i < nodes; i++) ports[i] = startNode(clusterPorts[i], clusterPorts, secret);
+        return ports;
+    }
+
+    private int startNode(int clusterPort, int[] clusterPorts, String secret) throws IOException {
+        List<String> peers = new ArrayList<>();
+        for (int port : clusterPorts) peers.add("127.0.0.1:" + port);
+        ServerConfig config = new ServerConfig()
+                .engine(ServerConfig.Engine.NIO)
+                .jmxEnabled(false)
+                .flushMaxDelayMillis(0)
+                .clusterPort(clusterPort)
+                .clusterNodeId("node-" + clusterPort)
+                .clusterPeers(peers)
+                .clusterSecret(secret);
+        ChatServer server = new ChatServer(config);
+        servers.add(server);
+        server.start(0);
+        return server.port();
+    }
+
+    private static int[] freePorts(int count) throws IOException {
+        ServerSocket[] sockets = new ServerSocket[count];
+        int[] ports = new int[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                sockets[i] = new ServerSocket(0);
+                ports[i] = sockets[i].getLocalPort();
+            }
+        } finally {
+            for (ServerSocket socket : sockets) {
+                if (socket != null) socket.close();
+            }
+        }
+        return ports;
+    }
+
+    private Client connect(int port, String name) throws IOException {
+        Client client = new Client(port, name);
+        clients.add(client);
+        return client;
+    }
+
+    /**
+     * A v1 client with presence deltas that reads its lines on the test thread.
+     */
+    private static final class Client {
+        final String name;
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+        // Users seen online so far, for awaitPresence
+        private final Set<String> online = new HashSet<>();
+
+        Client(int port, String name) throws IOException {
+            this.name = name;
+            this.socket = new Socket("127.0.0.1", port);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+            send(name + "|/" + name + ".jpeg|" + Protocol.CAP_PRESENCE_DELTAS);
+        }
+
+        void send(String line) {
+            out.println(line);
+        }
+
+        /**
+         * Reads until a line matches, skipping the others.
+         */
+        String await(Predicate<String> match) throws IOException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (true) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) fail(name + " did not receive the expected line");
+                socket.setSoTimeout((int) left);
+                try {
+                    String line = in.readLine();
+                    if (line == null) fail(name + " was disconnected");
+                    if (match.test(line)) return line;
+                } catch (SocketTimeoutException e) {
+                    fail(name + " did not receive the expected line");
+                }
+            }
+        }
+
+        /**
+         * Reads until a presence snapshot or join lists the user, who may have been seen already.
+         */
+        void awaitPresence(String user) throws IOException {
+            if (online.contains(user)) return;
+            await(line -> {
+                if (!line.startsWith(Protocol.PRESENCE_PREFIX)) return false;
+                // "PRESENCE:SNAPSHOT:<version>:a,b," or "PRESENCE:JOIN:<version>:a"
+                String[] parts = line.split(":", 4);
+                if (parts.length == 4 && !parts[1].equals("LEAVE")) online.addAll(Arrays.asList(parts[3].split(",")));
+                return online.contains(user);
+            });
+        }
+
+        /**
+         * Whether a matching line arrives within a short while.
+         */
+        boolean sees(Predicate<String> match) throws IOException {
+            socket.setSoTimeout(300);
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (match.test(line)) return true;
+                }
+            } catch (SocketTimeoutException e) {
+                // Nothing more
+            }
+            return false;
+        }
+
+        void close() {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.FrameType;
+import at.ac.hcw.chat.protocol.Protocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class MessageLogTest {
+    // crc + id + timestamp + channel length, see LogSegment
+    private static final int RECORD_HEADER = 4 + 8 + 8 + 2;
+
+    @TempDir
+    Path dir;
+    private MessageLog log;
+
+    @AfterEach
+    void close() {
+        if (log != null) log.close();
+    }
+
+    @Test
+    void keepsEverythingOverARestart() throws IOException {
+        open();
+        append("one");
+        append("two");
+        reopen();
+
+        assertEquals(List.of("one", "two"), texts());
+        assertEquals(3, log.nextId());
+    }
+
+    @Test
+    void dropsARecordWithABadChecksumAndEverythingAfterIt() throws IOException {
+        open();
+        append("one");
+        append("two");
+        append("three");
+        log.close();
+
+        // A write that only partly reached the disk: some of the text of "two" is missing
+        int second = recordPosition(1);
+        patch(second + RECORD_HEADER + Protocol.LOBBY.length() + 20, new byte[] {0, 0, 0});
+        reopen();
+
+        assertEquals(List.of("one"), texts());
+        assertEquals(2, log.nextId());
+        assertNull(log.get(3));
+    }
+
+    @Test
+    void dropsARecordCutOffInItsHeader() throws IOException {
+        open();
+        append("one");
+        append("two");
+        log.close();
+
+        // Only the first bytes of the second record: its id, the rest is still zero
+        int second = recordPosition(1);
+        int end = recordPosition(2);
+        patch(second + 12, new byte[end - second - 12]);
+        reopen();
+
+        assertEquals(List.of("one"), texts());
+        assertEquals(2, log.nextId());
+    }
+
+    @Test
+    void appendsCleanlyOverTheTornTail() throws IOException {
+        open();
+        append("one");
+        append("torn " + "x".repeat(100));
+        append("lost but intact");
+        log.close();
+
+        patch(recordPosition(1) + RECORD_HEADER + 30, new byte[] {1, 2, 3});
+        reopen();
+        // Exactly as long as the torn record, so it ends where the lost one begins: had the
+        // rest of the tail not been zeroed, the lost record would come back after it
+        append("new! " + "y".repeat(100));
+        reopen();
+
+        assertEquals(List.of("one", "new! " + "y".repeat(100)), texts());
+        assertEquals(3, log.nextId());
+        append("three");
+        assertEquals(List.of("one", "new! " + "y".repeat(100), "three"), texts());
+    }
+
+    @Test
+    void recoversAnEmptyLog() throws IOException {
+        open();
+        reopen();
+
+        assertEquals(List.of(), texts());
+        assertEquals(1, log.nextId());
+    }
+
+    private void open() throws IOException {
+        log = MessageLog.open(new ServerConfig().historyDir(dir.toString())
+                .historySegmentBytes(LogSegment.MAX_RECORD_LENGTH), new ServerStats());
+    }
+
+    private void reopen() throws IOException {
+        log.close();
+        open();
+    }
+
+    private void append(String text) {
+        log.append(Protocol.LOBBY, id -> Packet.message(id, false, FrameType.CHAT, 0, "alice", "/a.jpeg", text));
+    }
+
+    private List<String> texts() throws IOException {
+        List<String> texts = new ArrayList<>();
+        log.read(0, message -> texts.add(message.fields[2]));
+        return texts;
+    }
+
+    /**
+     * Where the record with the given index starts in the first segment, found by walking
+     * the lengths of the records before it.
+     */
+    private int recordPosition(int record) throws IOException {
+        try (FileChannel file = FileChannel.open(segment(), StandardOpenOption.READ)) {
+            ByteBuffer bytes = ByteBuffer.allocate((int) file.size());
+            file.read(bytes, 0);
+            int position = 0;
+            for (int i = 0; i < record; i++) {
+                int channelLength = bytes.getShort(position + 20) & 0xFFFF;
+                int frame = position + RECORD_HEADER + channelLength;
+                position = frame + 4 + bytes.getInt(frame);
+            }
+            return position;
+        }
+    }
+
+    private void patch(int position, byte[] bytes) throws IOException {
+        try (FileChannel file = FileChannel.open(segment(), StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.wrap(bytes), position);
+        }
+    }
+
+    private Path segment() {
+        return dir.resolve(LogSegment.fileName(1, LogSegment.LOG_SUFFIX));
+    }
+}
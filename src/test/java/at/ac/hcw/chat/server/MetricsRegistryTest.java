@@ -0,0 +1,107 @@
+package at.ac.hcw.chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsRegistryTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+
+    @Test
+    void writesCountersAndGaugesWithTheirHeaders() {
+        AtomicLong received = new AtomicLong(41);
+        registry.counter("chat_received_total", "Messages received.", received::get);
+        registry.gauge("chat_clients", "Connected clients.", () -> 3.0);
+        registry.gauge("chat_load", "Load.", () -> 0.25);
+        received.incrementAndGet();
+
+        assertEquals("""
+                # HELP chat_received_total Messages received.
+                # TYPE chat_received_total counter
+                chat_received_total 42
+                # HELP chat_clients Connected clients.
+                # TYPE chat_clients gauge
+                chat_clients 3
+                # HELP chat_load Load.
+                # TYPE chat_load gauge
+                chat_load 0.25
+                """, registry.prometheus());
+    }
+
+    @Test
+    void writesOneLinePerLabelValue() {
+        Map<String, LongSupplier> reasons = new LinkedHashMap<>();
+        reasons.put("idle", () -> 2);
+        reasons.put("slow", () -> 5);
+        registry.counters("chat_disconnects_total", "Disconnects.", "reason", reasons);
+
+        assertEquals("""
+                # HELP chat_disconnects_total Disconnects.
+                # TYPE chat_disconnects_total counter
+                chat_disconnects_total{reason="idle"} 2
+                chat_disconnects_total{reason="slow"} 5
+                """, registry.prometheus());
+        assertEquals(Map.of("chat_disconnects_total_idle", 2L, "chat_disconnects_total_slow", 5L),
+                registry.attributes());
+    }
+
+    @Test
+    void writesHistogramBucketsCumulativelyInSeconds() {
+        Histogram latency = new Histogram();
+        latency.record(Histogram.upperBoundNanos(0));
+        latency.record(Histogram.upperBoundNanos(1));
+        latency.record(Histogram.upperBoundNanos(1));
+        latency.record(Long.MAX_VALUE / 2);
+        registry.histogram("chat_latency_seconds", "Latency.", latency);
+
+        List<String> buckets = registry.prometheus().lines().filter(line -> line.contains("_bucket")).toList();
+        assertEquals(Histogram.bucketCount(), buckets.size());
+        assertEquals("chat_latency_seconds_bucket{le=\"" + Histogram.upperBoundNanos(0) / 1e9 + "\"} 1", buckets.get(0));
+        assertEquals("chat_latency_seconds_bucket{le=\"" + Histogram.upperBoundNanos(1) / 1e9 + "\"} 3", buckets.get(1));
+        assertTrue(buckets.get(buckets.size() - 2).endsWith("} 3"), buckets.get(buckets.size() - 2));
+        assertEquals("chat_latency_seconds_bucket{le=\"+Inf\"} 4", buckets.get(buckets.size() - 1));
+        assertTrue(registry.prometheus().endsWith("chat_latency_seconds_count 4\n"));
+        assertEquals(4L, registry.attributes().get("chat_latency_seconds_count"));
+    }
+
+    @Test
+    void listsAttributesInRegistrationOrder() {
+        registry.gauge("b", "B.", () -> 1.5);
+        registry.counter("a", "A.", () -> 7);
+        registry.histogram("c", "C.", new Histogram());
+
+        assertEquals(List.of("b", "a", "c_count", "c_mean"), List.copyOf(registry.attributes().keySet()));
+        assertEquals(1.5, registry.attributes().get("b"));
+        assertEquals(7L, registry.attributes().get("a"));
+        assertEquals(0.0, registry.attributes().get("c_mean"));
+    }
+
+    @Test
+    void computesRatesOverTheLastSample() {
+        AtomicLong sent = new AtomicLong();
+        registry.rate("chat_sent_per_second", "Sent per second.", sent::get);
+        long now = System.nanoTime() + SECOND;
+        registry.sampleRates(now);
+
+        sent.addAndGet(50);
+        registry.sampleRates(now + SECOND / 2);
+        assertEquals(100.0, registry.attributes().get("chat_sent_per_second"));
+
+        registry.sampleRates(now + SECOND);
+        assertEquals(0.0, registry.attributes().get("chat_sent_per_second"));
+        // A sample from the past is ignored instead of giving a negative rate
+        sent.addAndGet(10);
+        registry.sampleRates(now);
+        assertEquals(0.0, registry.attributes().get("chat_sent_per_second"));
+    }
+}
@@ -0,0 +1,230 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.FrameType;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+    private final ServerStats stats = new ServerStats();
+
+    @Test
+    void dropOldestKeepsTheNewestPackets() {
+        OutboundQueue queue = new OutboundQueue(3, OverflowPolicy.DROP_OLDEST, stats);
+        Packet[] packets = packets(5);
+
+        for (Packet packet : packets) assertTrue(queue.offer(packet));
+
+        assertEquals(List.of(packets[2], packets[3], packets[4]), drain(queue));
+        assertEquals(2, stats.droppedOldest.sum());
+    }
+
+    @Test
+    void dropNewestKeepsTheOldestPackets() {
+        OutboundQueue queue = new OutboundQueue(3, OverflowPolicy.DROP_NEWEST, stats);
+        Packet[] packets = packets(5);
+
+        for (Packet packet : packets) assertTrue(queue.offer(packet));
+
+        assertEquals(List.of(packets[0], packets[1], packets[2]), drain(queue));
+        assertEquals(2, stats.droppedNewest.sum());
+    }
+
+    @Test
+    void disconnectRefusesThePacketThatDoesNotFit() {
+        OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DISCONNECT, stats);
+        Packet[] packets = packets(3);
+
+        assertTrue(queue.offer(packets[0]));
+        assertTrue(queue.offer(packets[1]));
+        assertFalse(queue.offer(packets[2]));
+
+        assertEquals(2, queue.size());
+        assertEquals(1, stats.slowConsumerDisconnects.sum());
+    }
+
+    @Test
+    void offerAllStopsAtTheFirstRefusal() {
+        OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DISCONNECT, stats);
+
+        assertFalse(queue.offerAll(packets(3)));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    void wrapsAroundTheRing() {
+        OutboundQueue queue = new OutboundQueue(3, OverflowPolicy.DISCONNECT, stats);
+        Packet[] packets = packets(7);
+
+        for (int i = 0; i < packets.length; i++) {
+            assertTrue(queue.offer(packets[i]));
+            if (i >= 1) assertSame(packets[i - 1], queue.poll());
+        }
+
+        assertSame(packets[6], queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void closeDropsThePacketsAndReleasesTheWriter() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(4, OverflowPolicy.DISCONNECT, stats);
+        queue.offer(packets(1)[0]);
+
+        queue.close();
+
+        assertTrue(queue.isEmpty());
+        assertNull(queue.take());
+        // Offers after a close are accepted and forgotten
+        assertTrue(queue.offer(packets(1)[0]));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    void aParkedQueueCollectsButHandsNothingOut() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(4, OverflowPolicy.DISCONNECT, stats);
+
+        assertTrue(queue.park());
+        assertTrue(queue.offer(packets(1)[0]));
+
+        assertEquals(1, queue.size());
+        assertNull(queue.poll());
+        assertNull(queue.take());
+        assertEquals(0, queue.drainTo(new Packet[4], 0, 4));
+    }
+
+    @Test
+    void aFullParkedQueueDropsInsteadOfDisconnecting() {
+        OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DISCONNECT, stats);
+        queue.park();
+
+        for (Packet packet : packets(3)) assertTrue(queue.offer(packet));
+
+        assertEquals(2, queue.size());
+        assertEquals(1, stats.droppedNewest.sum());
+        assertEquals(0, stats.slowConsumerDisconnects.sum());
+    }
+
+    @Test
+    void parkingAClosedQueueFails() {
+        OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DISCONNECT, stats);
+        queue.close();
+
+        assertFalse(queue.park());
+    }
+
+    @Test
+    void handOverReplaysWhatTheClientMissedAndThenWhatWasWaiting() {
+        OutboundQueue old = new OutboundQueue(8, OverflowPolicy.DISCONNECT, stats);
+        Packet session = Packet.of(FrameType.SESSION, 0, "token", "30");
+        Packet[] packets = packets(5);
+        // SESSION is packet 0, the next three are 1..3
+        old.startSession(session, 0, 4);
+        old.offer(session);
+        for (int i = 0; i < 3; i++) old.offer(packets[i]);
+        assertEquals(4, drain(old).size());
+        // 4 and 5 arrive while the connection is gone
+        old.park();
+        old.offer(packets[3]);
+        old.offer(packets[4]);
+
+        OutboundQueue fresh = new OutboundQueue(8, OverflowPolicy.DISCONNECT, stats);
+        Packet resumed = Packet.of(FrameType.RESUMED, 0, "1");
+        List<String> steps = new ArrayList<>();
+        int replayed = OutboundQueue.handOver(old, fresh, resumed, 1, 4, () -> steps.add("forward"));
+
+        assertEquals(2, replayed);
+        assertEquals(List.of("forward"), steps);
+        assertEquals(List.of(resumed, packets[1], packets[2], packets[3], packets[4]), drain(fresh));
+        assertTrue(old.isForwarded());
+        assertFalse(old.isParked());
+        // Later offers to the old queue fail, so the sender goes to the new one
+        assertFalse(old.offer(packets(1)[0]));
+    }
+
+    @Test
+    void handOverKeepsNumberingOnTheNewQueue() {
+        OutboundQueue old = parkedSession(3);
+        OutboundQueue fresh = new OutboundQueue(8, OverflowPolicy.DISCONNECT, stats);
+        Packet resumed = Packet.of(FrameType.RESUMED, 0, "3");
+        assertEquals(0, OutboundQueue.handOver(old, fresh, resumed, 3, 4, () -> {}));
+        // The first packet taken after RESUMED:3 is number 4, so a second resume from 3 replays it
+        Packet fourth = packets(1)[0];
+        fresh.offer(fourth);
+        drain(fresh);
+        fresh.park();
+
+        OutboundQueue third = new OutboundQueue(8, OverflowPolicy.DISCONNECT, stats);
+        Packet again = Packet.of(FrameType.RESUMED, 0, "3");
+        assertEquals(1, OutboundQueue.handOver(fresh, third, again, 3, 4, () -> {}));
+        assertEquals(List.of(again, fourth), drain(third));
+    }
+
+    @Test
+    void handOverRefusesWhatItCannotReplay() {
+        Runnable nothing = () -> {};
+        // Only the last 2 of 5 packets are remembered
+        OutboundQueue old = parkedSession(5, 2);
+        OutboundQueue fresh = new OutboundQueue(8, OverflowPolicy.DISCONNECT, stats);
+        Packet resumed = Packet.of(FrameType.RESUMED, 0, "0");
+
+        assertEquals(-1, OutboundQueue.handOver(old, fresh, resumed, 2, 2, nothing), "older than the replay buffer");
+        assertEquals(-1, OutboundQueue.handOver(old, fresh, resumed, 6, 2, nothing), "newer than anything sent");
+        assertEquals(1, OutboundQueue.handOver(old, fresh, resumed, 4, 2, nothing));
+
+        OutboundQueue live = new OutboundQueue(8, OverflowPolicy.DISCONNECT, stats);
+        assertEquals(-1, OutboundQueue.handOver(live, fresh, resumed, 0, 2, nothing), "not parked");
+    }
+
+    @Test
+    void handOverRefusesASessionThatLostPacketsWhileParked() {
+        OutboundQueue old = new OutboundQueue(1, OverflowPolicy.DISCONNECT, stats);
+        Packet session = Packet.of(FrameType.SESSION, 0, "token", "30");
+        old.startSession(session, 0, 4);
+        old.offer(session);
+        drain(old);
+        old.park();
+        old.offer(packets(1)[0]);
+        old.offer(packets(1)[0]);
+
+        OutboundQueue fresh = new OutboundQueue(8, OverflowPolicy.DISCONNECT, stats);
+        assertEquals(-1, OutboundQueue.handOver(old, fresh, Packet.of(FrameType.RESUMED, 0, "0"), 0, 4, () -> {}));
+    }
+
+    /**
+     * A parked queue whose writer took the SESSION packet and then count more.
+     */
+    private OutboundQueue parkedSession(int count) {
+        return parkedSession(count, 4);
+    }
+
+    private OutboundQueue parkedSession(int count, int replayCapacity) {
+        OutboundQueue queue = new OutboundQueue(8, OverflowPolicy.DISCONNECT, stats);
+        Packet session = Packet.of(FrameType.SESSION, 0, "token", "30");
+        queue.startSession(session, 0, replayCapacity);
+        queue.offer(session);
+        for (Packet packet : packets(count)) queue.offer(packet);
+        drain(queue);
+        queue.park();
+        return queue;
+    }
+
+    private static Packet[] packets(int count) {
+        Packet[] packets = new Packet[count];
+        for (int i = 0; i < count; i++) packets[i] = Packet.of(FrameType.SYSTEM, 0, "packet " + i);
+        return packets;
+    }
+
+    private static List<Packet> drain(OutboundQueue queue) {
+        Packet[] batch = new Packet[16];
+        int count = queue.drainTo(batch, 0, batch.length);
+        return List.of(Arrays.copyOf(batch, count));
+    }
+}
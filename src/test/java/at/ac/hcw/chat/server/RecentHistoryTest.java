@@ -0,0 +1,61 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.FrameType;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RecentHistoryTest {
+    private final RecentHistory history = new RecentHistory(8);
+
+    @Test
+    void returnsTheNewestMessagesBelowTheIdOldestFirst() {
+        for (long id = 1; id <= 6; id++) history.add(message(id));
+
+        assertEquals(List.of(4L, 5L, 6L), ids(history.before(Long.MAX_VALUE, 3)));
+        assertEquals(List.of(2L, 3L, 4L), ids(history.before(5, 3)));
+        assertEquals(List.of(1L, 2L), ids(history.before(3, 10)));
+        assertEquals(List.of(), ids(history.before(1, 10)));
+    }
+
+    @Test
+    void forgetsTheOldestMessagesOnceFull() {
+        for (long id = 1; id <= 20; id++) history.add(message(id));
+
+        assertEquals(List.of(13L, 14L, 15L, 16L, 17L, 18L, 19L, 20L), ids(history.before(Long.MAX_VALUE, 100)));
+        assertEquals(List.of(), ids(history.before(13, 100)));
+    }
+
+    @Test
+    void roundsTheCapacityUpToAPowerOfTwo() {
+        RecentHistory five = new RecentHistory(5);
+        for (long id = 1; id <= 10; id++) five.add(message(id));
+
+        assertEquals(List.of(3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L), ids(five.before(Long.MAX_VALUE, 100)));
+    }
+
+    @Test
+    void sortsMessagesStoredOutOfOrder() {
+        // Two senders claimed their ids in one order and stored them in the other
+        history.add(message(2));
+        history.add(message(1));
+        history.add(message(3));
+
+        assertEquals(List.of(1L, 2L, 3L), ids(history.before(Long.MAX_VALUE, 10)));
+    }
+
+    @Test
+    void isEmptyAtFirst() {
+        assertEquals(List.of(), history.before(Long.MAX_VALUE, 10));
+    }
+
+    private static Packet message(long id) {
+        return Packet.message(id, false, FrameType.CHAT, 0, "alice", "/a.jpeg", "message " + id);
+    }
+
+    private static List<Long> ids(List<Packet> packets) {
+        return packets.stream().map(Packet::messageId).toList();
+    }
+}
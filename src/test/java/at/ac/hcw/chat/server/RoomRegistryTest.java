@@ -0,0 +1,90 @@
+package at.ac.hcw.chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoomRegistryTest {
+    private final RoomRegistry registry = new RoomRegistry(3, 16);
+
+    @Test
+    void returnsTheSameRoomForTheSameName() {
+        Room java = registry.getOrCreate("java");
+
+        assertSame(java, registry.getOrCreate("java"));
+        assertNotSame(java, registry.getOrCreate("rust"));
+        assertEquals("java", java.name);
+    }
+
+    @Test
+    void keepsARoomWhileItHasMembers() {
+        Room java = registry.getOrCreate("java");
+        java.members.put("alice", connection());
+
+        registry.removeIfEmpty(java);
+
+        assertFalse(java.closed);
+        assertSame(java, registry.getOrCreate("java"));
+    }
+
+    @Test
+    void dropsAnEmptyRoomAndCreatesAFreshOneAfterwards() {
+        Room java = registry.getOrCreate("java");
+
+        registry.removeIfEmpty(java);
+
+        assertTrue(java.closed);
+        assertEquals(Set.of(), names());
+        // A joiner that still holds the old room sees it closed and asks again
+        Room fresh = registry.getOrCreate("java");
+        assertNotSame(java, fresh);
+        assertFalse(fresh.closed);
+        // Dropping the old room a second time leaves the new one alone
+        registry.removeIfEmpty(java);
+        assertSame(fresh, registry.getOrCreate("java"));
+    }
+
+    @Test
+    void listsTheRoomsOfEveryShard() {
+        for (int i = 0; i < 100; i++) registry.getOrCreate("room-" + i);
+
+        Set<String> names = names();
+
+        assertEquals(100, names.size());
+        assertTrue(names.contains("room-0"));
+        assertTrue(names.contains("room-99"));
+    }
+
+    private Set<String> names() {
+        return registry.rooms().stream().map(room -> room.name).collect(Collectors.toSet());
+    }
+
+    /**
+     * A member that is never opened; the registry only looks at whether a room has any.
+     */
+    private static Connection connection() {
+        return new Connection(new ChatHub(new ServerConfig())) {
+            @Override
+            boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            void close() {
+            }
+
+            @Override
+            InetAddress remoteAddress() {
+                return InetAddress.getLoopbackAddress();
+            }
+        };
+    }
+}
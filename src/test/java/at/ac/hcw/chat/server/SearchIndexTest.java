@@ -0,0 +1,188 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.FrameType;
+import at.ac.hcw.chat.protocol.Protocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class SearchIndexTest {
+    private static final List<String> NO_ROOMS = List.of();
+
+    private final ServerStats stats = new ServerStats();
+
+    @TempDir
+    Path dir;
+    private MessageLog log;
+    private SearchIndex index;
+    private long nextId = 1;
+
+    @BeforeEach
+    void open() throws IOException {
+        log = MessageLog.open(new ServerConfig().historyDir(dir.toString()), new ServerStats());
+    }
+
+    @AfterEach
+    void close() {
+        if (index != null) index.close();
+        log.close();
+    }
+
+    @Test
+    void findsMessagesWithEveryWordNewestFirst() {
+        start();
+        long first = add(Protocol.LOBBY, "alice", "The quick brown fox");
+        add(Protocol.LOBBY, "bob", "a quick reply");
+        long third = add(Protocol.LOBBY, "carol", "QUICK, the fox!");
+        awaitIndexed();
+
+        assertHits(search("quick fox", "dave", NO_ROOMS, 0, 10), 0, third, first);
+        assertHits(search("Fox", "dave", NO_ROOMS, 0, 10), 0, third, first);
+        assertHits(search("fox unknown", "dave", NO_ROOMS, 0, 10), 0);
+        assertHits(search(" ,.! ", "dave", NO_ROOMS, 0, 10), 0);
+    }
+
+    @Test
+    void pagesAcrossPostingBlocks() {
+        start();
+        // Well over two blocks of 128 postings for "common", one in three also "rare"
+        List<Long> all = new ArrayList<>();
+        List<Long> rare = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            long id = add(Protocol.LOBBY, "alice", i % 3 == 0 ? "common rare " + i : "common " + i);
+            all.add(0, id);
+            if (i % 3 == 0) rare.add(0, id);
+        }
+        awaitIndexed();
+
+        assertEquals(all, collectPages("common", 7));
+        assertEquals(all, collectPages("common", 128));
+        assertEquals(rare, collectPages("rare common", 9));
+    }
+
+    @Test
+    void nextBeforeContinuesRightAfterTheLastHit() {
+        start();
+        long[] ids = new long[5];
+        for (int i = 0; i < ids.length; i++) ids[i] = add(Protocol.LOBBY, "alice", "page " + i);
+        awaitIndexed();
+
+        SearchIndex.Hits first = search("page", "bob", NO_ROOMS, 0, 2);
+        assertHits(first, ids[3], ids[4], ids[3]);
+        SearchIndex.Hits second = search("page", "bob", NO_ROOMS, first.nextBefore, 2);
+        assertHits(second, ids[1], ids[2], ids[1]);
+        // The last page ends the list: nothing older to ask for
+        assertHits(search("page", "bob", NO_ROOMS, second.nextBefore, 2), 0, ids[0]);
+    }
+
+    @Test
+    void showsPrivateMessagesOnlyToTheirTwoSides() {
+        start();
+        long toBob = add("@bob", "alice", "secret plan");
+        long toAlice = add("@alice", "bob", "secret reply");
+        long lobby = add(Protocol.LOBBY, "carol", "no secret here");
+        awaitIndexed();
+
+        assertHits(search("secret", "alice", NO_ROOMS, 0, 10), 0, lobby, toAlice, toBob);
+        assertHits(search("secret", "bob", NO_ROOMS, 0, 10), 0, lobby, toAlice, toBob);
+        assertHits(search("secret", "carol", NO_ROOMS, 0, 10), 0, lobby);
+    }
+
+    @Test
+    void showsRoomMessagesOnlyToCurrentMembers() {
+        start();
+        long inRoom = add("#java", "alice", "generics question");
+        long elsewhere = add("#rust", "bob", "generics answer");
+        awaitIndexed();
+
+        assertHits(search("generics", "carol", List.of("java"), 0, 10), 0, inRoom);
+        assertHits(search("generics", "carol", List.of("java", "rust"), 0, 10), 0, elsewhere, inRoom);
+        assertHits(search("generics", "carol", NO_ROOMS, 0, 10), 0);
+    }
+
+    @Test
+    void indexesWhatTheLogHeldBeforeTheStart() {
+        long stored = log.append(Protocol.LOBBY,
+                id -> Packet.message(id, false, FrameType.CHAT, 0, "alice", "/a.jpeg", "from the last run")).messageId();
+        nextId = stored + 1;
+        start();
+        long live = add(Protocol.LOBBY, "bob", "after the last run");
+        awaitIndexed();
+
+        assertHits(search("last run", "carol", NO_ROOMS, 0, 10), 0, live, stored);
+    }
+
+    @Test
+    void countsOnlyTheMessagesItAdded() {
+        start();
+        add(Protocol.LOBBY, "alice", "first");
+        long second = add(Protocol.LOBBY, "alice", "second");
+        awaitIndexed();
+        // Offered a second time: skipped, since ids only grow
+        index.add(second, Protocol.LOBBY, "alice", "second");
+        add(Protocol.LOBBY, "alice", "third");
+        awaitIndexed();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stats.searchIndexed() < 3 && System.currentTimeMillis() < deadline) Thread.onSpinWait();
+        assertEquals(3, stats.searchIndexed());
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    void splitsTextIntoLowercaseWords() {
+        assertEquals(List.of("grüße", "aus", "wien", "2024"), List.copyOf(SearchIndex.terms("Grüße aus WIEN, 2024!")));
+        assertEquals(Set.of("a", "b"), SearchIndex.terms("a-b a_b"));
+        // Words longer than the limit are left out entirely, not cut
+        assertEquals(List.of("short"), List.copyOf(SearchIndex.terms("x".repeat(SearchIndex.MAX_TERM_LENGTH + 1) + " short")));
+    }
+
+    private void start() {
+        index = SearchIndex.start(log, stats);
+    }
+
+    private long add(String channel, String sender, String text) {
+        long id = nextId++;
+        index.add(id, channel, sender, text);
+        return id;
+    }
+
+    private void awaitIndexed() {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (index.size() < nextId - 1) {
+            if (System.currentTimeMillis() > deadline) fail("indexed only " + index.size() + " of " + (nextId - 1));
+            Thread.onSpinWait();
+        }
+    }
+
+    private SearchIndex.Hits search(String query, String viewer, List<String> rooms, long before, int limit) {
+        return index.search(query, viewer, rooms, before, limit);
+    }
+
+    private List<Long> collectPages(String query, int limit) {
+        List<Long> ids = new ArrayList<>();
+        long before = 0;
+        do {
+            SearchIndex.Hits hits = search(query, "bob", NO_ROOMS, before, limit);
+            for (long id : hits.messageIds) ids.add(id);
+            before = hits.nextBefore;
+        } while (before != 0);
+        return ids;
+    }
+
+    private static void assertHits(SearchIndex.Hits hits, long nextBefore, long... ids) {
+        assertArrayEquals(ids, hits.messageIds);
+        assertEquals(nextBefore, hits.nextBefore);
+    }
+}
@@ -0,0 +1,121 @@
+package at.ac.hcw.chat.server;
+
+import at.ac.hcw.chat.protocol.Frame;
+import at.ac.hcw.chat.protocol.FrameDecoder;
+import at.ac.hcw.chat.protocol.FrameType;
+import at.ac.hcw.chat.protocol.Protocol;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class SenderTableTest {
+    private final SenderTable senders = new SenderTable();
+
+    @Test
+    void numbersEachSenderOnceStartingAtOne() {
+        SenderTable.Sender alice = senders.intern("alice", "/a.jpeg");
+
+        assertEquals(1, alice.id);
+        assertSame(alice, senders.intern("alice", "/a.jpeg"));
+        assertEquals(2, senders.intern("bob", "/b.jpeg").id);
+        assertEquals(2, senders.size());
+    }
+
+    @Test
+    void sharesAvatarsBetweenSenders() {
+        SenderTable.Sender alice = senders.intern("alice", "/shared.jpeg");
+        SenderTable.Sender bob = senders.intern("bob", "/shared.jpeg");
+        // Same name with another avatar is another sender
+        SenderTable.Sender otherAlice = senders.intern("alice", "/other.jpeg");
+
+        assertSame(alice.avatar, bob.avatar);
+        assertEquals(1, alice.avatar.id);
+        assertNotSame(alice, otherAlice);
+        assertEquals(2, otherAlice.avatar.id);
+    }
+
+    @Test
+    void internsOnlyTheSendersOfChatMessages() {
+        Packet chat = Packet.message(1, false, FrameType.CHAT, 0, "alice", "/a.jpeg", "hi");
+        Packet room = Packet.message(2, false, FrameType.ROOM_CHAT, 0, "java", "alice", "/a.jpeg", "hi");
+        Packet direct = Packet.of(FrameType.PRIVATE_FROM, 0, "alice", "/a.jpeg", "psst");
+
+        assertSame(senders.intern("alice", "/a.jpeg"), chat.sender(senders));
+        assertSame(chat.sender(senders), room.sender(senders));
+        assertNull(direct.sender(senders));
+        assertNull(Packet.of(FrameType.SYSTEM, 0, "hello").sender(senders));
+    }
+
+    @Test
+    void definesASenderOnlyBeforeItsFirstMessage() throws ProtocolException {
+        ChatHub hub = new ChatHub(new ServerConfig());
+        Connection connection = connection(hub);
+        connection.protocolVersion = Packet.V2_INTERNED;
+        SenderTable table = hub.senders();
+
+        List<String> first = frames(connection.view(Packet.message(1, false, FrameType.CHAT, 0, "alice", "/a.jpeg", "one")));
+        List<String> second = frames(connection.view(Packet.message(2, false, FrameType.CHAT, 0, "alice", "/a.jpeg", "two")));
+        // Bob has the same avatar, which the client already knows
+        List<String> bob = frames(connection.view(Packet.message(3, false, FrameType.CHAT, 0, "bob", "/a.jpeg", "three")));
+
+        int alice = table.intern("alice", "/a.jpeg").id;
+        int avatar = table.intern("alice", "/a.jpeg").avatar.id;
+        assertEquals(List.of("AVATAR 0 " + avatar + ",/a.jpeg", "SENDER 0 " + alice + ",alice," + avatar,
+                "CHAT_REF " + alice + " one,1"), first);
+        assertEquals(List.of("CHAT_REF " + alice + " two,2"), second);
+        int bobId = table.intern("bob", "/a.jpeg").id;
+        assertEquals(List.of("SENDER 0 " + bobId + ",bob," + avatar, "CHAT_REF " + bobId + " three,3"), bob);
+    }
+
+    @Test
+    void sendsOtherMessagesInFull() throws ProtocolException {
+        Connection connection = connection(new ChatHub(new ServerConfig()));
+        connection.protocolVersion = Packet.V2_INTERNED;
+
+        assertEquals(List.of("PRIVATE_FROM 0 alice,/a.jpeg,psst"),
+                frames(connection.view(Packet.of(FrameType.PRIVATE_FROM, 0, "alice", "/a.jpeg", "psst"))));
+    }
+
+    // One "TYPE senderId field,field" line per frame
+    private static List<String> frames(ByteBuffer bytes) throws ProtocolException {
+        FrameDecoder decoder = new FrameDecoder(Protocol.MAX_FRAME_LENGTH);
+        List<String> frames = new ArrayList<>();
+        Frame frame;
+        while ((frame = decoder.next(bytes)) != null) {
+            List<String> fields = new ArrayList<>();
+            for (int i = 0; i < frame.fieldCount(); i++) fields.add(frame.string(i));
+            frames.add(frame.type() + " " + frame.senderId() + " " + String.join(",", fields));
+        }
+        return frames;
+    }
+
+    /**
+     * A connection that is never opened; only its writer's view of packets is used.
+     */
+    private static Connection connection(ChatHub hub) {
+        return new Connection(hub) {
+            @Override
+            boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            void close() {
+            }
+
+            @Override
+            InetAddress remoteAddress() {
+                return InetAddress.getLoopbackAddress();
+            }
+        };
+    }
+}
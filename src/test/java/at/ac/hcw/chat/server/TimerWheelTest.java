@@ -0,0 +1,151 @@
+package at.ac.hcw.chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimerWheelTest {
+    // A wheel without a thread, on a clock the test moves by hand
+    private long nowNanos = 1_000_000_000L;
+    private final TimerWheel wheel = new TimerWheel(() -> nowNanos, false);
+    private final List<String> ran = new ArrayList<>();
+
+    @Test
+    void runsATaskAtItsTickAndNotBefore() {
+        wheel.schedule(250, TimeUnit.MILLISECONDS, () -> ran.add("task"));
+
+        advanceMillis(200);
+        assertEquals(List.of(), ran);
+        // 250 ms rounds up to the start of the third tick
+        advanceMillis(100);
+        assertEquals(List.of("task"), ran);
+        advanceMillis(1000);
+        assertEquals(List.of("task"), ran);
+    }
+
+    @Test
+    void runsTasksInTheOrderTheyFallDue() {
+        wheel.schedule(500, TimeUnit.MILLISECONDS, () -> ran.add("late"));
+        wheel.schedule(100, TimeUnit.MILLISECONDS, () -> ran.add("early"));
+        wheel.schedule(300, TimeUnit.MILLISECONDS, () -> ran.add("middle"));
+
+        for (int i = 0; i < 10; i++) advanceMillis(100);
+
+        assertEquals(List.of("early", "middle", "late"), ran);
+    }
+
+    @Test
+    void catchesUpOnEveryTickItMissed() {
+        wheel.schedule(100, TimeUnit.MILLISECONDS, () -> ran.add("first"));
+        wheel.schedule(5, TimeUnit.SECONDS, () -> ran.add("second"));
+
+        advanceMillis(10_000);
+
+        assertEquals(List.of("first", "second"), ran);
+    }
+
+    @Test
+    void aCancelledTaskNeverRuns() {
+        TimerWheel.Timeout timeout = wheel.schedule(200, TimeUnit.MILLISECONDS, () -> ran.add("cancelled"));
+        wheel.schedule(200, TimeUnit.MILLISECONDS, () -> ran.add("kept"));
+        advanceMillis(100);
+
+        timeout.cancel();
+        advanceMillis(500);
+
+        assertEquals(List.of("kept"), ran);
+    }
+
+    @Test
+    void cancellingBeforeTheWheelSawTheTaskWorksToo() {
+        wheel.schedule(100, TimeUnit.MILLISECONDS, () -> ran.add("cancelled")).cancel();
+
+        advanceMillis(500);
+
+        assertEquals(List.of(), ran);
+    }
+
+    @Test
+    void waitsWholeRotationsForTimeoutsLongerThanTheWheel() {
+        // One rotation is 512 ticks of 100 ms; these share a slot with the 1 s task
+        long rotationMillis = 512 * TimerWheel.TICK_MILLIS;
+        wheel.schedule(1000, TimeUnit.MILLISECONDS, () -> ran.add("now"));
+        wheel.schedule(rotationMillis + 1000, TimeUnit.MILLISECONDS, () -> ran.add("one rotation"));
+        wheel.schedule(3 * rotationMillis + 1000, TimeUnit.MILLISECONDS, () -> ran.add("three rotations"));
+
+        advanceMillis(1000);
+        assertEquals(List.of("now"), ran);
+        advanceMillis(rotationMillis - 100);
+        assertEquals(List.of("now"), ran);
+        advanceMillis(100);
+        assertEquals(List.of("now", "one rotation"), ran);
+        advanceMillis(2 * rotationMillis - 100);
+        assertEquals(List.of("now", "one rotation"), ran);
+        advanceMillis(100);
+        assertEquals(List.of("now", "one rotation", "three rotations"), ran);
+    }
+
+    @Test
+    void schedulesPastTheEndOfTheWheel() {
+        // Starting near the last slot, the deadline wraps around to the first ones
+        advanceMillis(510 * TimerWheel.TICK_MILLIS);
+        wheel.schedule(500, TimeUnit.MILLISECONDS, () -> ran.add("wrapped"));
+
+        advanceMillis(400);
+        assertEquals(List.of(), ran);
+        advanceMillis(100);
+        assertEquals(List.of("wrapped"), ran);
+    }
+
+    @Test
+    void aTaskMayScheduleTheNextOne() {
+        wheel.schedule(100, TimeUnit.MILLISECONDS, () -> {
+            ran.add("first");
+            wheel.schedule(100, TimeUnit.MILLISECONDS, () -> ran.add("second"));
+        });
+
+        advanceMillis(100);
+        assertEquals(List.of("first"), ran);
+        advanceMillis(100);
+        assertEquals(List.of("first", "second"), ran);
+    }
+
+    @Test
+    void aFailingTaskDoesNotStopTheOthers() {
+        wheel.schedule(100, TimeUnit.MILLISECONDS, () -> { throw new IllegalStateException("expected by the test"); });
+        wheel.schedule(100, TimeUnit.MILLISECONDS, () -> ran.add("after"));
+
+        advanceMillis(100);
+
+        assertEquals(List.of("after"), ran);
+    }
+
+    @Test
+    void theRealWheelRunsOnItsOwnThread() throws InterruptedException {
+        TimerWheel real = new TimerWheel();
+        CountDownLatch done = new CountDownLatch(1);
+        List<String> threads = new ArrayList<>();
+        try {
+            real.schedule(50, TimeUnit.MILLISECONDS, () -> {
+                threads.add(Thread.currentThread().getName());
+                done.countDown();
+            });
+
+            assertTrue(done.await(2, TimeUnit.SECONDS));
+            assertEquals(List.of("chat-timer"), threads);
+        } finally {
+            real.close();
+        }
+    }
+
+    private void advanceMillis(long millis) {
+        nowNanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        wheel.advance();
+    }
+}